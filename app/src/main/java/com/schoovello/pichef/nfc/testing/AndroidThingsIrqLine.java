@@ -0,0 +1,91 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import java.io.IOException;
+
+/**
+ * {@link IrqLine} backed by an Android Things {@link Gpio}. The PN512 drives its IRQ pin low
+ * while an enabled interrupt is pending (IRqInv set, push-pull output).<p/>
+ * Edge callbacks are delivered on a dedicated thread, so the thread blocked waiting for the
+ * interrupt never has to service its own wake-up.
+ */
+public class AndroidThingsIrqLine implements IrqLine {
+
+	private final Gpio mGpio;
+
+	private final HandlerThread mCallbackThread;
+	private final Handler mCallbackHandler;
+
+	@Nullable
+	private volatile Listener mListener;
+
+	private boolean mCallbackRegistered;
+
+	public AndroidThingsIrqLine(@NonNull Gpio gpio) throws IOException {
+		mGpio = gpio;
+		mGpio.setDirection(Gpio.DIRECTION_IN);
+		mGpio.setActiveType(Gpio.ACTIVE_HIGH);
+		mGpio.setEdgeTriggerType(Gpio.EDGE_FALLING);
+
+		mCallbackThread = new HandlerThread("Pn512IrqThread");
+		mCallbackThread.start();
+		mCallbackHandler = new Handler(mCallbackThread.getLooper());
+	}
+
+	@Override
+	public void setListener(@Nullable Listener listener) throws IOException {
+		mListener = listener;
+
+		if (listener != null && !mCallbackRegistered) {
+			mGpio.registerGpioCallback(mCallbackHandler, mGpioCallback);
+			mCallbackRegistered = true;
+		} else if (listener == null && mCallbackRegistered) {
+			mGpio.unregisterGpioCallback(mGpioCallback);
+			mCallbackRegistered = false;
+		}
+	}
+
+	@Override
+	public boolean isAsserted() throws IOException {
+		return !mGpio.getValue();
+	}
+
+	@Override
+	public void close() throws IOException {
+		setListener(null);
+		mCallbackThread.quit();
+		mGpio.close();
+	}
+
+	private final GpioCallback mGpioCallback = new GpioCallback() {
+		@Override
+		public boolean onGpioEdge(Gpio gpio) {
+			Listener listener = mListener;
+			if (listener != null) {
+				listener.onIrqAsserted();
+			}
+			return true;
+		}
+	};
+
+}
@@ -0,0 +1,57 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.things.pio.SpiDevice;
+
+import java.io.IOException;
+
+/**
+ * {@link SpiPort} backed by an Android Things {@link SpiDevice}, configured the way the PN512
+ * expects (mode 0, 8 bits per word, chip select held for the whole transfer).
+ */
+public class AndroidThingsSpiPort implements SpiPort {
+
+	private final SpiDevice mSpi;
+
+	public AndroidThingsSpiPort(@NonNull SpiDevice spiDevice) throws IOException {
+		mSpi = spiDevice;
+		mSpi.setBitsPerWord(8);
+		mSpi.setMode(SpiDevice.MODE0);
+		mSpi.setCsChange(false);
+	}
+
+	@Override
+	public void setFrequency(int frequencyHz) throws IOException {
+		mSpi.setFrequency(frequencyHz);
+	}
+
+	@Override
+	public void write(byte[] buffer, int length) throws IOException {
+		mSpi.write(buffer, length);
+	}
+
+	@Override
+	public void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+		mSpi.transfer(txBuffer, rxBuffer, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mSpi.close();
+	}
+
+}
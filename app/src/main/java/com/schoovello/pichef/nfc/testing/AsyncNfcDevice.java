@@ -0,0 +1,300 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking front end to a {@link Pn512NfcDevice}. Commands are queued and run one at a time
+ * on a thread that owns the device, and each returns a future that completes with the command's
+ * result, so any number of components can share a reader without locking around it.<p/>
+ * The queue is bounded: submitting blocks while it is full. Cancelling a queued command removes it;
+ * cancelling the running one {@link Pn512NfcDevice#abort() aborts} it, which returns the chip to
+ * idle, and its future completes as cancelled once the command has returned.<p/>
+ * Futures complete on the owner thread, so stages chained with the non-async
+ * {@link CompletableFuture} methods run there and hold up the next command; use the
+ * {@code ...Async} variants for anything more than a quick look at the result.<p/>
+ * Buffers passed to a command belong to it until its future completes.
+ */
+public class AsyncNfcDevice {
+
+	private final Pn512NfcDevice mDevice;
+	private final BlockingQueue<Job<?>> mQueue;
+	private final Thread mThread;
+
+	private final Object mLock = new Object();
+	// guarded by mLock
+	private Job<?> mRunningJob;
+	private boolean mClosed;
+
+	/**
+	 * Takes ownership of {@code device} and starts its owner thread. The device must not be used
+	 * directly from then on.
+	 * @param queueCapacity the number of commands that may wait to run.
+	 */
+	public AsyncNfcDevice(@NonNull Pn512NfcDevice device, int queueCapacity) {
+		mDevice = device;
+		mQueue = new ArrayBlockingQueue<>(queueCapacity);
+		mThread = new Thread(mRunnable, "Pn512CommandThread");
+		mThread.start();
+	}
+
+	/**
+	 * Stops the owner thread, cancelling the running command and any still queued, and closes the
+	 * device.
+	 */
+	public void close() {
+		List<Job<?>> pending = new ArrayList<>();
+		Job<?> running;
+		synchronized (mLock) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			mQueue.drainTo(pending);
+			running = mRunningJob;
+		}
+		for (Job<?> job : pending) {
+			job.cancel(true);
+		}
+		if (running != null) {
+			running.cancel(true);
+		}
+		mThread.interrupt();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		mDevice.close();
+	}
+
+	/**
+	 * @return the device the commands run on, for its metrics. Don't issue commands on it directly.
+	 */
+	public Pn512NfcDevice getDevice() {
+		return mDevice;
+	}
+
+	/**
+	 * @return the number of commands waiting to run.
+	 */
+	public int getQueuedCount() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Detects and selects a card.
+	 * @return a future for whether a card was selected; {@code card} holds it if so.
+	 * @see Iso14443aReader#activate(Iso14443aCard)
+	 */
+	public CompletableFuture<Boolean> activate(@NonNull final Iso14443aCard card) throws InterruptedException {
+		return submit(new Job<Boolean>() {
+			@Override
+			Boolean run(Pn512NfcDevice device) throws IOException {
+				return new Iso14443aReader(device).activate(card);
+			}
+		});
+	}
+
+	/**
+	 * @return a future for {@code result}, filled in with the response.
+	 * @see Pn512NfcDevice#transceive(byte[], int, int, boolean, TransceiveResult)
+	 */
+	public CompletableFuture<TransceiveResult> transceive(final byte[] tx, final int offset,
+			final int length, final boolean crc, @NonNull final TransceiveResult result) throws InterruptedException {
+		return submit(new Job<TransceiveResult>() {
+			@Override
+			TransceiveResult run(Pn512NfcDevice device) throws IOException {
+				return device.transceive(tx, offset, length, crc, result);
+			}
+		});
+	}
+
+	/**
+	 * @see Pn512NfcDevice#calculateCrcOnChip(Crc16, byte[], int, int)
+	 */
+	public CompletableFuture<Integer> calculateCrcOnChip(@NonNull final Crc16 crc, final byte[] data,
+			final int offset, final int length) throws InterruptedException {
+		return submit(new Job<Integer>() {
+			@Override
+			Integer run(Pn512NfcDevice device) throws IOException {
+				return device.calculateCrcOnChip(crc, data, offset, length);
+			}
+		});
+	}
+
+	/**
+	 * @see Pn512NfcDevice#selfTest()
+	 */
+	public CompletableFuture<Boolean> selfTest() throws InterruptedException {
+		return submit(new Job<Boolean>() {
+			@Override
+			Boolean run(Pn512NfcDevice device) throws IOException {
+				return device.selfTest();
+			}
+		});
+	}
+
+	/**
+	 * Executes a batch made with {@link Pn512NfcDevice#newRegisterBatch()} on the device.
+	 * @return a future for {@code batch}, holding the results of its reads.
+	 */
+	public CompletableFuture<RegisterBatch> execute(@NonNull final RegisterBatch batch) throws InterruptedException {
+		return submit(new Job<RegisterBatch>() {
+			@Override
+			RegisterBatch run(Pn512NfcDevice device) throws IOException {
+				batch.execute();
+				return batch;
+			}
+		});
+	}
+
+	/**
+	 * Queues a job, waiting for space if the queue is full.
+	 * @throws IllegalStateException if this has been closed.
+	 */
+	private <T> Job<T> submit(Job<T> job) throws InterruptedException {
+		job.mOwner = this;
+		synchronized (mLock) {
+			if (mClosed) {
+				throw new IllegalStateException("device closed");
+			}
+		}
+		mQueue.put(job);
+		synchronized (mLock) {
+			// close() may have drained the queue before the job went in
+			if (mClosed && mQueue.remove(job)) {
+				job.cancel(true);
+			}
+		}
+		return job;
+	}
+
+	/**
+	 * Marks a job cancelled, so the owner thread won't start it, and aborts it if it is running.
+	 * @return whether the job is running, in which case the owner thread completes it once the
+	 * command returns.
+	 */
+	private boolean requestCancel(Job<?> job) {
+		synchronized (mLock) {
+			job.mCancelRequested = true;
+			if (job == mRunningJob) {
+				mDevice.abort();
+				return true;
+			}
+		}
+		mQueue.remove(job);
+		return false;
+	}
+
+	private final Runnable mRunnable = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (mLock) {
+					// a command may have swallowed the interrupt from close()
+					if (mClosed) {
+						return;
+					}
+				}
+
+				final Job<?> job;
+				try {
+					job = mQueue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				synchronized (mLock) {
+					if (mClosed) {
+						job.cancel(true);
+						return;
+					}
+					if (job.isDone() || job.mCancelRequested) {
+						continue;
+					}
+					mRunningJob = job;
+				}
+
+				job.execute(mDevice);
+
+				final boolean cancelled;
+				synchronized (mLock) {
+					mRunningJob = null;
+					cancelled = job.mCancelRequested;
+					// an abort that arrived after the command finished must not hit the next one
+					mDevice.clearAbort();
+				}
+				job.finish(cancelled);
+			}
+		}
+	};
+
+	/**
+	 * A command and its result. Cancelling it takes it out of the queue, or aborts it if it is
+	 * running; a running job stays incomplete until the command has returned, so its buffers are
+	 * never in use once the future is done.
+	 */
+	private abstract static class Job<T> extends CompletableFuture<T> {
+
+		AsyncNfcDevice mOwner;
+		// guarded by the owner's mLock
+		boolean mCancelRequested;
+
+		// written and read on the owner thread
+		private T mResult;
+		private Exception mFailure;
+
+		abstract T run(Pn512NfcDevice device) throws IOException;
+
+		void execute(Pn512NfcDevice device) {
+			try {
+				mResult = run(device);
+			} catch (IOException | RuntimeException e) {
+				mFailure = e;
+			}
+		}
+
+		/**
+		 * Completes the future after {@link #execute}, as cancelled if a cancel came in while the
+		 * command ran.
+		 */
+		void finish(boolean cancelled) {
+			if (cancelled) {
+				super.cancel(true);
+			} else if (mFailure != null) {
+				completeExceptionally(mFailure);
+			} else {
+				complete(mResult);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (mOwner.requestCancel(this)) {
+				return true;
+			}
+			return super.cancel(mayInterruptIfRunning);
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Emulates an ISO14443A card to an external reader, e.g. a phone, in the PN512's card operation
+ * mode.<p/>
+ * AUTOCOLL answers the reader's activation on the chip. Every command after SELECT goes through
+ * the host, which must answer it within the reader's frame waiting time, so responses are
+ * worked out when the emulator is set up: each command maps to a ready-made response in an
+ * open-addressing table, and serving a frame costs one lookup and, for a short command, two SPI
+ * transfers for reading it and one batch for the response.<p/>
+ * The host turnaround, from the frame being noticed to the response being handed to the chip,
+ * is recorded in {@link #getTurnaroundLatencies()}.<p/>
+ * Not thread safe; like the device, it should be used from one background thread.
+ */
+public class CardEmulator {
+
+	/**
+	 * Longest command the table holds, CRC excluded.
+	 */
+	public static final int MAX_COMMAND_LENGTH = 16;
+
+	private static final int TABLE_CAPACITY = 1024;
+	private static final int TABLE_MASK = TABLE_CAPACITY - 1;
+
+	private static final int CONFIG_LENGTH = Pn512NfcDevice.ConstantData.CONFIG_BUFFER_CLEAR.length;
+
+	private interface Action {
+		byte RESPOND = 1;
+		byte HALT = 2;
+	}
+
+	private interface Type2 {
+		byte READ = 0x30;
+		int PAGE_SIZE = 4;
+		int READ_PAGES = 4;
+		byte NAK_INVALID_ARGUMENT = 0x0;
+	}
+
+	private static final byte[] HLTA = { 0x50, 0x00 };
+
+	private final Pn512NfcDevice mDevice;
+	private final byte[] mConfig = new byte[CONFIG_LENGTH];
+
+	private final byte[][] mCommands = new byte[TABLE_CAPACITY][];
+	private final byte[][] mResponses = new byte[TABLE_CAPACITY][];
+	private final int[] mResponseBits = new int[TABLE_CAPACITY];
+	private final byte[] mActions = new byte[TABLE_CAPACITY];
+	private int mEntryCount;
+
+	@Nullable
+	private byte[] mDefaultResponse;
+	private int mDefaultResponseBits;
+
+	private final TransceiveResult mCommand = new TransceiveResult(MAX_COMMAND_LENGTH);
+	private final LatencyHistogram mTurnaround = new LatencyHistogram();
+
+	private boolean mStarted;
+	private long mFramesServed;
+	private long mUnknownCommandCount;
+	private long mHaltCount;
+	private long mFieldLossCount;
+
+	/**
+	 * @param nfcid1 bytes 1-3 of the 4-byte UID; the chip always sends 08h, a random UID, as
+	 * byte 0.
+	 * @param sensRes the ATQA, in transmission order.
+	 * @param selRes the SAK.
+	 */
+	public CardEmulator(@NonNull Pn512NfcDevice device, byte[] nfcid1, byte[] sensRes, byte selRes) {
+		if (nfcid1.length != 3 || sensRes.length != 2) {
+			throw new IllegalArgumentException("NFCID1 is 3 bytes and SENS_RES 2 bytes");
+		}
+		mDevice = device;
+		System.arraycopy(sensRes, 0, mConfig, 0, 2);
+		System.arraycopy(nfcid1, 0, mConfig, 2, 3);
+		mConfig[5] = selRes;
+		addHaltCommand(HLTA);
+	}
+
+	/**
+	 * An NFC Forum Type 2 tag holding {@code memory}, a whole number of 4-byte pages, pages 0-2
+	 * included. Every READ is answered from the table, with the 16 bytes wrapping around to page
+	 * 0 past the end as on an NTAG; anything else gets a NAK.
+	 */
+	public static CardEmulator type2Tag(@NonNull Pn512NfcDevice device, byte[] nfcid1, byte[] memory) {
+		final int pageCount = memory.length / Type2.PAGE_SIZE;
+		if (memory.length % Type2.PAGE_SIZE != 0 || pageCount < Type2.READ_PAGES || pageCount > 256) {
+			throw new IllegalArgumentException("memory must be 4 to 256 pages of 4 bytes");
+		}
+		CardEmulator emulator = new CardEmulator(device, nfcid1,
+				Pn512NfcDevice.ConstantData.ULTRALIGHT_ATQA, (byte) 0x00);
+		final byte[] command = new byte[2];
+		final byte[] response = new byte[Type2.READ_PAGES * Type2.PAGE_SIZE];
+		command[0] = Type2.READ;
+		for (int page = 0; page < pageCount; page++) {
+			for (int i = 0; i < response.length; i++) {
+				response[i] = memory[(page * Type2.PAGE_SIZE + i) % memory.length];
+			}
+			command[1] = (byte) page;
+			emulator.addResponse(command, response);
+		}
+		emulator.setDefaultResponse(new byte[] { Type2.NAK_INVALID_ARGUMENT }, 4);
+		return emulator;
+	}
+
+	/**
+	 * Answers {@code command}, CRC excluded, with {@code response}; the chip appends the CRC.
+	 */
+	public void addResponse(byte[] command, byte[] response) {
+		put(command, response, response.length * 8, Action.RESPOND);
+	}
+
+	/**
+	 * Answers {@code command} with the first {@code bits} bits of {@code response}. A response
+	 * that doesn't end on a byte boundary, such as a 4-bit ACK or NAK, is sent without CRC.
+	 */
+	public void addResponseBits(byte[] command, byte[] response, int bits) {
+		if (bits <= 0 || bits > response.length * 8) {
+			throw new IllegalArgumentException("bits out of range");
+		}
+		put(command, response, bits, Action.RESPOND);
+	}
+
+	/**
+	 * Makes {@code command} send the card to sleep without an answer, as HLTA does; AUTOCOLL
+	 * takes over again until the next activation.
+	 */
+	public void addHaltCommand(byte[] command) {
+		put(command, null, 0, Action.HALT);
+	}
+
+	/**
+	 * Sets the answer to commands missing from the table, {@code null} to ignore them.
+	 */
+	public void setDefaultResponse(@Nullable byte[] response, int bits) {
+		mDefaultResponse = response == null ? null : Arrays.copyOf(response, (bits + 7) / 8);
+		mDefaultResponseBits = response == null ? 0 : bits;
+	}
+
+	private void put(byte[] command, @Nullable byte[] response, int bits, byte action) {
+		if (command.length == 0 || command.length > MAX_COMMAND_LENGTH) {
+			throw new IllegalArgumentException("commands are 1 to " + MAX_COMMAND_LENGTH + " bytes");
+		}
+		if ((bits + 7) / 8 > Pn512NfcDevice.Values.FIFO_SIZE) {
+			throw new IllegalArgumentException("responses must fit in the FIFO");
+		}
+		int slot = find(command, command.length);
+		if (mCommands[slot] == null) {
+			// keep the table at most half full, so probe sequences stay short
+			if (mEntryCount >= TABLE_CAPACITY / 2) {
+				throw new IllegalStateException("response table is full");
+			}
+			mCommands[slot] = command.clone();
+			mEntryCount++;
+		}
+		mResponses[slot] = response == null ? null : Arrays.copyOf(response, (bits + 7) / 8);
+		mResponseBits[slot] = bits;
+		mActions[slot] = action;
+	}
+
+	/**
+	 * @return the slot holding the command, or the empty slot where it would go.
+	 */
+	private int find(byte[] command, int length) {
+		int slot = hash(command, length) & TABLE_MASK;
+		while (true) {
+			final byte[] key = mCommands[slot];
+			if (key == null || matches(key, command, length)) {
+				return slot;
+			}
+			slot = (slot + 1) & TABLE_MASK;
+		}
+	}
+
+	private static int hash(byte[] data, int length) {
+		// FNV-1a
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ (data[i] & 0xff)) * 0x01000193;
+		}
+		return hash ^ hash >>> 16;
+	}
+
+	private static boolean matches(byte[] key, byte[] data, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the anticollision data into the chip and starts listening for a reader.
+	 */
+	public void start() throws IOException {
+		mDevice.configureCardMode(mConfig);
+		mDevice.startAutocoll();
+		mStarted = true;
+	}
+
+	/**
+	 * Waits for the next command from the reader and answers it. If the reader's field went away,
+	 * listening starts over.
+	 * @return {@code true} if a frame was handled, {@code false} if none came within the timeout.
+	 */
+	public boolean serve(long timeoutMs) throws IOException {
+		if (!mStarted) {
+			throw new IllegalStateException("not started");
+		}
+		final byte flags = mDevice.awaitTargetFrame(timeoutMs);
+		if (flags != Pn512NfcDevice.Values.COMM_IRQ_RX) {
+			if (flags != 0) {
+				mFieldLossCount++;
+				mDevice.startAutocoll();
+			}
+			return false;
+		}
+
+		final long startNanos = System.nanoTime();
+		final TransceiveResult command = mDevice.readTargetFrame(mCommand);
+		int slot = -1;
+		if (command.isOk() && command.getLastBits() == 8 && command.getLength() > 0) {
+			slot = find(command.getData(), command.getLength());
+			if (mCommands[slot] == null) {
+				slot = -1;
+			}
+		}
+
+		if (slot < 0) {
+			mUnknownCommandCount++;
+			final byte[] response = mDefaultResponse;
+			if (response != null) {
+				mDevice.respondAsTarget(response, 0, response.length, mDefaultResponseBits % 8);
+			} else {
+				mDevice.ignoreTargetFrame();
+			}
+		} else if (mActions[slot] == Action.HALT) {
+			mHaltCount++;
+			mDevice.startAutocoll();
+		} else {
+			final byte[] response = mResponses[slot];
+			//noinspection ConstantConditions
+			mDevice.respondAsTarget(response, 0, response.length, mResponseBits[slot] % 8);
+		}
+		mTurnaround.record(System.nanoTime() - startNanos);
+		mFramesServed++;
+		return true;
+	}
+
+	/**
+	 * @return the time from noticing each frame to handing its response to the chip.
+	 */
+	public LatencyHistogram.Snapshot getTurnaroundLatencies() {
+		return mTurnaround.snapshot();
+	}
+
+	public long getFramesServed() {
+		return mFramesServed;
+	}
+
+	public long getUnknownCommandCount() {
+		return mUnknownCommandCount;
+	}
+
+	public long getHaltCount() {
+		return mHaltCount;
+	}
+
+	public long getFieldLossCount() {
+		return mFieldLossCount;
+	}
+
+}
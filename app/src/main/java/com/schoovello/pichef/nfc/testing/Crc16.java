@@ -0,0 +1,127 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Host-side CRC-16 (CCITT polynomial, reflected, as used by ISO14443 and computed by the PN512
+ * coprocessor), so frames can be checked and completed without SPI round trips.<p/>
+ * Uses slice-by-4 lookup tables: four bytes are folded into the CRC per step. CRCs are
+ * transmitted low byte first.
+ */
+public class Crc16 {
+
+	/**
+	 * ISO14443-3 Type A.
+	 */
+	public static final Crc16 CRC_A = new Crc16(0x6363, 0x0000);
+
+	/**
+	 * ISO14443-3 Type B.
+	 */
+	public static final Crc16 CRC_B = new Crc16(0xffff, 0xffff);
+
+	/**
+	 * CRC-16/KERMIT, i.e. the coprocessor with a preset of 0000h.
+	 */
+	public static final Crc16 KERMIT = new Crc16(0x0000, 0x0000);
+
+	private static final int POLYNOMIAL_REFLECTED = 0x8408;
+
+	private static final int[] TABLE_0 = new int[256];
+	private static final int[] TABLE_1 = new int[256];
+	private static final int[] TABLE_2 = new int[256];
+	private static final int[] TABLE_3 = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL_REFLECTED : crc >>> 1;
+			}
+			TABLE_0[i] = crc;
+		}
+		// TABLE_n[i] is the CRC of byte i followed by n zero bytes
+		for (int i = 0; i < 256; i++) {
+			TABLE_1[i] = (TABLE_0[i] >>> 8) ^ TABLE_0[TABLE_0[i] & 0xff];
+			TABLE_2[i] = (TABLE_1[i] >>> 8) ^ TABLE_0[TABLE_1[i] & 0xff];
+			TABLE_3[i] = (TABLE_2[i] >>> 8) ^ TABLE_0[TABLE_2[i] & 0xff];
+		}
+	}
+
+	private final int mInitialValue;
+	private final int mFinalXor;
+
+	public Crc16(int initialValue, int finalXor) {
+		mInitialValue = initialValue & 0xffff;
+		mFinalXor = finalXor & 0xffff;
+	}
+
+	public int getInitialValue() {
+		return mInitialValue;
+	}
+
+	public int getFinalXor() {
+		return mFinalXor;
+	}
+
+	public int compute(byte[] data, int offset, int length) {
+		return update(mInitialValue, data, offset, length) ^ mFinalXor;
+	}
+
+	/**
+	 * Appends the CRC of {@code data[0..length)} to {@code data}, low byte first.
+	 * @return the new frame length.
+	 */
+	public int append(byte[] data, int length) {
+		int crc = compute(data, 0, length);
+		data[length] = (byte) crc;
+		data[length + 1] = (byte) (crc >> 8);
+		return length + 2;
+	}
+
+	/**
+	 * @return {@code true} if the last two bytes of the frame are the CRC of the bytes before them.
+	 */
+	public boolean verify(byte[] data, int offset, int length) {
+		if (length < 2) {
+			return false;
+		}
+		int crc = compute(data, offset, length - 2);
+		int end = offset + length;
+		return (byte) crc == data[end - 2] && (byte) (crc >> 8) == data[end - 1];
+	}
+
+	/**
+	 * Feeds bytes into a raw CRC register value, without the final XOR.
+	 */
+	public static int update(int crc, byte[] data, int offset, int length) {
+		int i = offset;
+		final int end = offset + length;
+
+		for (final int blockEnd = end - 3; i < blockEnd; i += 4) {
+			int x = crc ^ ((data[i] & 0xff) | (data[i + 1] & 0xff) << 8);
+			crc = TABLE_3[x & 0xff]
+					^ TABLE_2[x >>> 8]
+					^ TABLE_1[data[i + 2] & 0xff]
+					^ TABLE_0[data[i + 3] & 0xff];
+		}
+
+		for (; i < end; i++) {
+			crc = (crc >>> 8) ^ TABLE_0[(crc ^ data[i]) & 0xff];
+		}
+
+		return crc;
+	}
+
+}
@@ -0,0 +1,250 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for a {@link Pn512NfcDevice}: how long each kind of operation
+ * takes, how much SPI traffic it causes, how often the driver polls or sleeps on the IRQ pin, and
+ * how many exchanges fail.<p/>
+ * Operations are recorded by the thread driving the device, between {@link #begin(int)} and
+ * {@link #end(int)}; an operation kind can't be nested in itself. Recording is lock-free and
+ * never allocates, and any thread may take a {@link Snapshot} at any time.
+ */
+public class DeviceMetrics {
+
+	public interface Operation {
+		int ACTIVATION = 0;
+		int TRANSCEIVE = 1;
+		int TRANSMIT = 2;
+		int CRC = 3;
+		int SELF_TEST = 4;
+		int AUTHENTICATION = 5;
+
+		int _COUNT = 6;
+	}
+
+	private final LatencyHistogram[] mLatencies = new LatencyHistogram[Operation._COUNT];
+	private final AtomicLongArray mOperationTransfers = new AtomicLongArray(Operation._COUNT);
+	private final AtomicLongArray mOperationBytes = new AtomicLongArray(Operation._COUNT);
+
+	// start of the operation in progress, per kind; only touched by the recording thread
+	private final long[] mStartNanos = new long[Operation._COUNT];
+	private final long[] mStartTransfers = new long[Operation._COUNT];
+	private final long[] mStartBytes = new long[Operation._COUNT];
+
+	private final AtomicLong mSpiTransfers = new AtomicLong();
+	private final AtomicLong mSpiBytes = new AtomicLong();
+	private final AtomicLong mPollIterations = new AtomicLong();
+	private final AtomicLong mIrqWaits = new AtomicLong();
+	private final AtomicLong mTimeouts = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+
+	private boolean mEnabled = true;
+
+	public DeviceMetrics() {
+		for (int i = 0; i < Operation._COUNT; i++) {
+			mLatencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Turns recording on or off. Must be called from the thread driving the device.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public void begin(int operation) {
+		if (!mEnabled) {
+			return;
+		}
+		mStartTransfers[operation] = mSpiTransfers.get();
+		mStartBytes[operation] = mSpiBytes.get();
+		mStartNanos[operation] = System.nanoTime();
+	}
+
+	public void end(int operation) {
+		if (!mEnabled) {
+			return;
+		}
+		mLatencies[operation].record(System.nanoTime() - mStartNanos[operation]);
+		mOperationTransfers.addAndGet(operation, mSpiTransfers.get() - mStartTransfers[operation]);
+		mOperationBytes.addAndGet(operation, mSpiBytes.get() - mStartBytes[operation]);
+	}
+
+	void onSpiTransfer(int length) {
+		if (mEnabled) {
+			mSpiTransfers.incrementAndGet();
+			mSpiBytes.addAndGet(length);
+		}
+	}
+
+	void onPoll() {
+		if (mEnabled) {
+			mPollIterations.incrementAndGet();
+		}
+	}
+
+	void onIrqWait() {
+		if (mEnabled) {
+			mIrqWaits.incrementAndGet();
+		}
+	}
+
+	void onTransceiveResult(int status) {
+		if (status == TransceiveResult.Status.TIMEOUT) {
+			onTimeout();
+		} else if (status == TransceiveResult.Status.ERROR && mEnabled) {
+			mErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a command the driver gave up waiting for, whether it is reported in a result or
+	 * thrown.
+	 */
+	void onTimeout() {
+		if (mEnabled) {
+			mTimeouts.incrementAndGet();
+		}
+	}
+
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Copies the current state into {@code dest}. The copy is not atomic: counters updated while it
+	 * is taken may be a few operations apart.
+	 */
+	public void snapshot(Snapshot dest) {
+		for (int i = 0; i < Operation._COUNT; i++) {
+			mLatencies[i].snapshot(dest.mLatencies[i]);
+			dest.mOperationTransfers[i] = mOperationTransfers.get(i);
+			dest.mOperationBytes[i] = mOperationBytes.get(i);
+		}
+		dest.mSpiTransfers = mSpiTransfers.get();
+		dest.mSpiBytes = mSpiBytes.get();
+		dest.mPollIterations = mPollIterations.get();
+		dest.mIrqWaits = mIrqWaits.get();
+		dest.mTimeouts = mTimeouts.get();
+		dest.mErrors = mErrors.get();
+	}
+
+	public static class Snapshot {
+
+		private static final String[] OPERATION_NAMES = {
+				"activation", "transceive", "transmit", "crc", "self test", "authentication"
+		};
+
+		final LatencyHistogram.Snapshot[] mLatencies = new LatencyHistogram.Snapshot[Operation._COUNT];
+		final long[] mOperationTransfers = new long[Operation._COUNT];
+		final long[] mOperationBytes = new long[Operation._COUNT];
+		long mSpiTransfers;
+		long mSpiBytes;
+		long mPollIterations;
+		long mIrqWaits;
+		long mTimeouts;
+		long mErrors;
+
+		public Snapshot() {
+			for (int i = 0; i < Operation._COUNT; i++) {
+				mLatencies[i] = new LatencyHistogram.Snapshot();
+			}
+		}
+
+		public LatencyHistogram.Snapshot getLatency(int operation) {
+			return mLatencies[operation];
+		}
+
+		/**
+		 * @return the SPI transfers made during operations of this kind, in total.
+		 */
+		public long getOperationSpiTransfers(int operation) {
+			return mOperationTransfers[operation];
+		}
+
+		/**
+		 * @return the SPI bytes clocked during operations of this kind, in total.
+		 */
+		public long getOperationSpiBytes(int operation) {
+			return mOperationBytes[operation];
+		}
+
+		public double getMeanSpiTransfers(int operation) {
+			long count = mLatencies[operation].getCount();
+			return count == 0 ? 0 : (double) mOperationTransfers[operation] / count;
+		}
+
+		public double getMeanSpiBytes(int operation) {
+			long count = mLatencies[operation].getCount();
+			return count == 0 ? 0 : (double) mOperationBytes[operation] / count;
+		}
+
+		public long getSpiTransfers() {
+			return mSpiTransfers;
+		}
+
+		public long getSpiBytes() {
+			return mSpiBytes;
+		}
+
+		/**
+		 * @return the number of times a wait loop read a register to see whether the chip was done.
+		 */
+		public long getPollIterations() {
+			return mPollIterations;
+		}
+
+		/**
+		 * @return the number of times the driver slept waiting for the IRQ pin.
+		 */
+		public long getIrqWaits() {
+			return mIrqWaits;
+		}
+
+		public long getTimeouts() {
+			return mTimeouts;
+		}
+
+		public long getErrors() {
+			return mErrors;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("spi: %d transfers, %d bytes; %d polls, %d irq waits; %d timeouts, %d errors",
+					mSpiTransfers, mSpiBytes, mPollIterations, mIrqWaits, mTimeouts, mErrors));
+			for (int i = 0; i < Operation._COUNT; i++) {
+				if (mLatencies[i].getCount() == 0) {
+					continue;
+				}
+				builder.append(String.format("\n%s: %s, %.1f transfers, %.1f bytes", OPERATION_NAMES[i],
+						mLatencies[i], getMeanSpiTransfers(i), getMeanSpiBytes(i)));
+			}
+			return builder.toString();
+		}
+	}
+
+}
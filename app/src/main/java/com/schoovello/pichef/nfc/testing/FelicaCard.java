@@ -0,0 +1,101 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Identity of a FeliCa card as learned from its polling response. Instances are filled in by
+ * {@link FelicaReader} and may be reused.
+ */
+public class FelicaCard {
+
+	public static final int IDM_LENGTH = 8;
+	public static final int PMM_LENGTH = 8;
+
+	final byte[] mIdm = new byte[IDM_LENGTH];
+	final byte[] mPmm = new byte[PMM_LENGTH];
+	final byte[] mRequestData = new byte[2];
+	boolean mHasRequestData;
+
+	public byte getIdmByte(int index) {
+		return mIdm[index];
+	}
+
+	/**
+	 * @return the number of bytes copied.
+	 */
+	public int copyIdm(byte[] dest, int offset) {
+		System.arraycopy(mIdm, 0, dest, offset, IDM_LENGTH);
+		return IDM_LENGTH;
+	}
+
+	/**
+	 * @return the IDm packed into a long, most significant byte first, for keying tables without
+	 * boxing.
+	 */
+	public long getIdmKey() {
+		long key = 0;
+		for (int i = 0; i < IDM_LENGTH; i++) {
+			key = key << 8 | (mIdm[i] & 0xffL);
+		}
+		return key;
+	}
+
+	public byte[] getIdm() {
+		return mIdm.clone();
+	}
+
+	/**
+	 * @return the PMm: IC code, then the response time parameters of each command class.
+	 */
+	public byte[] getPmm() {
+		return mPmm.clone();
+	}
+
+	/**
+	 * @return whether the polling request asked for request data, and the card sent it.
+	 */
+	public boolean hasRequestData() {
+		return mHasRequestData;
+	}
+
+	/**
+	 * @return the system code or communication performance the polling request asked for, as
+	 * sent by the card, or {@code -1} if there was none.
+	 */
+	public int getRequestData() {
+		return mHasRequestData ? (mRequestData[0] & 0xff) << 8 | (mRequestData[1] & 0xff) : -1;
+	}
+
+	public void copyFrom(FelicaCard other) {
+		System.arraycopy(other.mIdm, 0, mIdm, 0, IDM_LENGTH);
+		System.arraycopy(other.mPmm, 0, mPmm, 0, PMM_LENGTH);
+		System.arraycopy(other.mRequestData, 0, mRequestData, 0, 2);
+		mHasRequestData = other.mHasRequestData;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("FelicaCard{idm=");
+		for (byte b : mIdm) {
+			sb.append(String.format("%02X", b));
+		}
+		sb.append(", pmm=");
+		for (byte b : mPmm) {
+			sb.append(String.format("%02X", b));
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+}
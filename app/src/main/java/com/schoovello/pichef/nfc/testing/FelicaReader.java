@@ -0,0 +1,356 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * FeliCa (JIS X 6319-4) reader on top of {@link Pn512NfcDevice}, which must have been
+ * initialized with {@link InitProfile#felicaReader(int)}.<p/>
+ * Polling asks the cards in the field to answer in one of up to 16 time slots, each picking its
+ * own at random. The receiver is kept on for the whole window with
+ * {@link Pn512NfcDevice#transceiveMultiple}, so every card that got a slot to itself is found by
+ * a single exchange; cards that picked the same slot garble each other and are counted as
+ * collisions, to be found by the next poll.<p/>
+ * Read Without Encryption asks for up to 15 blocks per command. The response timeout of each
+ * command is worked out from the card's PMm and the number of blocks, rather than waiting out a
+ * worst case.<p/>
+ * Not thread safe; like the device, it should be used from one background thread.
+ */
+public class FelicaReader {
+
+	public static final int BLOCK_SIZE = 16;
+
+	/**
+	 * The most time slots a polling request can open.
+	 */
+	public static final int MAX_TIME_SLOTS = 16;
+
+	/**
+	 * The most blocks Read Without Encryption can return: its response length byte counts up to
+	 * 255.
+	 */
+	public static final int MAX_BLOCKS_PER_READ = 15;
+
+	/**
+	 * Blocks per Read Without Encryption that every FeliCa card takes, FeliCa Lite-S included.
+	 */
+	public static final int DEFAULT_BLOCKS_PER_READ = 4;
+
+	/**
+	 * Polling system code that every card answers; {@code FF} in either byte matches any value.
+	 */
+	public static final int SYSTEM_CODE_ANY = 0xffff;
+
+	public interface RequestCode {
+		int NONE = 0;
+		int SYSTEM_CODE = 1;
+		int COMMUNICATION_PERFORMANCE = 2;
+	}
+
+	private interface CommandCode {
+		byte POLLING = 0x00;
+		byte POLLING_RESPONSE = 0x01;
+		byte READ_WITHOUT_ENCRYPTION = 0x06;
+		byte READ_WITHOUT_ENCRYPTION_RESPONSE = 0x07;
+	}
+
+	/**
+	 * Time from the end of a polling request to the start of time slot 0, and the length of each
+	 * slot.
+	 */
+	private static final int POLLING_RESPONSE_US = 2_417;
+	private static final int TIME_SLOT_US = 1_208;
+
+	/**
+	 * Unit of the PMm response time parameters: 256 * 16 / fc.
+	 */
+	private static final int RESPONSE_TIME_UNIT_NS = 302_064;
+
+	private static final int PMM_READ_PARAMETER = 5;
+
+	/**
+	 * Status flag 2 for a block count the card can't handle in one command.
+	 */
+	private static final byte STATUS_ILLEGAL_BLOCK_COUNT = (byte) 0xa2;
+
+	private static final int POLLING_REQUEST_LENGTH = 6;
+	private static final int POLLING_RESPONSE_LENGTH = 2 + FelicaCard.IDM_LENGTH + FelicaCard.PMM_LENGTH;
+	private static final int READ_RESPONSE_HEADER_LENGTH = 2 + FelicaCard.IDM_LENGTH + 3;
+
+	private final Pn512NfcDevice mDevice;
+
+	/**
+	 * Every slot's response plus the error byte the chip appends to it.
+	 */
+	private final TransceiveResult mPollResult =
+			new TransceiveResult(MAX_TIME_SLOTS * (POLLING_RESPONSE_LENGTH + 2 + 1));
+	private final TransceiveResult mReadResult =
+			new TransceiveResult(READ_RESPONSE_HEADER_LENGTH + MAX_BLOCKS_PER_READ * BLOCK_SIZE);
+
+	/**
+	 * LEN, command code, IDm, one service code and up to 15 three-byte block list elements.
+	 */
+	private final byte[] mFrame = new byte[2 + FelicaCard.IDM_LENGTH + 3 + 1 + MAX_BLOCKS_PER_READ * 3];
+
+	private int mMaxBlocksPerRead = DEFAULT_BLOCKS_PER_READ;
+	private int mLastStatusFlags;
+
+	private long mPollCount;
+	private long mCollisionCount;
+	private long mReadCommandCount;
+
+	public FelicaReader(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+	}
+
+	/**
+	 * Switches between 212 and 424 kbps, both ways. Cards answer polling at either.
+	 */
+	public void setBitRate(int bitRate) throws IOException {
+		if (bitRate != Pn512NfcDevice.BitRate.KBPS_212 && bitRate != Pn512NfcDevice.BitRate.KBPS_424) {
+			throw new IllegalArgumentException("FeliCa runs at 212 or 424 kbps");
+		}
+		mDevice.setBitRates(bitRate, bitRate);
+	}
+
+	/**
+	 * Caps the blocks asked for in one Read Without Encryption. Defaults to
+	 * {@link #DEFAULT_BLOCKS_PER_READ}, and is lowered when a card reports the count as illegal,
+	 * or a response overflows the FIFO.
+	 */
+	public void setMaxBlocksPerRead(int blocks) {
+		if (blocks < 1 || blocks > MAX_BLOCKS_PER_READ) {
+			throw new IllegalArgumentException("blocks per read must be between 1 and " + MAX_BLOCKS_PER_READ);
+		}
+		mMaxBlocksPerRead = blocks;
+	}
+
+	public int getMaxBlocksPerRead() {
+		return mMaxBlocksPerRead;
+	}
+
+	/**
+	 * Polls for cards with {@code timeSlots} time slots and collects every response that arrives
+	 * in the window.
+	 * @param systemCode the system the cards must belong to, or {@link #SYSTEM_CODE_ANY}.
+	 * @param requestCode one of {@link RequestCode}, for the data the cards add to their
+	 * responses.
+	 * @param timeSlots 1, 2, 4, 8 or 16.
+	 * @param cards receives the cards found, in the order of their time slots.
+	 * @return the number of cards found, at most {@code cards.length}.
+	 */
+	public int poll(int systemCode, int requestCode, int timeSlots, @NonNull FelicaCard[] cards)
+			throws IOException {
+		if (timeSlots < 1 || timeSlots > MAX_TIME_SLOTS || (timeSlots & (timeSlots - 1)) != 0) {
+			throw new IllegalArgumentException("time slots must be 1, 2, 4, 8 or 16");
+		}
+		final byte[] frame = mFrame;
+		frame[0] = POLLING_REQUEST_LENGTH;
+		frame[1] = CommandCode.POLLING;
+		frame[2] = (byte) (systemCode >> 8);
+		frame[3] = (byte) systemCode;
+		frame[4] = (byte) requestCode;
+		frame[5] = (byte) (timeSlots - 1);
+
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		mDevice.setResponseTimeout(POLLING_RESPONSE_US + timeSlots * TIME_SLOT_US);
+		final TransceiveResult result = mPollResult;
+		try {
+			mDevice.transceiveMultiple(frame, 0, POLLING_REQUEST_LENGTH, result);
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+		}
+		mPollCount++;
+		if (result.getStatus() != TransceiveResult.Status.OK) {
+			return 0;
+		}
+
+		// each frame is its length byte and the rest of the frame, then the error byte
+		final byte[] data = result.getData();
+		final int length = result.getLength();
+		int found = 0;
+		int i = 0;
+		while (i < length) {
+			final int frameLength = data[i] & 0xff;
+			if (frameLength == 0 || i + frameLength >= length) {
+				mCollisionCount++;
+				break;
+			}
+			if (data[i + frameLength] != 0) {
+				// two cards in the same slot, or a response corrupted on its own
+				mCollisionCount++;
+			} else if (frameLength >= POLLING_RESPONSE_LENGTH && data[i + 1] == CommandCode.POLLING_RESPONSE
+					&& found < cards.length) {
+				final FelicaCard card = cards[found++];
+				System.arraycopy(data, i + 2, card.mIdm, 0, FelicaCard.IDM_LENGTH);
+				System.arraycopy(data, i + 2 + FelicaCard.IDM_LENGTH, card.mPmm, 0, FelicaCard.PMM_LENGTH);
+				card.mHasRequestData = frameLength >= POLLING_RESPONSE_LENGTH + 2;
+				if (card.mHasRequestData) {
+					System.arraycopy(data, i + POLLING_RESPONSE_LENGTH, card.mRequestData, 0, 2);
+				}
+			}
+			i += frameLength + 1;
+		}
+		return found;
+	}
+
+	/**
+	 * Reads consecutive blocks of one service that needs no authentication, as many per command
+	 * as {@link #setMaxBlocksPerRead(int)} allows.
+	 * @param serviceCode the service, e.g. {@code 000Bh} for the read-only blocks of a FeliCa
+	 * Lite-S.
+	 * @param dest receives {@code blockCount * 16} bytes.
+	 * @return the number of blocks read, or {@code -1} if the card stopped answering or reported
+	 * an error; see {@link #getLastStatusFlags()}.
+	 */
+	public int readWithoutEncryption(@NonNull FelicaCard card, int serviceCode, int firstBlock,
+			int blockCount, byte[] dest, int offset) throws IOException {
+		if (firstBlock < 0 || blockCount < 0 || firstBlock + blockCount > 0x10000) {
+			throw new IllegalArgumentException("blocks " + firstBlock + "+" + blockCount + " out of range");
+		}
+		mLastStatusFlags = 0;
+		int read = 0;
+		while (read < blockCount) {
+			final int blocks = Math.min(blockCount - read, mMaxBlocksPerRead);
+			final int status = readBlocks(card, serviceCode, firstBlock + read, blocks, dest, offset + read * BLOCK_SIZE);
+			if (status == TransceiveResult.Status.OK) {
+				read += blocks;
+			} else if (status == TransceiveResult.Status.ERROR && blocks > 1) {
+				// ask for the same blocks again in halves, and keep the lower count from then on
+				mMaxBlocksPerRead = blocks / 2;
+			} else {
+				return -1;
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * @return the status flags of the last Read Without Encryption response, flag 1 in the high
+	 * byte, or {@code -1} if it never came.
+	 */
+	public int getLastStatusFlags() {
+		return mLastStatusFlags;
+	}
+
+	public long getPollCount() {
+		return mPollCount;
+	}
+
+	/**
+	 * @return the number of polling responses lost to collisions with other cards' responses.
+	 */
+	public long getCollisionCount() {
+		return mCollisionCount;
+	}
+
+	public long getReadCommandCount() {
+		return mReadCommandCount;
+	}
+
+	/**
+	 * @return {@link TransceiveResult.Status#OK} if the blocks were read,
+	 * {@link TransceiveResult.Status#ERROR} if asking for fewer at a time might help, or
+	 * {@link TransceiveResult.Status#TIMEOUT} if it won't.
+	 */
+	private int readBlocks(FelicaCard card, int serviceCode, int firstBlock, int blocks, byte[] dest,
+			int offset) throws IOException {
+		final byte[] frame = mFrame;
+		int length = 1;
+		frame[length++] = CommandCode.READ_WITHOUT_ENCRYPTION;
+		System.arraycopy(card.mIdm, 0, frame, length, FelicaCard.IDM_LENGTH);
+		length += FelicaCard.IDM_LENGTH;
+		frame[length++] = 1;
+		frame[length++] = (byte) serviceCode;
+		frame[length++] = (byte) (serviceCode >> 8);
+		frame[length++] = (byte) blocks;
+		for (int i = 0; i < blocks; i++) {
+			final int block = firstBlock + i;
+			// block list elements for the first service in the list: two bytes up to block 255
+			if (block < 0x100) {
+				frame[length++] = (byte) 0x80;
+				frame[length++] = (byte) block;
+			} else {
+				frame[length++] = 0x00;
+				frame[length++] = (byte) block;
+				frame[length++] = (byte) (block >> 8);
+			}
+		}
+		frame[0] = (byte) length;
+
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		mDevice.setResponseTimeout(responseTimeUs(card.mPmm[PMM_READ_PARAMETER], blocks));
+		final TransceiveResult result = mReadResult;
+		try {
+			mDevice.transceive(frame, 0, length, true, result);
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+		}
+		mReadCommandCount++;
+
+		if (!result.isOk()) {
+			mLastStatusFlags = -1;
+			return (result.getErrorFlags() & Pn512NfcDevice.Values.ERROR_BUFFER_OVFL) != 0
+					? TransceiveResult.Status.ERROR
+					: TransceiveResult.Status.TIMEOUT;
+		}
+		final byte[] data = result.getData();
+		if (result.getLength() < READ_RESPONSE_HEADER_LENGTH - 1
+				|| data[1] != CommandCode.READ_WITHOUT_ENCRYPTION_RESPONSE
+				|| !idmMatches(card, data, 2)) {
+			mLastStatusFlags = -1;
+			return TransceiveResult.Status.TIMEOUT;
+		}
+		final int statusOffset = 2 + FelicaCard.IDM_LENGTH;
+		mLastStatusFlags = (data[statusOffset] & 0xff) << 8 | (data[statusOffset + 1] & 0xff);
+		if (data[statusOffset] != 0) {
+			return data[statusOffset + 1] == STATUS_ILLEGAL_BLOCK_COUNT
+					? TransceiveResult.Status.ERROR
+					: TransceiveResult.Status.TIMEOUT;
+		}
+		if (result.getLength() < READ_RESPONSE_HEADER_LENGTH + blocks * BLOCK_SIZE
+				|| data[statusOffset + 2] != blocks) {
+			mLastStatusFlags = -1;
+			return TransceiveResult.Status.TIMEOUT;
+		}
+		System.arraycopy(data, READ_RESPONSE_HEADER_LENGTH, dest, offset, blocks * BLOCK_SIZE);
+		return TransceiveResult.Status.OK;
+	}
+
+	/**
+	 * The longest a card takes to answer, from a PMm response time parameter: bits 2-0 (A) for
+	 * the fixed part, 5-3 (B) for the part per block and 7-6 (E) for the exponent of 4, in units
+	 * of {@link #RESPONSE_TIME_UNIT_NS}.
+	 */
+	private static int responseTimeUs(byte parameter, int blocks) {
+		final int a = parameter & 0b0000_0111;
+		final int b = (parameter >> 3) & 0b0000_0111;
+		final int e = (parameter >> 6) & 0b0000_0011;
+		final long nanos = (long) RESPONSE_TIME_UNIT_NS * ((b + 1) * blocks + a + 1) << (2 * e);
+		return (int) ((nanos + 999) / 1000);
+	}
+
+	private static boolean idmMatches(FelicaCard card, byte[] data, int offset) {
+		for (int i = 0; i < FelicaCard.IDM_LENGTH; i++) {
+			if (data[offset + i] != card.mIdm[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
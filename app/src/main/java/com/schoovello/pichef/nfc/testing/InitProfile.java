@@ -0,0 +1,240 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.Values;
+
+/**
+ * Register settings applied right after a soft reset by
+ * {@link Pn512NfcDevice#initialize(InitProfile)}. Each entry is checked when it is added, and
+ * only entries that differ from the chip's reset value are written; the rest just tell the
+ * device's {@link RegisterShadow} what the register holds, so the first commands after startup
+ * don't have to read their configuration back.
+ */
+public class InitProfile {
+
+	/**
+	 * Registers the driver sequences itself (commands, interrupts, FIFO) or that the host can't
+	 * set (status, results, test registers).
+	 */
+	private static final long RESERVED_REGISTERS =
+			bit(RegisterAddress.COMMAND_REG)
+			| bit(RegisterAddress.COM_I_EN_REG)
+			| bit(RegisterAddress.DIV_I_EN_REG)
+			| bit(RegisterAddress.COMM_IRQ_REG)
+			| bit(RegisterAddress.DIV_IRQ_REG)
+			| bit(RegisterAddress.ERROR_REG)
+			| bit(RegisterAddress.STATUS_1_REG)
+			| bit(RegisterAddress.STATUS_2_REG)
+			| bit(RegisterAddress.FIFO_DATA_REG)
+			| bit(RegisterAddress.FIFO_LEVEL_REG)
+			| bit(RegisterAddress.CRC_RESULT_MSB_REG)
+			| bit(RegisterAddress.CRC_RESULT_LSB_REG)
+			| bit(RegisterAddress.T_COUNTER_VAL_HI_REG)
+			| bit(RegisterAddress.T_COUNTER_VAL_LO_REG)
+			| bit(RegisterAddress.TEST_PIN_VALUE_REG)
+			| bit(RegisterAddress.TEST_BUS_REG)
+			| bit(RegisterAddress.AUTO_TEST_REG)
+			| bit(RegisterAddress.VERSION_REG)
+			| bit(RegisterAddress.TEST_ADC_REG)
+			| 1L // register 00h is reserved
+			| bit((byte) 0x10)
+			| bit((byte) 0x20)
+			| bit((byte) 0x30);
+
+	/**
+	 * Values the registers hold after a soft reset, for the registers whose reset value is
+	 * known; entries for other registers are always written.
+	 */
+	private static final byte[][] RESET_VALUES = {
+			{ RegisterAddress.WATER_LEVEL_REG, (byte) 0x08 },
+			{ RegisterAddress.CONTROL_REG, (byte) 0x00 },
+			{ RegisterAddress.BIT_FRAMING_REG, (byte) 0x00 },
+			{ RegisterAddress.MODE_REG, (byte) 0x3b },
+			{ RegisterAddress.TX_MODE_REG, (byte) 0x00 },
+			{ RegisterAddress.RX_MODE_REG, (byte) 0x00 },
+			{ RegisterAddress.TX_CONTROL_REG, (byte) 0x80 },
+			{ RegisterAddress.TX_AUTO_REG, (byte) 0x00 },
+			{ RegisterAddress.TX_SEL_REG, (byte) 0x10 },
+			{ RegisterAddress.RX_SEL_REG, (byte) 0x84 },
+			{ RegisterAddress.RX_THRESHOLD_REG, (byte) 0x84 },
+			{ RegisterAddress.DEMOD_REG, (byte) 0x4d },
+			{ RegisterAddress.MIF_NFC_REG, (byte) 0x62 },
+			{ RegisterAddress.MANUAL_RCV_REG, (byte) 0x00 },
+			{ RegisterAddress.TYPE_B_REG, (byte) 0x00 },
+			{ RegisterAddress.SERIAL_SPEED_REG, (byte) 0xeb },
+			{ RegisterAddress.MOD_WIDTH_REG, (byte) 0x26 },
+			{ RegisterAddress.RF_CFG_REG, (byte) 0x48 },
+			{ RegisterAddress.GS_N_ON_REG, (byte) 0x88 },
+			{ RegisterAddress.CW_GS_P_REG, (byte) 0x20 },
+			{ RegisterAddress.MOD_GS_P_REG, (byte) 0x20 },
+			{ RegisterAddress.T_MODE_REG, (byte) 0x00 },
+			{ RegisterAddress.T_PRESCALER_REG, (byte) 0x00 },
+			{ RegisterAddress.T_RELOAD_HI_REG, (byte) 0x00 },
+			{ RegisterAddress.T_RELOAD_LO_REG, (byte) 0x00 },
+	};
+
+	private static final int MAX_ENTRIES = 64;
+
+	private final byte[] mAddresses = new byte[MAX_ENTRIES];
+	private final byte[] mValues = new byte[MAX_ENTRIES];
+	private int mCount;
+
+	/**
+	 * ISO14443A reader mode at 106 kbps, as {@link Iso14443aReader} expects it:
+	 * <ul>
+	 *     <li>initiator mode, antenna driven, 100% ASK modulation</li>
+	 *     <li>CRC coprocessor preset to 6363h (CRC_A), frame CRCs off until a frame asks for
+	 *     them</li>
+	 *     <li>FIFO water level for streaming long frames</li>
+	 *     <li>timer started at the end of every transmission, ticking every 25 µs up to 25 ms</li>
+	 * </ul>
+	 */
+	public static InitProfile iso14443aReader() {
+		return new InitProfile()
+				.set(RegisterAddress.CONTROL_REG, Values.CONTROL_INITIATOR)
+				.set(RegisterAddress.TX_CONTROL_REG, Values.TX_CONTROL_ANTENNA_ON)
+				.set(RegisterAddress.TX_AUTO_REG, (byte) 0x40)
+				.set(RegisterAddress.MODE_REG, (byte) 0x3d)
+				.set(RegisterAddress.TX_MODE_REG, (byte) 0x00)
+				.set(RegisterAddress.RX_MODE_REG, (byte) 0x00)
+				.set(RegisterAddress.BIT_FRAMING_REG, (byte) 0x00)
+				.set(RegisterAddress.COLL_REG, (byte) 0x00)
+				.set(RegisterAddress.WATER_LEVEL_REG, Values.STREAMING_WATER_LEVEL)
+				.set(RegisterAddress.RF_CFG_REG, (byte) 0x48)
+				.set(RegisterAddress.T_MODE_REG, (byte) 0x80)
+				.set(RegisterAddress.T_PRESCALER_REG, (byte) 0xa9)
+				.set(RegisterAddress.T_RELOAD_HI_REG, (byte) 0x03)
+				.set(RegisterAddress.T_RELOAD_LO_REG, (byte) 0xe8);
+	}
+
+	/**
+	 * FeliCa reader mode, as {@link FelicaReader} expects it:
+	 * <ul>
+	 *     <li>initiator mode, antenna driven, 10% ASK modulation through a weaker modulation
+	 *     conductance instead of Force100ASK</li>
+	 *     <li>FeliCa framing (preamble, sync code and length byte handled by the chip) at
+	 *     {@code bitRate} both ways</li>
+	 *     <li>CRC coprocessor MSB first with a preset of 0000h, as FeliCa frames use it</li>
+	 *     <li>receiver gain and demodulator tuned for Manchester coded responses</li>
+	 *     <li>the timer of {@link #iso14443aReader()}</li>
+	 * </ul>
+	 * @param bitRate {@link Pn512NfcDevice.BitRate#KBPS_212} or
+	 * {@link Pn512NfcDevice.BitRate#KBPS_424}.
+	 */
+	public static InitProfile felicaReader(int bitRate) {
+		if (bitRate != Pn512NfcDevice.BitRate.KBPS_212 && bitRate != Pn512NfcDevice.BitRate.KBPS_424) {
+			throw new IllegalArgumentException("FeliCa runs at 212 or 424 kbps");
+		}
+		final byte mode = (byte) (bitRate << Values.MODE_SPEED_SHIFT | Values.MODE_FRAMING_FELICA);
+		return new InitProfile()
+				.set(RegisterAddress.CONTROL_REG, Values.CONTROL_INITIATOR)
+				.set(RegisterAddress.TX_CONTROL_REG, Values.TX_CONTROL_ANTENNA_ON)
+				.set(RegisterAddress.TX_AUTO_REG, (byte) 0x00)
+				.set(RegisterAddress.MODE_REG, (byte) 0xb8)
+				.set(RegisterAddress.TX_MODE_REG, mode)
+				.set(RegisterAddress.RX_MODE_REG, mode)
+				.set(RegisterAddress.BIT_FRAMING_REG, (byte) 0x00)
+				.set(RegisterAddress.COLL_REG, (byte) 0x00)
+				.set(RegisterAddress.WATER_LEVEL_REG, Values.STREAMING_WATER_LEVEL)
+				.set(RegisterAddress.RX_THRESHOLD_REG, (byte) 0x55)
+				.set(RegisterAddress.DEMOD_REG, (byte) 0x41)
+				.set(RegisterAddress.RF_CFG_REG, (byte) 0x69)
+				.set(RegisterAddress.GS_N_ON_REG, (byte) 0xff)
+				.set(RegisterAddress.CW_GS_P_REG, (byte) 0x3f)
+				.set(RegisterAddress.MOD_GS_P_REG, (byte) 0x12)
+				.set(RegisterAddress.T_MODE_REG, (byte) 0x80)
+				.set(RegisterAddress.T_PRESCALER_REG, (byte) 0xa9)
+				.set(RegisterAddress.T_RELOAD_HI_REG, (byte) 0x03)
+				.set(RegisterAddress.T_RELOAD_LO_REG, (byte) 0xe8);
+	}
+
+	/**
+	 * Sets a register, replacing any earlier value for it.
+	 * @throws IllegalArgumentException if the register is one the driver manages itself or that
+	 * can't be written.
+	 */
+	public InitProfile set(byte regAddress, byte value) {
+		if (regAddress < 0 || regAddress >= 64 || (RESERVED_REGISTERS & bit(regAddress)) != 0) {
+			throw new IllegalArgumentException("register " + Integer.toHexString(regAddress) + " can't be part of a profile");
+		}
+		for (int i = 0; i < mCount; i++) {
+			if (mAddresses[i] == regAddress) {
+				mValues[i] = value;
+				return this;
+			}
+		}
+		mAddresses[mCount] = regAddress;
+		mValues[mCount] = value;
+		mCount++;
+		return this;
+	}
+
+	public boolean contains(byte regAddress) {
+		for (int i = 0; i < mCount; i++) {
+			if (mAddresses[i] == regAddress) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return the number of entries that differ from the reset value, and so cost a write.
+	 */
+	public int getWriteCount() {
+		int count = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (!isResetValue(mAddresses[i], mValues[i])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Queues the writes that take a freshly reset chip to this profile, and records the other
+	 * entries in {@code shadow}.
+	 */
+	void queue(@NonNull RegisterBatch batch, @NonNull RegisterShadow shadow) {
+		for (int i = 0; i < mCount; i++) {
+			if (isResetValue(mAddresses[i], mValues[i])) {
+				shadow.update(mAddresses[i], mValues[i]);
+			} else {
+				batch.writeRegister(mAddresses[i], mValues[i]);
+			}
+		}
+	}
+
+	private static boolean isResetValue(byte regAddress, byte value) {
+		for (byte[] entry : RESET_VALUES) {
+			if (entry[0] == regAddress) {
+				return entry[1] == value;
+			}
+		}
+		return false;
+	}
+
+	private static long bit(byte regAddress) {
+		return 1L << (regAddress & 0b0011_1111);
+	}
+
+}
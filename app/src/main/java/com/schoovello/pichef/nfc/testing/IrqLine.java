@@ -0,0 +1,38 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * The input connected to the PN512 IRQ pin.
+ */
+public interface IrqLine {
+
+	interface Listener {
+		/**
+		 * Called when the IRQ pin becomes asserted. May be called on any thread.
+		 */
+		void onIrqAsserted();
+	}
+
+	void setListener(@Nullable Listener listener) throws IOException;
+
+	boolean isAsserted() throws IOException;
+
+	void close() throws IOException;
+
+}
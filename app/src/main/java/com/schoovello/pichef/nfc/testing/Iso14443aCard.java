@@ -0,0 +1,110 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Identity of an ISO14443-3A card as learned during activation. Instances are filled in by
+ * {@link Iso14443aReader} and may be reused.
+ */
+public class Iso14443aCard {
+
+	public static final int MAX_UID_LENGTH = 10;
+
+	final byte[] mUid = new byte[MAX_UID_LENGTH];
+	int mUidLength;
+	final byte[] mAtqa = new byte[2];
+	byte mSak;
+
+	/**
+	 * @return 4, 7 or 10, or 0 if the card hasn't been activated.
+	 */
+	public int getUidLength() {
+		return mUidLength;
+	}
+
+	public byte getUidByte(int index) {
+		if (index >= mUidLength) {
+			throw new IndexOutOfBoundsException("UID has " + mUidLength + " bytes");
+		}
+		return mUid[index];
+	}
+
+	/**
+	 * @return the number of bytes copied.
+	 */
+	public int copyUid(byte[] dest, int offset) {
+		System.arraycopy(mUid, 0, dest, offset, mUidLength);
+		return mUidLength;
+	}
+
+	/**
+	 * @return the UID packed into a long, for keying tables without boxing: the length in the top
+	 * byte and up to seven UID bytes below it, so single and double size UIDs map to distinct keys.
+	 * The last three bytes of a triple size UID are folded into the low bytes, and two such UIDs
+	 * can share a key.
+	 */
+	public long getUidKey() {
+		return uidKey(mUid, mUidLength);
+	}
+
+	/**
+	 * Packs a UID the way {@link #getUidKey()} describes, for anything else holding one.
+	 */
+	static long uidKey(byte[] uid, int length) {
+		long key = (long) length << 56;
+		for (int i = 0; i < length; i++) {
+			if (i < 7) {
+				key |= (uid[i] & 0xffL) << (8 * (6 - i));
+			} else {
+				key ^= (uid[i] & 0xffL) << (8 * (i - 7));
+			}
+		}
+		return key;
+	}
+
+	public byte[] getUid() {
+		byte[] uid = new byte[mUidLength];
+		System.arraycopy(mUid, 0, uid, 0, mUidLength);
+		return uid;
+	}
+
+	/**
+	 * @return the ATQA in transmission order.
+	 */
+	public byte[] getAtqa() {
+		return mAtqa.clone();
+	}
+
+	public byte getSak() {
+		return mSak;
+	}
+
+	public void copyFrom(Iso14443aCard other) {
+		System.arraycopy(other.mUid, 0, mUid, 0, MAX_UID_LENGTH);
+		mUidLength = other.mUidLength;
+		System.arraycopy(other.mAtqa, 0, mAtqa, 0, 2);
+		mSak = other.mSak;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Iso14443aCard{uid=");
+		for (int i = 0; i < mUidLength; i++) {
+			sb.append(String.format("%02X", mUid[i]));
+		}
+		sb.append(String.format(", atqa=%02X%02X, sak=%02X}", mAtqa[0], mAtqa[1], mSak));
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * ISO14443-3A card activation on top of {@link Pn512NfcDevice}: REQA/WUPA, bit-oriented
+ * anticollision and SELECT over cascade levels 1-3, and HLTA. {@link #inventory(Iso14443aCard[])}
+ * uses these to enumerate every card in the field.<p/>
+ * Not thread safe; like the device, it should be used from one background thread.
+ */
+public class Iso14443aReader {
+
+	/**
+	 * How long the field is switched off to reset the cards, and how long they are given to power
+	 * up again, before an inventory.
+	 */
+	private static final long FIELD_RESET_MS = 5;
+
+	/**
+	 * Activation attempts that may fail (e.g. on a corrupted frame) before an inventory gives up.
+	 */
+	private static final int MAX_INVENTORY_FAILURES = 3;
+
+	/**
+	 * Response timeout for REQA/WUPA, anticollision and SELECT. Cards answer these within about
+	 * 90 us, so an empty field is known to be empty long before the device's default timeout.
+	 */
+	private static final int ACTIVATION_TIMEOUT_US = 1_000;
+
+	private static final byte[] SEL_CODES = {
+			MiFareDevice.Command.SEL_CL1, MiFareDevice.Command.SEL_CL2, MiFareDevice.Command.SEL_CL3
+	};
+
+	private static final byte CASCADE_TAG = (byte) 0x88;
+	private static final byte SAK_CASCADE_BIT = 0b0000_0100;
+	private static final byte NVB_SELECT = 0x70;
+
+	private final Pn512NfcDevice mDevice;
+
+	private final TransceiveResult mResult = new TransceiveResult();
+
+	/**
+	 * SEL, NVB, UID CLn and BCC.
+	 */
+	private final byte[] mFrame = new byte[7];
+
+	public Iso14443aReader(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+	}
+
+	/**
+	 * Wakes the cards in the field with WUPA and activates one of them, resolving collisions
+	 * between several.
+	 * @return {@code true} if a card was selected; its identity is stored in {@code card}.
+	 */
+	public boolean activate(@NonNull Iso14443aCard card) throws IOException {
+		final DeviceMetrics metrics = mDevice.getMetrics();
+		metrics.begin(DeviceMetrics.Operation.ACTIVATION);
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		mDevice.setResponseTimeout(ACTIVATION_TIMEOUT_US);
+		try {
+			return request(MiFareDevice.Command.WUPA, card) && select(card);
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+			metrics.end(DeviceMetrics.Operation.ACTIVATION);
+		}
+	}
+
+	/**
+	 * Puts the selected card into the HALT state, where it only answers WUPA.
+	 */
+	public void halt() throws IOException {
+		mFrame[0] = MiFareDevice.Command.HLTA;
+		mFrame[1] = 0;
+		mDevice.transmitBits(mFrame, 2, 0, true);
+	}
+
+	/**
+	 * Enumerates the cards in the field: the field is reset so every card starts out idle, then
+	 * each card answering REQA is selected and halted in turn until none is left.
+	 * @return the number of cards found, at most {@code cards.length}. The cards are left halted.
+	 */
+	public int inventory(@NonNull Iso14443aCard[] cards) throws IOException {
+		resetField();
+
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		mDevice.setResponseTimeout(ACTIVATION_TIMEOUT_US);
+		int count = 0;
+		int failures = 0;
+		try {
+			while (count < cards.length && request(MiFareDevice.Command.REQA, cards[count])) {
+				if (!select(cards[count])) {
+					// the cards that answered drop back to idle on the next REQA
+					if (++failures == MAX_INVENTORY_FAILURES) {
+						break;
+					}
+					continue;
+				}
+				halt();
+				count++;
+			}
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+		}
+		return count;
+	}
+
+	private void resetField() throws IOException {
+		mDevice.setRfField(false);
+		sleep(FIELD_RESET_MS);
+		mDevice.setRfField(true);
+		sleep(FIELD_RESET_MS);
+	}
+
+	/**
+	 * Sends REQA or WUPA.
+	 * @return {@code true} if any card answered. When several answer with different ATQAs, the
+	 * ATQA stored in {@code card} is their bitwise OR.
+	 */
+	private boolean request(byte command, Iso14443aCard card) throws IOException {
+		mFrame[0] = command;
+		final TransceiveResult result = mDevice.transceiveBits(mFrame, 1, 7, 0, false, mResult);
+
+		final int status = result.getStatus();
+		if ((status != TransceiveResult.Status.OK && status != TransceiveResult.Status.COLLISION)
+				|| result.getLength() != 2) {
+			return false;
+		}
+
+		card.mAtqa[0] = result.getByte(0);
+		card.mAtqa[1] = result.getByte(1);
+		return true;
+	}
+
+	/**
+	 * Runs anticollision and SELECT for each cascade level until a card reports that its UID is
+	 * complete.
+	 */
+	private boolean select(Iso14443aCard card) throws IOException {
+		card.mUidLength = 0;
+
+		for (byte sel : SEL_CODES) {
+			if (!anticollision(sel)) {
+				return false;
+			}
+
+			final byte[] frame = mFrame;
+			frame[1] = NVB_SELECT;
+			final TransceiveResult result = mDevice.transceiveBits(frame, 7, 0, 0, true, mResult);
+			if (!result.isOk() || result.getLength() != 1) {
+				return false;
+			}
+
+			final byte sak = result.getByte(0);
+			if ((sak & SAK_CASCADE_BIT) != 0) {
+				if (frame[2] != CASCADE_TAG) {
+					return false;
+				}
+				System.arraycopy(frame, 3, card.mUid, card.mUidLength, 3);
+				card.mUidLength += 3;
+			} else {
+				System.arraycopy(frame, 2, card.mUid, card.mUidLength, 4);
+				card.mUidLength += 4;
+				card.mSak = sak;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Learns a complete UID CLn + BCC into {@link #mFrame}, bit by bit where cards collide. At
+	 * each collision the branch with a 1 bit is followed.
+	 */
+	private boolean anticollision(byte sel) throws IOException {
+		final byte[] frame = mFrame;
+		frame[0] = sel;
+
+		int knownBits = 0;
+		while (knownBits < 40) {
+			final int knownBytes = knownBits / 8;
+			final int lastBits = knownBits % 8;
+
+			// NVB: bytes sent including SEL and NVB in the high nibble, extra bits in the low one
+			frame[1] = (byte) ((2 + knownBytes) << 4 | lastBits);
+			final int txLength = 2 + knownBytes + (lastBits != 0 ? 1 : 0);
+
+			// the response starts with the rest of the partial byte, so receive it at the same
+			// bit position
+			final TransceiveResult result = mDevice.transceiveBits(frame, txLength, lastBits, lastBits, false, mResult);
+			final int status = result.getStatus();
+			if ((status != TransceiveResult.Status.OK && status != TransceiveResult.Status.COLLISION)
+					|| result.getLength() == 0 || knownBytes + result.getLength() > 5) {
+				return false;
+			}
+
+			final int index = 2 + knownBytes;
+			final byte lowMask = (byte) ((1 << lastBits) - 1);
+			frame[index] = (byte) ((frame[index] & lowMask) | (result.getByte(0) & ~lowMask));
+			for (int i = 1; i < result.getLength(); i++) {
+				frame[index + i] = result.getByte(i);
+			}
+
+			if (status == TransceiveResult.Status.OK) {
+				knownBits = 40;
+				break;
+			}
+
+			// CollPos counts from bit 0 of the first received byte, i.e. from the partial byte
+			final int collisionPosition = result.getCollisionPosition();
+			final int collisionBit = knownBytes * 8 + collisionPosition - 1;
+			if (collisionPosition < 0 || collisionBit < knownBits || collisionBit >= 40) {
+				return false;
+			}
+
+			final int collisionByte = 2 + collisionBit / 8;
+			final int bitInByte = collisionBit % 8;
+			frame[collisionByte] = (byte) ((frame[collisionByte] & ((1 << bitInByte) - 1)) | (1 << bitInByte));
+			knownBits = collisionBit + 1;
+		}
+
+		// BCC
+		return (byte) (frame[2] ^ frame[3] ^ frame[4] ^ frame[5]) == frame[6];
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
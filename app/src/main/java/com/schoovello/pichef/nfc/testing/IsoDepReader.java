@@ -0,0 +1,508 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * ISO14443-4 (ISO-DEP) transport for cards like DESFire and smart cards, on top of
+ * {@link Pn512NfcDevice}.<p/>
+ * Activation selects the card, asks for its ATS with RATS, and takes the frame size (FSC) and
+ * frame waiting time (FWT) from it. If both sides can go faster than 106 kbps, PPS switches the
+ * link to the highest bit rate they share, up to {@link #setMaxBitRate(int)}.<p/>
+ * {@link #transceive(byte[], int, int, byte[], int)} sends a command APDU as I-blocks, chained
+ * when it doesn't fit in one frame, and collects the response the same way. Waiting time
+ * extensions (S(WTX)) are granted, and lost or broken blocks are recovered with R(NAK) and
+ * retransmission as the standard lays out. CIDs and NADs are not used.<p/>
+ * Not thread safe; like the device, it should be used from one background thread.
+ */
+public class IsoDepReader {
+
+	/**
+	 * The largest frame either side may ask for; FSDI and FSCI above 8 are reserved.
+	 */
+	public static final int MAX_FRAME_SIZE = 256;
+
+	/**
+	 * The longest ATS that is kept.
+	 */
+	public static final int MAX_ATS_LENGTH = 32;
+
+	/**
+	 * Frame sizes by FSDI/FSCI.
+	 */
+	private static final int[] FRAME_SIZES = { 16, 24, 32, 40, 48, 64, 96, 128, 256 };
+
+	/**
+	 * Protocol control byte values, without CID or NAD.
+	 */
+	private interface Pcb {
+		byte I_BLOCK = (byte) 0x02;
+		byte R_ACK = (byte) 0xa2;
+		byte R_NAK = (byte) 0xb2;
+		byte S_DESELECT = (byte) 0xc2;
+		byte S_WTX = (byte) 0xf2;
+		byte CHAINING = (byte) 0x10;
+		byte BLOCK_NUMBER = (byte) 0x01;
+		byte I_BLOCK_MASK = (byte) 0xe2;
+		byte R_BLOCK_MASK = (byte) 0xf6; // including the NAK bit
+	}
+
+	private static final byte RATS = (byte) 0xe0;
+	private static final byte PPSS = (byte) 0xd0;
+	private static final byte PPS0_PPS1_FOLLOWS = (byte) 0x11;
+
+	private static final byte SAK_ISO14443_4 = 0b0010_0000;
+
+	private static final byte T0_TA_PRESENT = 0b0001_0000;
+	private static final byte T0_TB_PRESENT = 0b0010_0000;
+	private static final byte TA_SAME_BIT_RATES = (byte) 0b1000_0000;
+
+	private static final int DEFAULT_FSCI = 2;
+	private static final int DEFAULT_FWI = 4;
+	private static final int MAX_FWI = 14;
+	private static final int MAX_WTXM = 59;
+
+	/**
+	 * Frame waiting time for RATS and PPS: 65536 / fc plus some slack for the card to start up.
+	 */
+	private static final int ACTIVATION_FWT_US = 5_286;
+
+	/**
+	 * FWT and SFGT are 4096 / fc, about 302 us, times 2^FWI or 2^SFGI.
+	 */
+	private static final long FWT_UNIT_NS = 302_064;
+
+	/**
+	 * ΔFWT, the slack the standard gives the card on top of the FWT it announced.
+	 */
+	private static final int FWT_DELTA_US = 3_625;
+
+	/**
+	 * How many times a lost or broken block is asked for again before the card is given up.
+	 */
+	private static final int MAX_RETRIES = 2;
+
+	private final Pn512NfcDevice mDevice;
+	private final Iso14443aReader mReader;
+	private final TransceiveResult mFifoResult = new TransceiveResult();
+	private final TransceiveResult mStreamResult = new TransceiveResult(MAX_FRAME_SIZE);
+	private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+	private final byte[] mControlFrame = new byte[3];
+	private final byte[] mAts = new byte[MAX_ATS_LENGTH];
+
+	private int mMaxBitRate = Pn512NfcDevice.BitRate.KBPS_848;
+	private int mMaxFrameSize = Pn512NfcDevice.Values.FIFO_SIZE;
+
+	private boolean mActive;
+	private TransceiveResult mResult = mFifoResult;
+	private int mAtsLength;
+	private byte mAtsTa;
+	private int mFrameSize;
+	private int mFwtUs;
+	private int mResponseTimeoutUs;
+	private int mTxBitRate;
+	private int mRxBitRate;
+	private int mBlockNumber;
+
+	private long mBlockCount;
+	private long mWtxCount;
+	private long mRetransmissionCount;
+
+	public IsoDepReader(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+		mReader = new Iso14443aReader(device);
+	}
+
+	/**
+	 * Caps the bit rate PPS may switch to, one of {@link Pn512NfcDevice.BitRate}. Defaults to
+	 * {@link Pn512NfcDevice.BitRate#KBPS_848}; {@link Pn512NfcDevice.BitRate#KBPS_106} skips PPS.
+	 * Takes effect on the next activation.
+	 */
+	public void setMaxBitRate(int bitRate) {
+		if (bitRate < Pn512NfcDevice.BitRate.KBPS_106 || bitRate > Pn512NfcDevice.BitRate.KBPS_848) {
+			throw new IllegalArgumentException("unknown bit rate: " + bitRate);
+		}
+		mMaxBitRate = bitRate;
+	}
+
+	/**
+	 * Caps the frames in both directions: the FSD announced to the card is the largest frame size
+	 * up to {@code bytes}, and frames sent are no larger. Defaults to the FIFO size, so that no
+	 * frame has to be streamed through the FIFO; larger frames take fewer blocks per APDU, but
+	 * the host has to keep up with the FIFO at the bit rate in use. Takes effect on the next
+	 * activation.
+	 */
+	public void setMaxFrameSize(int bytes) {
+		if (bytes < FRAME_SIZES[0] || bytes > MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("frame size must be between " + FRAME_SIZES[0]
+					+ " and " + MAX_FRAME_SIZE);
+		}
+		mMaxFrameSize = bytes;
+	}
+
+	/**
+	 * Activates an ISO14443-4 card in the field: selects it, reads its ATS and agrees on the bit
+	 * rate.
+	 * @return {@code false} if no card answered, or the card doesn't speak ISO14443-4.
+	 */
+	public boolean activate(@NonNull Iso14443aCard card) throws IOException {
+		mActive = false;
+		mAtsLength = 0;
+		setBitRates(Pn512NfcDevice.BitRate.KBPS_106, Pn512NfcDevice.BitRate.KBPS_106);
+		if (!mReader.activate(card)) {
+			return false;
+		}
+		if ((card.getSak() & SAK_ISO14443_4) == 0) {
+			mReader.halt();
+			return false;
+		}
+
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		try {
+			mDevice.setResponseTimeout(ACTIVATION_FWT_US + FWT_DELTA_US);
+			final int fsdi = frameSizeIndex(mMaxFrameSize);
+			if (!requestAts(fsdi)) {
+				return false;
+			}
+			mResult = FRAME_SIZES[fsdi] > Pn512NfcDevice.Values.FIFO_SIZE ? mStreamResult : mFifoResult;
+			mBlockNumber = 0;
+			mActive = true;
+			return negotiateBitRates();
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+		}
+	}
+
+	/**
+	 * Sends S(DESELECT), which puts the card into the HALT state, and returns the link to
+	 * 106 kbps.
+	 */
+	public void deselect() throws IOException {
+		if (!mActive) {
+			return;
+		}
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		mDevice.setResponseTimeout(mResponseTimeoutUs);
+		mControlFrame[0] = Pcb.S_DESELECT;
+		mDevice.transceive(mControlFrame, 0, 1, true, mResult);
+		mDevice.setResponseTimeout(responseTimeoutUs);
+		onCardLost();
+	}
+
+	/**
+	 * Sends a command APDU to the activated card and receives its response.
+	 * @return the length of the response, or {@code -1} if the card stopped answering, broke the
+	 * protocol, or sent more than fits in {@code response}. The card then has to be activated
+	 * again.
+	 */
+	public int transceive(byte[] command, int offset, int length, byte[] response, int responseOffset)
+			throws IOException {
+		if (!mActive) {
+			throw new IllegalStateException("no card activated");
+		}
+		final int responseTimeoutUs = mDevice.getResponseTimeout();
+		try {
+			final int received = exchangeApdu(command, offset, length, response, responseOffset);
+			if (received < 0) {
+				onCardLost();
+			}
+			return received;
+		} finally {
+			mDevice.setResponseTimeout(responseTimeoutUs);
+		}
+	}
+
+	public boolean isActive() {
+		return mActive;
+	}
+
+	/**
+	 * Copies the ATS of the activated card, starting with its length byte TL.
+	 * @return the number of bytes copied, at most {@link #MAX_ATS_LENGTH}.
+	 */
+	public int copyAts(byte[] dest, int offset) {
+		System.arraycopy(mAts, 0, dest, offset, mAtsLength);
+		return mAtsLength;
+	}
+
+	/**
+	 * @return the size of the frames sent to the card, including PCB and CRC_A: the card's FSC,
+	 * capped by {@link #setMaxFrameSize(int)}.
+	 */
+	public int getFrameSize() {
+		return mFrameSize;
+	}
+
+	/**
+	 * @return the frame waiting time announced by the card, in microseconds.
+	 */
+	public int getFrameWaitingTime() {
+		return mFwtUs;
+	}
+
+	/**
+	 * @return the bit rate towards the card, one of {@link Pn512NfcDevice.BitRate}.
+	 */
+	public int getTxBitRate() {
+		return mTxBitRate;
+	}
+
+	/**
+	 * @return the bit rate from the card, one of {@link Pn512NfcDevice.BitRate}.
+	 */
+	public int getRxBitRate() {
+		return mRxBitRate;
+	}
+
+	/**
+	 * @return the number of blocks sent, including retransmissions and S-blocks.
+	 */
+	public long getBlockCount() {
+		return mBlockCount;
+	}
+
+	public long getWtxCount() {
+		return mWtxCount;
+	}
+
+	/**
+	 * @return the number of R(NAK)s and I-blocks sent again to recover a lost or broken block.
+	 */
+	public long getRetransmissionCount() {
+		return mRetransmissionCount;
+	}
+
+	private boolean requestAts(int fsdi) throws IOException {
+		mControlFrame[0] = RATS;
+		mControlFrame[1] = (byte) (fsdi << 4);
+		final TransceiveResult result = mDevice.transceive(mControlFrame, 0, 2, true, mFifoResult);
+		final int length = result.getLength();
+		if (!result.isOk() || length < 1 || (result.getByte(0) & 0xff) != length) {
+			return false;
+		}
+		mAtsLength = Math.min(length, MAX_ATS_LENGTH);
+		System.arraycopy(result.getData(), 0, mAts, 0, mAtsLength);
+
+		// T0 gives the FSCI and which interface bytes follow
+		int fsci = DEFAULT_FSCI;
+		int fwi = DEFAULT_FWI;
+		int sfgi = 0;
+		byte ta = 0;
+		if (length > 1) {
+			final byte t0 = result.getByte(1);
+			fsci = t0 & 0x0f;
+			int index = 2;
+			if ((t0 & T0_TA_PRESENT) != 0 && index < length) {
+				ta = result.getByte(index++);
+			}
+			if ((t0 & T0_TB_PRESENT) != 0 && index < length) {
+				final byte tb = result.getByte(index);
+				fwi = (tb >> 4) & 0x0f;
+				sfgi = tb & 0x0f;
+			}
+		}
+		if (fwi > MAX_FWI) {
+			fwi = DEFAULT_FWI;
+		}
+		mFrameSize = Math.min(FRAME_SIZES[Math.min(fsci, FRAME_SIZES.length - 1)],
+				FRAME_SIZES[frameSizeIndex(mMaxFrameSize)]);
+		mFwtUs = (int) ((FWT_UNIT_NS << fwi) / 1000);
+		mResponseTimeoutUs = mFwtUs + FWT_DELTA_US;
+		mTxBitRate = Pn512NfcDevice.BitRate.KBPS_106;
+		mRxBitRate = Pn512NfcDevice.BitRate.KBPS_106;
+		mAtsTa = ta;
+
+		if (sfgi > 0 && sfgi < 15) {
+			// the card needs this long after the ATS before it can take the next frame
+			sleepNanos(FWT_UNIT_NS << sfgi);
+		}
+		return true;
+	}
+
+	/**
+	 * Picks the highest bit rates both sides support and switches to them with PPS.
+	 * @return {@code false} if the card didn't answer PPS.
+	 */
+	private boolean negotiateBitRates() throws IOException {
+		// TA: bits 7-5 say the card can send at 848/424/212 kbps, bits 3-1 that it can receive
+		int dsi = highestBitRate((mAtsTa >> 4) & 0x07);
+		int dri = highestBitRate(mAtsTa & 0x07);
+		if ((mAtsTa & TA_SAME_BIT_RATES) != 0) {
+			dsi = dri = Math.min(dsi, dri);
+		}
+		if (dsi == Pn512NfcDevice.BitRate.KBPS_106 && dri == Pn512NfcDevice.BitRate.KBPS_106) {
+			return true;
+		}
+
+		mControlFrame[0] = PPSS;
+		mControlFrame[1] = PPS0_PPS1_FOLLOWS;
+		mControlFrame[2] = (byte) (dsi << 2 | dri);
+		final TransceiveResult result = mDevice.transceive(mControlFrame, 0, 3, true, mFifoResult);
+		if (!result.isOk() || result.getLength() != 1 || result.getByte(0) != PPSS) {
+			onCardLost();
+			return false;
+		}
+		setBitRates(dri, dsi);
+		return true;
+	}
+
+	/**
+	 * @param supported the three bits of a TA half: 848, 424 and 212 kbps from the top.
+	 * @return the highest of them up to {@link #mMaxBitRate}, or 106 kbps.
+	 */
+	private int highestBitRate(int supported) {
+		for (int bitRate = mMaxBitRate; bitRate > Pn512NfcDevice.BitRate.KBPS_106; bitRate--) {
+			if ((supported & (1 << (bitRate - 1))) != 0) {
+				return bitRate;
+			}
+		}
+		return Pn512NfcDevice.BitRate.KBPS_106;
+	}
+
+	private int exchangeApdu(byte[] command, int offset, int length, byte[] response, int responseOffset)
+			throws IOException {
+		// PCB and CRC_A take up 3 bytes of each frame
+		final int maxChunk = mFrameSize - 3;
+		int sent = 0;
+		while (true) {
+			final int chunk = Math.min(length - sent, maxChunk);
+			final boolean chaining = sent + chunk < length;
+			mFrame[0] = (byte) (Pcb.I_BLOCK | mBlockNumber | (chaining ? Pcb.CHAINING : 0));
+			System.arraycopy(command, offset + sent, mFrame, 1, chunk);
+			if (!exchangeBlock(1 + chunk)) {
+				return -1;
+			}
+			sent += chunk;
+			if (!chaining) {
+				break;
+			}
+			// the card acknowledges each chained block
+			if (mResult.getLength() != 1 || mResult.getByte(0) != (byte) (Pcb.R_ACK | mBlockNumber)) {
+				return -1;
+			}
+			mBlockNumber ^= 1;
+		}
+
+		int received = 0;
+		while (true) {
+			final byte pcb = mResult.getByte(0);
+			if ((pcb & Pcb.I_BLOCK_MASK) != Pcb.I_BLOCK || (pcb & Pcb.BLOCK_NUMBER) != mBlockNumber) {
+				return -1;
+			}
+			mBlockNumber ^= 1;
+			final int inf = mResult.getLength() - 1;
+			if (responseOffset + received + inf > response.length) {
+				return -1;
+			}
+			System.arraycopy(mResult.getData(), 1, response, responseOffset + received, inf);
+			received += inf;
+			if ((pcb & Pcb.CHAINING) == 0) {
+				return received;
+			}
+			// ask for the next block of the chain
+			mFrame[0] = (byte) (Pcb.R_ACK | mBlockNumber);
+			if (!exchangeBlock(1)) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Sends the first {@code length} bytes of {@link #mFrame} and receives the card's answer into
+	 * {@link #mResult}, granting waiting time extensions along the way. A response that is
+	 * missing or broken is asked for again with R(NAK); if that shows the card missed the block,
+	 * the block is sent again.
+	 * @return {@code false} if the card still hasn't answered after {@link #MAX_RETRIES} tries.
+	 */
+	private boolean exchangeBlock(int length) throws IOException {
+		mDevice.setResponseTimeout(mResponseTimeoutUs);
+		TransceiveResult result = mDevice.transceive(mFrame, 0, length, true, mResult);
+		mBlockCount++;
+		int retries = 0;
+		while (true) {
+			if (result.isOk() && result.getLength() > 0) {
+				final byte pcb = result.getByte(0);
+				if (pcb == Pcb.S_WTX && result.getLength() == 2) {
+					final int wtxm = result.getByte(1) & 0x3f;
+					if (wtxm == 0 || wtxm > MAX_WTXM) {
+						return false;
+					}
+					// the longer wait only applies to the answer to S(WTX)
+					mWtxCount++;
+					mControlFrame[0] = Pcb.S_WTX;
+					mControlFrame[1] = (byte) wtxm;
+					final long fwtMaxUs = (FWT_UNIT_NS << MAX_FWI) / 1000;
+					mDevice.setResponseTimeout((int) Math.min((long) mFwtUs * wtxm, fwtMaxUs) + FWT_DELTA_US);
+					result = mDevice.transceive(mControlFrame, 0, 2, true, mResult);
+					mDevice.setResponseTimeout(mResponseTimeoutUs);
+					mBlockCount++;
+					continue;
+				}
+				if ((pcb & Pcb.R_BLOCK_MASK) != Pcb.R_ACK || (pcb & Pcb.BLOCK_NUMBER) == mBlockNumber) {
+					return true;
+				}
+				// an R(ACK) with the other block number: the card never got the last block
+				if (++retries > MAX_RETRIES) {
+					return false;
+				}
+				mRetransmissionCount++;
+				result = mDevice.transceive(mFrame, 0, length, true, mResult);
+				mBlockCount++;
+				continue;
+			}
+
+			if (++retries > MAX_RETRIES) {
+				return false;
+			}
+			mRetransmissionCount++;
+			mControlFrame[0] = (byte) (Pcb.R_NAK | mBlockNumber);
+			result = mDevice.transceive(mControlFrame, 0, 1, true, mResult);
+			mBlockCount++;
+		}
+	}
+
+	private void onCardLost() throws IOException {
+		mActive = false;
+		setBitRates(Pn512NfcDevice.BitRate.KBPS_106, Pn512NfcDevice.BitRate.KBPS_106);
+	}
+
+	private void setBitRates(int txBitRate, int rxBitRate) throws IOException {
+		mDevice.setBitRates(txBitRate, rxBitRate);
+		mTxBitRate = txBitRate;
+		mRxBitRate = rxBitRate;
+	}
+
+	/**
+	 * @return the FSDI/FSCI of the largest frame size up to {@code bytes}.
+	 */
+	private static int frameSizeIndex(int bytes) {
+		int index = 0;
+		while (index + 1 < FRAME_SIZES.length && FRAME_SIZES[index + 1] <= bytes) {
+			index++;
+		}
+		return index;
+	}
+
+	private static void sleepNanos(long nanos) {
+		try {
+			Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
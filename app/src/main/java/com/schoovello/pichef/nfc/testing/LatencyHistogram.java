@@ -0,0 +1,155 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with fixed log-linear buckets: each power of two is split
+ * into 8 buckets, so a bucket is at most 12.5% wide. Durations of 2^37 ns (about 137 s) and up
+ * share the last bucket.<p/>
+ * Recording is lock-free and never allocates. Any thread may take a {@link Snapshot} while
+ * others record; the snapshot is not atomic across buckets, so its total may be off by the
+ * values recorded while it was being copied.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 36;
+
+	/**
+	 * Exact buckets below 8 ns, 8 per power of two up to 2^37 ns, and one for anything longer.
+	 */
+	public static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS + 1;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		mCounts.incrementAndGet(bucketIndex(nanos));
+		mSum.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+			// lost a race with another recorder, try again
+		}
+	}
+
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Copies the current state into {@code dest}, so it can be reused from one snapshot to the
+	 * next.
+	 */
+	public void snapshot(Snapshot dest) {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long bucketCount = mCounts.get(i);
+			dest.mCounts[i] = bucketCount;
+			count += bucketCount;
+		}
+		dest.mCount = count;
+		dest.mSum = mSum.get();
+		dest.mMax = mMax.get();
+	}
+
+	static int bucketIndex(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+		if (magnitude > MAX_MAGNITUDE) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket.
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		if (index == BUCKET_COUNT - 1) {
+			return Long.MAX_VALUE;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	public static class Snapshot {
+
+		final long[] mCounts = new long[BUCKET_COUNT];
+		long mCount;
+		long mSum;
+		long mMax;
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getMaxNanos() {
+			return mMax;
+		}
+
+		public long getMeanNanos() {
+			return mCount == 0 ? 0 : mSum / mCount;
+		}
+
+		/**
+		 * @param percentile between 0 and 100.
+		 * @return an upper bound on the given percentile, accurate to the bucket width, or
+		 * {@code 0} if nothing has been recorded.
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (mCount == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile / 100 * mCount);
+			if (rank < 1) {
+				rank = 1;
+			}
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += mCounts[i];
+				if (seen >= rank) {
+					return Math.min(bucketUpperBound(i), mMax);
+				}
+			}
+			return mMax;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%dus p50=%dus p99=%dus max=%dus", mCount,
+					getMeanNanos() / 1000, getPercentileNanos(50) / 1000,
+					getPercentileNanos(99) / 1000, mMax / 1000);
+		}
+	}
+
+}
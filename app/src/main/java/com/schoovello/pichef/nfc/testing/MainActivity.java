@@ -15,79 +15,133 @@ package com.schoovello.pichef.nfc.testing;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.pio.SpiDevice;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends Activity {
 
-	private HandlerThread mThread;
-	private Handler mHandler;
+	private static final String TAG = "NFC";
 
-	private Pn512NfcDevice mNfcDevice;
+	/**
+	 * One entry per reader. Readers whose names share a bus prefix (before the '.') share the bus.
+	 */
+	private static final String[] SPI_DEVICES = { "SPI0.0" };
+
+	/**
+	 * Logs each reader's SPI traffic to spi-&lt;name&gt;.bin in the app's files directory, for
+	 * {@link SpiReplayPort}.
+	 */
+	private static final boolean RECORD_SPI = false;
+	private static final int SPI_RECORDING_SIZE = 4 * 1024 * 1024;
+
+	private static final int TAG_EVENT_RING_CAPACITY = 256;
+
+	private ReaderPool mReaderPool;
+	private final TagEventRing mTagEvents = new TagEventRing(TAG_EVENT_RING_CAPACITY);
+	private TagEventRing.Consumer mTagLogger;
+	private Thread mTagLoggerThread;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
-		mThread = new HandlerThread("SPIThread");
-		mThread.start();
-		mHandler = new Handler(mThread.getLooper());
-
+		mReaderPool = new ReaderPool();
 		try {
 			PeripheralManager peripheralManager = PeripheralManager.getInstance();
-			SpiDevice spi = peripheralManager.openSpiDevice("SPI0.0");
-			mNfcDevice = new Pn512NfcDevice(spi);
+			for (String name : SPI_DEVICES) {
+				SpiDevice spi = peripheralManager.openSpiDevice(name);
+				String bus = name.substring(0, name.indexOf('.'));
+				SpiPort port = new AndroidThingsSpiPort(spi);
+				SpiRecorder recorder = null;
+				if (RECORD_SPI) {
+					recorder = new SpiRecorder(port, new File(getFilesDir(), "spi-" + name + ".bin"), SPI_RECORDING_SIZE);
+					port = recorder;
+				}
+				int reader = mReaderPool.addReader(bus, port, null);
+				if (recorder != null) {
+					mReaderPool.getDevice(reader).setClock(recorder);
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		// training takes a while per reader, so each reader's polling thread does its own
+		mReaderPool.setLinkTraining(true);
+
+		// tag events are logged on a thread of their own, so logging never holds up polling
+		mReaderPool.addListener(mTagEvents);
+		mTagLogger = mTagEvents.newConsumer(new TagEventRing.BlockingWaitStrategy());
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 
-		mThread.quit();
-
-		mNfcDevice.close();
+		mReaderPool.close();
 	}
 
 	@Override
 	protected void onStart() {
 		super.onStart();
 
-		mHandler.post(mSelfTestRunnable);
+		mTagLoggerThread = new Thread(mTagLoggerLoop, "TagEventLogger");
+		mTagLoggerThread.start();
+		mReaderPool.start();
 	}
 
 	@Override
 	protected void onStop() {
 		super.onStop();
 
-		mHandler.removeCallbacksAndMessages(null);
+		mReaderPool.stop();
+		mTagLoggerThread.interrupt();
+		try {
+			mTagLoggerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.d(TAG, String.format("tag events: %d published, %d dropped, max consumer lag %d",
+				mTagEvents.getPublishedCount(), mTagEvents.getDroppedCount(), mTagLogger.getMaxLag()));
+
+		for (int i = 0; i < mReaderPool.getReaderCount(); i++) {
+			TagPollingService service = mReaderPool.getPollingService(i);
+			SpiLinkTrainer.Result link = service.getLinkTrainingResult();
+			if (link != null) {
+				Log.d(TAG, String.format("reader %d: %s", i, link));
+			}
+			Log.d(TAG, String.format("reader %d: %d polls at %.1f/s, mean detection latency %d ms", i,
+					service.getPollCount(), service.getPollRate(),
+					TimeUnit.NANOSECONDS.toMillis(service.getMeanDetectionLatencyNanos())));
+			Log.d(TAG, mReaderPool.getDevice(i).getMetrics().snapshot().toString());
+		}
 	}
 
-	private Runnable mSelfTestRunnable = new Runnable() {
+	private final TagEventRing.EventHandler mTagLogHandler = new TagEventRing.EventHandler() {
+		@Override
+		public void onEvent(@NonNull TagEvent event, long sequence, boolean endOfBatch) {
+			Log.d(TAG, event + ", " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - event.getEventNanos())
+					+ " us after detection");
+		}
+	};
+
+	private final Runnable mTagLoggerLoop = new Runnable() {
 		@Override
 		public void run() {
 			try {
-				mNfcDevice.softReset();
-
-//				boolean valid = mNfcDevice.selfTest();
-//				boolean valid = mNfcDevice.testCrc();
-				boolean valid = mNfcDevice.tryActivateMiFare();
-
-				String message = valid ? "SUCCESS" : "FAILURE";
-				Log.d("SELF_TEST", "Self Test result: " + message);
-			} catch (Throwable t) {
-				t.printStackTrace();
+				while (!Thread.currentThread().isInterrupted()) {
+					mTagLogger.process(mTagLogHandler, 1, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException e) {
+				// stopped
 			}
 		}
 	};
 
-
 }
@@ -0,0 +1,53 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import java.io.IOException;
+
+/**
+ * Counts the transfers made through another port into {@link DeviceMetrics}.
+ */
+class MeteredSpiPort implements SpiPort {
+
+	private final SpiPort mPort;
+	private final DeviceMetrics mMetrics;
+
+	MeteredSpiPort(SpiPort port, DeviceMetrics metrics) {
+		mPort = port;
+		mMetrics = metrics;
+	}
+
+	@Override
+	public void setFrequency(int frequencyHz) throws IOException {
+		mPort.setFrequency(frequencyHz);
+	}
+
+	@Override
+	public void write(byte[] buffer, int length) throws IOException {
+		mMetrics.onSpiTransfer(length);
+		mPort.write(buffer, length);
+	}
+
+	@Override
+	public void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+		mMetrics.onSpiTransfer(length);
+		mPort.transfer(txBuffer, rxBuffer, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mPort.close();
+	}
+
+}
@@ -0,0 +1,414 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads MIFARE Classic 1K cards: MFAuthent with key A or B from a key ring, then READ, one
+ * 16-byte block at a time.<p/>
+ * Authenticating is the expensive part, and a wrong key costs more: the card drops out and has to
+ * be activated again. So the reader remembers, per card, which key opens each sector (or that
+ * none does), and keeps the blocks it has read. Reading the same card again, within the
+ * {@link #setMaxAge(long) maximum age}, is answered from the cache without touching the card.
+ * The cache only sees what this reader reads; a card written elsewhere must be
+ * {@link #invalidate(Iso14443aCard) invalidated}.<p/>
+ * Cards must be activated and halted through {@link #activate(Iso14443aCard)} and
+ * {@link #halt()}, which also take care of Crypto1. Not thread safe; like the device, it should
+ * be used from one background thread.
+ */
+public class MiFareClassicReader {
+
+	public static final int SECTOR_COUNT = 16;
+	public static final int BLOCKS_PER_SECTOR = 4;
+	public static final int BLOCK_SIZE = 16;
+	public static final int SECTOR_SIZE = BLOCKS_PER_SECTOR * BLOCK_SIZE;
+	public static final int CARD_SIZE = SECTOR_COUNT * SECTOR_SIZE;
+
+	/**
+	 * The transport key of blank cards.
+	 */
+	public static final byte[] DEFAULT_KEY = {
+			(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+	};
+
+	private static final int MAX_KEYS = 16;
+	private static final int MAX_CARDS = 8;
+
+	private static final byte KEY_UNKNOWN = -1;
+	private static final byte KEY_NONE = -2;
+
+	private final Pn512NfcDevice mDevice;
+	private final Iso14443aReader mReader;
+	private final TransceiveResult mResult = new TransceiveResult();
+	private final byte[] mFrame = new byte[2];
+	private final Iso14443aCard mReactivatedCard = new Iso14443aCard();
+
+	private final byte[][] mKeys = new byte[MAX_KEYS][6];
+	private final byte[] mKeyTypes = new byte[MAX_KEYS];
+	private int mKeyCount;
+
+	private final CardState[] mCards = new CardState[MAX_CARDS];
+	private long mUseCounter;
+	private long mMaxAgeNanos;
+
+	// the card activated through this reader
+	private boolean mSessionActive;
+	private long mSessionUidKey;
+	private boolean mCrypto1On;
+	private int mAuthenticatedSector = -1;
+
+	private long mAuthCount;
+	private long mAuthFailureCount;
+	private long mBlockReadCount;
+	private long mCacheHitCount;
+
+	/**
+	 * Creates a reader whose key ring holds the {@link #DEFAULT_KEY} as key A.
+	 */
+	public MiFareClassicReader(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+		mReader = new Iso14443aReader(device);
+		for (int i = 0; i < MAX_CARDS; i++) {
+			mCards[i] = new CardState();
+		}
+		addKey(MiFareDevice.Command.AUTH_KEY_A, DEFAULT_KEY);
+	}
+
+	/**
+	 * Adds a key to try on sectors whose key isn't known yet, after the keys added before it.
+	 * @param authCommand {@link MiFareDevice.Command#AUTH_KEY_A} or
+	 * {@link MiFareDevice.Command#AUTH_KEY_B}.
+	 */
+	public void addKey(byte authCommand, @NonNull byte[] key) {
+		if (authCommand != MiFareDevice.Command.AUTH_KEY_A && authCommand != MiFareDevice.Command.AUTH_KEY_B) {
+			throw new IllegalArgumentException("not an authentication command: " + authCommand);
+		}
+		if (key.length != 6) {
+			throw new IllegalArgumentException("MIFARE keys are 6 bytes");
+		}
+		if (mKeyCount == MAX_KEYS) {
+			throw new IllegalStateException("key ring full");
+		}
+		System.arraycopy(key, 0, mKeys[mKeyCount], 0, 6);
+		mKeyTypes[mKeyCount] = authCommand;
+		mKeyCount++;
+		forgetSectorKeys(true);
+	}
+
+	/**
+	 * Empties the key ring, and forgets which key opens which sector.
+	 */
+	public void clearKeys() {
+		mKeyCount = 0;
+		forgetSectorKeys(false);
+	}
+
+	/**
+	 * Sets how long read blocks are served from the cache. {@code 0}, the default, keeps them
+	 * until the card is {@link #invalidate(Iso14443aCard) invalidated} or evicted.
+	 */
+	public void setMaxAge(long maxAgeMs) {
+		if (maxAgeMs < 0) {
+			throw new IllegalArgumentException("max age must not be negative");
+		}
+		mMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+	}
+
+	/**
+	 * Drops the cached blocks of {@code card}; the sector keys are kept.
+	 */
+	public void invalidate(@NonNull Iso14443aCard card) {
+		final CardState state = find(card.getUidKey());
+		if (state != null) {
+			state.mValidBlocks = 0;
+		}
+	}
+
+	public void clearCache() {
+		for (CardState state : mCards) {
+			state.mInUse = false;
+		}
+	}
+
+	/**
+	 * Activates a card in the field, as {@link Iso14443aReader#activate(Iso14443aCard)} does, and
+	 * makes it the card this reader talks to.
+	 */
+	public boolean activate(@NonNull Iso14443aCard card) throws IOException {
+		endSession();
+		mSessionActive = mReader.activate(card);
+		mSessionUidKey = card.getUidKey();
+		return mSessionActive;
+	}
+
+	/**
+	 * Halts the activated card and switches Crypto1 off, ready for the next activation.
+	 */
+	public void halt() throws IOException {
+		if (mSessionActive) {
+			mReader.halt();
+		}
+		endSession();
+	}
+
+	/**
+	 * Reads one block of the activated card.
+	 * @return {@code false} if no key in the key ring opens the block's sector, or the card
+	 * stopped answering.
+	 */
+	public boolean readBlock(@NonNull Iso14443aCard card, int block, byte[] dest, int offset)
+			throws IOException {
+		if (block < 0 || block >= SECTOR_COUNT * BLOCKS_PER_SECTOR) {
+			throw new IllegalArgumentException("block out of range: " + block);
+		}
+		final CardState state = stateFor(card);
+		if (!readThrough(card, state, block, System.nanoTime())) {
+			return false;
+		}
+		System.arraycopy(state.mData, block * BLOCK_SIZE, dest, offset, BLOCK_SIZE);
+		return true;
+	}
+
+	/**
+	 * Reads the four blocks of a sector, trailer included, into {@code dest}.
+	 * @return {@code false} if any block couldn't be read.
+	 * @see #readBlock(Iso14443aCard, int, byte[], int)
+	 */
+	public boolean readSector(@NonNull Iso14443aCard card, int sector, byte[] dest, int offset)
+			throws IOException {
+		if (sector < 0 || sector >= SECTOR_COUNT) {
+			throw new IllegalArgumentException("sector out of range: " + sector);
+		}
+		final CardState state = stateFor(card);
+		final long now = System.nanoTime();
+		final int firstBlock = sector * BLOCKS_PER_SECTOR;
+		for (int block = firstBlock; block < firstBlock + BLOCKS_PER_SECTOR; block++) {
+			if (!readThrough(card, state, block, now)) {
+				return false;
+			}
+		}
+		System.arraycopy(state.mData, sector * SECTOR_SIZE, dest, offset, SECTOR_SIZE);
+		return true;
+	}
+
+	/**
+	 * Reads every sector of the activated card into {@code dest}, which must hold
+	 * {@link #CARD_SIZE} bytes. Sectors that can't be read are left as they were in {@code dest}.
+	 * @return a mask with bit {@code n} set if sector {@code n} was read.
+	 */
+	public int readCard(@NonNull Iso14443aCard card, byte[] dest) throws IOException {
+		int sectorMask = 0;
+		for (int sector = 0; sector < SECTOR_COUNT; sector++) {
+			if (readSector(card, sector, dest, sector * SECTOR_SIZE)) {
+				sectorMask |= 1 << sector;
+			}
+		}
+		return sectorMask;
+	}
+
+	public long getAuthenticationCount() {
+		return mAuthCount;
+	}
+
+	public long getAuthenticationFailureCount() {
+		return mAuthFailureCount;
+	}
+
+	/**
+	 * @return the number of blocks read from cards, as opposed to the cache.
+	 */
+	public long getBlockReadCount() {
+		return mBlockReadCount;
+	}
+
+	public long getCacheHitCount() {
+		return mCacheHitCount;
+	}
+
+	/**
+	 * Makes sure the block is in the cache, reading it from the card if needed.
+	 */
+	private boolean readThrough(Iso14443aCard card, CardState state, int block, long now)
+			throws IOException {
+		if (state.isValid(block, now, mMaxAgeNanos)) {
+			mCacheHitCount++;
+			return true;
+		}
+		if (!authenticate(card, state, block / BLOCKS_PER_SECTOR)) {
+			return false;
+		}
+
+		mFrame[0] = MiFareDevice.Command.READ;
+		mFrame[1] = (byte) block;
+		final TransceiveResult result = mDevice.transceive(mFrame, 0, 2, true, mResult);
+		if (!result.isOk() || result.getLength() != BLOCK_SIZE) {
+			// a NAK, or no answer: either way the card is back in IDLE
+			endSession();
+			return false;
+		}
+		mBlockReadCount++;
+		System.arraycopy(result.getData(), 0, state.mData, block * BLOCK_SIZE, BLOCK_SIZE);
+		state.mValidBlocks |= 1L << block;
+		state.mReadNanos[block] = now;
+		return true;
+	}
+
+	private boolean authenticate(Iso14443aCard card, CardState state, int sector) throws IOException {
+		if (mSessionUidKey != card.getUidKey()) {
+			throw new IllegalStateException("card not activated through this reader");
+		}
+		if (mAuthenticatedSector == sector) {
+			return true;
+		}
+
+		final byte known = state.mSectorKeys[sector];
+		if (known == KEY_NONE) {
+			return false;
+		}
+		if (!mSessionActive && !reactivate(card)) {
+			return false;
+		}
+		if (known >= 0) {
+			if (tryKey(card, known, sector)) {
+				return true;
+			}
+			// the sector's key has changed since
+			state.mSectorKeys[sector] = KEY_UNKNOWN;
+		}
+
+		for (int i = 0; i < mKeyCount; i++) {
+			if (i == known) {
+				continue;
+			}
+			if (!mSessionActive && !reactivate(card)) {
+				return false;
+			}
+			if (tryKey(card, i, sector)) {
+				state.mSectorKeys[sector] = (byte) i;
+				return true;
+			}
+		}
+
+		state.mSectorKeys[sector] = KEY_NONE;
+		// leave the card ready for the next sector
+		reactivate(card);
+		return false;
+	}
+
+	private boolean tryKey(Iso14443aCard card, int keyIndex, int sector) throws IOException {
+		mAuthCount++;
+		final int trailerBlock = sector * BLOCKS_PER_SECTOR + BLOCKS_PER_SECTOR - 1;
+		if (mDevice.mfAuthenticate(mKeyTypes[keyIndex], trailerBlock, mKeys[keyIndex], card)) {
+			mCrypto1On = true;
+			mAuthenticatedSector = sector;
+			return true;
+		}
+		mAuthFailureCount++;
+		endSession();
+		return false;
+	}
+
+	/**
+	 * Wakes the session's card again after it dropped out, e.g. on a failed authentication.
+	 */
+	private boolean reactivate(Iso14443aCard card) throws IOException {
+		endSession();
+		mSessionActive = mReader.activate(mReactivatedCard)
+				&& mReactivatedCard.getUidKey() == card.getUidKey();
+		mSessionUidKey = card.getUidKey();
+		return mSessionActive;
+	}
+
+	private void endSession() throws IOException {
+		if (mCrypto1On) {
+			mDevice.stopCrypto1();
+			mCrypto1On = false;
+		}
+		mSessionActive = false;
+		mAuthenticatedSector = -1;
+	}
+
+	private CardState find(long uidKey) {
+		for (CardState state : mCards) {
+			if (state.mInUse && state.mUidKey == uidKey) {
+				return state;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the cache entry for {@code card}, taking over the least recently used one if it has
+	 * none.
+	 */
+	private CardState stateFor(Iso14443aCard card) {
+		final long uidKey = card.getUidKey();
+		CardState state = find(uidKey);
+		if (state == null) {
+			state = mCards[0];
+			for (CardState candidate : mCards) {
+				if (!candidate.mInUse) {
+					state = candidate;
+					break;
+				}
+				if (candidate.mLastUse < state.mLastUse) {
+					state = candidate;
+				}
+			}
+			state.reset(uidKey);
+		}
+		state.mLastUse = ++mUseCounter;
+		return state;
+	}
+
+	private void forgetSectorKeys(boolean keepFound) {
+		for (CardState state : mCards) {
+			for (int sector = 0; sector < SECTOR_COUNT; sector++) {
+				// a sector no key opened may open with the new one
+				if (!keepFound || state.mSectorKeys[sector] == KEY_NONE) {
+					state.mSectorKeys[sector] = KEY_UNKNOWN;
+				}
+			}
+		}
+	}
+
+	private static class CardState {
+		boolean mInUse;
+		long mUidKey;
+		long mLastUse;
+		final byte[] mSectorKeys = new byte[SECTOR_COUNT];
+		final byte[] mData = new byte[CARD_SIZE];
+		long mValidBlocks;
+		final long[] mReadNanos = new long[SECTOR_COUNT * BLOCKS_PER_SECTOR];
+
+		void reset(long uidKey) {
+			mInUse = true;
+			mUidKey = uidKey;
+			mValidBlocks = 0;
+			for (int i = 0; i < SECTOR_COUNT; i++) {
+				mSectorKeys[i] = KEY_UNKNOWN;
+			}
+		}
+
+		boolean isValid(int block, long now, long maxAgeNanos) {
+			return (mValidBlocks & (1L << block)) != 0
+					&& (maxAgeNanos == 0 || now - mReadNanos[block] < maxAgeNanos);
+		}
+	}
+
+}
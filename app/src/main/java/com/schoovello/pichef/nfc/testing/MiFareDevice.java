@@ -16,9 +16,17 @@ package com.schoovello.pichef.nfc.testing;
 public class MiFareDevice {
 
 	public interface Command {
-		byte REQA = (byte) (0x26 << 1); // 7-bit
-		byte WUPA = (byte) (0x52 << 1); // 7-bit
+		byte REQA = (byte) 0x26; // 7-bit
+		byte WUPA = (byte) 0x52; // 7-bit
+		byte SEL_CL1 = (byte) 0x93; // anticollision / select, cascade level 1
+		byte SEL_CL2 = (byte) 0x95;
+		byte SEL_CL3 = (byte) 0x97;
+		byte HLTA = (byte) 0x50;
 		byte READ = (byte) 0x30;
+		byte AUTH_KEY_A = (byte) 0x60;
+		byte AUTH_KEY_B = (byte) 0x61;
+		byte GET_VERSION = (byte) 0x60; // NTAG, Ultralight EV1
+		byte FAST_READ = (byte) 0x3a; // NTAG, Ultralight EV1
 	}
 
 }
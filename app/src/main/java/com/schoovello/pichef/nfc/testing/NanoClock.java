@@ -0,0 +1,34 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Time source for the decisions {@link Pn512NfcDevice} bases on elapsed time, such as receive
+ * timeouts, so a recorded session can be replayed with the times it saw.
+ */
+public interface NanoClock {
+
+	NanoClock SYSTEM = new NanoClock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * @return a monotonic time in nanoseconds, as {@link System#nanoTime()}.
+	 */
+	long nanoTime();
+
+}
@@ -0,0 +1,451 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Finds the NDEF message in the TLV area of a Type 2 tag and splits it into records, without
+ * copying: records are described by offsets and lengths into the buffer being parsed.<p/>
+ * Parsing is incremental. The caller fills the buffer as pages arrive and calls
+ * {@link #parse(byte[], int)} with the number of bytes filled so far; the parser picks up where
+ * it stopped. Once the NDEF TLV header has been seen, {@link #getBytesNeeded()} says exactly how
+ * far the buffer has to be filled, so reading can stop at the end of the message instead of the
+ * end of the tag.<p/>
+ * Lock and Memory Control TLVs are reported but their reserved areas are not skipped: on
+ * NTAG21x and Ultralight they lie outside the data area. Chunked records are reported chunk by
+ * chunk; {@link #copyPayload(int, byte[], int)} joins them when a contiguous payload is needed.
+ */
+public class NdefParser {
+
+	public interface Status {
+		/**
+		 * The buffer ends before the message does; fill it up to {@link #getBytesNeeded()} and
+		 * parse again.
+		 */
+		int NEED_MORE = 0;
+		int COMPLETE = 1;
+		/**
+		 * A Terminator TLV came before any NDEF TLV.
+		 */
+		int NO_NDEF = 2;
+		int MALFORMED = 3;
+		int TOO_MANY_RECORDS = 4;
+	}
+
+	public interface TlvType {
+		byte NULL = 0x00;
+		byte LOCK_CONTROL = 0x01;
+		byte MEMORY_CONTROL = 0x02;
+		byte NDEF = 0x03;
+		byte PROPRIETARY = (byte) 0xfd;
+		byte TERMINATOR = (byte) 0xfe;
+	}
+
+	public interface Tnf {
+		int EMPTY = 0x00;
+		int WELL_KNOWN = 0x01;
+		int MEDIA = 0x02;
+		int ABSOLUTE_URI = 0x03;
+		int EXTERNAL = 0x04;
+		int UNKNOWN = 0x05;
+		int UNCHANGED = 0x06;
+	}
+
+	private interface Flags {
+		int MB = 0x80;
+		int ME = 0x40;
+		int CF = 0x20;
+		int SR = 0x10;
+		int IL = 0x08;
+		int TNF_MASK = 0x07;
+	}
+
+	/**
+	 * Where the TLV area of a Type 2 tag starts: page 4, after the UID, lock bytes and capability
+	 * container.
+	 */
+	public static final int TYPE_2_TLV_OFFSET = 16;
+
+	public static final int MAX_CONTROL_TLVS = 4;
+
+	private static final int STATE_TLV = 0;
+	private static final int STATE_RECORDS = 1;
+	private static final int STATE_DONE = 2;
+
+	private final int mMaxRecords;
+	private final int[] mHeaders;
+	private final int[] mTypeOffsets;
+	private final int[] mTypeLengths;
+	private final int[] mIdOffsets;
+	private final int[] mIdLengths;
+	private final int[] mPayloadOffsets;
+	private final int[] mPayloadLengths;
+	private int mRecordCount;
+
+	private final byte[] mControlTypes = new byte[MAX_CONTROL_TLVS];
+	private final int[] mControlOffsets = new int[MAX_CONTROL_TLVS];
+	private int mControlCount;
+
+	private byte[] mBuffer;
+	private int mState;
+	private int mStatus;
+	private int mPosition;
+	private int mBytesNeeded;
+	private int mMessageOffset = -1;
+	private int mMessageLength;
+	private boolean mInChunk;
+
+	public NdefParser(int maxRecords) {
+		if (maxRecords < 1) {
+			throw new IllegalArgumentException("must allow at least one record");
+		}
+		mMaxRecords = maxRecords;
+		mHeaders = new int[maxRecords];
+		mTypeOffsets = new int[maxRecords];
+		mTypeLengths = new int[maxRecords];
+		mIdOffsets = new int[maxRecords];
+		mIdLengths = new int[maxRecords];
+		mPayloadOffsets = new int[maxRecords];
+		mPayloadLengths = new int[maxRecords];
+		reset(TYPE_2_TLV_OFFSET);
+	}
+
+	/**
+	 * Starts over on a new buffer whose TLV area begins at {@code tlvOffset}.
+	 */
+	public void reset(int tlvOffset) {
+		mBuffer = null;
+		mState = STATE_TLV;
+		mStatus = Status.NEED_MORE;
+		mPosition = tlvOffset;
+		mBytesNeeded = tlvOffset + 1;
+		mMessageOffset = -1;
+		mMessageLength = 0;
+		mRecordCount = 0;
+		mControlCount = 0;
+		mInChunk = false;
+	}
+
+	/**
+	 * Parses on from where the last call stopped.
+	 * @param length the number of valid bytes at the start of {@code buffer}. The bytes parsed by
+	 * earlier calls must not have changed.
+	 * @return one of {@link Status}.
+	 */
+	public int parse(@NonNull byte[] buffer, int length) {
+		if (length > buffer.length) {
+			throw new IllegalArgumentException("length beyond the end of the buffer");
+		}
+		mBuffer = buffer;
+		boolean progress = true;
+		while (progress && mState != STATE_DONE) {
+			progress = mState == STATE_TLV ? parseTlv(buffer, length) : parseRecord(buffer, length);
+		}
+		return mStatus;
+	}
+
+	/**
+	 * @return how many bytes of the buffer must be valid for the next {@link #parse} to get
+	 * further: the end of the NDEF message once its TLV has been found, otherwise the end of the
+	 * next TLV header.
+	 */
+	public int getBytesNeeded() {
+		return mBytesNeeded;
+	}
+
+	public int getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * @return the offset of the NDEF message in the buffer, or {@code -1} if its TLV hasn't been
+	 * found yet.
+	 */
+	public int getMessageOffset() {
+		return mMessageOffset;
+	}
+
+	public int getMessageLength() {
+		return mMessageLength;
+	}
+
+	/**
+	 * @return the number of records parsed so far. Every byte of these records is in the buffer.
+	 */
+	public int getRecordCount() {
+		return mRecordCount;
+	}
+
+	public int getTnf(int record) {
+		return mHeaders[checkRecord(record)] & Flags.TNF_MASK;
+	}
+
+	public boolean isMessageBegin(int record) {
+		return (mHeaders[checkRecord(record)] & Flags.MB) != 0;
+	}
+
+	public boolean isMessageEnd(int record) {
+		return (mHeaders[checkRecord(record)] & Flags.ME) != 0;
+	}
+
+	/**
+	 * @return {@code true} if the record's payload continues in the next record.
+	 */
+	public boolean isChunked(int record) {
+		return (mHeaders[checkRecord(record)] & Flags.CF) != 0;
+	}
+
+	public int getTypeOffset(int record) {
+		return mTypeOffsets[checkRecord(record)];
+	}
+
+	public int getTypeLength(int record) {
+		return mTypeLengths[checkRecord(record)];
+	}
+
+	/**
+	 * @return the offset of the record's ID; only meaningful if {@link #getIdLength(int)} isn't
+	 * {@code 0}.
+	 */
+	public int getIdOffset(int record) {
+		return mIdOffsets[checkRecord(record)];
+	}
+
+	public int getIdLength(int record) {
+		return mIdLengths[checkRecord(record)];
+	}
+
+	public int getPayloadOffset(int record) {
+		return mPayloadOffsets[checkRecord(record)];
+	}
+
+	public int getPayloadLength(int record) {
+		return mPayloadLengths[checkRecord(record)];
+	}
+
+	/**
+	 * Compares the record's type with {@code type}, e.g. {@code "T"} or {@code "U"} for
+	 * well-known Text and URI records, without decoding it.
+	 */
+	public boolean typeEquals(int record, @NonNull byte[] type) {
+		final int length = getTypeLength(record);
+		if (length != type.length) {
+			return false;
+		}
+		final int offset = mTypeOffsets[record];
+		for (int i = 0; i < length; i++) {
+			if (mBuffer[offset + i] != type[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the payload of a record, joined with the payloads of the chunks that follow it if
+	 * it is the first of a chunked series.
+	 * @return the number of bytes copied.
+	 */
+	public int copyPayload(int record, @NonNull byte[] dest, int offset) {
+		int copied = 0;
+		int i = checkRecord(record);
+		while (true) {
+			System.arraycopy(mBuffer, mPayloadOffsets[i], dest, offset + copied, mPayloadLengths[i]);
+			copied += mPayloadLengths[i];
+			if ((mHeaders[i] & Flags.CF) == 0 || ++i == mRecordCount) {
+				return copied;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of Lock and Memory Control TLVs seen before the NDEF TLV, up to
+	 * {@link #MAX_CONTROL_TLVS}.
+	 */
+	public int getControlTlvCount() {
+		return mControlCount;
+	}
+
+	/**
+	 * @return {@link TlvType#LOCK_CONTROL} or {@link TlvType#MEMORY_CONTROL}.
+	 */
+	public byte getControlTlvType(int index) {
+		return mControlTypes[index];
+	}
+
+	/**
+	 * @return the offset of the control TLV's 3-byte value: position, size and page layout of the
+	 * area it describes.
+	 */
+	public int getControlTlvOffset(int index) {
+		return mControlOffsets[index];
+	}
+
+	/**
+	 * @return {@code false} if parsing has to stop.
+	 */
+	private boolean parseTlv(byte[] buffer, int length) {
+		final int start = mPosition;
+		if (start >= length) {
+			return needMore(start + 1);
+		}
+		final byte type = buffer[start];
+		if (type == TlvType.NULL) {
+			mPosition++;
+			return true;
+		}
+		if (type == TlvType.TERMINATOR) {
+			return finish(Status.NO_NDEF);
+		}
+
+		// one length byte, or 0xff and two more
+		if (start + 2 > length) {
+			return needMore(start + 2);
+		}
+		int valueOffset = start + 2;
+		int valueLength = buffer[start + 1] & 0xff;
+		if (valueLength == 0xff) {
+			if (start + 4 > length) {
+				return needMore(start + 4);
+			}
+			valueOffset = start + 4;
+			valueLength = (buffer[start + 2] & 0xff) << 8 | (buffer[start + 3] & 0xff);
+		}
+
+		if (type == TlvType.NDEF) {
+			mMessageOffset = valueOffset;
+			mMessageLength = valueLength;
+			mPosition = valueOffset;
+			mBytesNeeded = valueOffset + valueLength;
+			mState = STATE_RECORDS;
+			return true;
+		}
+		if ((type == TlvType.LOCK_CONTROL || type == TlvType.MEMORY_CONTROL)
+				&& mControlCount < MAX_CONTROL_TLVS) {
+			mControlTypes[mControlCount] = type;
+			mControlOffsets[mControlCount] = valueOffset;
+			mControlCount++;
+		}
+		// other TLVs are skipped, value and all
+		mPosition = valueOffset + valueLength;
+		return true;
+	}
+
+	/**
+	 * @return {@code false} if parsing has to stop.
+	 */
+	private boolean parseRecord(byte[] buffer, int length) {
+		final int start = mPosition;
+		final int messageEnd = mMessageOffset + mMessageLength;
+		if (start == messageEnd) {
+			// an empty message, or one whose last record ended right at the end of the TLV
+			if (mRecordCount == 0) {
+				return mMessageLength == 0 ? finish(Status.COMPLETE) : finish(Status.MALFORMED);
+			}
+			final boolean ended = (mHeaders[mRecordCount - 1] & Flags.ME) != 0;
+			return finish(ended ? Status.COMPLETE : Status.MALFORMED);
+		}
+		if (mRecordCount > 0 && (mHeaders[mRecordCount - 1] & Flags.ME) != 0) {
+			// data after the last record
+			return finish(Status.MALFORMED);
+		}
+
+		if (start + 1 > length) {
+			return needMore(messageEnd);
+		}
+		final int header = buffer[start] & 0xff;
+		final int headerLength = 2 + ((header & Flags.SR) != 0 ? 1 : 4) + ((header & Flags.IL) != 0 ? 1 : 0);
+		if (start + headerLength > messageEnd) {
+			return finish(Status.MALFORMED);
+		}
+		if (start + headerLength > length) {
+			return needMore(messageEnd);
+		}
+
+		int p = start + 1;
+		final int typeLength = buffer[p++] & 0xff;
+		long payloadLength;
+		if ((header & Flags.SR) != 0) {
+			payloadLength = buffer[p++] & 0xff;
+		} else {
+			payloadLength = (buffer[p] & 0xffL) << 24 | (buffer[p + 1] & 0xff) << 16
+					| (buffer[p + 2] & 0xff) << 8 | (buffer[p + 3] & 0xff);
+			p += 4;
+		}
+		final int idLength = (header & Flags.IL) != 0 ? buffer[p++] & 0xff : 0;
+		final long recordEnd = (long) p + typeLength + idLength + payloadLength;
+		if (recordEnd > messageEnd || !isValidHeader(header, typeLength, idLength)) {
+			return finish(Status.MALFORMED);
+		}
+		if (recordEnd > length) {
+			return needMore(messageEnd);
+		}
+		if (mRecordCount == mMaxRecords) {
+			return finish(Status.TOO_MANY_RECORDS);
+		}
+
+		final int record = mRecordCount++;
+		mHeaders[record] = header;
+		mTypeOffsets[record] = p;
+		mTypeLengths[record] = typeLength;
+		mIdOffsets[record] = p + typeLength;
+		mIdLengths[record] = idLength;
+		mPayloadOffsets[record] = p + typeLength + idLength;
+		mPayloadLengths[record] = (int) payloadLength;
+		mInChunk = (header & Flags.CF) != 0;
+		mPosition = (int) recordEnd;
+		return true;
+	}
+
+	/**
+	 * Checks the header against the records before it: MB on the first record only, and chunks
+	 * after the first with no type or ID of their own.
+	 */
+	private boolean isValidHeader(int header, int typeLength, int idLength) {
+		final boolean first = mRecordCount == 0;
+		if (((header & Flags.MB) != 0) != first) {
+			return false;
+		}
+		// a chunked series must be closed before the message ends
+		if ((header & (Flags.CF | Flags.ME)) == (Flags.CF | Flags.ME)) {
+			return false;
+		}
+		final int tnf = header & Flags.TNF_MASK;
+		if (mInChunk) {
+			return tnf == Tnf.UNCHANGED && typeLength == 0 && idLength == 0;
+		}
+		return tnf < Tnf.UNCHANGED && (tnf != Tnf.EMPTY || typeLength == 0 && idLength == 0);
+	}
+
+	private boolean needMore(int bytesNeeded) {
+		mBytesNeeded = bytesNeeded;
+		mStatus = Status.NEED_MORE;
+		return false;
+	}
+
+	private boolean finish(int status) {
+		mState = STATE_DONE;
+		mStatus = status;
+		return false;
+	}
+
+	private int checkRecord(int record) {
+		if (record < 0 || record >= mRecordCount) {
+			throw new IndexOutOfBoundsException("record " + record + " of " + mRecordCount);
+		}
+		return record;
+	}
+
+}
@@ -14,31 +14,123 @@
 package com.schoovello.pichef.nfc.testing;
 
 import android.support.annotation.NonNull;
-
-import com.google.android.things.pio.SpiDevice;
+import android.support.annotation.Nullable;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Interface to a PN512 device configured for SPI. Intended to be used with the Explore-NFC board
  * attached to a Raspberry Pi running Android Things.<p/>
- * Most method calls are blocking, so they should be called from a background thread.
+ * Most method calls are blocking, so they should be called from a background thread.<p/>
+ * By default, waits for command completion poll the chip every millisecond. If the PN512 IRQ pin
+ * is wired up, pass it to {@link #setIrqLine(IrqLine)} to be woken by the interrupt instead.
  */
 public class Pn512NfcDevice {
 
-	private final SpiDevice mSpi;
+	/**
+	 * Upper bound on a single wait for the IRQ pin. If an edge is missed, the wait loop falls back
+	 * to reading the interrupt flags after this long.
+	 */
+	private static final long IRQ_WAIT_TIMEOUT_MS = 50;
+
+	/**
+	 * How long a transceive waits for a response, unless changed with
+	 * {@link #setResponseTimeout(int)}: the ISO14443-3 frame waiting time is far shorter, but a
+	 * Type 2 tag may take this long to answer.
+	 */
+	public static final int DEFAULT_RESPONSE_TIMEOUT_US = 5_000;
+
+	/**
+	 * The timer unit reports a missing response; the host only gives up by itself if the FIFO
+	 * has stopped moving for this long past the response timeout, e.g. on a response that broke
+	 * off halfway.
+	 */
+	private static final long RECEIVE_TIMEOUT_MARGIN_MS = 20;
+
+	/**
+	 * How long a command that ends by itself (Configure, CalcCRC, Transmit) may take before the
+	 * chip is considered stuck.
+	 */
+	private static final long COMMAND_TIMEOUT_MS = 50;
+
+	/**
+	 * How long MFAuthent may run if the timer doesn't report a missing answer. The command doesn't
+	 * end by itself when the card stops answering, e.g. on a wrong key; a successful
+	 * authentication takes about 3 ms.
+	 */
+	private static final long AUTH_TIMEOUT_MS = 10;
+
+	/**
+	 * On-air time of a byte at {@link BitRate#KBPS_106}, halving with each faster rate: 8 bits of
+	 * 128 carrier cycles. Parity and framing bits are left out, so a wait based on it ends before
+	 * the FIFO reaches its water level rather than after.
+	 */
+	private static final long BYTE_NANOS_106 = 8L * 128 * 1_000_000_000L / 13_560_000;
+
+	/**
+	 * Authentication command, block address, 6-byte key and 4 UID bytes.
+	 */
+	private static final int AUTH_FRAME_LENGTH = 12;
+
+	private final SpiPort mSpi;
 
 	private final byte[] mTxBuffer = new byte[256];
 	private final byte[] mRxBuffer = new byte[256];
 
-	public Pn512NfcDevice(@NonNull SpiDevice spiDevice) throws IOException {
-		mSpi = spiDevice;
-		mSpi.setFrequency(250_000);
-		mSpi.setBitsPerWord(8);
-		mSpi.setMode(SpiDevice.MODE0);
-		mSpi.setCsChange(false);
+	private final RegisterShadow mShadow = new RegisterShadow();
+	private final RegisterBatch mBatch;
+
+	@Nullable
+	private IrqLine mIrqLine;
+	/**
+	 * Set by the IRQ listener and consumed by {@link #awaitIrqSignal(long)}. A binary semaphore,
+	 * built on park/unpark because {@link java.util.concurrent.Semaphore} allocates a queue node
+	 * whenever a thread blocks on it.
+	 */
+	private volatile boolean mIrqPending;
+
+	@Nullable
+	private volatile Thread mIrqWaiter;
+
+	/**
+	 * Set by {@link #abort()}, and checked by every wait for the chip.
+	 */
+	private volatile boolean mAbortRequested;
+
+	/**
+	 * Scratch space for FIFO reads whose result isn't handed to the caller.
+	 */
+	private final byte[] mFifoBuffer = new byte[Values.FIFO_SIZE];
+	private final byte[] mAuthFrame = new byte[AUTH_FRAME_LENGTH];
+
+	private boolean mReaderModeConfigured;
+
+	private final DeviceMetrics mMetrics = new DeviceMetrics();
+
+	private int mSpiFrequencyHz;
+	private long mLinkErrorCount;
+
+	// TModeReg, TPrescalerReg and TReloadReg for the response timeout
+	private int mResponseTimeoutUs;
+	private byte mTimerMode;
+	private byte mTimerPrescaler;
+	private byte mTimerReloadHi;
+	private byte mTimerReloadLo;
+
+	private NanoClock mClock = NanoClock.SYSTEM;
+
+	public Pn512NfcDevice(@NonNull SpiPort spiPort) throws IOException {
+		mSpi = new MeteredSpiPort(spiPort, mMetrics);
+		setSpiFrequency(Values.DEFAULT_SPI_FREQUENCY_HZ);
+
+		mBatch = new RegisterBatch(mSpi, mShadow);
+		setResponseTimeout(DEFAULT_RESPONSE_TIMEOUT_US);
 	}
 
 	public void close() {
@@ -49,8 +141,186 @@ public class Pn512NfcDevice {
 		}
 	}
 
+	/**
+	 * Creates a batch that queues register accesses on this device and flushes them in as few SPI
+	 * transfers as possible. Batches may be reused after {@link RegisterBatch#clear()}.
+	 */
+	public RegisterBatch newRegisterBatch() {
+		return new RegisterBatch(mSpi, mShadow);
+	}
+
+	/**
+	 * @return latency histograms and counters for this device, which may be snapshotted from any
+	 * thread.
+	 */
+	public DeviceMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @return the number of SPI transfers avoided by batching inside this driver's own commands.
+	 */
+	public long getSpiTransfersSaved() {
+		return mBatch.getTransfersSaved();
+	}
+
+	/**
+	 * @return the number of configuration register reads answered from the shadow copy.
+	 */
+	public long getShadowHitCount() {
+		return mShadow.getHitCount();
+	}
+
+	/**
+	 * @return the number of configuration register reads that had to go to the chip.
+	 */
+	public long getShadowMissCount() {
+		return mShadow.getMissCount();
+	}
+
+	/**
+	 * Sets the time source for timeouts. The IRQ wait itself always runs on the system clock.
+	 * @see SpiRecorder
+	 */
+	public void setClock(@NonNull NanoClock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Sets the SPI clock. {@link SpiLinkTrainer} finds the fastest one the wiring carries.
+	 */
+	public void setSpiFrequency(int frequencyHz) throws IOException {
+		mSpi.setFrequency(frequencyHz);
+		mSpiFrequencyHz = frequencyHz;
+	}
+
+	public int getSpiFrequency() {
+		return mSpiFrequencyHz;
+	}
+
+	/**
+	 * Sets how long a transceive waits for the first bit of a response. The PN512 timer unit is
+	 * started by the end of every transmission (TAuto) and stopped by the first bit received; if
+	 * it runs out first, the transceive ends right away with {@link TransceiveResult.Status#TIMEOUT}.
+	 * Readers set this to the frame waiting time of the protocol they speak. The timer registers
+	 * are written along with the next frame, and only if they change.
+	 */
+	public void setResponseTimeout(int timeoutUs) {
+		if (timeoutUs <= 0) {
+			throw new IllegalArgumentException("timeout must be positive");
+		}
+		// one period is (TReload + 1) * (2 * TPrescaler + 1) cycles of the 13.56 MHz clock
+		final long cycles = (timeoutUs * Values.TIMER_CLOCK_KHZ + 999) / 1000;
+		long divider = (cycles + 0xffff) / 0x10000;
+		if (divider % 2 == 0) {
+			divider++;
+		}
+		final long prescaler = (divider - 1) / 2;
+		if (prescaler > Values.T_PRESCALER_MAX) {
+			throw new IllegalArgumentException("timeout too long: " + timeoutUs + " us");
+		}
+		final long reload = Math.max(1, (cycles + divider - 1) / divider - 1);
+
+		mResponseTimeoutUs = timeoutUs;
+		mTimerMode = (byte) (Values.T_MODE_T_AUTO | (prescaler >> 8));
+		mTimerPrescaler = (byte) prescaler;
+		mTimerReloadHi = (byte) (reload >> 8);
+		mTimerReloadLo = (byte) reload;
+	}
+
+	public int getResponseTimeout() {
+		return mResponseTimeoutUs;
+	}
+
+	/**
+	 * @return the number of times a register read back a value the chip can't produce, each of
+	 * which halved the SPI clock (down to the default).
+	 */
+	public long getLinkErrorCount() {
+		return mLinkErrorCount;
+	}
+
+	/**
+	 * Switches command completion waits to interrupt mode: the PN512 is programmed to signal
+	 * completion on its IRQ pin, and the waiting thread sleeps until the pin is asserted.
+	 * Passing {@code null} returns to polling mode.
+	 */
+	public void setIrqLine(@Nullable IrqLine irqLine) throws IOException {
+		if (mIrqLine != null) {
+			mIrqLine.setListener(null);
+		}
+
+		mIrqLine = irqLine;
+
+		if (irqLine != null) {
+			configureIrqPin();
+			irqLine.setListener(mIrqListener);
+		}
+	}
+
+	public boolean isInterruptMode() {
+		return mIrqLine != null;
+	}
+
+	/**
+	 * Asks the command running on another thread to stop. The next time the command waits for the
+	 * chip, it returns the chip to {@link Command#IDLE} and throws an
+	 * {@link InterruptedIOException}. The request is not cleared until a command picks it up or
+	 * {@link #clearAbort()} is called.
+	 */
+	public void abort() {
+		mAbortRequested = true;
+		Thread waiter = mIrqWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Withdraws an {@link #abort()} that no command has picked up.
+	 */
+	public void clearAbort() {
+		mAbortRequested = false;
+	}
+
+	private void checkAborted() throws IOException {
+		if (mAbortRequested) {
+			mAbortRequested = false;
+			writeCommand(Command.IDLE);
+			throw new InterruptedIOException("command aborted");
+		}
+	}
+
 	public void softReset() throws IOException {
 		writeCommand(Command.SOFT_RESET);
+		mShadow.invalidateAll();
+		mReaderModeConfigured = false;
+
+		if (mIrqLine != null) {
+			// the reset restores the interrupt registers to their defaults
+			configureIrqPin();
+		}
+	}
+
+	/**
+	 * Brings the chip up from any state: a soft reset followed by the profile, in one batch.
+	 * Unlike {@link #selfTest()}, this doesn't go through the Configure command or wait for the
+	 * chip, so it costs one SPI transfer per register the profile changes from its reset value.
+	 */
+	public void initialize(@NonNull InitProfile profile) throws IOException {
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.SOFT_RESET);
+		mShadow.invalidateAll();
+		profile.queue(batch, mShadow);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.DIV_I_EN_REG, Values.DIV_I_EN_IRQ_PUSH_PULL)
+					.writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue((byte) 0));
+		}
+		batch.execute();
+
+		// the profile may have cleared ValuesAfterColl already
+		mReaderModeConfigured = profile.contains(RegisterAddress.COLL_REG);
 	}
 
 	/**
@@ -58,28 +328,27 @@ public class Pn512NfcDevice {
 	 * @return {@code true} if the test was successful.
 	 */
 	public boolean selfTest() throws IOException {
+		mMetrics.begin(DeviceMetrics.Operation.SELF_TEST);
+
 		// 1. Perform a soft reset.
 		softReset();
 
 		// 2. Clear the internal buffer by writing 25 bytes of 00h and perform the Config Command.
-		writeFifo(newData(25, (byte) 0x00));
-		writeCommand(Command.CONFIGURE);
-		waitForIdle();
+		writeFifo(ConstantData.CONFIG_BUFFER_CLEAR);
+		runCommandUntilIdle(Command.CONFIGURE);
 
 		// 3. Enable the Selftest by writing the value 09h to the register AutoTestReg.
 		writeRegister(RegisterAddress.AUTO_TEST_REG, Values.AUTO_TEST_ENABLE_SELF_TEST);
 
 		// 4. Write 00h to the FIFO.
-		writeFifo(new byte[] { 0x00 });
-
-		// 5. Start the Selftest with the CalcCRC Command.
-		writeCommand(Command.CALC_CRC);
+		writeFifo(ConstantData.SELF_TEST_INPUT);
 
-		// wait for self test to finish
-		waitForIdle();
+		// 5. Start the Selftest with the CalcCRC Command, and wait for it to finish.
+		runCommandUntilIdle(Command.CALC_CRC);
 
 		// validate fifo
-		byte[] result = readFifo(ConstantData.SELF_TEST_EXPECTED_RESULT.length);
+		final byte[] result = mFifoBuffer;
+		readFifo(result, 0, ConstantData.SELF_TEST_EXPECTED_RESULT.length);
 		boolean valid = true;
 		for (int i = 0; i < ConstantData.SELF_TEST_EXPECTED_RESULT.length; i++) {
 			if (result[i] != ConstantData.SELF_TEST_EXPECTED_RESULT[i]) {
@@ -88,83 +357,864 @@ public class Pn512NfcDevice {
 			}
 		}
 
+		mMetrics.end(DeviceMetrics.Operation.SELF_TEST);
 		return valid;
 	}
 
 	public boolean tryActivateMiFare() throws IOException {
-		// enable Rx (writing NO_CMD_CHANGE clears RcvOff and PowerDown bits)
-		writeRegister(RegisterAddress.COMMAND_REG, Command.NO_CMD_CHANGE);
+		mMetrics.begin(DeviceMetrics.Operation.ACTIVATION);
+
+		final RegisterBatch batch = mBatch;
+
+		// enable Rx (writing NO_CMD_CHANGE clears RcvOff and PowerDown bits), and fetch any
+		// registers we need to modify that aren't shadowed yet in the same transfer
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.NO_CMD_CHANGE);
+		if (!mShadow.lookup(RegisterAddress.CONTROL_REG)) {
+			batch.readRegister(RegisterAddress.CONTROL_REG);
+		}
+		if (!mShadow.lookup(RegisterAddress.BIT_FRAMING_REG)) {
+			batch.readRegister(RegisterAddress.BIT_FRAMING_REG);
+		}
+		batch.execute();
+
+		// the batch has updated the shadow with anything it read
+		byte controlRegValue = mShadow.get(RegisterAddress.CONTROL_REG);
+		byte bitFramingRegValue = mShadow.get(RegisterAddress.BIT_FRAMING_REG);
+
+		batch.clear();
 
 		// enable initiator mode
-		byte controlRegValue = readRegister(RegisterAddress.CONTROL_REG);
 		controlRegValue = BitUtils.setBits(controlRegValue, (byte) 0b0001_0000);
-		writeRegister(RegisterAddress.CONTROL_REG, controlRegValue);
+		batch.writeRegister(RegisterAddress.CONTROL_REG, controlRegValue);
 
 		// enable RF
-		writeRegister(RegisterAddress.TX_CONTROL_REG, (byte) 0b1000_0010);
+		batch.writeRegister(RegisterAddress.TX_CONTROL_REG, (byte) 0b1000_0010);
 
 		// Send WUPA
 		//  Clear FIFO
-		flushFifo();
+		batch.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER);
 
 		// WUPA is a 7-bit command, so set the framing params
-		byte bitFramingRegValue = readRegister(RegisterAddress.BIT_FRAMING_REG);
 		bitFramingRegValue = BitUtils.setBits(bitFramingRegValue, (byte) 0b0000_0111);
-		writeRegister(RegisterAddress.BIT_FRAMING_REG, bitFramingRegValue);
+		batch.writeRegister(RegisterAddress.BIT_FRAMING_REG, bitFramingRegValue);
 
 		//  Write command sequence to FIFO
-		writeFifo(new byte[] {MiFareDevice.Command.WUPA});
+		batch.writeRegister(RegisterAddress.FIFO_DATA_REG, MiFareDevice.Command.WUPA);
+
+		// have the timer report a missing answer
+		queueTimer(batch);
 
 		// clear interrupt flags
-		clearAllInterruptFlags();
+		batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.COM_I_EN_REG,
+					comIEnValue((byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_TIMER)));
+			mIrqPending = false;
+		}
 
 		//  Write Transceive command
-		writeCommand(Command.TRANSCEIVE);
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.TRANSCEIVE);
+		batch.execute();
 
 		//  Set BitFramingReg register’s StartSend bit to logic 1.
-		bitFramingRegValue = readRegister(RegisterAddress.BIT_FRAMING_REG);
-		bitFramingRegValue = BitUtils.setBits(bitFramingRegValue, (byte) 0b1000_0000);
-		writeRegister(RegisterAddress.BIT_FRAMING_REG, bitFramingRegValue);
+		setRegisterBits(RegisterAddress.BIT_FRAMING_REG, (byte) 0b1000_0000);
 
-		// wait for finished signals
-		byte irqRegValue;
-		do {
-			smallDelayBlocking();
-			irqRegValue = readRegister(RegisterAddress.COMM_IRQ_REG);
-		} while ((irqRegValue & (byte) 0b0011_0000) != (byte) 0b0011_0000);
+		// wait for the response; Transceive does not terminate by itself, so IdleIRq is not set
+		final byte irqRegValue = waitForAnyCommIrq((byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_TIMER),
+				TimeUnit.MICROSECONDS.toMillis(mResponseTimeoutUs) + RECEIVE_TIMEOUT_MARGIN_MS);
 
+		if ((irqRegValue & Values.COMM_IRQ_RX) == 0) {
+			// no card answered
+			cancelCommand();
+			mMetrics.end(DeviceMetrics.Operation.ACTIVATION);
+			return false;
+		}
 
-		// cancel transceive command
+		// cancel transceive command; the first bit received has stopped the timer
 		writeCommand(Command.IDLE);
 
 		//  Read FIFO
-		byte[] result = readFifo(2);
+		final byte[] result = mFifoBuffer;
+		readFifo(result, 0, 2);
+
+		mMetrics.end(DeviceMetrics.Operation.ACTIVATION);
 
 		//  Check expected response
-		byte[] expected = { (byte) 0x44, (byte) 0x00 };
-		return Arrays.equals(expected, result);
+		return result[0] == ConstantData.ULTRALIGHT_ATQA[0] && result[1] == ConstantData.ULTRALIGHT_ATQA[1];
 	}
 
-	private void clearAllInterruptFlags() throws IOException {
-		writeRegister(RegisterAddress.COMM_IRQ_REG, (byte) 0b0111_1111);
+	/**
+	 * Runs the MIFARE Classic three pass authentication with the selected card. On success the
+	 * chip switches Crypto1 on and from then on encrypts and decrypts every frame, until
+	 * {@link #stopCrypto1()}.
+	 * @param authCommand {@link MiFareDevice.Command#AUTH_KEY_A} or
+	 * {@link MiFareDevice.Command#AUTH_KEY_B}.
+	 * @param block any block of the sector to authenticate.
+	 * @param key the 6-byte key.
+	 * @param card the selected card; the last four bytes of its UID take part in the exchange.
+	 * @return {@code true} if the card is authenticated. A card that fails authentication drops
+	 * back to the IDLE state and has to be activated again.
+	 */
+	public boolean mfAuthenticate(byte authCommand, int block, byte[] key, @NonNull Iso14443aCard card)
+			throws IOException {
+		if (key.length != 6) {
+			throw new IllegalArgumentException("MIFARE keys are 6 bytes");
+		}
+		if (card.mUidLength < 4) {
+			throw new IllegalArgumentException("card not activated");
+		}
+
+		mMetrics.begin(DeviceMetrics.Operation.AUTHENTICATION);
+
+		final byte[] frame = mAuthFrame;
+		frame[0] = authCommand;
+		frame[1] = (byte) block;
+		System.arraycopy(key, 0, frame, 2, 6);
+		System.arraycopy(card.mUid, card.mUidLength - 4, frame, 8, 4);
+
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.IDLE)
+				.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeData(RegisterAddress.FIFO_DATA_REG, frame, 0, AUTH_FRAME_LENGTH)
+				.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		queueTimer(batch);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.COM_I_EN_REG,
+					comIEnValue((byte) (Values.COMM_IRQ_IDLE | Values.COMM_IRQ_TIMER)));
+			mIrqPending = false;
+		}
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.MF_AUTHENT);
+		batch.execute();
+
+		// the timer restarts after each frame the chip sends, and runs out when the card doesn't
+		// answer one, e.g. on a wrong key
+		final boolean finished = (waitForAnyCommIrq((byte) (Values.COMM_IRQ_IDLE | Values.COMM_IRQ_TIMER),
+				AUTH_TIMEOUT_MS) & Values.COMM_IRQ_IDLE) != 0;
+		if (!finished) {
+			cancelCommand();
+		}
+		batch.clear();
+		final int status2Index = batch.readRegister(RegisterAddress.STATUS_2_REG);
+		final int errorIndex = batch.readRegister(RegisterAddress.ERROR_REG);
+		batch.execute();
+
+		final boolean authenticated = finished
+				&& (batch.getResult(status2Index) & Values.STATUS_2_MF_CRYPTO1_ON) != 0
+				&& (batch.getResult(errorIndex) & Values.ERROR_FAILURE_MASK) == 0;
+
+		mMetrics.end(DeviceMetrics.Operation.AUTHENTICATION);
+		return authenticated;
+	}
+
+	/**
+	 * Switches Crypto1 off after {@link #mfAuthenticate(byte, int, byte[], Iso14443aCard)}, so
+	 * frames go out in the clear again. Must be done before activating the next card.
+	 */
+	public void stopCrypto1() throws IOException {
+		writeRegister(RegisterAddress.STATUS_2_REG, (byte) 0);
 	}
 
-	private void flushFifo() throws IOException {
-		writeRegister(RegisterAddress.FIFO_LEVEL_REG, (byte) 0b1000_0000);
+	/**
+	 * Switches the RF field on or off. Cards in the field lose their state when it is switched
+	 * off. Sending a frame switches the field back on.
+	 */
+	public void setRfField(boolean on) throws IOException {
+		writeRegister(RegisterAddress.TX_CONTROL_REG, on ? Values.TX_CONTROL_ANTENNA_ON : Values.TX_CONTROL_ANTENNA_OFF);
+	}
+
+	/**
+	 * Sets the bit rates of the link, as agreed with an ISO14443A card through PPS:
+	 * {@code txBitRate} towards the card and {@code rxBitRate} from it, each one of
+	 * {@link BitRate}. Cards are activated at {@link BitRate#KBPS_106}, so it has to be set back
+	 * before activating the next one. FeliCa uses the same rate both ways, 212 or 424 kbps.
+	 * Registers are only written if the rates change.
+	 */
+	public void setBitRates(int txBitRate, int rxBitRate) throws IOException {
+		if (txBitRate < BitRate.KBPS_106 || txBitRate > BitRate.KBPS_848
+				|| rxBitRate < BitRate.KBPS_106 || rxBitRate > BitRate.KBPS_848) {
+			throw new IllegalArgumentException("unknown bit rate: " + txBitRate + "/" + rxBitRate);
+		}
+		final byte txMode = readRegister(RegisterAddress.TX_MODE_REG);
+		final byte rxMode = readRegister(RegisterAddress.RX_MODE_REG);
+
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		queueRegisterUpdate(batch, RegisterAddress.TX_MODE_REG,
+				(byte) ((txMode & ~Values.MODE_SPEED_MASK) | txBitRate << Values.MODE_SPEED_SHIFT));
+		queueRegisterUpdate(batch, RegisterAddress.RX_MODE_REG,
+				(byte) ((rxMode & ~Values.MODE_SPEED_MASK) | rxBitRate << Values.MODE_SPEED_SHIFT));
+		// the Miller pulses get narrower as the bit rate goes up
+		queueRegisterUpdate(batch, RegisterAddress.MOD_WIDTH_REG, Values.MOD_WIDTHS[txBitRate]);
+		batch.execute();
+	}
+
+	/**
+	 * Sends a frame and receives the response, with the chip appending and checking CRC_As as
+	 * requested. Frames and responses longer than the 64-byte FIFO are streamed through it while
+	 * the modem is running: the FIFO is refilled whenever its level drops to the water level
+	 * (LoAlert), and drained whenever it fills up to within the water level of the top
+	 * (HiAlert).
+	 * @param result receives the response; its capacity bounds the response length.
+	 * @return {@code result}, filled in with the response.
+	 */
+	public TransceiveResult transceive(byte[] tx, int offset, int length, boolean crc,
+			@NonNull TransceiveResult result) throws IOException {
+		return transceiveFrame(tx, offset, length, 0, 0, crc, result);
+	}
+
+	/**
+	 * Sends a frame and receives the response. The last byte of the frame holds
+	 * {@code txLastBits} valid bits ({@code 0} for a whole byte), and the first received bit is
+	 * stored at bit position {@code rxAlign} of the first result byte, so that bit-oriented
+	 * anticollision responses line up with the partial byte that was sent.
+	 * @param crc whether the chip appends a CRC_A to the frame, and checks and strips the CRC of
+	 * the response.
+	 * @return {@code result}, filled in with the response.
+	 * @see #transceive(byte[], int, int, boolean, TransceiveResult)
+	 */
+	public TransceiveResult transceiveBits(byte[] tx, int txLength, int txLastBits, int rxAlign,
+			boolean crc, @NonNull TransceiveResult result) throws IOException {
+		return transceiveFrame(tx, 0, txLength, txLastBits, rxAlign, crc, result);
+	}
+
+	private TransceiveResult transceiveFrame(byte[] tx, int offset, int length, int txLastBits,
+			int rxAlign, boolean crc, TransceiveResult result) throws IOException {
+		mMetrics.begin(DeviceMetrics.Operation.TRANSCEIVE);
+		exchange(tx, offset, length, txLastBits, rxAlign, crc, result);
+		mMetrics.onTransceiveResult(result.getStatus());
+		mMetrics.end(DeviceMetrics.Operation.TRANSCEIVE);
+		return result;
+	}
+
+	private TransceiveResult exchange(byte[] tx, int offset, int length, int txLastBits,
+			int rxAlign, boolean crc, TransceiveResult result) throws IOException {
+		if (length <= 0) {
+			throw new IllegalArgumentException("frame must not be empty");
+		}
+
+		final byte bitFraming = (byte) ((rxAlign & 0b0111) << 4 | (txLastBits & 0b0111));
+		final int end = offset + length;
+		int sent = offset + Math.min(length, Values.FIFO_SIZE);
+		// a response that fits in the FIFO is simply read out at the end
+		final boolean streamResponse = result.mData.length > Values.FIFO_SIZE;
+		final byte receiveIrqMask = streamResponse
+				? (byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_TIMER | Values.COMM_IRQ_TX)
+				: (byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_TIMER);
+
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		queueFrame(batch, tx, offset, sent - offset, bitFraming, crc, false);
+		queueTimer(batch);
+		batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.COM_I_EN_REG,
+					comIEnValue(sent < end ? Values.COMM_IRQ_LO_ALERT : receiveIrqMask));
+			mIrqPending = false;
+		}
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.TRANSCEIVE)
+				.writeRegister(RegisterAddress.BIT_FRAMING_REG, (byte) (Values.BIT_FRAMING_START_SEND | bitFraming));
+		batch.execute();
+
+		// Refill the FIFO on LoAlert until the whole frame is in, then drain it on HiAlert until
+		// the response is complete. A missing response is reported by the timer; the host's own
+		// timeout is a backstop, and restarts whenever the FIFO level moves.
+		final long timeoutNanos = TimeUnit.MICROSECONDS.toNanos(mResponseTimeoutUs)
+				+ TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MARGIN_MS);
+		long deadlineNanos = mClock.nanoTime() + timeoutNanos;
+		int lastLevel = -1;
+		// when lastLevel was read; bytes written or read since are already counted in it
+		long lastLevelNanos = 0;
+		boolean transmitted = false;
+		int received = 0;
+		while (true) {
+			if (mIrqLine != null) {
+				awaitIrqPin(deadlineNanos);
+			} else if (sent == end && !streamResponse) {
+				// Nothing can overflow or run dry, so there's no need to busy-poll. While streaming,
+				// a sleep that overshoots would eat into the water level headroom.
+				smallDelayBlocking();
+			} else if (lastLevel >= 0) {
+				// while streaming, the FIFO can't reach the water level any sooner than this
+				if (sent < end) {
+					pauseForFifoBytes(lastLevel - Values.STREAMING_WATER_LEVEL,
+							RegisterAddress.TX_MODE_REG, lastLevelNanos);
+				} else if (!transmitted) {
+					pauseForFifoBytes(lastLevel, RegisterAddress.TX_MODE_REG, lastLevelNanos);
+				} else {
+					pauseForFifoBytes(Values.FIFO_SIZE - Values.STREAMING_WATER_LEVEL - lastLevel,
+							RegisterAddress.RX_MODE_REG, lastLevelNanos);
+				}
+			}
+			checkAborted();
+			mMetrics.onPoll();
+
+			batch.clear();
+			final int irqIndex = batch.readRegister(RegisterAddress.COMM_IRQ_REG);
+			final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+			batch.execute();
+
+			final byte irqRegValue = batch.getResult(irqIndex);
+			final byte levelRegValue = batch.getResult(levelIndex);
+			if (!isValidFifoLevel(levelRegValue)) {
+				onLinkError();
+				return cancelTransceive(result, TransceiveResult.Status.ERROR);
+			}
+			final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+			if (sent < end && (irqRegValue & Values.COMM_IRQ_TX) != 0) {
+				// the FIFO ran dry before the end of the frame, which was cut short; the card may
+				// even have answered the part it got
+				return cancelTransceive(result, TransceiveResult.Status.ERROR);
+			}
+			if ((irqRegValue & Values.COMM_IRQ_RX) != 0) {
+				break;
+			}
+			if ((irqRegValue & Values.COMM_IRQ_TIMER) != 0) {
+				// TAuto stops the timer at the first bit received, so nothing is coming
+				return cancelTransceive(result, TransceiveResult.Status.TIMEOUT);
+			}
+			lastLevelNanos = mClock.nanoTime();
+			if (level != lastLevel) {
+				lastLevel = level;
+				deadlineNanos = lastLevelNanos + timeoutNanos;
+			} else if (lastLevelNanos - deadlineNanos >= 0) {
+				return cancelTransceive(result, TransceiveResult.Status.TIMEOUT);
+			}
+
+			if (sent < end) {
+				if (level > Values.STREAMING_WATER_LEVEL) {
+					continue;
+				}
+				final int chunk = Math.min(end - sent, Values.FIFO_SIZE - level);
+				batch.clear();
+				batch.writeData(RegisterAddress.FIFO_DATA_REG, tx, sent, chunk);
+				sent += chunk;
+				if (mIrqLine != null) {
+					// LoAlertIRq is latched, so it can only be cleared once the level has risen
+					batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_LO_ALERT);
+					if (sent == end) {
+						batch.writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue(receiveIrqMask));
+					}
+					mIrqPending = false;
+				}
+				batch.execute();
+				lastLevel = level + chunk;
+			} else if (streamResponse && !transmitted) {
+				if ((irqRegValue & Values.COMM_IRQ_TX) == 0) {
+					continue;
+				}
+				// from here on, anything in the FIFO is part of the response
+				transmitted = true;
+				if (mIrqLine != null) {
+					batch.clear();
+					batch.writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue(
+							(byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_TIMER | Values.COMM_IRQ_HI_ALERT)));
+					batch.writeRegister(RegisterAddress.COMM_IRQ_REG,
+							(byte) (Values.COMM_IRQ_TX | Values.COMM_IRQ_HI_ALERT));
+					batch.execute();
+					mIrqPending = false;
+				}
+			} else if (transmitted && level >= Values.FIFO_SIZE - Values.STREAMING_WATER_LEVEL) {
+				batch.clear();
+				final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, level);
+				if (mIrqLine != null) {
+					batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_HI_ALERT);
+					mIrqPending = false;
+				}
+				batch.execute();
+				received = copyFifoData(batch, dataIndex, level, result, received);
+				lastLevel = 0;
+			}
+		}
+
+		batch.clear();
+		final int errorIndex = batch.readRegister(RegisterAddress.ERROR_REG);
+		final int collIndex = batch.readRegister(RegisterAddress.COLL_REG);
+		final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+		final int controlIndex = batch.readRegister(RegisterAddress.CONTROL_REG);
+		batch.execute();
+
+		byte errorFlags = batch.getResult(errorIndex);
+		final byte collRegValue = batch.getResult(collIndex);
+		final byte levelRegValue = batch.getResult(levelIndex);
+		if (!isValidFifoLevel(levelRegValue)) {
+			onLinkError();
+			return cancelTransceive(result, TransceiveResult.Status.ERROR);
+		}
+		final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+		final int lastBits = batch.getResult(controlIndex) & Values.CONTROL_RX_LAST_BITS_MASK;
+
+		if (level > 0) {
+			batch.clear();
+			final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, level);
+			batch.execute();
+			received = copyFifoData(batch, dataIndex, level, result, received);
+		}
+		if (received > result.mData.length) {
+			errorFlags |= Values.ERROR_BUFFER_OVFL;
+		}
+
+		if ((errorFlags & Values.ERROR_FAILURE_MASK) != 0) {
+			result.reset(TransceiveResult.Status.ERROR);
+		} else if ((errorFlags & Values.ERROR_COLL) != 0) {
+			result.reset(TransceiveResult.Status.COLLISION);
+			if ((collRegValue & Values.COLL_POS_NOT_VALID) == 0) {
+				final int collPos = collRegValue & Values.COLL_POS_MASK;
+				result.mCollisionPosition = collPos == 0 ? 32 : collPos;
+			}
+		} else {
+			result.reset(TransceiveResult.Status.OK);
+		}
+		result.mErrorFlags = errorFlags;
+		result.mLastBits = lastBits == 0 ? 8 : lastBits;
+		result.mLength = Math.min(received, result.mData.length);
+
+		return result;
+	}
+
+	/**
+	 * Sends a frame and collects every frame received until the response timeout runs out, for
+	 * FeliCa polling, where each card answers in a time slot of its own choosing. The receiver is
+	 * kept on with RxMultiple, so TAuto no longer stops the timer at the first response and the
+	 * timeout bounds the whole polling window; the chip appends a copy of ErrorReg to each frame.
+	 * The FIFO is drained on HiAlert while the window is open. Needs FeliCa framing, as set up by
+	 * {@link InitProfile#felicaReader(int)}, where each frame starts with its length byte.
+	 * @param tx the frame, without CRC; it must fit in the FIFO.
+	 * @param result receives the frames back to back, each followed by its error byte.
+	 * @return {@code result}, {@link TransceiveResult.Status#TIMEOUT} if no frame arrived.
+	 */
+	public TransceiveResult transceiveMultiple(byte[] tx, int offset, int length,
+			@NonNull TransceiveResult result) throws IOException {
+		if (length <= 0 || length > Values.FIFO_SIZE) {
+			throw new IllegalArgumentException("frame length must be between 1 and " + Values.FIFO_SIZE);
+		}
+
+		mMetrics.begin(DeviceMetrics.Operation.TRANSCEIVE);
+		exchangeMultiple(tx, offset, length, result);
+		mMetrics.onTransceiveResult(result.getStatus());
+		mMetrics.end(DeviceMetrics.Operation.TRANSCEIVE);
+		return result;
+	}
+
+	private TransceiveResult exchangeMultiple(byte[] tx, int offset, int length,
+			TransceiveResult result) throws IOException {
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		queueFrame(batch, tx, offset, length, (byte) 0, true, true);
+		queueTimer(batch);
+		batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.COM_I_EN_REG,
+					comIEnValue((byte) (Values.COMM_IRQ_TIMER | Values.COMM_IRQ_HI_ALERT)));
+			mIrqPending = false;
+		}
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.TRANSCEIVE)
+				.writeRegister(RegisterAddress.BIT_FRAMING_REG, Values.BIT_FRAMING_START_SEND);
+		batch.execute();
+
+		final long deadlineNanos = mClock.nanoTime() + TimeUnit.MICROSECONDS.toNanos(mResponseTimeoutUs)
+				+ TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MARGIN_MS);
+		int received = 0;
+		while (true) {
+			if (mIrqLine != null) {
+				awaitIrqPin(deadlineNanos);
+			} else {
+				smallDelayBlocking();
+			}
+			checkAborted();
+			mMetrics.onPoll();
+
+			batch.clear();
+			final int irqIndex = batch.readRegister(RegisterAddress.COMM_IRQ_REG);
+			final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+			batch.execute();
+
+			final byte irqRegValue = batch.getResult(irqIndex);
+			final byte levelRegValue = batch.getResult(levelIndex);
+			if (!isValidFifoLevel(levelRegValue)) {
+				onLinkError();
+				return cancelTransceive(result, TransceiveResult.Status.ERROR);
+			}
+			final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+			if (level >= Values.FIFO_SIZE - Values.STREAMING_WATER_LEVEL) {
+				batch.clear();
+				final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, level);
+				if (mIrqLine != null) {
+					batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_HI_ALERT);
+					mIrqPending = false;
+				}
+				batch.execute();
+				received = copyFifoData(batch, dataIndex, level, result, received);
+			}
+			if ((irqRegValue & Values.COMM_IRQ_TIMER) != 0 || mClock.nanoTime() - deadlineNanos >= 0) {
+				break;
+			}
+		}
+
+		// the receiver would wait for frames forever
+		cancelCommand();
+
+		batch.clear();
+		final int errorIndex = batch.readRegister(RegisterAddress.ERROR_REG);
+		final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+		batch.execute();
+		byte errorFlags = batch.getResult(errorIndex);
+		final byte levelRegValue = batch.getResult(levelIndex);
+		if (!isValidFifoLevel(levelRegValue)) {
+			onLinkError();
+			result.reset(TransceiveResult.Status.ERROR);
+			return result;
+		}
+		final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+		if (level > 0) {
+			batch.clear();
+			final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, level);
+			batch.execute();
+			received = copyFifoData(batch, dataIndex, level, result, received);
+		}
+		if (received > result.mData.length) {
+			errorFlags |= Values.ERROR_BUFFER_OVFL;
+		}
+
+		// errors in single frames are reported in their error bytes
+		if ((errorFlags & Values.ERROR_BUFFER_OVFL) != 0) {
+			result.reset(TransceiveResult.Status.ERROR);
+		} else {
+			result.reset(received == 0 ? TransceiveResult.Status.TIMEOUT : TransceiveResult.Status.OK);
+		}
+		result.mErrorFlags = errorFlags;
+		result.mLastBits = 8;
+		result.mLength = Math.min(received, result.mData.length);
+		return result;
+	}
+
+	/**
+	 * Appends FIFO data read by {@code batch} to the result, dropping whatever doesn't fit.
+	 * @return the total number of bytes received so far, including any that were dropped.
+	 */
+	private static int copyFifoData(RegisterBatch batch, int dataIndex, int length,
+			TransceiveResult result, int received) {
+		final int copied = Math.min(length, result.mData.length - received);
+		if (copied > 0) {
+			batch.copyResults(dataIndex, result.mData, received, copied);
+		}
+		return received + length;
+	}
+
+	/**
+	 * FlushBuffer always reads as 0 and the FIFO holds at most 64 bytes, so anything else is a
+	 * garbled transfer, typically from a clock too fast for the wiring.
+	 */
+	private static boolean isValidFifoLevel(byte levelRegValue) {
+		return (levelRegValue & Values.FIFO_LEVEL_FLUSH_BUFFER) == 0
+				&& (levelRegValue & Values.FIFO_LEVEL_MASK) <= Values.FIFO_SIZE;
+	}
+
+	private void onLinkError() throws IOException {
+		mLinkErrorCount++;
+		if (mSpiFrequencyHz > Values.DEFAULT_SPI_FREQUENCY_HZ) {
+			setSpiFrequency(Math.max(Values.DEFAULT_SPI_FREQUENCY_HZ, mSpiFrequencyHz / 2));
+		}
+	}
+
+	private TransceiveResult cancelTransceive(TransceiveResult result, int status) throws IOException {
+		cancelCommand();
+		result.reset(status);
+		return result;
+	}
+
+	/**
+	 * Stops the command in progress, and the timer with it.
+	 */
+	private void cancelCommand() throws IOException {
+		writeCommand(Command.IDLE);
+		stopTimer();
+	}
+
+	/**
+	 * Stops a response timeout left running, so it can't fire during the next command.
+	 */
+	private void stopTimer() throws IOException {
+		final byte controlRegValue = readRegister(RegisterAddress.CONTROL_REG);
+		writeRegister(RegisterAddress.CONTROL_REG, (byte) (controlRegValue | Values.CONTROL_T_STOP_NOW));
+		// TStopNow always reads back as 0
+		mShadow.update(RegisterAddress.CONTROL_REG, controlRegValue);
+	}
+
+	/**
+	 * Waits until the IRQ pin is asserted or the deadline passes.
+	 */
+	private void awaitIrqPin(long deadlineNanos) throws IOException {
+		while (true) {
+			//noinspection ConstantConditions
+			if (mIrqLine.isAsserted()) {
+				return;
+			}
+			final long remainingNanos = deadlineNanos - System.nanoTime();
+			if (remainingNanos <= 0 || mAbortRequested) {
+				return;
+			}
+			awaitIrqSignal(Math.min(IRQ_WAIT_TIMEOUT_MS, TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999)));
+		}
+	}
+
+	/**
+	 * Sends a frame without waiting for a response, e.g. HLTA, which a card only answers to
+	 * report failure. Frames must fit in the FIFO.
+	 * @param crc whether the chip appends a CRC_A to the frame.
+	 */
+	public void transmitBits(byte[] tx, int txLength, int txLastBits, boolean crc) throws IOException {
+		if (txLength <= 0 || txLength > Values.FIFO_SIZE) {
+			throw new IllegalArgumentException("frame length must be between 1 and " + Values.FIFO_SIZE);
+		}
+
+		mMetrics.begin(DeviceMetrics.Operation.TRANSMIT);
+
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		queueFrame(batch, tx, 0, txLength, (byte) (txLastBits & 0b0111), crc, false);
+		batch.execute();
+
+		runCommandUntilIdle(Command.TRANSMIT);
+		// TAuto started the timer at the end of the frame, but no answer is expected
+		stopTimer();
+
+		mMetrics.end(DeviceMetrics.Operation.TRANSMIT);
+	}
+
+	/**
+	 * Loads the buffer the chip answers a reader from in card operation mode: SENS_RES (2 bytes),
+	 * NFCID1 bytes 1-3 (byte 0 is always 08h), SEL_RES, then the FeliCa polling response, NFCID2
+	 * (8), PAD (8) and system code (2), and NFCID3 (1).
+	 */
+	public void configureCardMode(byte[] config) throws IOException {
+		if (config.length != ConstantData.CONFIG_BUFFER_CLEAR.length) {
+			throw new IllegalArgumentException("the config buffer is "
+					+ ConstantData.CONFIG_BUFFER_CLEAR.length + " bytes");
+		}
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.IDLE)
+				.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeData(RegisterAddress.FIFO_DATA_REG, config, 0, config.length);
+		batch.execute();
+		runCommandUntilIdle(Command.CONFIGURE);
+	}
+
+	/**
+	 * Starts AUTOCOLL at 106 kbps with the field off: the chip answers REQA/WUPA, anticollision
+	 * and SELECT of an external reader by itself, from the buffer loaded by
+	 * {@link #configureCardMode(byte[])}, then goes on to Transceive with the receiver on. Frames
+	 * that follow are for the host, with {@link #awaitTargetFrame(long)},
+	 * {@link #readTargetFrame(TransceiveResult)} and {@link #respondAsTarget}. Any reader mode
+	 * exchange ends card mode.
+	 */
+	public void startAutocoll() throws IOException {
+		// 106 kbps ISO14443A, with CRC
+		final byte clearedBits = (byte) (Values.MODE_SPEED_MASK | Values.MODE_FRAMING_MASK);
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.IDLE);
+		queueRegisterUpdate(batch, RegisterAddress.CONTROL_REG,
+				BitUtils.clearBits(readRegister(RegisterAddress.CONTROL_REG), Values.CONTROL_INITIATOR));
+		queueRegisterUpdate(batch, RegisterAddress.TX_CONTROL_REG, Values.TX_CONTROL_ANTENNA_OFF);
+		queueRegisterUpdate(batch, RegisterAddress.TX_MODE_REG, (byte) (Values.MODE_CRC_EN
+				| BitUtils.clearBits(readRegister(RegisterAddress.TX_MODE_REG), clearedBits)));
+		queueRegisterUpdate(batch, RegisterAddress.RX_MODE_REG, (byte) (Values.MODE_CRC_EN
+				| BitUtils.clearBits(readRegister(RegisterAddress.RX_MODE_REG),
+						(byte) (clearedBits | Values.RX_MODE_RX_MULTIPLE))));
+		queueRegisterUpdate(batch, RegisterAddress.BIT_FRAMING_REG, (byte) 0);
+		batch.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		if (mIrqLine != null) {
+			batch.writeRegister(RegisterAddress.COM_I_EN_REG,
+					comIEnValue((byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_IDLE)));
+			mIrqPending = false;
+		}
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.AUTOCOLL);
+		batch.execute();
+	}
+
+	/**
+	 * Waits for a frame from the external reader after {@link #startAutocoll()}.
+	 * @return {@link Values#COMM_IRQ_RX} once a frame is in the FIFO, {@link Values#COMM_IRQ_IDLE}
+	 * if the chip left card mode, e.g. because the reader's field went away, {@code 0} if nothing
+	 * happened within the timeout.
+	 */
+	public byte awaitTargetFrame(long timeoutMs) throws IOException {
+		final byte flags = waitForAnyCommIrq((byte) (Values.COMM_IRQ_RX | Values.COMM_IRQ_IDLE), timeoutMs);
+		return (flags & Values.COMM_IRQ_RX) != 0 ? Values.COMM_IRQ_RX : flags;
+	}
+
+	/**
+	 * Reads the frame {@link #awaitTargetFrame(long)} waited for, CRC already checked and removed.
+	 * The first {@link Values#TARGET_SPECULATIVE_READ} bytes are read in the same transfer as the
+	 * FIFO level, so a short command costs a single transfer; bytes read past the level are
+	 * dropped, as reading an empty FIFO doesn't change it.
+	 */
+	public TransceiveResult readTargetFrame(@NonNull TransceiveResult result) throws IOException {
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		final int errorIndex = batch.readRegister(RegisterAddress.ERROR_REG);
+		final int controlIndex = batch.readRegister(RegisterAddress.CONTROL_REG);
+		final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+		final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, Values.TARGET_SPECULATIVE_READ);
+		batch.execute();
+
+		final byte errorFlags = batch.getResult(errorIndex);
+		final byte levelRegValue = batch.getResult(levelIndex);
+		if (!isValidFifoLevel(levelRegValue)) {
+			onLinkError();
+			result.reset(TransceiveResult.Status.ERROR);
+			return result;
+		}
+		final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+		int received = copyFifoData(batch, dataIndex, Math.min(level, Values.TARGET_SPECULATIVE_READ), result, 0);
+		if (level > Values.TARGET_SPECULATIVE_READ) {
+			batch.clear();
+			final int restIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, level - Values.TARGET_SPECULATIVE_READ);
+			batch.execute();
+			received = copyFifoData(batch, restIndex, level - Values.TARGET_SPECULATIVE_READ, result, received);
+		}
+
+		result.reset((errorFlags & Values.ERROR_FAILURE_MASK) != 0 || received > result.mData.length
+				? TransceiveResult.Status.ERROR : TransceiveResult.Status.OK);
+		final int lastBits = batch.getResult(controlIndex) & Values.CONTROL_RX_LAST_BITS_MASK;
+		result.mErrorFlags = errorFlags;
+		result.mLastBits = lastBits == 0 ? 8 : lastBits;
+		result.mLength = Math.min(received, result.mData.length);
+		return result;
+	}
+
+	/**
+	 * Answers the frame just read in card mode. Returns as soon as the chip has the response;
+	 * the receiver comes back on by itself once it has been sent.
+	 * @param txLastBits valid bits in the last byte, {@code 0} for all 8; a frame with a partial
+	 * last byte, such as a 4-bit ACK, is sent without CRC.
+	 */
+	public void respondAsTarget(byte[] tx, int offset, int length, int txLastBits) throws IOException {
+		if (length <= 0 || length > Values.FIFO_SIZE) {
+			throw new IllegalArgumentException("frame length must be between 1 and " + Values.FIFO_SIZE);
+		}
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		queueRegisterUpdate(batch, RegisterAddress.TX_MODE_REG, txLastBits == 0
+				? BitUtils.setBits(readRegister(RegisterAddress.TX_MODE_REG), Values.MODE_CRC_EN)
+				: BitUtils.clearBits(readRegister(RegisterAddress.TX_MODE_REG), Values.MODE_CRC_EN));
+		batch.writeData(RegisterAddress.FIFO_DATA_REG, tx, offset, length)
+				.writeRegister(RegisterAddress.BIT_FRAMING_REG,
+						(byte) (Values.BIT_FRAMING_START_SEND | (txLastBits & 0b0111)));
+		if (mIrqLine != null) {
+			mIrqPending = false;
+		}
+		batch.execute();
+	}
+
+	/**
+	 * Leaves the frame just read in card mode unanswered, and waits for the next one.
+	 */
+	public void ignoreTargetFrame() throws IOException {
+		writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		mIrqPending = false;
+	}
+
+	/**
+	 * Queues everything needed to start sending a frame in reader mode, up to but not including
+	 * the command, with the first {@code length} bytes of the frame in the FIFO.
+	 * @param rxMultiple whether the receiver stays on after the first response frame.
+	 */
+	private void queueFrame(RegisterBatch batch, byte[] tx, int offset, int length, byte bitFraming,
+			boolean crc, boolean rxMultiple) throws IOException {
+
+		// cancel anything in progress, e.g. a transceive still waiting to send again
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.IDLE);
+
+		if (!mReaderModeConfigured) {
+			// clear bits received after a collision, so they can't be mistaken for UID bits
+			batch.writeRegister(RegisterAddress.COLL_REG, (byte) 0);
+			mReaderModeConfigured = true;
+		}
+
+		queueRegisterUpdate(batch, RegisterAddress.CONTROL_REG,
+				BitUtils.setBits(readRegister(RegisterAddress.CONTROL_REG), Values.CONTROL_INITIATOR));
+		queueRegisterUpdate(batch, RegisterAddress.TX_CONTROL_REG, Values.TX_CONTROL_ANTENNA_ON);
+		queueRegisterUpdate(batch, RegisterAddress.TX_MODE_REG, crc
+				? BitUtils.setBits(readRegister(RegisterAddress.TX_MODE_REG), Values.MODE_CRC_EN)
+				: BitUtils.clearBits(readRegister(RegisterAddress.TX_MODE_REG), Values.MODE_CRC_EN));
+		final byte rxMode = crc
+				? BitUtils.setBits(readRegister(RegisterAddress.RX_MODE_REG), Values.MODE_CRC_EN)
+				: BitUtils.clearBits(readRegister(RegisterAddress.RX_MODE_REG), Values.MODE_CRC_EN);
+		queueRegisterUpdate(batch, RegisterAddress.RX_MODE_REG, rxMultiple
+				? BitUtils.setBits(rxMode, Values.RX_MODE_RX_MULTIPLE)
+				: BitUtils.clearBits(rxMode, Values.RX_MODE_RX_MULTIPLE));
+		queueRegisterUpdate(batch, RegisterAddress.BIT_FRAMING_REG, bitFraming);
+		queueRegisterUpdate(batch, RegisterAddress.WATER_LEVEL_REG, Values.STREAMING_WATER_LEVEL);
+
+		batch.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeData(RegisterAddress.FIFO_DATA_REG, tx, offset, length);
+	}
+
+	/**
+	 * Queues the timer settings for the response timeout, which only cost SPI transfers when
+	 * the timeout has changed.
+	 */
+	private void queueTimer(RegisterBatch batch) {
+		queueRegisterUpdate(batch, RegisterAddress.T_MODE_REG, mTimerMode);
+		queueRegisterUpdate(batch, RegisterAddress.T_PRESCALER_REG, mTimerPrescaler);
+		queueRegisterUpdate(batch, RegisterAddress.T_RELOAD_HI_REG, mTimerReloadHi);
+		queueRegisterUpdate(batch, RegisterAddress.T_RELOAD_LO_REG, mTimerReloadLo);
+	}
+
+	/**
+	 * Queues a write of a shadowed register, unless it already holds {@code value}.
+	 */
+	private void queueRegisterUpdate(RegisterBatch batch, byte regAddress, byte value) {
+		if (!mShadow.isValid(regAddress) || mShadow.get(regAddress) != value) {
+			batch.writeRegister(regAddress, value);
+		}
 	}
 
 	private void writeCommand(byte command) throws IOException {
 		writeRegister(RegisterAddress.COMMAND_REG, command);
 	}
 
-	private void writeRegister(byte regAddress, byte data) throws IOException {
+	private void setRegisterBits(byte regAddress, byte bitsToSet) throws IOException {
+		writeRegister(regAddress, BitUtils.setBits(readRegister(regAddress), bitsToSet));
+	}
+
+	private void clearRegisterBits(byte regAddress, byte bitsToClear) throws IOException {
+		writeRegister(regAddress, BitUtils.clearBits(readRegister(regAddress), bitsToClear));
+	}
+
+	void writeRegister(byte regAddress, byte data) throws IOException {
 		mTxBuffer[0] = getSpiWriteAddress(regAddress);
 		mTxBuffer[1] = data;
 
 		mSpi.write(mTxBuffer, 2);
+
+		mShadow.update(regAddress, data);
+	}
+
+	/**
+	 * Reads a register, answering from the shadow copy when it holds the current value.
+	 */
+	byte readRegister(byte regAddress) throws IOException {
+		if (RegisterShadow.isVolatile(regAddress)) {
+			return readRegisterFromChip(regAddress);
+		}
+
+		if (mShadow.lookup(regAddress)) {
+			return mShadow.get(regAddress);
+		}
+
+		byte value = readRegisterFromChip(regAddress);
+		mShadow.update(regAddress, value);
+		return value;
 	}
 
-	private byte readRegister(byte regAddress) throws IOException {
+	private byte readRegisterFromChip(byte regAddress) throws IOException {
 		mTxBuffer[0] = getSpiReadAddress(regAddress);
 		mTxBuffer[1] = 0;
 
@@ -173,103 +1223,379 @@ public class Pn512NfcDevice {
 		return mRxBuffer[1];
 	}
 
-	private void writeData(byte regAddress, byte[] data) throws IOException {
-		if (data.length >= mTxBuffer.length) {
-			throw new IllegalArgumentException("data.length must be less than " + mTxBuffer.length);
+	private void writeData(byte regAddress, byte[] data, int offset, int length) throws IOException {
+		if (length >= mTxBuffer.length) {
+			throw new IllegalArgumentException("length must be less than " + mTxBuffer.length);
 		}
 
 		mTxBuffer[0] = getSpiWriteAddress(regAddress);
-		System.arraycopy(data, 0, mTxBuffer, 1, data.length);
+		System.arraycopy(data, offset, mTxBuffer, 1, length);
 
-		mSpi.write(mTxBuffer, data.length + 1);
+		mSpi.write(mTxBuffer, length + 1);
 	}
 
-	private byte[] readData(byte regAddress, int length) throws IOException {
+	/**
+	 * Reads {@code length} bytes from a register; the result is left in {@link #mRxBuffer}
+	 * starting at index 1.
+	 */
+	private void readData(byte regAddress, int length) throws IOException {
+		if (length >= mTxBuffer.length) {
+			throw new IllegalArgumentException("length must be less than " + mTxBuffer.length);
+		}
+
 		final int spiTransferLength = length + 1;
 
 		Arrays.fill(mTxBuffer, 0, length, getSpiReadAddress(regAddress));
 		mTxBuffer[length] = (byte) 0x00;
 
 		mSpi.transfer(mTxBuffer, mRxBuffer, spiTransferLength);
-
-		byte[] result = new byte[length];
-		System.arraycopy(mRxBuffer, 1, result, 0, length);
-
-		return result;
 	}
 
 	public boolean testCrc() throws IOException {
 		softReset();
 
-		byte[] data = "Hello, world!".getBytes(Charset.forName("US-ASCII"));
+		final byte[] data = ConstantData.CRC_TEST_INPUT;
 
-		clearAndStartCrc();
-		writeFifo(data);
+		// CRC-16 (KERMIT)
+		return calculateCrcOnChip(Crc16.KERMIT, data, 0, data.length) == 0xD15E;
+	}
+
+	/**
+	 * Computes a CRC with the chip's coprocessor. {@link Crc16} computes the same values on the
+	 * host without any SPI traffic; this is for cross-checking it against the hardware.
+	 * @param crc the CRC parameters; the initial value must be one of the coprocessor presets
+	 * (0000h, 6363h, A671h or FFFFh).
+	 * @return the CRC, as {@link Crc16#compute(byte[], int, int)} would return it.
+	 */
+	public int calculateCrcOnChip(@NonNull Crc16 crc, byte[] data, int offset, int length) throws IOException {
+		final byte presetBits = crcPresetBits(crc.getInitialValue());
+
+		mMetrics.begin(DeviceMetrics.Operation.CRC);
+
+		startCrc(presetBits);
+
+		final RegisterBatch batch = mBatch;
+		int written = 0;
+		while (written < length) {
+			// the FIFO starts out empty; after that, top it up once the coprocessor has taken it
+			// down to the water level
+			final int level = written == 0 ? 0 : waitForCrcFifoLevel();
+			final int chunk = Math.min(length - written, Values.FIFO_SIZE - level);
+			batch.clear();
+			batch.writeData(RegisterAddress.FIFO_DATA_REG, data, offset + written, chunk);
+			batch.execute();
+			written += chunk;
+		}
 
-		byte[] crcResult = readCrcReg();
+		final int result = readCrcReg() ^ crc.getFinalXor();
 
 		sendIdleCommand();
 
-		// CRC-16 (KERMIT)
-		byte[] expectedCrcResult = { (byte) 0xD1, (byte) 0x5E };
+		mMetrics.end(DeviceMetrics.Operation.CRC);
+		return result;
+	}
 
-		return Arrays.equals(crcResult, expectedCrcResult);
+	/**
+	 * @return {@code true} if the host-side and coprocessor CRCs of the data agree.
+	 */
+	public boolean crossCheckCrc(@NonNull Crc16 crc, byte[] data, int offset, int length) throws IOException {
+		return crc.compute(data, offset, length) == calculateCrcOnChip(crc, data, offset, length);
 	}
 
-	private void clearAndStartCrc() throws IOException {
-		// set the starting CRC value to 0
-		// read ModeReg
-		byte modeValue = readRegister(RegisterAddress.MODE_REG);
-		// set bits
-		modeValue = BitUtils.clearBits(modeValue, (byte) 0b0000_0011);
-		// write ModeReg
-		writeRegister(RegisterAddress.MODE_REG, modeValue);
+	private void startCrc(byte presetBits) throws IOException {
+		final byte modeRegValue = (byte) ((readRegister(RegisterAddress.MODE_REG) & ~Values.MODE_CRC_PRESET_MASK) | presetBits);
 
-		// send start CRC command
-		writeCommand(Command.CALC_CRC);
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Command.IDLE)
+				.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeRegister(RegisterAddress.MODE_REG, modeRegValue)
+				.writeRegister(RegisterAddress.COMMAND_REG, Command.CALC_CRC);
+		batch.execute();
 	}
 
-	private byte[] readCrcReg() throws IOException {
-		byte[] result = new byte[2];
-		result[0] = readRegister(RegisterAddress.CRC_RESULT_MSB_REG);
-		result[1] = readRegister(RegisterAddress.CRC_RESULT_LSB_REG);
-		return result;
+	/**
+	 * Waits for the coprocessor to take the FIFO down to {@link Values#CRC_WATER_LEVEL}.
+	 * @return the FIFO level.
+	 * @throws IOException if the level reads back garbled, or doesn't drop within
+	 * {@link #COMMAND_TIMEOUT_MS}; the command is cancelled.
+	 */
+	private int waitForCrcFifoLevel() throws IOException {
+		final long startNanos = mClock.nanoTime();
+		while (true) {
+			checkAborted();
+			mMetrics.onPoll();
+			final byte levelRegValue = readRegister(RegisterAddress.FIFO_LEVEL_REG);
+			if (!isValidFifoLevel(levelRegValue)) {
+				onLinkError();
+				sendIdleCommand();
+				throw new IOException("PN512 FIFO level read back garbled during CRC calculation");
+			}
+			final int level = levelRegValue & Values.FIFO_LEVEL_MASK;
+			if (level <= Values.CRC_WATER_LEVEL) {
+				return level;
+			}
+			if (isCommandTimedOut(startNanos)) {
+				onCommandTimeout();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the coprocessor to drain the FIFO, reading the result along with the status.
+	 * @throws IOException if the FIFO overflowed, so the result doesn't cover all the data; the
+	 * command is cancelled.
+	 */
+	private int readCrcReg() throws IOException {
+		final RegisterBatch batch = mBatch;
+		final long startNanos = mClock.nanoTime();
+		while (true) {
+			checkAborted();
+			mMetrics.onPoll();
+			batch.clear();
+			final int statusIndex = batch.readRegister(RegisterAddress.STATUS_1_REG);
+			final int errorIndex = batch.readRegister(RegisterAddress.ERROR_REG);
+			final int msbIndex = batch.readRegister(RegisterAddress.CRC_RESULT_MSB_REG);
+			final int lsbIndex = batch.readRegister(RegisterAddress.CRC_RESULT_LSB_REG);
+			batch.execute();
+
+			if ((batch.getResult(errorIndex) & Values.ERROR_BUFFER_OVFL) != 0) {
+				sendIdleCommand();
+				throw new IOException("PN512 FIFO overflowed during CRC calculation");
+			}
+			if ((batch.getResult(statusIndex) & Values.STATUS_1_CRC_READY) != 0) {
+				return (batch.getResult(msbIndex) & 0xff) << 8 | (batch.getResult(lsbIndex) & 0xff);
+			}
+			if (isCommandTimedOut(startNanos)) {
+				onCommandTimeout();
+			}
+		}
+	}
+
+	private static byte crcPresetBits(int initialValue) {
+		switch (initialValue) {
+			case 0x0000:
+				return 0b00;
+			case 0x6363:
+				return 0b01;
+			case 0xa671:
+				return 0b10;
+			case 0xffff:
+				return 0b11;
+			default:
+				throw new IllegalArgumentException("no coprocessor preset for CRC initial value " + Integer.toHexString(initialValue));
+		}
 	}
 
 	private void sendIdleCommand() throws IOException {
 		writeCommand(Command.IDLE);
 	}
 
-	private void writeFifo(byte[] data) throws IOException {
-		writeData(RegisterAddress.FIFO_DATA_REG, data);
+	public void writeFifo(byte[] data) throws IOException {
+		writeData(RegisterAddress.FIFO_DATA_REG, data, 0, data.length);
 	}
 
-	private byte[] readFifo(int length) throws IOException {
-		return readData(RegisterAddress.FIFO_DATA_REG, length);
+	public void writeFifo(byte[] data, int offset, int length) throws IOException {
+		writeData(RegisterAddress.FIFO_DATA_REG, data, offset, length);
 	}
 
+	public void readFifo(byte[] dest, int offset, int length) throws IOException {
+		readData(RegisterAddress.FIFO_DATA_REG, length);
+		System.arraycopy(mRxBuffer, 1, dest, offset, length);
+	}
+
+	/**
+	 * Reads {@code length} bytes from the FIFO into {@code dest} at its position, advancing it.
+	 */
+	public void readFifo(ByteBuffer dest, int length) throws IOException {
+		readData(RegisterAddress.FIFO_DATA_REG, length);
+		dest.put(mRxBuffer, 1, length);
+	}
+
+	/**
+	 * Starts a command that terminates by itself and blocks until the chip is idle again.
+	 */
+	private void runCommandUntilIdle(byte command) throws IOException {
+		if (mIrqLine != null) {
+			armCommIrq(Values.COMM_IRQ_IDLE);
+		}
+		writeCommand(command);
+		waitForIdle();
+	}
+
+	/**
+	 * @throws IOException if the command is still running after {@link #COMMAND_TIMEOUT_MS}; it
+	 * is cancelled.
+	 */
 	private void waitForIdle() throws IOException {
+		if (mIrqLine != null) {
+			if (!waitForCommIrq(Values.COMM_IRQ_IDLE, COMMAND_TIMEOUT_MS)) {
+				onCommandTimeout();
+			}
+			return;
+		}
+
+		final long startNanos = mClock.nanoTime();
 		byte command;
 		do {
 			smallDelayBlocking();
+			checkAborted();
+			mMetrics.onPoll();
 			byte commandRegValue = readRegister(RegisterAddress.COMMAND_REG);
 			command = (byte) (commandRegValue & Command._COMMAND_MASK);
+			if (command != Command.IDLE && isCommandTimedOut(startNanos)) {
+				onCommandTimeout();
+			}
 		} while (command != Command.IDLE);
 	}
 
+	/**
+	 * @throws IOException if the modem is still busy after {@link #COMMAND_TIMEOUT_MS}.
+	 */
 	private void waitForModemIdle() throws IOException {
+		final long startNanos = mClock.nanoTime();
 		byte modemState;
 		do {
 			smallDelayBlocking();
+			checkAborted();
+			mMetrics.onPoll();
 			byte status2RegValue = readRegister(RegisterAddress.STATUS_2_REG);
 			modemState = (byte) (status2RegValue & 0b0000_0111);
+			if (modemState != 0 && isCommandTimedOut(startNanos)) {
+				onCommandTimeout();
+			}
 		} while (modemState != 0);
 	}
 
-	private static byte[] newData(int length, byte fillValue) {
-		byte[] result = new byte[length];
-		Arrays.fill(result, fillValue);
-		return result;
+	private boolean isCommandTimedOut(long startNanos) {
+		return mClock.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(COMMAND_TIMEOUT_MS);
+	}
+
+	private void onCommandTimeout() throws IOException {
+		mMetrics.onTimeout();
+		cancelCommand();
+		throw new IOException("PN512 command did not complete within " + COMMAND_TIMEOUT_MS + " ms");
+	}
+
+	/**
+	 * Blocks until every flag in {@code mask} is set in CommIrqReg, or until the timeout expires.
+	 * @return {@code false} if the timeout expired first.
+	 */
+	private boolean waitForCommIrq(byte mask, long timeoutMs) throws IOException {
+		return awaitCommIrq(mask, true, timeoutMs) != 0;
+	}
+
+	/**
+	 * Blocks until any flag in {@code mask} is set in CommIrqReg, or until the timeout expires.
+	 * @return the flags of {@code mask} that are set, {@code 0} if the timeout expired first.
+	 */
+	private byte waitForAnyCommIrq(byte mask, long timeoutMs) throws IOException {
+		return awaitCommIrq(mask, false, timeoutMs);
+	}
+
+	private byte awaitCommIrq(byte mask, boolean all, long timeoutMs) throws IOException {
+		final long startNanos = mClock.nanoTime();
+		final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		final byte wanted = mask;
+
+		if (mIrqLine == null) {
+			byte irqRegValue;
+			do {
+				smallDelayBlocking();
+				checkAborted();
+				mMetrics.onPoll();
+				irqRegValue = readRegister(RegisterAddress.COMM_IRQ_REG);
+				if (all ? (irqRegValue & mask) == mask : (irqRegValue & mask) != 0) {
+					return (byte) (irqRegValue & mask);
+				}
+			} while (mClock.nanoTime() - startNanos < timeoutNanos);
+			return 0;
+		}
+
+		while (true) {
+			long remainingNanos = timeoutNanos - (mClock.nanoTime() - startNanos);
+			awaitIrqSignal(Math.min(IRQ_WAIT_TIMEOUT_MS,
+					Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999))));
+			checkAborted();
+
+			byte irqRegValue = readRegister(RegisterAddress.COMM_IRQ_REG);
+			if (all ? (irqRegValue & mask) == mask : (irqRegValue & mask) != 0) {
+				return all ? wanted : (byte) (irqRegValue & mask);
+			}
+			if (mClock.nanoTime() - startNanos >= timeoutNanos) {
+				return 0;
+			}
+
+			// The pin stays asserted while any enabled flag is set, so only the flags that are
+			// still missing may remain enabled, or no further edge would arrive.
+			byte missing = (byte) (mask & ~irqRegValue);
+			if (missing != mask) {
+				mask = missing;
+				writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue(missing));
+				mIrqPending = false;
+			}
+		}
+	}
+
+	private void armCommIrq(byte mask) throws IOException {
+		writeRegister(RegisterAddress.COMM_IRQ_REG, Values.COMM_IRQ_CLEAR_ALL);
+		writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue(mask));
+		mIrqPending = false;
+	}
+
+	private void awaitIrqSignal(long timeoutMs) throws IOException {
+		//noinspection ConstantConditions
+		if (mIrqLine.isAsserted()) {
+			return;
+		}
+
+		mMetrics.onIrqWait();
+		mIrqWaiter = Thread.currentThread();
+		final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		long remainingNanos;
+		while (!mIrqPending && !mAbortRequested && (remainingNanos = deadlineNanos - System.nanoTime()) > 0
+				&& !Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(this, remainingNanos);
+		}
+		mIrqWaiter = null;
+		mIrqPending = false;
+	}
+
+	private void configureIrqPin() throws IOException {
+		writeRegister(RegisterAddress.DIV_I_EN_REG, Values.DIV_I_EN_IRQ_PUSH_PULL);
+		writeRegister(RegisterAddress.COM_I_EN_REG, comIEnValue((byte) 0));
+	}
+
+	private static byte comIEnValue(byte commIrqMask) {
+		return (byte) (Values.COM_I_EN_IRQ_INV | (commIrqMask & Values.COMM_IRQ_CLEAR_ALL));
+	}
+
+	private final IrqLine.Listener mIrqListener = new IrqLine.Listener() {
+		@Override
+		public void onIrqAsserted() {
+			mIrqPending = true;
+			Thread waiter = mIrqWaiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+	};
+
+	/**
+	 * Sleeps until half of {@code count} bytes have gone over the air since {@code sinceNanos}, at
+	 * the bit rate set in {@code modeRegAddress}, TxModeReg or RxModeReg. A wait without the IRQ
+	 * pin then closes in on the water level in a few reads of the FIFO level, rather than reading
+	 * it back to back; stopping halfway leaves room for a sleep that overshoots.
+	 */
+	private void pauseForFifoBytes(int count, byte modeRegAddress, long sinceNanos) throws IOException {
+		if (count < 2) {
+			return;
+		}
+		final int speed = (readRegister(modeRegAddress) & Values.MODE_SPEED_MASK) >> Values.MODE_SPEED_SHIFT;
+		final long pauseNanos = count / 2 * (BYTE_NANOS_106 >> speed) - (mClock.nanoTime() - sinceNanos);
+		if (pauseNanos > 0) {
+			LockSupport.parkNanos(pauseNanos);
+		}
 	}
 
 	private static void smallDelayBlocking() {
@@ -280,29 +1606,71 @@ public class Pn512NfcDevice {
 		}
 	}
 
-	private static byte getSpiReadAddress(byte address) {
+	static byte getSpiReadAddress(byte address) {
 		return (byte) (0b1000_0000 | ((address & 0b0011_1111) << 1));
 	}
 
-	private static byte getSpiWriteAddress(byte address) {
+	static byte getSpiWriteAddress(byte address) {
 		//noinspection PointlessBitwiseExpression
 		return (byte) (0b0000_0000 | ((address & 0b0011_1111) << 1));
 	}
 
 	public interface RegisterAddress {
 		byte COMMAND_REG = (byte) 0x01;
+		byte COM_I_EN_REG = (byte) 0x02;
+		byte DIV_I_EN_REG = (byte) 0x03;
 		byte COMM_IRQ_REG = (byte) 0x04;
+		byte DIV_IRQ_REG = (byte) 0x05;
+		byte ERROR_REG = (byte) 0x06;
+		byte STATUS_1_REG = (byte) 0x07;
 		byte STATUS_2_REG = (byte) 0x08;
 		byte FIFO_DATA_REG = (byte) 0x09;
 		byte FIFO_LEVEL_REG = (byte) 0x0a;
+		byte WATER_LEVEL_REG = (byte) 0x0b;
 		byte CONTROL_REG = (byte) 0x0c;
 		byte BIT_FRAMING_REG = (byte) 0x0d;
+		byte COLL_REG = (byte) 0x0e;
 		byte MODE_REG = (byte) 0x11;
+		byte TX_MODE_REG = (byte) 0x12;
+		byte RX_MODE_REG = (byte) 0x13;
 		byte TX_CONTROL_REG = (byte) 0x14;
 		byte TX_AUTO_REG = (byte) 0x15;
+		byte TX_SEL_REG = (byte) 0x16;
+		byte RX_SEL_REG = (byte) 0x17;
+		byte RX_THRESHOLD_REG = (byte) 0x18;
+		byte DEMOD_REG = (byte) 0x19;
+		byte FEL_NFC_1_REG = (byte) 0x1a;
+		byte FEL_NFC_2_REG = (byte) 0x1b;
+		byte MIF_NFC_REG = (byte) 0x1c;
+		byte MANUAL_RCV_REG = (byte) 0x1d;
+		byte TYPE_B_REG = (byte) 0x1e;
+		byte SERIAL_SPEED_REG = (byte) 0x1f;
 		byte CRC_RESULT_MSB_REG = (byte) 0x21;
 		byte CRC_RESULT_LSB_REG = (byte) 0x22;
+		byte GS_N_OFF_REG = (byte) 0x23;
+		byte MOD_WIDTH_REG = (byte) 0x24;
+		byte TX_BIT_PHASE_REG = (byte) 0x25;
+		byte RF_CFG_REG = (byte) 0x26;
+		byte GS_N_ON_REG = (byte) 0x27;
+		byte CW_GS_P_REG = (byte) 0x28;
+		byte MOD_GS_P_REG = (byte) 0x29;
+		byte T_MODE_REG = (byte) 0x2a;
+		byte T_PRESCALER_REG = (byte) 0x2b;
+		byte T_RELOAD_HI_REG = (byte) 0x2c;
+		byte T_RELOAD_LO_REG = (byte) 0x2d;
+		byte T_COUNTER_VAL_HI_REG = (byte) 0x2e;
+		byte T_COUNTER_VAL_LO_REG = (byte) 0x2f;
+		byte TEST_SEL_1_REG = (byte) 0x31;
+		byte TEST_SEL_2_REG = (byte) 0x32;
+		byte TEST_PIN_EN_REG = (byte) 0x33;
+		byte TEST_PIN_VALUE_REG = (byte) 0x34;
+		byte TEST_BUS_REG = (byte) 0x35;
 		byte AUTO_TEST_REG = (byte) 0x36;
+		byte VERSION_REG = (byte) 0x37;
+		byte ANALOG_TEST_REG = (byte) 0x38;
+		byte TEST_DAC_1_REG = (byte) 0x39;
+		byte TEST_DAC_2_REG = (byte) 0x3a;
+		byte TEST_ADC_REG = (byte) 0x3b;
 	}
 
 	public interface Command {
@@ -321,11 +1689,66 @@ public class Pn512NfcDevice {
 		byte SOFT_RESET = (byte) 0b1111; // resets the PN512
 	}
 
+	/**
+	 * ISO14443A and FeliCa bit rates, as TxSpeed/RxSpeed values.
+	 */
+	public interface BitRate {
+		int KBPS_106 = 0;
+		int KBPS_212 = 1;
+		int KBPS_424 = 2;
+		int KBPS_848 = 3;
+	}
+
 	public interface Values {
 		byte AUTO_TEST_ENABLE_SELF_TEST = (byte) 0x09;
+		byte FIFO_LEVEL_FLUSH_BUFFER = (byte) 0b1000_0000;
+		byte COMM_IRQ_CLEAR_ALL = (byte) 0b0111_1111;
+		byte COMM_IRQ_IDLE = (byte) 0b0001_0000;
+		byte COMM_IRQ_TX = (byte) 0b0100_0000;
+		byte COMM_IRQ_RX = (byte) 0b0010_0000;
+		byte COMM_IRQ_HI_ALERT = (byte) 0b0000_1000;
+		byte COMM_IRQ_LO_ALERT = (byte) 0b0000_0100;
+		byte COMM_IRQ_TIMER = (byte) 0b0000_0001;
+		byte COM_I_EN_IRQ_INV = (byte) 0b1000_0000; // IRQ pin is active low
+		byte DIV_I_EN_IRQ_PUSH_PULL = (byte) 0b1000_0000;
+		byte MODE_CRC_PRESET_MASK = (byte) 0b0000_0011;
+		byte STATUS_1_CRC_READY = (byte) 0b0010_0000;
+		byte STATUS_2_MF_CRYPTO1_ON = (byte) 0b0000_1000;
+		int FIFO_SIZE = 64;
+		byte FIFO_LEVEL_MASK = (byte) 0b0111_1111;
+		byte CONTROL_INITIATOR = (byte) 0b0001_0000;
+		byte CONTROL_T_STOP_NOW = (byte) 0b1000_0000;
+		byte T_MODE_T_AUTO = (byte) 0b1000_0000; // timer starts at the end of each transmission
+		int T_PRESCALER_MAX = 0x0fff;
+		long TIMER_CLOCK_KHZ = 13_560;
+		byte CONTROL_RX_LAST_BITS_MASK = (byte) 0b0000_0111;
+		byte BIT_FRAMING_START_SEND = (byte) 0b1000_0000;
+		byte TX_CONTROL_ANTENNA_ON = (byte) 0b1000_0010;
+		byte TX_CONTROL_ANTENNA_OFF = (byte) 0b1000_0000;
+		byte MODE_CRC_EN = (byte) 0b1000_0000; // TxModeReg TxCRCEn, RxModeReg RxCRCEn
+		byte MODE_FRAMING_FELICA = (byte) 0b0000_0010; // TxModeReg TxFraming, RxModeReg RxFraming
+		byte MODE_FRAMING_MASK = (byte) 0b0000_0011;
+		byte RX_MODE_RX_MULTIPLE = (byte) 0b0000_0100; // receiver stays on after each frame
+		byte MODE_SPEED_MASK = (byte) 0b0111_0000; // TxModeReg TxSpeed, RxModeReg RxSpeed
+		int MODE_SPEED_SHIFT = 4;
+		byte[] MOD_WIDTHS = { (byte) 0x26, (byte) 0x15, (byte) 0x0a, (byte) 0x05 }; // by BitRate
+		byte ERROR_COLL = (byte) 0b0000_1000;
+		byte ERROR_FAILURE_MASK = (byte) 0b0001_0111; // BufferOvfl, CRCErr, ParityErr, ProtocolErr
+		byte COLL_POS_NOT_VALID = (byte) 0b0010_0000;
+		byte COLL_POS_MASK = (byte) 0b0001_1111;
+		byte ERROR_BUFFER_OVFL = (byte) 0b0001_0000;
+		byte STREAMING_WATER_LEVEL = 32; // 2.4 ms of headroom at 106 kbps
+		byte CRC_WATER_LEVEL = 32; // refill the FIFO for the coprocessor from half full
+		int TARGET_SPECULATIVE_READ = 16; // FIFO bytes read with the level in card mode
+		int DEFAULT_SPI_FREQUENCY_HZ = 250_000;
+		int MAX_SPI_FREQUENCY_HZ = 10_000_000;
 	}
 
 	public interface ConstantData {
+		byte[] CONFIG_BUFFER_CLEAR = new byte[25];
+		byte[] SELF_TEST_INPUT = { (byte) 0x00 };
+		byte[] CRC_TEST_INPUT = "Hello, world!".getBytes(Charset.forName("US-ASCII"));
+		byte[] ULTRALIGHT_ATQA = { (byte) 0x44, (byte) 0x00 };
 		byte[] SELF_TEST_EXPECTED_RESULT = {
 				(byte) 0x00, (byte) 0xEB, (byte) 0x66, (byte) 0xBA, (byte) 0x57, (byte) 0xBF,
 				(byte) 0x23, (byte) 0x95, (byte) 0xD0, (byte) 0xE3, (byte) 0x0D, (byte) 0x3D,
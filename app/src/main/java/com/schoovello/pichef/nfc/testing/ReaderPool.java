@@ -0,0 +1,257 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several PN512 readers, each polled for cards by its own {@link TagPollingService}, with their
+ * tag events merged into one stream.<p/>
+ * Readers are grouped by SPI bus. Every transfer holds its bus for its duration only, so while one
+ * reader waits on RF (sleeping on its IRQ pin, ideally) the others on the same bus use it; readers
+ * on different buses never wait for each other.<p/>
+ * Readers are added before {@link #start()}; the pool owns their devices from then on.
+ */
+public class ReaderPool {
+
+	/**
+	 * As with {@link TagPollingService.Listener}, the card is only valid during the call.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the polling thread of {@code reader} when a card enters its field. Readers
+		 * deliver their events concurrently, so a listener must be thread-safe;
+		 * {@link TagEventRing} takes them from every reader without locking.
+		 */
+		void onTagArrived(int reader, @NonNull Iso14443aCard card);
+
+		/**
+		 * Called on the polling thread of {@code reader} when the card last reported for it leaves
+		 * its field.
+		 */
+		void onTagDeparted(int reader, @NonNull Iso14443aCard card);
+	}
+
+	private final List<Reader> mReaders = new ArrayList<>();
+	private final Map<String, Object> mBusLocks = new HashMap<>();
+	// copied on write, so delivering an event doesn't allocate an iterator
+	private volatile Listener[] mListeners = new Listener[0];
+
+	private boolean mRunning;
+
+	/**
+	 * Adds a reader.
+	 * @param bus name of the SPI bus the chip select is on, e.g. {@code "SPI0"}. Readers given the
+	 * same name share the bus.
+	 * @param port the reader's chip select.
+	 * @param irqLine the reader's IRQ pin, or {@code null} to poll the chip.
+	 * @return the reader's index, used to identify it in events.
+	 */
+	public synchronized int addReader(@NonNull String bus, @NonNull SpiPort port,
+			@Nullable IrqLine irqLine) throws IOException {
+		if (mRunning) {
+			throw new IllegalStateException("readers must be added before the pool is started");
+		}
+
+		Object busLock = mBusLocks.get(bus);
+		if (busLock == null) {
+			busLock = new Object();
+			mBusLocks.put(bus, busLock);
+		}
+
+		final int index = mReaders.size();
+		final Pn512NfcDevice device = new Pn512NfcDevice(new BusPort(port, busLock));
+		device.setIrqLine(irqLine);
+		final TagPollingService service = new TagPollingService(device, "TagPollingThread-" + index);
+		service.addListener(new TagPollingService.Listener() {
+			@Override
+			public void onTagArrived(@NonNull Iso14443aCard card) {
+				for (Listener listener : mListeners) {
+					listener.onTagArrived(index, card);
+				}
+			}
+
+			@Override
+			public void onTagDeparted(@NonNull Iso14443aCard card) {
+				for (Listener listener : mListeners) {
+					listener.onTagDeparted(index, card);
+				}
+			}
+		});
+		mReaders.add(new Reader(bus, device, service));
+		return index;
+	}
+
+	public synchronized void addListener(@NonNull Listener listener) {
+		final Listener[] listeners = mListeners;
+		final Listener[] added = new Listener[listeners.length + 1];
+		System.arraycopy(listeners, 0, added, 0, listeners.length);
+		added[listeners.length] = listener;
+		mListeners = added;
+	}
+
+	public synchronized void removeListener(@NonNull Listener listener) {
+		final Listener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				final Listener[] removed = new Listener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+				mListeners = removed;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets the poll intervals of every reader.
+	 * @see TagPollingService#setIntervals(long, long, long, long)
+	 */
+	public synchronized void setIntervals(long fastMs, long presentMs, long idleMs, long burstMs) {
+		for (Reader reader : mReaders) {
+			reader.mService.setIntervals(fastMs, presentMs, idleMs, burstMs);
+		}
+	}
+
+	/**
+	 * Trains each reader's SPI link on its own polling thread when the pool starts.
+	 * @see TagPollingService#setLinkTraining(boolean)
+	 */
+	public synchronized void setLinkTraining(boolean enabled) {
+		for (Reader reader : mReaders) {
+			reader.mService.setLinkTraining(enabled);
+		}
+	}
+
+	public synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		for (Reader reader : mReaders) {
+			reader.mService.start();
+		}
+	}
+
+	public synchronized void stop() {
+		if (!mRunning) {
+			return;
+		}
+		for (Reader reader : mReaders) {
+			reader.mService.stop();
+		}
+		mRunning = false;
+	}
+
+	public synchronized boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Stops polling and closes every reader's device.
+	 */
+	public synchronized void close() {
+		stop();
+		for (Reader reader : mReaders) {
+			reader.mDevice.close();
+		}
+	}
+
+	public synchronized int getReaderCount() {
+		return mReaders.size();
+	}
+
+	public synchronized String getBus(int reader) {
+		return mReaders.get(reader).mBus;
+	}
+
+	public synchronized Pn512NfcDevice getDevice(int reader) {
+		return mReaders.get(reader).mDevice;
+	}
+
+	public synchronized TagPollingService getPollingService(int reader) {
+		return mReaders.get(reader).mService;
+	}
+
+	/**
+	 * @return the number of polls that found a card, summed over all readers.
+	 */
+	public synchronized long getReadCount() {
+		long count = 0;
+		for (Reader reader : mReaders) {
+			count += reader.mService.getReadCount();
+		}
+		return count;
+	}
+
+	private static class Reader {
+		final String mBus;
+		final Pn512NfcDevice mDevice;
+		final TagPollingService mService;
+
+		Reader(String bus, Pn512NfcDevice device, TagPollingService service) {
+			mBus = bus;
+			mDevice = device;
+			mService = service;
+		}
+	}
+
+	/**
+	 * A chip select on a shared bus: each transfer holds the bus lock.
+	 */
+	private static class BusPort implements SpiPort {
+
+		private final SpiPort mPort;
+		private final Object mBusLock;
+
+		BusPort(SpiPort port, Object busLock) {
+			mPort = port;
+			mBusLock = busLock;
+		}
+
+		@Override
+		public void setFrequency(int frequencyHz) throws IOException {
+			synchronized (mBusLock) {
+				mPort.setFrequency(frequencyHz);
+			}
+		}
+
+		@Override
+		public void write(byte[] buffer, int length) throws IOException {
+			synchronized (mBusLock) {
+				mPort.write(buffer, length);
+			}
+		}
+
+		@Override
+		public void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+			synchronized (mBusLock) {
+				mPort.transfer(txBuffer, rxBuffer, length);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			mPort.close();
+		}
+	}
+
+}
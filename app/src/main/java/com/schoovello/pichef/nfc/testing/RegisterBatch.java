@@ -0,0 +1,244 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Queues PN512 register reads, writes and FIFO bursts and flushes them in as few SPI frames as
+ * the chip's address-streaming protocol allows:
+ * <ul>
+ *     <li>a run of consecutive reads (of any registers) becomes one full-duplex transfer, since
+ *     every byte clocked out can carry the next read address</li>
+ *     <li>consecutive writes to the same register (e.g. FIFO bursts) become one write frame,
+ *     since every byte after the address byte is written to that register</li>
+ * </ul>
+ * The protocol latches read/write mode and the write address per frame, so writes to different
+ * registers still need a frame each.<p/>
+ * Read results are returned by the index handed out when the read was queued. A batch can be
+ * {@link #clear() cleared} and reused, so steady-state use does not allocate.<p/>
+ * Batches created by {@link Pn512NfcDevice#newRegisterBatch()} keep the device's
+ * {@link RegisterShadow} up to date with the values they write and read.
+ */
+public class RegisterBatch {
+
+	private static final int MAX_OPS = 64;
+	private static final int MAX_FRAME_LENGTH = 256;
+
+	private static final byte OP_WRITE = 0;
+	private static final byte OP_READ = 1;
+
+	private final SpiPort mSpi;
+
+	@Nullable
+	private final RegisterShadow mShadow;
+
+	private final byte[] mOpType = new byte[MAX_OPS];
+	private final byte[] mOpAddress = new byte[MAX_OPS];
+	private final int[] mOpOffset = new int[MAX_OPS];
+	private final int[] mOpLength = new int[MAX_OPS];
+	private int mOpCount;
+
+	private final byte[] mWriteData = new byte[MAX_FRAME_LENGTH];
+	private int mWriteDataLength;
+
+	private final byte[] mResults = new byte[MAX_FRAME_LENGTH];
+	private int mResultCount;
+
+	private final byte[] mTxBuffer = new byte[MAX_FRAME_LENGTH];
+	private final byte[] mRxBuffer = new byte[MAX_FRAME_LENGTH];
+
+	private long mOperationCount;
+	private long mTransferCount;
+
+	RegisterBatch(@NonNull SpiPort spi) {
+		this(spi, null);
+	}
+
+	RegisterBatch(@NonNull SpiPort spi, @Nullable RegisterShadow shadow) {
+		mSpi = spi;
+		mShadow = shadow;
+	}
+
+	public RegisterBatch writeRegister(byte regAddress, byte value) {
+		ensureWriteCapacity(1);
+		mWriteData[mWriteDataLength] = value;
+		addOp(OP_WRITE, regAddress, mWriteDataLength, 1);
+		mWriteDataLength++;
+		return this;
+	}
+
+	public RegisterBatch writeData(byte regAddress, byte[] data, int offset, int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length must be positive");
+		}
+		ensureWriteCapacity(length);
+		System.arraycopy(data, offset, mWriteData, mWriteDataLength, length);
+		addOp(OP_WRITE, regAddress, mWriteDataLength, length);
+		mWriteDataLength += length;
+		return this;
+	}
+
+	/**
+	 * Queues a single register read.
+	 * @return the index of the result, for use with {@link #getResult(int)} after {@link #execute()}.
+	 */
+	public int readRegister(byte regAddress) {
+		return readData(regAddress, 1);
+	}
+
+	/**
+	 * Queues {@code length} consecutive reads of the same register (e.g. a FIFO burst).
+	 * @return the index of the first result; the rest follow contiguously.
+	 */
+	public int readData(byte regAddress, int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length must be positive");
+		}
+		if (mResultCount + length >= MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("batch read capacity exceeded");
+		}
+		int resultIndex = mResultCount;
+		addOp(OP_READ, regAddress, resultIndex, length);
+		mResultCount += length;
+		return resultIndex;
+	}
+
+	public void execute() throws IOException {
+		int i = 0;
+		while (i < mOpCount) {
+			if (mOpType[i] == OP_READ) {
+				i = executeReadRun(i);
+			} else {
+				i = executeWriteRun(i);
+			}
+			mTransferCount++;
+		}
+		mOperationCount += mOpCount;
+	}
+
+	public byte getResult(int index) {
+		if (index < 0 || index >= mResultCount) {
+			throw new IndexOutOfBoundsException("no result at index " + index);
+		}
+		return mResults[index];
+	}
+
+	public void copyResults(int index, byte[] dest, int destOffset, int length) {
+		if (index < 0 || index + length > mResultCount) {
+			throw new IndexOutOfBoundsException("no results at " + index + ".." + (index + length));
+		}
+		System.arraycopy(mResults, index, dest, destOffset, length);
+	}
+
+	/**
+	 * Copies results into {@code dest} at its position, advancing it.
+	 */
+	public void copyResults(int index, ByteBuffer dest, int length) {
+		if (index < 0 || index + length > mResultCount) {
+			throw new IndexOutOfBoundsException("no results at " + index + ".." + (index + length));
+		}
+		dest.put(mResults, index, length);
+	}
+
+	public void clear() {
+		mOpCount = 0;
+		mWriteDataLength = 0;
+		mResultCount = 0;
+	}
+
+	/**
+	 * @return the number of SPI frames issued by this batch over its lifetime.
+	 */
+	public long getTransferCount() {
+		return mTransferCount;
+	}
+
+	/**
+	 * @return the number of SPI frames avoided compared with issuing every queued operation as
+	 * its own transfer.
+	 */
+	public long getTransfersSaved() {
+		return mOperationCount - mTransferCount;
+	}
+
+	private int executeReadRun(int start) throws IOException {
+		// MOSI: addr0, addr1, ..., addrN, 00
+		// MISO: xx,    data0, ..., dataN-1, dataN
+		int txLength = 0;
+		int i = start;
+		while (i < mOpCount && mOpType[i] == OP_READ && txLength + mOpLength[i] < MAX_FRAME_LENGTH) {
+			byte spiAddress = Pn512NfcDevice.getSpiReadAddress(mOpAddress[i]);
+			for (int j = 0; j < mOpLength[i]; j++) {
+				mTxBuffer[txLength++] = spiAddress;
+			}
+			i++;
+		}
+		mTxBuffer[txLength] = (byte) 0x00;
+
+		mSpi.transfer(mTxBuffer, mRxBuffer, txLength + 1);
+
+		// results of a run are contiguous because reads are queued in order
+		System.arraycopy(mRxBuffer, 1, mResults, mOpOffset[start], txLength);
+
+		if (mShadow != null) {
+			for (int op = start; op < i; op++) {
+				mShadow.update(mOpAddress[op], mResults[mOpOffset[op] + mOpLength[op] - 1]);
+			}
+		}
+		return i;
+	}
+
+	private int executeWriteRun(int start) throws IOException {
+		byte regAddress = mOpAddress[start];
+		mTxBuffer[0] = Pn512NfcDevice.getSpiWriteAddress(regAddress);
+		int txLength = 1;
+		int i = start;
+		while (i < mOpCount && mOpType[i] == OP_WRITE && mOpAddress[i] == regAddress
+				&& txLength + mOpLength[i] <= MAX_FRAME_LENGTH) {
+			System.arraycopy(mWriteData, mOpOffset[i], mTxBuffer, txLength, mOpLength[i]);
+			txLength += mOpLength[i];
+			i++;
+		}
+
+		mSpi.write(mTxBuffer, txLength);
+
+		if (mShadow != null) {
+			mShadow.update(regAddress, mTxBuffer[txLength - 1]);
+		}
+		return i;
+	}
+
+	private void addOp(byte type, byte regAddress, int offset, int length) {
+		if (mOpCount == MAX_OPS) {
+			throw new IllegalArgumentException("batch holds at most " + MAX_OPS + " operations");
+		}
+		mOpType[mOpCount] = type;
+		mOpAddress[mOpCount] = regAddress;
+		mOpOffset[mOpCount] = offset;
+		mOpLength[mOpCount] = length;
+		mOpCount++;
+	}
+
+	private void ensureWriteCapacity(int length) {
+		if (mWriteDataLength + length >= MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("batch write capacity exceeded");
+		}
+	}
+
+}
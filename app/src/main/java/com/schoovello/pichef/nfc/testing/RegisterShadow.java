@@ -0,0 +1,116 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.Values;
+
+/**
+ * Write-through copy of the PN512 configuration registers, so read-modify-write sequences don't
+ * have to read the register back over SPI.<p/>
+ * Only registers whose content is fully determined by what the host last wrote are shadowed.
+ * Registers the chip updates on its own (command, interrupt, status, FIFO, collision, CRC result,
+ * timer counter and test bus registers) are volatile and always read from the chip. The
+ * read-only RxLastBits field of ControlReg is not tracked either; code that needs it must read
+ * ControlReg from the chip. Nor is the StartSend bit of BitFramingReg, which starts a
+ * transmission rather than configuring one: the shadow holds the framing alone, so a framing
+ * update that only differs in StartSend can be skipped.
+ */
+public class RegisterShadow {
+
+	private static final long VOLATILE_REGISTERS =
+			bit(RegisterAddress.COMMAND_REG)
+			| bit(RegisterAddress.COMM_IRQ_REG)
+			| bit(RegisterAddress.DIV_IRQ_REG)
+			| bit(RegisterAddress.ERROR_REG)
+			| bit(RegisterAddress.STATUS_1_REG)
+			| bit(RegisterAddress.STATUS_2_REG)
+			| bit(RegisterAddress.FIFO_DATA_REG)
+			| bit(RegisterAddress.FIFO_LEVEL_REG)
+			| bit(RegisterAddress.COLL_REG)
+			| bit(RegisterAddress.CRC_RESULT_MSB_REG)
+			| bit(RegisterAddress.CRC_RESULT_LSB_REG)
+			| bit(RegisterAddress.T_COUNTER_VAL_HI_REG)
+			| bit(RegisterAddress.T_COUNTER_VAL_LO_REG)
+			| bit(RegisterAddress.TEST_PIN_VALUE_REG)
+			| bit(RegisterAddress.TEST_BUS_REG)
+			| bit(RegisterAddress.TEST_ADC_REG);
+
+	private final byte[] mValues = new byte[64];
+	private long mValidMask;
+
+	private long mHitCount;
+	private long mMissCount;
+
+	public static boolean isVolatile(byte regAddress) {
+		return (VOLATILE_REGISTERS & bit(regAddress)) != 0;
+	}
+
+	/**
+	 * Looks up a register and updates the hit/miss statistics.
+	 * @return {@code true} if {@link #get(byte)} holds the register's current value.
+	 */
+	public boolean lookup(byte regAddress) {
+		if ((mValidMask & bit(regAddress)) != 0) {
+			mHitCount++;
+			return true;
+		} else {
+			mMissCount++;
+			return false;
+		}
+	}
+
+	public boolean isValid(byte regAddress) {
+		return (mValidMask & bit(regAddress)) != 0;
+	}
+
+	public byte get(byte regAddress) {
+		return mValues[regAddress & 0b0011_1111];
+	}
+
+	/**
+	 * Records a value written to or read from the chip. Ignored for volatile registers.
+	 */
+	public void update(byte regAddress, byte value) {
+		long bit = bit(regAddress);
+		if (regAddress == RegisterAddress.BIT_FRAMING_REG) {
+			value = BitUtils.clearBits(value, Values.BIT_FRAMING_START_SEND);
+		}
+		if ((VOLATILE_REGISTERS & bit) == 0) {
+			mValues[regAddress & 0b0011_1111] = value;
+			mValidMask |= bit;
+		}
+	}
+
+	public void invalidate(byte regAddress) {
+		mValidMask &= ~bit(regAddress);
+	}
+
+	public void invalidateAll() {
+		mValidMask = 0;
+	}
+
+	public long getHitCount() {
+		return mHitCount;
+	}
+
+	public long getMissCount() {
+		return mMissCount;
+	}
+
+	private static long bit(byte regAddress) {
+		return 1L << (regAddress & 0b0011_1111);
+	}
+
+}
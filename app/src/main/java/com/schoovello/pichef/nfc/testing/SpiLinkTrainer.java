@@ -0,0 +1,226 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.Values;
+
+import java.io.IOException;
+
+/**
+ * Finds the fastest SPI clock a PN512 can be driven at over the wiring it's on. The clock is
+ * stepped up from the default until a step fails, each step checked with a register
+ * write/readback pattern, a full FIFO round trip and the self test. The device is then left one
+ * step below the fastest clean rate, or at the chip's rated maximum if that passed, and soft
+ * reset.<p/>
+ * Training is meant to run once at startup, before the device is used: the self test resets the
+ * chip. If transfers get garbled later on, the device halves its clock by itself; see
+ * {@link Pn512NfcDevice#getLinkErrorCount()}.
+ */
+public class SpiLinkTrainer {
+
+	/**
+	 * The rates tried, in order. The PN512 is rated for 10 Mbit/s.
+	 */
+	private static final int[] FREQUENCIES_HZ = {
+			250_000, 500_000, 1_000_000, 2_000_000, 4_000_000, 5_000_000, 8_000_000,
+			Values.MAX_SPI_FREQUENCY_HZ
+	};
+
+	/**
+	 * Each step must pass this many times in a row.
+	 */
+	private static final int TRIALS = 3;
+
+	/**
+	 * Round trips timed at the chosen rate to measure throughput.
+	 */
+	private static final int THROUGHPUT_ROUNDS = 8;
+
+	/**
+	 * Written to and read back from ModWidthReg, whose 8 bits are all read/write. Alternating and
+	 * walking bits catch both stuck lines and bits sampled on the wrong edge.
+	 */
+	private static final byte[] REGISTER_PATTERNS = {
+			(byte) 0x00, (byte) 0xff, (byte) 0x55, (byte) 0xaa,
+			(byte) 0x01, (byte) 0x80, (byte) 0x0f, (byte) 0xf0
+	};
+
+	private final Pn512NfcDevice mDevice;
+	private final RegisterBatch mBatch;
+	private final byte[] mFifoPattern = new byte[Values.FIFO_SIZE];
+	private final byte[] mFifoReadback = new byte[Values.FIFO_SIZE];
+
+	public SpiLinkTrainer(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+		mBatch = device.newRegisterBatch();
+		for (int i = 0; i < mFifoPattern.length; i++) {
+			mFifoPattern[i] = (byte) (i * 0x5b + 0x3c);
+		}
+	}
+
+	public Result train() throws IOException {
+		int highestStable = -1;
+		try {
+			for (int step = 0; step < FREQUENCIES_HZ.length; step++) {
+				mDevice.setSpiFrequency(FREQUENCIES_HZ[step]);
+				if (!checkLink()) {
+					break;
+				}
+				highestStable = step;
+			}
+		} finally {
+			// never leave the device at a rate that just failed
+			mDevice.setSpiFrequency(FREQUENCIES_HZ[chooseStep(highestStable)]);
+		}
+		final int chosen = chooseStep(highestStable);
+
+		final double bytesPerSecond = measureThroughput();
+		mDevice.softReset();
+
+		return new Result(FREQUENCIES_HZ[chosen],
+				highestStable < 0 ? 0 : FREQUENCIES_HZ[highestStable], bytesPerSecond);
+	}
+
+	private static int chooseStep(int highestStable) {
+		if (highestStable < 0) {
+			return 0;
+		} else if (highestStable == FREQUENCIES_HZ.length - 1) {
+			return highestStable;
+		} else {
+			return Math.max(0, highestStable - 1);
+		}
+	}
+
+	/**
+	 * @return {@code false} if any check failed, including by throwing: a garbled status read can
+	 * keep a command looking busy until it times out.
+	 */
+	private boolean checkLink() {
+		try {
+			for (int i = 0; i < TRIALS; i++) {
+				if (!checkRegisters() || !checkFifo() || !mDevice.selfTest()) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private boolean checkRegisters() throws IOException {
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		for (byte pattern : REGISTER_PATTERNS) {
+			batch.writeRegister(RegisterAddress.MOD_WIDTH_REG, pattern);
+			batch.readRegister(RegisterAddress.MOD_WIDTH_REG);
+		}
+		batch.execute();
+
+		for (int i = 0; i < REGISTER_PATTERNS.length; i++) {
+			if (batch.getResult(i) != REGISTER_PATTERNS[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Fills the FIFO and reads it back.
+	 */
+	private boolean checkFifo() throws IOException {
+		final RegisterBatch batch = mBatch;
+		batch.clear();
+		batch.writeRegister(RegisterAddress.COMMAND_REG, Pn512NfcDevice.Command.IDLE)
+				.writeRegister(RegisterAddress.FIFO_LEVEL_REG, Values.FIFO_LEVEL_FLUSH_BUFFER)
+				.writeData(RegisterAddress.FIFO_DATA_REG, mFifoPattern, 0, mFifoPattern.length);
+		final int levelIndex = batch.readRegister(RegisterAddress.FIFO_LEVEL_REG);
+		final int dataIndex = batch.readData(RegisterAddress.FIFO_DATA_REG, mFifoPattern.length);
+		batch.execute();
+
+		if (batch.getResult(levelIndex) != Values.FIFO_SIZE) {
+			return false;
+		}
+		batch.copyResults(dataIndex, mFifoReadback, 0, mFifoReadback.length);
+		for (int i = 0; i < mFifoPattern.length; i++) {
+			if (mFifoReadback[i] != mFifoPattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the FIFO bytes per second written and read back by back-to-back round trips,
+	 * including all transfer overhead.
+	 */
+	private double measureThroughput() throws IOException {
+		final long startNanos = System.nanoTime();
+		for (int i = 0; i < THROUGHPUT_ROUNDS; i++) {
+			checkFifo();
+		}
+		final long elapsedNanos = System.nanoTime() - startNanos;
+		final long bytes = 2L * THROUGHPUT_ROUNDS * mFifoPattern.length;
+		return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+	}
+
+	public static class Result {
+
+		private final int mFrequencyHz;
+		private final int mHighestStableHz;
+		private final double mBytesPerSecond;
+
+		Result(int frequencyHz, int highestStableHz, double bytesPerSecond) {
+			mFrequencyHz = frequencyHz;
+			mHighestStableHz = highestStableHz;
+			mBytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * @return the rate the device was left at.
+		 */
+		public int getFrequencyHz() {
+			return mFrequencyHz;
+		}
+
+		/**
+		 * @return the fastest rate that passed every check, or {@code 0} if even the default
+		 * failed.
+		 */
+		public int getHighestStableHz() {
+			return mHighestStableHz;
+		}
+
+		public boolean isStable() {
+			return mHighestStableHz != 0;
+		}
+
+		/**
+		 * @return the measured FIFO throughput at the chosen rate, in both directions.
+		 */
+		public double getBytesPerSecond() {
+			return mBytesPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("spi %d kHz (highest stable %d kHz), %.1f kB/s",
+					mFrequencyHz / 1000, mHighestStableHz / 1000, mBytesPerSecond / 1000);
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import java.io.IOException;
+
+/**
+ * The subset of SPI operations used by {@link Pn512NfcDevice}. Each {@link #write} or
+ * {@link #transfer} call is one chip-select frame on the bus.<p/>
+ * Keeping the driver on this interface (rather than on the Android Things {@code SpiDevice}
+ * directly) lets it run against simulated devices on a desktop JVM.
+ */
+public interface SpiPort {
+
+	void setFrequency(int frequencyHz) throws IOException;
+
+	void write(byte[] buffer, int length) throws IOException;
+
+	void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException;
+
+	void close() throws IOException;
+
+}
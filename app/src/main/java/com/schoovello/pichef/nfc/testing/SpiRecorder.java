@@ -0,0 +1,275 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Passes transfers through to another port and logs each one, with what was clocked in and out,
+ * to a ring buffer in a memory-mapped file. When the file is full the oldest transfers are
+ * overwritten, so it always holds the most recent traffic. {@link SpiReplayPort} plays a log back.
+ * <p/>
+ * Logging copies the bytes into the mapping and never allocates; the kernel writes the pages
+ * back in its own time.<p/>
+ * The file starts with a {@link Format#HEADER_SIZE}-byte header, followed by the records:
+ * <pre>
+ *     type (1 byte) | length (2) | nanoseconds since the recording started (8) | bytes out | bytes in
+ * </pre>
+ * Bytes in are only present for {@link Format#TYPE_TRANSFER} records; a
+ * {@link Format#TYPE_FREQUENCY} record carries the frequency as 4 bytes out, and a
+ * {@link Format#TYPE_CLOCK} record the time handed to the driver as 8. A
+ * {@link Format#TYPE_WRAP} byte, or the end of the file, means the next record is at the start
+ * of the ring.<p/>
+ * The recorder is also a {@link NanoClock}: give it to {@link Pn512NfcDevice#setClock(NanoClock)}
+ * so the replay sees the same timeouts expire as the recorded session did.
+ */
+public class SpiRecorder implements SpiPort, NanoClock {
+
+	public interface Format {
+		int MAGIC = 0x53504952; // "SPIR"
+		int VERSION = 1;
+
+		int HEADER_SIZE = 64;
+		int OFFSET_MAGIC = 0;
+		int OFFSET_VERSION = 4;
+		int OFFSET_CAPACITY = 8;
+		int OFFSET_HEAD = 12;
+		int OFFSET_TAIL = 16;
+		int OFFSET_RECORD_COUNT = 24;
+		int OFFSET_TOTAL_COUNT = 32;
+		int OFFSET_DROPPED_COUNT = 40;
+		int OFFSET_START_TIME_MILLIS = 48;
+
+		int RECORD_HEADER_SIZE = 11;
+
+		byte TYPE_WRAP = 0;
+		byte TYPE_WRITE = 1;
+		byte TYPE_TRANSFER = 2;
+		byte TYPE_FREQUENCY = 3;
+		byte TYPE_CLOCK = 4;
+
+		int MAX_LENGTH = 0xffff;
+	}
+
+	private final SpiPort mPort;
+	@Nullable
+	private final RandomAccessFile mFile;
+	private final ByteBuffer mBuffer;
+	private final int mCapacity;
+	private final long mStartNanos;
+
+	private final byte[] mFrequencyBytes = new byte[4];
+	private final byte[] mClockBytes = new byte[8];
+
+	private int mHead = Format.HEADER_SIZE;
+	private int mTail = Format.HEADER_SIZE;
+	private long mRecordCount;
+	private long mTotalCount;
+	private long mDroppedCount;
+
+	/**
+	 * Starts a new recording in {@code file}, replacing whatever it held.
+	 * @param capacity the size of the file, header included.
+	 */
+	public SpiRecorder(@NonNull SpiPort port, @NonNull File file, int capacity) throws IOException {
+		this(port, new RandomAccessFile(file, "rw"), capacity);
+	}
+
+	private SpiRecorder(SpiPort port, RandomAccessFile file, int capacity) throws IOException {
+		this(port, file, map(file, capacity));
+	}
+
+	/**
+	 * Records into {@code buffer}, e.g. for a recording that is only kept in memory.
+	 */
+	public SpiRecorder(@NonNull SpiPort port, @NonNull ByteBuffer buffer) {
+		this(port, null, buffer);
+	}
+
+	private SpiRecorder(SpiPort port, @Nullable RandomAccessFile file, ByteBuffer buffer) {
+		if (buffer.capacity() < Format.HEADER_SIZE + Format.RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("recording buffer too small");
+		}
+		mPort = port;
+		mFile = file;
+		mBuffer = buffer.duplicate();
+		mCapacity = buffer.capacity();
+		mStartNanos = System.nanoTime();
+
+		mBuffer.putInt(Format.OFFSET_MAGIC, Format.MAGIC);
+		mBuffer.putInt(Format.OFFSET_VERSION, Format.VERSION);
+		mBuffer.putInt(Format.OFFSET_CAPACITY, mCapacity);
+		mBuffer.putLong(Format.OFFSET_START_TIME_MILLIS, System.currentTimeMillis());
+		updateHeader();
+	}
+
+	private static MappedByteBuffer map(RandomAccessFile file, int capacity) throws IOException {
+		file.setLength(capacity);
+		return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	@Override
+	public synchronized void setFrequency(int frequencyHz) throws IOException {
+		final long nanos = System.nanoTime() - mStartNanos;
+		mPort.setFrequency(frequencyHz);
+
+		final byte[] bytes = mFrequencyBytes;
+		bytes[0] = (byte) (frequencyHz >>> 24);
+		bytes[1] = (byte) (frequencyHz >>> 16);
+		bytes[2] = (byte) (frequencyHz >>> 8);
+		bytes[3] = (byte) frequencyHz;
+		append(Format.TYPE_FREQUENCY, nanos, bytes, null, bytes.length);
+	}
+
+	@Override
+	public synchronized long nanoTime() {
+		final long now = System.nanoTime();
+		final byte[] bytes = mClockBytes;
+		for (int i = 0; i < 8; i++) {
+			bytes[i] = (byte) (now >>> (56 - 8 * i));
+		}
+		append(Format.TYPE_CLOCK, now - mStartNanos, bytes, null, bytes.length);
+		return now;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int length) throws IOException {
+		final long nanos = System.nanoTime() - mStartNanos;
+		mPort.write(buffer, length);
+		append(Format.TYPE_WRITE, nanos, buffer, null, length);
+	}
+
+	@Override
+	public synchronized void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+		final long nanos = System.nanoTime() - mStartNanos;
+		mPort.transfer(txBuffer, rxBuffer, length);
+		append(Format.TYPE_TRANSFER, nanos, txBuffer, rxBuffer, length);
+	}
+
+	/**
+	 * Flushes the recording to the file and closes it, along with the port.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (mFile != null) {
+				if (mBuffer instanceof MappedByteBuffer) {
+					((MappedByteBuffer) mBuffer).force();
+				}
+				mFile.close();
+			}
+		} finally {
+			mPort.close();
+		}
+	}
+
+	/**
+	 * @return the number of records overwritten because the ring was full, or left out because
+	 * they were larger than the whole ring.
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * @return the number of records in the ring.
+	 */
+	public synchronized long getRecordCount() {
+		return mRecordCount;
+	}
+
+	static int recordSize(byte type, int length) {
+		return Format.RECORD_HEADER_SIZE + (type == Format.TYPE_TRANSFER ? 2 * length : length);
+	}
+
+	private void append(byte type, long nanos, byte[] out, @Nullable byte[] in, int length) {
+		final int size = recordSize(type, length);
+		if (length > Format.MAX_LENGTH || size > mCapacity - Format.HEADER_SIZE) {
+			mDroppedCount++;
+			updateHeader();
+			return;
+		}
+
+		final ByteBuffer buffer = mBuffer;
+		if (mHead + size > mCapacity) {
+			// whatever lies between the head and the end of the ring is lost to the wrap
+			while (mRecordCount > 0 && mTail >= mHead) {
+				dropOldest();
+			}
+			if (mHead < mCapacity) {
+				buffer.put(mHead, Format.TYPE_WRAP);
+			}
+			mHead = Format.HEADER_SIZE;
+			if (mRecordCount == 0) {
+				mTail = mHead;
+			}
+		}
+		while (mRecordCount > 0 && mTail >= mHead && mTail < mHead + size) {
+			dropOldest();
+		}
+
+		buffer.put(mHead, type);
+		buffer.putShort(mHead + 1, (short) length);
+		buffer.putLong(mHead + 3, nanos);
+		buffer.position(mHead + Format.RECORD_HEADER_SIZE);
+		buffer.put(out, 0, length);
+		if (in != null) {
+			buffer.put(in, 0, length);
+		}
+
+		mHead += size;
+		if (mHead == mCapacity) {
+			mHead = Format.HEADER_SIZE;
+		}
+		mRecordCount++;
+		mTotalCount++;
+		updateHeader();
+	}
+
+	private void dropOldest() {
+		final ByteBuffer buffer = mBuffer;
+		if (mTail == mCapacity || buffer.get(mTail) == Format.TYPE_WRAP) {
+			mTail = Format.HEADER_SIZE;
+		}
+		final byte type = buffer.get(mTail);
+		final int length = buffer.getShort(mTail + 1) & 0xffff;
+		mTail += recordSize(type, length);
+		if (mTail == mCapacity) {
+			mTail = Format.HEADER_SIZE;
+		}
+		mRecordCount--;
+		mDroppedCount++;
+		if (mRecordCount == 0) {
+			mTail = mHead;
+		}
+	}
+
+	private void updateHeader() {
+		final ByteBuffer buffer = mBuffer;
+		buffer.putInt(Format.OFFSET_HEAD, mHead);
+		buffer.putInt(Format.OFFSET_TAIL, mTail);
+		buffer.putLong(Format.OFFSET_RECORD_COUNT, mRecordCount);
+		buffer.putLong(Format.OFFSET_TOTAL_COUNT, mTotalCount);
+		buffer.putLong(Format.OFFSET_DROPPED_COUNT, mDroppedCount);
+	}
+
+}
@@ -0,0 +1,231 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.schoovello.pichef.nfc.testing.SpiRecorder.Format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a log made by {@link SpiRecorder}: every call must match the next recorded one,
+ * and transfers return the bytes the chip sent back at the time. Running the same driver code
+ * that made the recording re-runs the session without hardware, as fast as the host allows.<p/>
+ * The driver must not depend on the IRQ pin's timing, so a device replaying an interrupt-mode
+ * session should be given {@link #getIrqLine()}, which is always asserted: every wait then falls
+ * straight through to the register reads that were recorded after it. If the recording was made
+ * with the recorder as the device's clock, the replaying device should use this port as its
+ * clock too, so its timeouts expire where they did in the recording.<p/>
+ * A session can only be replayed from its start, so the log must not have wrapped; see
+ * {@link #isComplete()}.
+ */
+public class SpiReplayPort implements SpiPort, NanoClock {
+
+	private final ByteBuffer mBuffer;
+	private final int mCapacity;
+	private final int mFirstRecord;
+	private final long mRecordCount;
+	private final long mDroppedCount;
+
+	private int mPosition;
+	private long mReplayedCount;
+
+	public static SpiReplayPort open(@NonNull File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			return new SpiReplayPort(randomAccessFile.getChannel()
+					.map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+		} finally {
+			// the mapping stays valid after the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	public SpiReplayPort(@NonNull ByteBuffer recording) throws IOException {
+		mBuffer = recording.duplicate();
+		if (mBuffer.capacity() < Format.HEADER_SIZE || mBuffer.getInt(Format.OFFSET_MAGIC) != Format.MAGIC) {
+			throw new IOException("not an SPI recording");
+		}
+		if (mBuffer.getInt(Format.OFFSET_VERSION) != Format.VERSION) {
+			throw new IOException("unsupported recording version " + mBuffer.getInt(Format.OFFSET_VERSION));
+		}
+		mCapacity = mBuffer.getInt(Format.OFFSET_CAPACITY);
+		mFirstRecord = mBuffer.getInt(Format.OFFSET_TAIL);
+		mRecordCount = mBuffer.getLong(Format.OFFSET_RECORD_COUNT);
+		mDroppedCount = mBuffer.getLong(Format.OFFSET_DROPPED_COUNT);
+		if (mCapacity > mBuffer.capacity()) {
+			throw new IOException("recording truncated");
+		}
+		rewind();
+	}
+
+	/**
+	 * Starts the replay over from the first record.
+	 */
+	public synchronized void rewind() {
+		mPosition = mFirstRecord;
+		mReplayedCount = 0;
+	}
+
+	/**
+	 * @return whether the log holds the whole session, with no records overwritten or dropped.
+	 */
+	public boolean isComplete() {
+		return mDroppedCount == 0;
+	}
+
+	public long getRecordCount() {
+		return mRecordCount;
+	}
+
+	/**
+	 * @return whether every record has been played back.
+	 */
+	public synchronized boolean isFinished() {
+		return mReplayedCount == mRecordCount;
+	}
+
+	/**
+	 * @return the time from the start of the recording to the last record, to compare the replay
+	 * against.
+	 */
+	public synchronized long getRecordedDurationNanos() {
+		final int savedPosition = mPosition;
+		final long savedCount = mReplayedCount;
+		rewind();
+		long nanos = 0;
+		while (mReplayedCount < mRecordCount) {
+			skipWrap();
+			nanos = mBuffer.getLong(mPosition + 3);
+			advance(mBuffer.get(mPosition), length());
+		}
+		mPosition = savedPosition;
+		mReplayedCount = savedCount;
+		return nanos;
+	}
+
+	public IrqLine getIrqLine() {
+		return mIrqLine;
+	}
+
+	@Override
+	public synchronized void setFrequency(int frequencyHz) throws IOException {
+		expect(Format.TYPE_FREQUENCY, 4);
+		final int recorded = mBuffer.getInt(mPosition + Format.RECORD_HEADER_SIZE);
+		if (recorded != frequencyHz) {
+			throw diverged("frequency " + frequencyHz + " Hz, recorded " + recorded + " Hz");
+		}
+		advance(Format.TYPE_FREQUENCY, 4);
+	}
+
+	/**
+	 * @return the time the recorded session read at this point.
+	 * @throws IllegalStateException if the session read something else here; the driver can't
+	 * take an {@link IOException} from a clock.
+	 */
+	@Override
+	public synchronized long nanoTime() {
+		try {
+			expect(Format.TYPE_CLOCK, 8);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		final long recorded = mBuffer.getLong(mPosition + Format.RECORD_HEADER_SIZE);
+		advance(Format.TYPE_CLOCK, 8);
+		return recorded;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int length) throws IOException {
+		expect(Format.TYPE_WRITE, length);
+		checkBytesOut(buffer, length);
+		advance(Format.TYPE_WRITE, length);
+	}
+
+	@Override
+	public synchronized void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+		expect(Format.TYPE_TRANSFER, length);
+		checkBytesOut(txBuffer, length);
+		mBuffer.position(mPosition + Format.RECORD_HEADER_SIZE + length);
+		mBuffer.get(rxBuffer, 0, length);
+		advance(Format.TYPE_TRANSFER, length);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private void expect(byte type, int length) throws IOException {
+		if (mReplayedCount == mRecordCount) {
+			throw diverged("call past the end of the recording");
+		}
+		skipWrap();
+		final byte recordedType = mBuffer.get(mPosition);
+		final int recordedLength = length();
+		if (recordedType != type || recordedLength != length) {
+			throw diverged("type " + type + " length " + length + ", recorded type " + recordedType
+					+ " length " + recordedLength);
+		}
+	}
+
+	private void checkBytesOut(byte[] buffer, int length) throws IOException {
+		final int start = mPosition + Format.RECORD_HEADER_SIZE;
+		for (int i = 0; i < length; i++) {
+			if (mBuffer.get(start + i) != buffer[i]) {
+				throw diverged("byte " + i + " differs");
+			}
+		}
+	}
+
+	private int length() {
+		return mBuffer.getShort(mPosition + 1) & 0xffff;
+	}
+
+	private void skipWrap() {
+		if (mPosition == mCapacity || mBuffer.get(mPosition) == Format.TYPE_WRAP) {
+			mPosition = Format.HEADER_SIZE;
+		}
+	}
+
+	private void advance(byte type, int length) {
+		mPosition += SpiRecorder.recordSize(type, length);
+		mReplayedCount++;
+	}
+
+	private IOException diverged(String detail) {
+		return new IOException("replay diverged at record " + mReplayedCount + ": " + detail);
+	}
+
+	private final IrqLine mIrqLine = new IrqLine() {
+		@Override
+		public void setListener(@Nullable Listener listener) {
+		}
+
+		@Override
+		public boolean isAsserted() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+}
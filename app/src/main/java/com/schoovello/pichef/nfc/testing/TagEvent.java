@@ -0,0 +1,150 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A card arriving in or departing from a reader's field. Instances are the preallocated slots of
+ * a {@link TagEventRing}, filled in by the polling thread and reused; a consumer may only look at
+ * one while handling it, and should copy what it keeps.
+ */
+public class TagEvent {
+
+	public interface Type {
+		int ARRIVED = 1;
+		int DEPARTED = 2;
+	}
+
+	int mType;
+	int mReader;
+	final byte[] mUid = new byte[Iso14443aCard.MAX_UID_LENGTH];
+	int mUidLength;
+	final byte[] mAtqa = new byte[2];
+	byte mSak;
+	long mEventNanos;
+	long mPublishNanos;
+	@Nullable
+	Object mPayload;
+
+	void set(int type, int reader, Iso14443aCard card, long eventNanos, @Nullable Object payload) {
+		mType = type;
+		mReader = reader;
+		System.arraycopy(card.mUid, 0, mUid, 0, Iso14443aCard.MAX_UID_LENGTH);
+		mUidLength = card.mUidLength;
+		mAtqa[0] = card.mAtqa[0];
+		mAtqa[1] = card.mAtqa[1];
+		mSak = card.mSak;
+		mEventNanos = eventNanos;
+		mPayload = payload;
+	}
+
+	/**
+	 * @return one of {@link Type}.
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * @return the index of the reader, as given by {@link ReaderPool#addReader}.
+	 */
+	public int getReader() {
+		return mReader;
+	}
+
+	public int getUidLength() {
+		return mUidLength;
+	}
+
+	public byte getUidByte(int index) {
+		if (index >= mUidLength) {
+			throw new IndexOutOfBoundsException("UID has " + mUidLength + " bytes");
+		}
+		return mUid[index];
+	}
+
+	/**
+	 * @return the number of bytes copied.
+	 */
+	public int copyUid(byte[] dest, int offset) {
+		System.arraycopy(mUid, 0, dest, offset, mUidLength);
+		return mUidLength;
+	}
+
+	/**
+	 * @see Iso14443aCard#getUidKey()
+	 */
+	public long getUidKey() {
+		return Iso14443aCard.uidKey(mUid, mUidLength);
+	}
+
+	/**
+	 * @param index 0 or 1, in transmission order.
+	 */
+	public byte getAtqaByte(int index) {
+		return mAtqa[index];
+	}
+
+	public byte getSak() {
+		return mSak;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the polling thread saw the event.
+	 */
+	public long getEventNanos() {
+		return mEventNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the event was made visible to consumers.
+	 */
+	public long getPublishNanos() {
+		return mPublishNanos;
+	}
+
+	/**
+	 * @return whatever the publisher attached, e.g. a buffer holding the tag's contents.
+	 */
+	@Nullable
+	public Object getPayload() {
+		return mPayload;
+	}
+
+	public void copyFrom(TagEvent other) {
+		mType = other.mType;
+		mReader = other.mReader;
+		System.arraycopy(other.mUid, 0, mUid, 0, Iso14443aCard.MAX_UID_LENGTH);
+		mUidLength = other.mUidLength;
+		System.arraycopy(other.mAtqa, 0, mAtqa, 0, 2);
+		mSak = other.mSak;
+		mEventNanos = other.mEventNanos;
+		mPublishNanos = other.mPublishNanos;
+		mPayload = other.mPayload;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TagEvent{");
+		sb.append(mType == Type.ARRIVED ? "arrived" : "departed").append(", reader=").append(mReader)
+				.append(", uid=");
+		for (int i = 0; i < mUidLength; i++) {
+			sb.append(String.format("%02X", mUid[i]));
+		}
+		sb.append(String.format(", atqa=%02X%02X, sak=%02X}", mAtqa[0], mAtqa[1], mSak));
+		return sb.toString();
+	}
+
+}
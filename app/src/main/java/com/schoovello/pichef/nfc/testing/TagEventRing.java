@@ -0,0 +1,468 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands tag events from the polling threads to any number of consumer threads without locks or
+ * allocation.<p/>
+ * Events are written into a ring of preallocated {@link TagEvent} slots. A producer claims the
+ * next sequence number by moving a volatile cursor with a compare-and-set, fills the slot, then
+ * marks it published. Each {@link Consumer} follows the cursor with a sequence of its own and reads
+ * the slots in place, in batches, up to the first slot still being filled. A slot is only written
+ * again once every consumer has moved past it; if the slowest consumer is a whole ring behind, the
+ * new event is dropped and counted rather than making the polling thread wait, so a stuck consumer
+ * shows up in {@link #getDroppedCount()} and {@link Consumer#getLag()} instead of in the poll
+ * interval.<p/>
+ * Any number of threads may publish at once, so the polling threads of the {@link ReaderPool}
+ * readers never wait for each other. Events from one thread are seen in the order it published
+ * them. How a consumer waits for the next event is up to its {@link WaitStrategy}.
+ */
+public class TagEventRing implements ReaderPool.Listener {
+
+	/**
+	 * How a consumer waits for the cursor to move.
+	 */
+	public interface WaitStrategy {
+		/**
+		 * Waits until {@code sequence} is claimed by a producer, or until the deadline.
+		 * @return the cursor, which is below {@code sequence} if the deadline passed first.
+		 */
+		long waitFor(long sequence, TagEventRing ring, long deadlineNanos) throws InterruptedException;
+
+		/**
+		 * Called by the producer after each publication.
+		 */
+		void signalAll();
+	}
+
+	/**
+	 * Spins on the cursor: the lowest latency, for a consumer with a CPU to itself.
+	 */
+	public static class BusySpinWaitStrategy implements WaitStrategy {
+		@Override
+		public long waitFor(long sequence, TagEventRing ring, long deadlineNanos) throws InterruptedException {
+			long cursor;
+			while ((cursor = ring.mCursor) < sequence) {
+				if (System.nanoTime() - deadlineNanos >= 0) {
+					break;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return cursor;
+		}
+
+		@Override
+		public void signalAll() {
+		}
+	}
+
+	/**
+	 * Spins for a while, then yields the CPU between checks: low latency while leaving room for
+	 * other threads.
+	 */
+	public static class YieldingWaitStrategy implements WaitStrategy {
+		private static final int SPIN_TRIES = 100;
+
+		@Override
+		public long waitFor(long sequence, TagEventRing ring, long deadlineNanos) throws InterruptedException {
+			long cursor;
+			int tries = SPIN_TRIES;
+			while ((cursor = ring.mCursor) < sequence) {
+				if (tries > 0) {
+					tries--;
+					continue;
+				}
+				if (System.nanoTime() - deadlineNanos >= 0) {
+					break;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				Thread.yield();
+			}
+			return cursor;
+		}
+
+		@Override
+		public void signalAll() {
+		}
+	}
+
+	/**
+	 * Parks the consumer until the producer signals: no CPU while idle, at the cost of a wake-up
+	 * per batch. The producer only takes the lock when a consumer is actually waiting.
+	 */
+	public static class BlockingWaitStrategy implements WaitStrategy {
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final Condition mPublished = mLock.newCondition();
+		private final AtomicInteger mWaiters = new AtomicInteger();
+
+		@Override
+		public long waitFor(long sequence, TagEventRing ring, long deadlineNanos) throws InterruptedException {
+			long cursor = ring.mCursor;
+			if (cursor >= sequence) {
+				return cursor;
+			}
+			mLock.lock();
+			try {
+				// the producer checks for waiters after moving the cursor, so one of the two sees
+				// the other
+				mWaiters.incrementAndGet();
+				while ((cursor = ring.mCursor) < sequence) {
+					final long remainingNanos = deadlineNanos - System.nanoTime();
+					if (remainingNanos <= 0) {
+						break;
+					}
+					mPublished.awaitNanos(remainingNanos);
+				}
+			} finally {
+				mWaiters.decrementAndGet();
+				mLock.unlock();
+			}
+			return cursor;
+		}
+
+		@Override
+		public void signalAll() {
+			if (mWaiters.get() == 0) {
+				return;
+			}
+			mLock.lock();
+			try {
+				mPublished.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Handles events on a consumer's thread.
+	 */
+	public interface EventHandler {
+		/**
+		 * @param event the slot, only valid during the call.
+		 * @param endOfBatch whether this is the last event available for now, e.g. to flush
+		 * output.
+		 */
+		void onEvent(@NonNull TagEvent event, long sequence, boolean endOfBatch);
+	}
+
+	/**
+	 * One reader of the ring, used from one thread. Sees every event published after it was added,
+	 * unless the ring had to drop it.
+	 */
+	public class Consumer {
+		private final WaitStrategy mWaitStrategy;
+
+		// last sequence handled: read by the producer, written by the consumer only
+		private volatile long mSequence;
+
+		private volatile long mConsumedCount;
+		private volatile long mMaxLag;
+		private volatile long mBatchCount;
+
+		Consumer(WaitStrategy waitStrategy) {
+			mWaitStrategy = waitStrategy;
+		}
+
+		/**
+		 * Handles every event available, waiting up to the timeout for the first one.
+		 * @return the number of events handled.
+		 */
+		public int process(@NonNull EventHandler handler, long timeout, TimeUnit unit) throws InterruptedException {
+			final long next = mSequence + 1;
+			final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+			final long cursor = mWaitStrategy.waitFor(next, TagEventRing.this, deadlineNanos);
+			if (cursor < next) {
+				return 0;
+			}
+			long available = highestPublished(next, cursor);
+			while (available < next) {
+				// claimed, but the producer is still copying the card in: yield in case it was
+				// preempted in between
+				if (System.nanoTime() - deadlineNanos >= 0) {
+					return 0;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				Thread.yield();
+				available = highestPublished(next, cursor);
+			}
+
+			final long lag = available - mSequence;
+			if (lag > mMaxLag) {
+				mMaxLag = lag;
+			}
+			for (long sequence = next; sequence <= available; sequence++) {
+				handler.onEvent(mSlots[(int) sequence & mMask], sequence, sequence == available);
+			}
+			// releases the slots to the producer
+			mSequence = available;
+			mConsumedCount += available - next + 1;
+			mBatchCount++;
+			return (int) (available - next + 1);
+		}
+
+		/**
+		 * @return the number of claimed events this consumer has yet to handle.
+		 */
+		public long getLag() {
+			return mCursor - mSequence;
+		}
+
+		/**
+		 * @return the largest backlog any batch started with.
+		 */
+		public long getMaxLag() {
+			return mMaxLag;
+		}
+
+		public long getConsumedCount() {
+			return mConsumedCount;
+		}
+
+		/**
+		 * @return the number of {@link #process} calls that handled events; consumed count over
+		 * batch count is the mean batch size.
+		 */
+		public long getBatchCount() {
+			return mBatchCount;
+		}
+
+		/**
+		 * Stops following the ring, so this consumer no longer holds the producer back.
+		 */
+		public void close() {
+			removeConsumer(this);
+		}
+	}
+
+	private static final Consumer[] NO_CONSUMERS = new Consumer[0];
+
+	private static final AtomicLongFieldUpdater<TagEventRing> CURSOR =
+			AtomicLongFieldUpdater.newUpdater(TagEventRing.class, "mCursor");
+	private static final AtomicLongFieldUpdater<TagEventRing> PUBLISHED_COUNT =
+			AtomicLongFieldUpdater.newUpdater(TagEventRing.class, "mPublishedCount");
+	private static final AtomicLongFieldUpdater<TagEventRing> DROPPED_COUNT =
+			AtomicLongFieldUpdater.newUpdater(TagEventRing.class, "mDroppedCount");
+
+	private final TagEvent[] mSlots;
+	private final int mMask;
+	private final int mIndexShift;
+
+	// last sequence claimed by a producer
+	private volatile long mCursor = -1;
+
+	// per slot, the round (sequence / capacity) it was last published for
+	private final AtomicIntegerArray mPublishedRounds;
+
+	// shared by the producers: a stale value only costs a rescan of the consumers
+	private volatile long mCachedGatingSequence = -1;
+
+	private volatile Consumer[] mConsumers = NO_CONSUMERS;
+	private volatile WaitStrategy[] mSignalledStrategies = new WaitStrategy[0];
+
+	// metrics, written by the producers
+	private volatile long mPublishedCount;
+	private volatile long mDroppedCount;
+
+	/**
+	 * @param capacity the number of slots, a power of 2.
+	 */
+	public TagEventRing(int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of 2");
+		}
+		mSlots = new TagEvent[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mSlots[i] = new TagEvent();
+		}
+		mMask = capacity - 1;
+		mIndexShift = Integer.numberOfTrailingZeros(capacity);
+		mPublishedRounds = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			mPublishedRounds.set(i, -1);
+		}
+	}
+
+	public int getCapacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * Adds a consumer, which starts with the next event published.
+	 */
+	public synchronized Consumer newConsumer(@NonNull WaitStrategy waitStrategy) {
+		final Consumer consumer = new Consumer(waitStrategy);
+		// so the producer doesn't see it gating at 0
+		consumer.mSequence = mCursor;
+
+		final Consumer[] consumers = mConsumers;
+		final Consumer[] added = new Consumer[consumers.length + 1];
+		System.arraycopy(consumers, 0, added, 0, consumers.length);
+		added[consumers.length] = consumer;
+		mConsumers = added;
+		// the producer may have published more while the array was swapped, gating on the other
+		// consumers only, so this one starts after those events
+		consumer.mSequence = mCursor;
+		updateSignalledStrategies();
+		return consumer;
+	}
+
+	private synchronized void removeConsumer(Consumer consumer) {
+		final Consumer[] consumers = mConsumers;
+		for (int i = 0; i < consumers.length; i++) {
+			if (consumers[i] == consumer) {
+				final Consumer[] removed = new Consumer[consumers.length - 1];
+				System.arraycopy(consumers, 0, removed, 0, i);
+				System.arraycopy(consumers, i + 1, removed, i, consumers.length - i - 1);
+				mConsumers = removed;
+				updateSignalledStrategies();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Keeps the distinct wait strategies that need a signal, so the producer doesn't go through
+	 * every consumer after each publication.
+	 */
+	private void updateSignalledStrategies() {
+		final Consumer[] consumers = mConsumers;
+		final WaitStrategy[] strategies = new WaitStrategy[consumers.length];
+		int count = 0;
+		for (Consumer consumer : consumers) {
+			final WaitStrategy strategy = consumer.mWaitStrategy;
+			if (!(strategy instanceof BlockingWaitStrategy)) {
+				continue;
+			}
+			boolean seen = false;
+			for (int i = 0; i < count; i++) {
+				seen |= strategies[i] == strategy;
+			}
+			if (!seen) {
+				strategies[count++] = strategy;
+			}
+		}
+		final WaitStrategy[] signalled = new WaitStrategy[count];
+		System.arraycopy(strategies, 0, signalled, 0, count);
+		mSignalledStrategies = signalled;
+	}
+
+	/**
+	 * Publishes an event, copying the card into the next slot. Never waits on consumers, and
+	 * only retries a claim when another thread publishes at the same time.
+	 * @param eventNanos {@link System#nanoTime()} when the event happened.
+	 * @param payload a reference handed to consumers as is; the slot keeps it until it is
+	 * reused.
+	 * @return {@code false} if the slowest consumer is a whole ring behind and the event was
+	 * dropped.
+	 */
+	public boolean publish(int type, int reader, @NonNull Iso14443aCard card, long eventNanos,
+			@Nullable Object payload) {
+		long current;
+		long sequence;
+		do {
+			current = mCursor;
+			sequence = current + 1;
+			final long wrapPoint = sequence - mSlots.length;
+			if (wrapPoint > mCachedGatingSequence) {
+				final long gatingSequence = minimumConsumerSequence(current);
+				mCachedGatingSequence = gatingSequence;
+				if (wrapPoint > gatingSequence) {
+					DROPPED_COUNT.incrementAndGet(this);
+					return false;
+				}
+			}
+		} while (!CURSOR.compareAndSet(this, current, sequence));
+
+		final int index = (int) sequence & mMask;
+		final TagEvent slot = mSlots[index];
+		slot.set(type, reader, card, eventNanos, payload);
+		slot.mPublishNanos = System.nanoTime();
+		// the volatile write makes the slot visible to consumers that see the round
+		mPublishedRounds.set(index, (int) (sequence >>> mIndexShift));
+		PUBLISHED_COUNT.incrementAndGet(this);
+
+		for (WaitStrategy strategy : mSignalledStrategies) {
+			strategy.signalAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the last sequence up to which every slot from {@code from} to {@code cursor} is
+	 * published, {@code from - 1} if the first one isn't yet.
+	 */
+	private long highestPublished(long from, long cursor) {
+		for (long sequence = from; sequence <= cursor; sequence++) {
+			if (mPublishedRounds.get((int) sequence & mMask) != (int) (sequence >>> mIndexShift)) {
+				return sequence - 1;
+			}
+		}
+		return cursor;
+	}
+
+	private long minimumConsumerSequence(long defaultSequence) {
+		long minimum = defaultSequence;
+		for (Consumer consumer : mConsumers) {
+			final long sequence = consumer.mSequence;
+			if (sequence < minimum) {
+				minimum = sequence;
+			}
+		}
+		return minimum;
+	}
+
+	@Override
+	public void onTagArrived(int reader, @NonNull Iso14443aCard card) {
+		publish(TagEvent.Type.ARRIVED, reader, card, System.nanoTime(), null);
+	}
+
+	@Override
+	public void onTagDeparted(int reader, @NonNull Iso14443aCard card) {
+		publish(TagEvent.Type.DEPARTED, reader, card, System.nanoTime(), null);
+	}
+
+	/**
+	 * @return the sequence of the last event claimed, {@code -1} if there was none. Events
+	 * before it may still be being written.
+	 */
+	public long getCursor() {
+		return mCursor;
+	}
+
+	public long getPublishedCount() {
+		return mPublishedCount;
+	}
+
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+}
@@ -0,0 +1,475 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a detect/activate loop for ISO14443A cards on a dedicated thread and reports cards as they
+ * arrive in and depart from the field.<p/>
+ * The poll interval adapts to what is happening: right after a card arrives or departs the field
+ * is polled at the fast interval, since another change is likely to follow (the next item at a
+ * checkout lane). While a card is present it is checked at the present interval, and an empty
+ * field is polled less and less often, up to the idle interval, which bounds detection latency.
+ * <p/>
+ * One card is tracked at a time; with several in the field, the one anticollision settles on is
+ * reported.<p/>
+ * The service owns the device while it runs: it brings the chip up with an {@link InitProfile}
+ * when it starts, and nothing else may use the device until {@link #stop()} returns. The self
+ * test is left out of startup; {@link #setHealthCheckInterval(long)} runs it between polls
+ * instead. {@link #setLinkTraining(boolean)} trains the SPI link on the polling thread before
+ * the first poll.
+ */
+public class TagPollingService {
+
+	/**
+	 * The card passed to a listener belongs to the polling thread and is reused for later polls:
+	 * it is only valid during the call, and a listener that keeps it must copy it.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the polling thread when a card enters the field.
+		 */
+		void onTagArrived(@NonNull Iso14443aCard card);
+
+		/**
+		 * Called on the polling thread when the card last reported by
+		 * {@link #onTagArrived(Iso14443aCard)} leaves the field.
+		 */
+		void onTagDeparted(@NonNull Iso14443aCard card);
+	}
+
+	/**
+	 * Consecutive missed polls before a present card is reported as departed, so a single
+	 * corrupted exchange doesn't produce a departure and re-arrival.
+	 */
+	private static final int DEPARTURE_MISSES = 2;
+
+	/**
+	 * Departures taken from the presence cache per poll; any more wait for the next poll.
+	 */
+	private static final int MAX_DEPARTURES_PER_POLL = 8;
+
+	private final Pn512NfcDevice mDevice;
+	private final Iso14443aReader mReader;
+	private final String mThreadName;
+	private final InitProfile mInitProfile = InitProfile.iso14443aReader();
+	// copied on write, so notifying doesn't allocate an iterator
+	private volatile Listener[] mListeners = new Listener[0];
+
+	private volatile long mFastIntervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private volatile long mPresentIntervalNanos = TimeUnit.MILLISECONDS.toNanos(50);
+	private volatile long mIdleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(80);
+	private volatile long mBurstNanos = TimeUnit.MILLISECONDS.toNanos(500);
+	private volatile long mHealthCheckIntervalNanos;
+
+	private Thread mThread;
+	private volatile boolean mRunning;
+	private boolean mLinkTraining;
+	@Nullable
+	private volatile SpiLinkTrainer.Result mLinkTrainingResult;
+	@Nullable
+	private UidPresenceCache mPresenceCache;
+
+	// owned by the polling thread
+	private final Iso14443aCard mPolledCard = new Iso14443aCard();
+	private final Iso14443aCard mPresentCard = new Iso14443aCard();
+	private final Iso14443aCard[] mDepartedCards = new Iso14443aCard[MAX_DEPARTURES_PER_POLL];
+	private boolean mCardPresent;
+	private int mMissCount;
+	private long mLastChangeNanos;
+	private long mEmptyIntervalNanos;
+	private long mLastEmptyPollNanos;
+	private long mLastHealthCheckNanos;
+
+	// metrics, written by the polling thread only
+	private volatile long mStartNanos;
+	private volatile long mPollCount;
+	private volatile long mReadCount;
+	private volatile long mErrorCount;
+	private volatile long mHealthCheckCount;
+	private volatile long mHealthCheckFailureCount;
+	private volatile long mDetectionCount;
+	private volatile long mTotalDetectionLatencyNanos;
+	private volatile long mMaxDetectionLatencyNanos;
+	private volatile long mCurrentIntervalNanos;
+
+	public TagPollingService(@NonNull Pn512NfcDevice device) {
+		this(device, "TagPollingThread");
+	}
+
+	public TagPollingService(@NonNull Pn512NfcDevice device, @NonNull String threadName) {
+		mDevice = device;
+		mReader = new Iso14443aReader(device);
+		mThreadName = threadName;
+		for (int i = 0; i < MAX_DEPARTURES_PER_POLL; i++) {
+			mDepartedCards[i] = new Iso14443aCard();
+		}
+	}
+
+	public synchronized void addListener(@NonNull Listener listener) {
+		final Listener[] listeners = mListeners;
+		final Listener[] added = new Listener[listeners.length + 1];
+		System.arraycopy(listeners, 0, added, 0, listeners.length);
+		added[listeners.length] = listener;
+		mListeners = added;
+	}
+
+	public synchronized void removeListener(@NonNull Listener listener) {
+		final Listener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				final Listener[] removed = new Listener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+				mListeners = removed;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param fastMs interval right after a card arrives or departs.
+	 * @param presentMs interval while a card is present.
+	 * @param idleMs longest interval while the field is empty.
+	 * @param burstMs how long the fast interval is kept up after a change.
+	 */
+	public void setIntervals(long fastMs, long presentMs, long idleMs, long burstMs) {
+		if (fastMs <= 0 || presentMs < fastMs || idleMs < fastMs || burstMs < 0) {
+			throw new IllegalArgumentException("intervals must be positive and at least the fast interval");
+		}
+		mFastIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fastMs);
+		mPresentIntervalNanos = TimeUnit.MILLISECONDS.toNanos(presentMs);
+		mIdleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+		mBurstNanos = TimeUnit.MILLISECONDS.toNanos(burstMs);
+	}
+
+	/**
+	 * Runs the chip's self test every {@code intervalMs} between polls, re-initializing it
+	 * afterwards. The first one runs an interval after startup, so it doesn't delay the first
+	 * poll. {@code 0}, the default, turns health checks off.
+	 */
+	public void setHealthCheckInterval(long intervalMs) {
+		if (intervalMs < 0) {
+			throw new IllegalArgumentException("interval must not be negative");
+		}
+		mHealthCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+	}
+
+	/**
+	 * Runs {@link SpiLinkTrainer} on the polling thread when the service starts, until it has
+	 * succeeded once, so the first poll is delayed rather than the caller. Must be called while
+	 * the service is stopped.
+	 */
+	public synchronized void setLinkTraining(boolean enabled) {
+		if (mThread != null) {
+			throw new IllegalStateException("service is running");
+		}
+		mLinkTraining = enabled;
+	}
+
+	/**
+	 * @return the outcome of link training, or {@code null} if it hasn't completed.
+	 */
+	@Nullable
+	public SpiLinkTrainer.Result getLinkTrainingResult() {
+		return mLinkTrainingResult;
+	}
+
+	/**
+	 * Filters the events through {@code cache}: a card is reported when the cache sees it arrive
+	 * (or re-reports it), and departs once it has gone unseen for the cache's time to live, rather
+	 * than after a couple of missed polls. A card that flickers in and out of the field is then
+	 * reported once. Must be called while the service is stopped; {@code null}, the default,
+	 * reports every change.
+	 */
+	public synchronized void setPresenceCache(@Nullable UidPresenceCache cache) {
+		if (mThread != null) {
+			throw new IllegalStateException("service is running");
+		}
+		mPresenceCache = cache;
+	}
+
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(mPollLoop, mThreadName);
+		mThread.start();
+	}
+
+	/**
+	 * Stops polling and waits for the polling thread to finish. A card still present is not
+	 * reported as departed.
+	 */
+	public synchronized void stop() {
+		if (mThread == null) {
+			return;
+		}
+		mRunning = false;
+		mThread.interrupt();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	public long getPollCount() {
+		return mPollCount;
+	}
+
+	/**
+	 * @return the number of polls that found a card.
+	 */
+	public long getReadCount() {
+		return mReadCount;
+	}
+
+	public long getErrorCount() {
+		return mErrorCount;
+	}
+
+	public long getHealthCheckCount() {
+		return mHealthCheckCount;
+	}
+
+	/**
+	 * @return the number of health checks whose self test failed.
+	 */
+	public long getHealthCheckFailureCount() {
+		return mHealthCheckFailureCount;
+	}
+
+	/**
+	 * @return polls per second since the service was started.
+	 */
+	public double getPollRate() {
+		long elapsedNanos = System.nanoTime() - mStartNanos;
+		return elapsedNanos <= 0 ? 0 : mPollCount * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return the interval currently used between polls.
+	 */
+	public long getCurrentIntervalMs() {
+		return TimeUnit.NANOSECONDS.toMillis(mCurrentIntervalNanos);
+	}
+
+	/**
+	 * Detection latency is measured from the start of the last poll that found the field empty
+	 * to the moment the arrival is reported: an upper bound on how long the card was in the field
+	 * before it was noticed.
+	 * @return the mean detection latency in nanoseconds, or {@code 0} before the first arrival.
+	 */
+	public long getMeanDetectionLatencyNanos() {
+		long count = mDetectionCount;
+		return count == 0 ? 0 : mTotalDetectionLatencyNanos / count;
+	}
+
+	public long getMaxDetectionLatencyNanos() {
+		return mMaxDetectionLatencyNanos;
+	}
+
+	private final Runnable mPollLoop = new Runnable() {
+		@Override
+		public void run() {
+			if (mLinkTraining && mLinkTrainingResult == null) {
+				try {
+					mLinkTrainingResult = new SpiLinkTrainer(mDevice).train();
+				} catch (IOException e) {
+					e.printStackTrace();
+					mErrorCount++;
+				}
+			}
+
+			mStartNanos = System.nanoTime();
+			mLastChangeNanos = mStartNanos;
+			mLastEmptyPollNanos = mStartNanos;
+			mLastHealthCheckNanos = mStartNanos;
+			mEmptyIntervalNanos = mFastIntervalNanos;
+
+			try {
+				mDevice.initialize(mInitProfile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mErrorCount++;
+			}
+
+			while (mRunning) {
+				long pollStartNanos = System.nanoTime();
+				try {
+					long healthCheckIntervalNanos = mHealthCheckIntervalNanos;
+					if (healthCheckIntervalNanos > 0
+							&& pollStartNanos - mLastHealthCheckNanos >= healthCheckIntervalNanos) {
+						mLastHealthCheckNanos = pollStartNanos;
+						healthCheck();
+					}
+					poll(pollStartNanos);
+				} catch (IOException e) {
+					e.printStackTrace();
+					mErrorCount++;
+				}
+				mPollCount++;
+
+				long intervalNanos = nextInterval(System.nanoTime());
+				mCurrentIntervalNanos = intervalNanos;
+				long sleepNanos = pollStartNanos + intervalNanos - System.nanoTime();
+				if (sleepNanos > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepNanos);
+					} catch (InterruptedException e) {
+						// stop() interrupts to end the sleep early
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Runs the self test, which resets the chip, and brings it back up. A card in the field loses
+	 * its state with the field, but is found again by the next poll without a new arrival.
+	 */
+	private void healthCheck() throws IOException {
+		mHealthCheckCount++;
+		if (!mDevice.selfTest()) {
+			mHealthCheckFailureCount++;
+		}
+		mDevice.initialize(mInitProfile);
+	}
+
+	/**
+	 * One detect/activate round. Runs on the polling thread, or on a test's thread while the
+	 * service is stopped.
+	 */
+	void poll(long pollStartNanos) throws IOException {
+		final UidPresenceCache cache = mPresenceCache;
+		if (cache != null) {
+			final int departedCount = cache.collectDepartures(pollStartNanos, mDepartedCards);
+			for (int i = 0; i < departedCount; i++) {
+				notifyDeparted(mDepartedCards[i]);
+			}
+		}
+
+		final Iso14443aCard card = mPolledCard;
+		final boolean found = mReader.activate(card);
+
+		if (found) {
+			// halted cards still answer WUPA, so the next poll finds the card again
+			mReader.halt();
+			mReadCount++;
+			mMissCount = 0;
+
+			final boolean report = cache == null || cache.onSeen(card, pollStartNanos);
+			if (mCardPresent && !sameUid(card, mPresentCard)) {
+				onDeparted();
+			}
+			if (!mCardPresent) {
+				onArrived(card, report);
+			} else if (cache != null && report) {
+				notifyArrived(card);
+			}
+		} else {
+			if (mCardPresent && ++mMissCount >= DEPARTURE_MISSES) {
+				onDeparted();
+			}
+			if (!mCardPresent) {
+				mLastEmptyPollNanos = pollStartNanos;
+			}
+		}
+	}
+
+	private void onArrived(Iso14443aCard card, boolean report) {
+		final long now = System.nanoTime();
+		mPresentCard.copyFrom(card);
+		mCardPresent = true;
+		mLastChangeNanos = now;
+		if (!report) {
+			// back within the presence cache's time to live
+			return;
+		}
+
+		final long latency = now - mLastEmptyPollNanos;
+		mDetectionCount++;
+		mTotalDetectionLatencyNanos += latency;
+		if (latency > mMaxDetectionLatencyNanos) {
+			mMaxDetectionLatencyNanos = latency;
+		}
+		notifyArrived(card);
+	}
+
+	private void onDeparted() {
+		final long now = System.nanoTime();
+		mCardPresent = false;
+		mMissCount = 0;
+		mLastChangeNanos = now;
+		mLastEmptyPollNanos = now;
+		mEmptyIntervalNanos = mFastIntervalNanos;
+
+		if (mPresenceCache == null) {
+			notifyDeparted(mPresentCard);
+		}
+	}
+
+	private void notifyArrived(Iso14443aCard card) {
+		for (Listener listener : mListeners) {
+			listener.onTagArrived(card);
+		}
+	}
+
+	private void notifyDeparted(Iso14443aCard card) {
+		for (Listener listener : mListeners) {
+			listener.onTagDeparted(card);
+		}
+	}
+
+	private long nextInterval(long now) {
+		if (mCardPresent && mMissCount > 0) {
+			// confirm a suspected departure straight away
+			return mFastIntervalNanos;
+		}
+		if (now - mLastChangeNanos < mBurstNanos) {
+			return mFastIntervalNanos;
+		}
+		if (mCardPresent) {
+			return mPresentIntervalNanos;
+		}
+		// back off while the field stays empty
+		mEmptyIntervalNanos = Math.min(mEmptyIntervalNanos * 2, mIdleIntervalNanos);
+		return mEmptyIntervalNanos;
+	}
+
+	private static boolean sameUid(Iso14443aCard a, Iso14443aCard b) {
+		if (a.mUidLength != b.mUidLength) {
+			return false;
+		}
+		for (int i = 0; i < a.mUidLength; i++) {
+			if (a.mUid[i] != b.mUid[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outcome of a {@link Pn512NfcDevice} transceive: the received bytes as they came out of the
+ * FIFO, plus the status and error flags. Instances are meant to be reused from call to call.
+ */
+public class TransceiveResult {
+
+	public interface Status {
+		int OK = 0;
+		int TIMEOUT = 1;
+		int COLLISION = 2;
+		int ERROR = 3;
+	}
+
+	final byte[] mData;
+	int mLength;
+	int mLastBits;
+	int mStatus;
+	byte mErrorFlags;
+	int mCollisionPosition;
+
+	/**
+	 * Creates a result that holds a response up to the size of the FIFO.
+	 */
+	public TransceiveResult() {
+		this(Pn512NfcDevice.Values.FIFO_SIZE);
+	}
+
+	/**
+	 * @param capacity the longest response to accept, in bytes. A longer response is reported as
+	 * {@link Status#ERROR} with the BufferOvfl flag set.
+	 */
+	public TransceiveResult(int capacity) {
+		mData = new byte[capacity];
+	}
+
+	public int getStatus() {
+		return mStatus;
+	}
+
+	public boolean isOk() {
+		return mStatus == Status.OK;
+	}
+
+	/**
+	 * @return the received data. Only the first {@link #getLength()} bytes are valid.
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public byte getByte(int index) {
+		return mData[index];
+	}
+
+	/**
+	 * Copies the received data into {@code dest} at its position, advancing it.
+	 */
+	public void copyData(ByteBuffer dest) {
+		dest.put(mData, 0, mLength);
+	}
+
+	public int getCapacity() {
+		return mData.length;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return the number of valid bits in the last received byte, counting any RxAlign offset;
+	 * {@code 8} when the byte is complete.
+	 */
+	public int getLastBits() {
+		return mLastBits;
+	}
+
+	/**
+	 * @return the ErrorReg value read after reception.
+	 */
+	public byte getErrorFlags() {
+		return mErrorFlags;
+	}
+
+	/**
+	 * @return for {@link Status#COLLISION}, the 1-based position of the first collided bit in the
+	 * received data, counting any RxAlign offset, or {@code -1} if the chip could not report it.
+	 */
+	public int getCollisionPosition() {
+		return mCollisionPosition;
+	}
+
+	void reset(int status) {
+		mStatus = status;
+		mLength = 0;
+		mLastBits = 0;
+		mErrorFlags = 0;
+		mCollisionPosition = -1;
+	}
+
+}
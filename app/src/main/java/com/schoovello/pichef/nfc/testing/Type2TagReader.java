@@ -0,0 +1,334 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Reads NFC Forum Type 2 tags: NTAG21x and MIFARE Ultralight.<p/>
+ * Activation identifies the chip with GET_VERSION, which gives its memory size. Chips that
+ * answer it also have FAST_READ, which returns any range of pages in one response; a long
+ * response is streamed through the FIFO by {@link Pn512NfcDevice#transceive}, so a whole
+ * NTAG216 comes in a single exchange instead of 58 READs. Older chips fall silent on
+ * GET_VERSION; they are activated again and read 4 pages at a time with READ, their size taken
+ * from the capability container.<p/>
+ * A streamed response overflows the FIFO if the host doesn't drain it in time. The tag is still
+ * selected after sending it, so the range is asked for again in halves, and the lower page count
+ * is kept from then on, down to what fits in the FIFO.<p/>
+ * Not thread safe; like the device, it should be used from one background thread.
+ */
+public class Type2TagReader {
+
+	public static final int PAGE_SIZE = 4;
+
+	/**
+	 * The most pages one FAST_READ asks for: all of an NTAG216.
+	 */
+	public static final int MAX_PAGES_PER_READ = 256;
+
+	/**
+	 * Pages per FAST_READ whose response still fits in the FIFO.
+	 */
+	public static final int FIFO_PAGES = Pn512NfcDevice.Values.FIFO_SIZE / PAGE_SIZE;
+
+	public interface Vendor {
+		byte NXP = 0x04;
+	}
+
+	public interface ProductType {
+		byte ULTRALIGHT = 0x03;
+		byte NTAG = 0x04;
+	}
+
+	private static final int VERSION_LENGTH = 8;
+	private static final int READ_PAGES = 4;
+	private static final int CC_PAGE = 3;
+	private static final byte CC_MAGIC = (byte) 0xe1;
+
+	/**
+	 * MIFARE Ultralight, the smallest Type 2 tag.
+	 */
+	private static final int MIN_PAGE_COUNT = 16;
+
+	private final Pn512NfcDevice mDevice;
+	private final Iso14443aReader mReader;
+	private final TransceiveResult mResult = new TransceiveResult();
+	private final TransceiveResult mStreamResult = new TransceiveResult(MAX_PAGES_PER_READ * PAGE_SIZE);
+	private final byte[] mFrame = new byte[3];
+	private final byte[] mVersion = new byte[VERSION_LENGTH];
+	private final byte[] mCapabilities = new byte[PAGE_SIZE];
+
+	private int mMaxPagesPerRead = MAX_PAGES_PER_READ;
+
+	private boolean mActive;
+	private boolean mHasVersion;
+	private boolean mFastRead;
+	private int mPageCount;
+
+	private long mExchangeCount;
+	private long mOverflowCount;
+
+	public Type2TagReader(@NonNull Pn512NfcDevice device) {
+		mDevice = device;
+		mReader = new Iso14443aReader(device);
+	}
+
+	/**
+	 * Caps the pages asked for in one FAST_READ, e.g. at {@link #FIFO_PAGES} to keep responses
+	 * from streaming at all. Defaults to {@link #MAX_PAGES_PER_READ}, and is lowered on FIFO
+	 * overflows.
+	 */
+	public void setMaxPagesPerRead(int pages) {
+		if (pages < 1 || pages > MAX_PAGES_PER_READ) {
+			throw new IllegalArgumentException("pages per read must be between 1 and " + MAX_PAGES_PER_READ);
+		}
+		mMaxPagesPerRead = pages;
+	}
+
+	/**
+	 * Activates a tag in the field and identifies it.
+	 * @return {@code false} if no tag answered, or it dropped out while being identified.
+	 */
+	public boolean activate(@NonNull Iso14443aCard card) throws IOException {
+		mActive = mReader.activate(card);
+		mHasVersion = false;
+		mFastRead = false;
+		mPageCount = 0;
+		if (!mActive) {
+			return false;
+		}
+
+		if (getVersion()) {
+			mHasVersion = true;
+			mFastRead = mVersion[1] == Vendor.NXP
+					&& (mVersion[2] == ProductType.NTAG || mVersion[2] == ProductType.ULTRALIGHT);
+			mPageCount = pageCountForStorageSize(mVersion[6]);
+		} else {
+			// an unknown command sends the tag back to IDLE
+			final long uidKey = card.getUidKey();
+			mActive = mReader.activate(card) && card.getUidKey() == uidKey;
+			if (!mActive) {
+				return false;
+			}
+		}
+
+		if (mPageCount == 0) {
+			final int pages = mFastRead
+					? fastRead(CC_PAGE, 1, mCapabilities, 0)
+					: read(CC_PAGE, 1, mCapabilities, 0);
+			if (pages < 0) {
+				mActive = false;
+				return false;
+			}
+			// the data area size is in units of 8 bytes
+			mPageCount = mCapabilities[0] == CC_MAGIC
+					? Math.max(MIN_PAGE_COUNT, CC_PAGE + 1 + (mCapabilities[2] & 0xff) * 2)
+					: MIN_PAGE_COUNT;
+		}
+		return true;
+	}
+
+	public void halt() throws IOException {
+		if (mActive) {
+			mReader.halt();
+			mActive = false;
+		}
+	}
+
+	/**
+	 * @return the number of pages of the activated tag, as far as they can be read.
+	 */
+	public int getPageCount() {
+		return mPageCount;
+	}
+
+	public boolean isFastReadSupported() {
+		return mFastRead;
+	}
+
+	/**
+	 * Copies the GET_VERSION response of the activated tag: header, vendor, product type and
+	 * subtype, major and minor version, storage size and protocol type.
+	 * @return {@code false}, leaving {@code dest} untouched, if the tag didn't answer GET_VERSION.
+	 */
+	public boolean copyVersion(byte[] dest, int offset) {
+		if (mHasVersion) {
+			System.arraycopy(mVersion, 0, dest, offset, VERSION_LENGTH);
+		}
+		return mHasVersion;
+	}
+
+	public int getMaxPagesPerRead() {
+		return mMaxPagesPerRead;
+	}
+
+	/**
+	 * @return the number of frames exchanged with tags to read pages.
+	 */
+	public long getExchangeCount() {
+		return mExchangeCount;
+	}
+
+	/**
+	 * @return the number of FAST_READ responses lost to a FIFO overflow.
+	 */
+	public long getOverflowCount() {
+		return mOverflowCount;
+	}
+
+	/**
+	 * Reads the whole activated tag into {@code dest}, which must hold
+	 * {@link #getPageCount()} pages.
+	 * @return the number of bytes read, or {@code -1} if the tag stopped answering.
+	 */
+	public int readTag(byte[] dest, int offset) throws IOException {
+		return readPages(0, mPageCount, dest, offset) ? mPageCount * PAGE_SIZE : -1;
+	}
+
+	/**
+	 * Reads the NDEF message of the activated tag into {@code dest}, which must hold
+	 * {@link #getPageCount()} pages, feeding it to {@code parser} as it arrives. Reading stops at
+	 * the end of the NDEF TLV rather than the end of the tag. The first four pages are not read,
+	 * so the parser's offsets are offsets into the tag's memory.
+	 * @return the parser's {@link NdefParser.Status status}; {@link NdefParser.Status#NEED_MORE}
+	 * if the message runs past the end of the tag. {@code -1} if the tag stopped answering.
+	 */
+	public int readNdef(@NonNull NdefParser parser, byte[] dest) throws IOException {
+		parser.reset(NdefParser.TYPE_2_TLV_OFFSET);
+		final int end = mPageCount * PAGE_SIZE;
+		int filled = NdefParser.TYPE_2_TLV_OFFSET;
+		while (parser.parse(dest, filled) == NdefParser.Status.NEED_MORE && filled < end) {
+			// Until the NDEF TLV turns up, read ahead as much as fits in the FIFO: a short
+			// message is then read in one go.
+			int target = parser.getBytesNeeded();
+			if (parser.getMessageOffset() < 0) {
+				target = Math.max(target, filled + FIFO_PAGES * PAGE_SIZE);
+			}
+			target = Math.min(target, end);
+			final int page = filled / PAGE_SIZE;
+			final int pages = (target + PAGE_SIZE - 1) / PAGE_SIZE - page;
+			if (!readPages(page, pages, dest, page * PAGE_SIZE)) {
+				return -1;
+			}
+			filled = (page + pages) * PAGE_SIZE;
+		}
+		return parser.getStatus();
+	}
+
+	/**
+	 * Reads {@code pageCount} pages from {@code startPage} on into {@code dest}.
+	 * @return {@code false} if the tag NAKed or stopped answering; it is then back in IDLE and
+	 * has to be activated again.
+	 */
+	public boolean readPages(int startPage, int pageCount, byte[] dest, int offset) throws IOException {
+		if (!mActive) {
+			throw new IllegalStateException("no tag activated");
+		}
+		if (startPage < 0 || pageCount < 0 || startPage + pageCount > mPageCount) {
+			throw new IllegalArgumentException("pages out of range: " + startPage + "+" + pageCount);
+		}
+
+		int page = startPage;
+		final int end = startPage + pageCount;
+		while (page < end) {
+			final int pages = mFastRead
+					? fastRead(page, Math.min(end - page, mMaxPagesPerRead), dest, offset)
+					: read(page, end - page, dest, offset);
+			if (pages < 0) {
+				mActive = false;
+				return false;
+			}
+			page += pages;
+			offset += pages * PAGE_SIZE;
+		}
+		return true;
+	}
+
+	private boolean getVersion() throws IOException {
+		mFrame[0] = MiFareDevice.Command.GET_VERSION;
+		final TransceiveResult result = mDevice.transceive(mFrame, 0, 1, true, mResult);
+		if (!result.isOk() || result.getLength() != VERSION_LENGTH) {
+			return false;
+		}
+		System.arraycopy(result.getData(), 0, mVersion, 0, VERSION_LENGTH);
+		return true;
+	}
+
+	/**
+	 * @return the number of pages read, {@code 0} if they should be asked for again in smaller
+	 * pieces, or {@code -1}.
+	 */
+	private int fastRead(int page, int pages, byte[] dest, int offset) throws IOException {
+		mFrame[0] = MiFareDevice.Command.FAST_READ;
+		mFrame[1] = (byte) page;
+		mFrame[2] = (byte) (page + pages - 1);
+		// a response that fits in the FIFO needn't pay for streaming
+		final TransceiveResult result = mDevice.transceive(mFrame, 0, 3, true,
+				pages <= FIFO_PAGES ? mResult : mStreamResult);
+		mExchangeCount++;
+		if (pages > FIFO_PAGES && result.getStatus() == TransceiveResult.Status.ERROR
+				&& (result.getErrorFlags() & Pn512NfcDevice.Values.ERROR_BUFFER_OVFL) != 0) {
+			mOverflowCount++;
+			mMaxPagesPerRead = Math.max(FIFO_PAGES, pages / 2);
+			return 0;
+		}
+		if (!result.isOk() || result.getLength() != pages * PAGE_SIZE) {
+			return -1;
+		}
+		System.arraycopy(result.getData(), 0, dest, offset, pages * PAGE_SIZE);
+		return pages;
+	}
+
+	/**
+	 * READ always returns 4 pages, wrapping around at the end of memory; only the ones asked for
+	 * are kept.
+	 * @return the number of pages read, or {@code -1}.
+	 */
+	private int read(int page, int pages, byte[] dest, int offset) throws IOException {
+		mFrame[0] = MiFareDevice.Command.READ;
+		mFrame[1] = (byte) page;
+		final TransceiveResult result = mDevice.transceive(mFrame, 0, 2, true, mResult);
+		mExchangeCount++;
+		if (!result.isOk() || result.getLength() != READ_PAGES * PAGE_SIZE) {
+			return -1;
+		}
+		final int kept = Math.min(pages, READ_PAGES);
+		System.arraycopy(result.getData(), 0, dest, offset, kept * PAGE_SIZE);
+		return kept;
+	}
+
+	/**
+	 * @return the total pages of the NTAG21x or Ultralight EV1 with this GET_VERSION storage
+	 * size, or {@code 0} if it isn't one of them.
+	 */
+	private static int pageCountForStorageSize(byte storageSize) {
+		switch (storageSize) {
+			case 0x0b: // NTAG210, MF0UL11
+				return 20;
+			case 0x0e: // NTAG212, MF0UL21
+				return 41;
+			case 0x0f: // NTAG213
+				return 45;
+			case 0x11: // NTAG215
+				return 135;
+			case 0x13: // NTAG216
+				return 231;
+			default:
+				return 0;
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+	Copyright 2018 Jonathan O. Schooler
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+		http://www.apache.org/licenses/LICENSE-2.0
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns a stream of card sightings into arrivals and departures. A card is present from the
+ * first time it is seen until it has gone unseen for the time to live; seeing it again within
+ * that time is not a new arrival, so a card that drops out of the field for a poll or two is
+ * reported once.<p/>
+ * Cards are keyed by {@link Iso14443aCard#getUidKey()} in an open-addressing table, and the
+ * entries form a list ordered by when they were last seen, so departures are found from the
+ * front of the list without scanning. Everything is allocated up front: a full cache evicts the
+ * card seen longest ago, which is counted but not reported as a departure.<p/>
+ * Not thread safe; the polling thread owns it. Times are {@link System#nanoTime()} values and
+ * must not go backwards.
+ */
+public class UidPresenceCache {
+
+	private static final int NONE = -1;
+
+	private final int mMaxEntries;
+	private final long mTtlNanos;
+	private final long mReReportNanos;
+
+	// hash table of entry index + 1, 0 for an empty slot
+	private final int[] mTable;
+	private final int mTableShift;
+
+	// entries
+	private final long[] mKeys;
+	private final long[] mLastSeenNanos;
+	private final long[] mReportedNanos;
+	private final Iso14443aCard[] mCards;
+	private final int[] mPrev;
+	private final int[] mNext;
+
+	// least recently seen first; free entries are chained through mNext
+	private int mOldest = NONE;
+	private int mNewest = NONE;
+	private int mFree;
+	private int mSize;
+	private long mEvictionCount;
+
+	/**
+	 * @param maxEntries the most cards tracked at once.
+	 * @param ttlMs how long a card may go unseen before it departs.
+	 * @param reReportMs how often a card that stays present is reported as arriving again, or
+	 * {@code 0} to report it only once.
+	 */
+	public UidPresenceCache(int maxEntries, long ttlMs, long reReportMs) {
+		if (maxEntries <= 0 || maxEntries > 1 << 28) {
+			throw new IllegalArgumentException("maxEntries out of range: " + maxEntries);
+		}
+		if (ttlMs <= 0 || reReportMs < 0) {
+			throw new IllegalArgumentException("ttl must be positive and reReport not negative");
+		}
+		mMaxEntries = maxEntries;
+		mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		mReReportNanos = TimeUnit.MILLISECONDS.toNanos(reReportMs);
+
+		// at most half full, so probe sequences stay short
+		final int tableSize = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+		mTable = new int[tableSize];
+		mTableShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+
+		mKeys = new long[maxEntries];
+		mLastSeenNanos = new long[maxEntries];
+		mReportedNanos = new long[maxEntries];
+		mCards = new Iso14443aCard[maxEntries];
+		mPrev = new int[maxEntries];
+		mNext = new int[maxEntries];
+		for (int i = 0; i < maxEntries; i++) {
+			mCards[i] = new Iso14443aCard();
+		}
+		clear();
+	}
+
+	/**
+	 * Records a sighting of {@code card}. Call {@link #collectDepartures(long, Iso14443aCard[])}
+	 * first with the same time, so a card that departed is not taken as still present.
+	 * @return {@code true} if the sighting should be reported as an arrival: the card is new, or
+	 * it has been present for the re-report interval since it was last reported.
+	 */
+	public boolean onSeen(@NonNull Iso14443aCard card, long nowNanos) {
+		final long key = card.getUidKey();
+		int entry = find(key);
+		if (entry != NONE) {
+			mLastSeenNanos[entry] = nowNanos;
+			unlink(entry);
+			link(entry);
+			if (mReReportNanos > 0 && nowNanos - mReportedNanos[entry] >= mReReportNanos) {
+				mReportedNanos[entry] = nowNanos;
+				return true;
+			}
+			return false;
+		}
+
+		if (mSize == mMaxEntries) {
+			mEvictionCount++;
+			remove(mOldest);
+		}
+		entry = mFree;
+		mFree = mNext[entry];
+		mKeys[entry] = key;
+		mLastSeenNanos[entry] = nowNanos;
+		mReportedNanos[entry] = nowNanos;
+		mCards[entry].copyFrom(card);
+		insert(key, entry);
+		link(entry);
+		mSize++;
+		return true;
+	}
+
+	/**
+	 * Removes the cards that have gone unseen for the time to live, least recently seen first.
+	 * @param departed filled with the departed cards; cards that don't fit stay in the cache for
+	 * the next call.
+	 * @return the number of cards copied to {@code departed}.
+	 */
+	public int collectDepartures(long nowNanos, @NonNull Iso14443aCard[] departed) {
+		int count = 0;
+		while (count < departed.length && mOldest != NONE
+				&& nowNanos - mLastSeenNanos[mOldest] >= mTtlNanos) {
+			departed[count++].copyFrom(mCards[mOldest]);
+			remove(mOldest);
+		}
+		return count;
+	}
+
+	/**
+	 * @return whether a card with this {@link Iso14443aCard#getUidKey() key} is present.
+	 */
+	public boolean contains(long uidKey) {
+		return find(uidKey) != NONE;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getMaxEntries() {
+		return mMaxEntries;
+	}
+
+	/**
+	 * @return the number of cards dropped to make room while they were still present.
+	 */
+	public long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * Forgets every card without reporting departures.
+	 */
+	public void clear() {
+		for (int i = 0; i < mTable.length; i++) {
+			mTable[i] = 0;
+		}
+		for (int i = 0; i < mMaxEntries; i++) {
+			mNext[i] = i + 1 < mMaxEntries ? i + 1 : NONE;
+		}
+		mFree = 0;
+		mOldest = NONE;
+		mNewest = NONE;
+		mSize = 0;
+	}
+
+	private int home(long key) {
+		// Fibonacci hashing: UID bytes are far from uniform, the multiply spreads them
+		return (int) ((key * 0x9e3779b97f4a7c15L) >>> mTableShift);
+	}
+
+	private int find(long key) {
+		final int mask = mTable.length - 1;
+		for (int slot = home(key); mTable[slot] != 0; slot = (slot + 1) & mask) {
+			final int entry = mTable[slot] - 1;
+			if (mKeys[entry] == key) {
+				return entry;
+			}
+		}
+		return NONE;
+	}
+
+	private void insert(long key, int entry) {
+		final int mask = mTable.length - 1;
+		int slot = home(key);
+		while (mTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mTable[slot] = entry + 1;
+	}
+
+	private void remove(int entry) {
+		final int[] table = mTable;
+		final int mask = table.length - 1;
+		int slot = home(mKeys[entry]);
+		while (table[slot] != entry + 1) {
+			slot = (slot + 1) & mask;
+		}
+
+		// shift later members of the probe run back into the hole, so lookups need no tombstones
+		int hole = slot;
+		table[hole] = 0;
+		for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			final int nextHome = home(mKeys[table[next] - 1]);
+			// the entry can fill the hole unless its home lies cyclically in (hole, next]
+			final boolean homeAfterHole = hole <= next
+					? hole < nextHome && nextHome <= next
+					: hole < nextHome || nextHome <= next;
+			if (!homeAfterHole) {
+				table[hole] = table[next];
+				table[next] = 0;
+				hole = next;
+			}
+		}
+
+		unlink(entry);
+		mNext[entry] = mFree;
+		mFree = entry;
+		mSize--;
+	}
+
+	private void link(int entry) {
+		mPrev[entry] = mNewest;
+		mNext[entry] = NONE;
+		if (mNewest != NONE) {
+			mNext[mNewest] = entry;
+		} else {
+			mOldest = entry;
+		}
+		mNewest = entry;
+	}
+
+	private void unlink(int entry) {
+		final int prev = mPrev[entry];
+		final int next = mNext[entry];
+		if (prev != NONE) {
+			mNext[prev] = next;
+		} else {
+			mOldest = next;
+		}
+		if (next != NONE) {
+			mPrev[next] = prev;
+		} else {
+			mNewest = prev;
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncNfcDeviceTest {
+
+	private static final byte[] PAYLOAD = { 0x30, 0x04, 0x10, 0x20 };
+
+	private Pn512Simulator mSimulator;
+	private GatedPort mGate;
+	private AsyncNfcDevice mAsyncDevice;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mSimulator.addTag(new EchoTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 }));
+		mGate = new GatedPort(mSimulator);
+		Pn512NfcDevice device = new Pn512NfcDevice(mGate);
+		device.setIrqLine(mSimulator.getIrqLine());
+		mAsyncDevice = new AsyncNfcDevice(device, 1);
+	}
+
+	@After
+	public void tearDown() {
+		mGate.open();
+		mAsyncDevice.close();
+		mSimulator.close();
+	}
+
+	@Test
+	public void testCommands() throws Exception {
+		assertTrue(mAsyncDevice.activate(new Iso14443aCard()).get(1, TimeUnit.SECONDS));
+
+		TransceiveResult result = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length, true,
+				new TransceiveResult()).get(1, TimeUnit.SECONDS);
+		assertTrue(result.isOk());
+		assertArrayEquals(PAYLOAD, Arrays.copyOf(result.getData(), result.getLength()));
+
+		assertEquals(Crc16.CRC_A.compute(PAYLOAD, 0, PAYLOAD.length),
+				(int) mAsyncDevice.calculateCrcOnChip(Crc16.CRC_A, PAYLOAD, 0, PAYLOAD.length).get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSubmitBlocksWhileQueueFull() throws Exception {
+		mGate.hold();
+		CompletableFuture<RegisterBatch> running = mAsyncDevice.execute(readCommandReg());
+		mGate.awaitWaiter();
+		CompletableFuture<RegisterBatch> queued = mAsyncDevice.execute(readCommandReg());
+
+		final CompletableFuture<?>[] blocked = new CompletableFuture<?>[1];
+		Thread submitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					blocked[0] = mAsyncDevice.execute(readCommandReg());
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		submitter.start();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (submitter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.WAITING, submitter.getState());
+		assertEquals(1, mAsyncDevice.getQueuedCount());
+
+		mGate.open();
+		submitter.join(1000);
+		running.get(1, TimeUnit.SECONDS);
+		queued.get(1, TimeUnit.SECONDS);
+		blocked[0].get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testCancelQueued() throws Exception {
+		mGate.hold();
+		CompletableFuture<RegisterBatch> running = mAsyncDevice.execute(readCommandReg());
+		mGate.awaitWaiter();
+		CompletableFuture<RegisterBatch> queued = mAsyncDevice.execute(readCommandReg());
+
+		assertTrue(queued.cancel(true));
+		assertEquals(0, mAsyncDevice.getQueuedCount());
+
+		mGate.open();
+		running.get(1, TimeUnit.SECONDS);
+		assertTrue(queued.isCancelled());
+	}
+
+	@Test
+	public void testCancelRunningIdlesChip() throws Exception {
+		assertTrue(mAsyncDevice.activate(new Iso14443aCard()).get(1, TimeUnit.SECONDS));
+
+		mGate.hold();
+		CompletableFuture<TransceiveResult> running = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length,
+				true, new TransceiveResult());
+		mGate.awaitWaiter();
+		assertTrue(running.cancel(true));
+		// the command still owns its buffers until it returns
+		assertFalse(running.isDone());
+		mGate.open();
+
+		try {
+			running.get(1, TimeUnit.SECONDS);
+			throw new AssertionError("expected CancellationException");
+		} catch (CancellationException expected) {
+			// the future reports the cancellation, not the abort
+		}
+
+		RegisterBatch batch = mAsyncDevice.execute(readCommandReg()).get(1, TimeUnit.SECONDS);
+		assertEquals(Pn512NfcDevice.Command.IDLE, (byte) (batch.getResult(0) & Pn512NfcDevice.Command._COMMAND_MASK));
+
+		// the abort doesn't carry over
+		TransceiveResult result = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length, true,
+				new TransceiveResult()).get(1, TimeUnit.SECONDS);
+		assertTrue(result.isOk());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		mGate.hold();
+		CompletableFuture<RegisterBatch> running = mAsyncDevice.execute(readCommandReg());
+		mGate.awaitWaiter();
+		CompletableFuture<RegisterBatch> queued = mAsyncDevice.execute(readCommandReg());
+
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				mAsyncDevice.close();
+			}
+		});
+		closer.start();
+		// close() waits for the running command, which can't finish until the gate opens
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (closer.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue(queued.isCancelled());
+		assertFalse(running.isDone());
+		mGate.open();
+		closer.join(1000);
+
+		assertTrue(queued.isCancelled());
+		assertTrue(running.isCancelled());
+		try {
+			mAsyncDevice.selfTest();
+			throw new AssertionError("expected IllegalStateException");
+		} catch (IllegalStateException expected) {
+			// closed
+		}
+	}
+
+	private RegisterBatch readCommandReg() {
+		RegisterBatch batch = mAsyncDevice.getDevice().newRegisterBatch();
+		batch.readRegister(Pn512NfcDevice.RegisterAddress.COMMAND_REG);
+		return batch;
+	}
+
+	/**
+	 * Holds every transfer while closed, so a command can be caught in the middle.
+	 */
+	private static class GatedPort implements SpiPort {
+		private final SpiPort mPort;
+		private boolean mHeld;
+		private int mWaiting;
+
+		GatedPort(SpiPort port) {
+			mPort = port;
+		}
+
+		synchronized void hold() {
+			mHeld = true;
+		}
+
+		synchronized void open() {
+			mHeld = false;
+			notifyAll();
+		}
+
+		synchronized void awaitWaiter() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 1000;
+			while (mWaiting == 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new AssertionError("no transfer arrived at the gate");
+				}
+				wait(remaining);
+			}
+		}
+
+		private synchronized void pass() {
+			mWaiting++;
+			notifyAll();
+			while (mHeld) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// hold on until opened
+				}
+			}
+			mWaiting--;
+		}
+
+		@Override
+		public void setFrequency(int frequencyHz) throws IOException {
+			mPort.setFrequency(frequencyHz);
+		}
+
+		@Override
+		public void write(byte[] buffer, int length) throws IOException {
+			pass();
+			mPort.write(buffer, length);
+		}
+
+		@Override
+		public void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+			pass();
+			mPort.transfer(txBuffer, rxBuffer, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			mPort.close();
+		}
+	}
+
+}
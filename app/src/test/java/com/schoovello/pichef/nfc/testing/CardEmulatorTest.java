@@ -0,0 +1,244 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CardEmulatorTest {
+
+	private static final byte[] NFCID1 = { 0x12, 0x34, 0x56 };
+	private static final byte[] UID = { 0x08, 0x12, 0x34, 0x56 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private CardEmulator mEmulator;
+	private final byte[] mMemory = new byte[16 * 4];
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		for (int i = 0; i < mMemory.length; i++) {
+			mMemory[i] = (byte) (0xa0 + i);
+		}
+		mEmulator = CardEmulator.type2Tag(mDevice, NFCID1, mMemory);
+		mEmulator.start();
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void testReaderReadsEmulatedTag() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		for (int page = 0; page < 16; page += 4) {
+			reader.read(page);
+		}
+		reader.send(withCrc(MiFareDevice.Command.HLTA, 0x00));
+		serve(reader);
+
+		// ATQA, UID CL1 + BCC and SAK come from AUTOCOLL, without the host
+		assertArrayEquals(Pn512NfcDevice.ConstantData.ULTRALIGHT_ATQA, reader.getResponse(0));
+		assertArrayEquals(new byte[] { 0x08, 0x12, 0x34, 0x56, (byte) (0x08 ^ 0x12 ^ 0x34 ^ 0x56) },
+				reader.getResponse(1));
+		assertEquals(0x00, reader.getResponse(2)[0]);
+		for (int i = 0; i < 4; i++) {
+			byte[] response = reader.getResponse(3 + i);
+			assertEquals(18, response.length);
+			assertTrue(Pn512Simulator.checkCrcA(response, 18));
+			assertArrayEquals(Arrays.copyOfRange(mMemory, i * 16, i * 16 + 16), Arrays.copyOf(response, 16));
+		}
+		// HLTA has no answer
+		assertNull(reader.getResponse(7));
+		assertEquals(1, mSimulator.getReaderTimeoutCount());
+
+		assertEquals(5, mEmulator.getFramesServed());
+		assertEquals(1, mEmulator.getHaltCount());
+		assertEquals(0, mEmulator.getUnknownCommandCount());
+		assertEquals(5, mEmulator.getTurnaroundLatencies().getCount());
+	}
+
+	@Test
+	public void testTurnaroundWithinFrameWaitingTime() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		for (int i = 0; i < 20; i++) {
+			reader.read(i % 16);
+		}
+		serve(reader);
+
+		assertEquals(0, mSimulator.getReaderTimeoutCount());
+		for (int i = 3; i < 23; i++) {
+			long turnaround = reader.getTurnaround(i);
+			assertTrue("took " + turnaround, turnaround > 0 && turnaround < 2_000_000);
+		}
+	}
+
+	@Test
+	public void testReadWrapsAround() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		reader.read(14);
+		serve(reader);
+
+		byte[] expected = new byte[16];
+		System.arraycopy(mMemory, 56, expected, 0, 8);
+		System.arraycopy(mMemory, 0, expected, 8, 8);
+		assertArrayEquals(expected, Arrays.copyOf(reader.getResponse(3), 16));
+	}
+
+	@Test
+	public void testUnknownCommandGetsNak() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		// GET_VERSION, and READ past the end of memory
+		reader.send(withCrc(0x60));
+		reader.send(withCrc(MiFareDevice.Command.READ, 16));
+		reader.read(1);
+		serve(reader);
+
+		for (int i = 3; i < 5; i++) {
+			assertEquals(4, reader.getResponseBits(i));
+			assertEquals(0x0, reader.getResponse(i)[0]);
+		}
+		assertEquals(144, reader.getResponseBits(5));
+		assertEquals(2, mEmulator.getUnknownCommandCount());
+	}
+
+	@Test
+	public void testWakeUpAfterHalt() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		reader.send(withCrc(MiFareDevice.Command.HLTA, 0x00));
+		reader.activate();
+		reader.read(4);
+		serve(reader);
+
+		assertNull(reader.getResponse(3));
+		assertEquals(0x00, reader.getResponse(6)[0]);
+		assertArrayEquals(Arrays.copyOfRange(mMemory, 16, 32), Arrays.copyOf(reader.getResponse(7), 16));
+		assertEquals(1, mEmulator.getHaltCount());
+	}
+
+	@Test
+	public void testFieldLossStartsOver() throws Exception {
+		ScriptedReader reader = new ScriptedReader();
+		reader.activate();
+		reader.read(0);
+		serve(reader);
+		assertEquals(1, mEmulator.getFieldLossCount());
+
+		// the next reader finds the card listening again
+		reader = new ScriptedReader();
+		reader.activate();
+		reader.read(8);
+		serve(reader);
+		assertArrayEquals(Arrays.copyOfRange(mMemory, 32, 48), Arrays.copyOf(reader.getResponse(3), 16));
+		assertEquals(2, mEmulator.getFieldLossCount());
+	}
+
+	/**
+	 * Serves the reader's commands until it switches its field off.
+	 */
+	private void serve(ScriptedReader reader) throws Exception {
+		mSimulator.setExternalReader(reader);
+		for (int i = 0; i < 100 && !reader.isDone(); i++) {
+			mEmulator.serve(100);
+		}
+		assertTrue(reader.isDone());
+		// notice that the field is gone
+		assertFalse(mEmulator.serve(10));
+	}
+
+	private static byte[] withCrc(int... command) {
+		byte[] frame = new byte[command.length + 2];
+		for (int i = 0; i < command.length; i++) {
+			frame[i] = (byte) command[i];
+		}
+		Pn512Simulator.appendCrcA(frame, command.length);
+		return frame;
+	}
+
+	/**
+	 * Sends a fixed list of commands, one after each response or timeout, and keeps what came
+	 * back.
+	 */
+	private static class ScriptedReader implements VirtualReader {
+
+		private final List<byte[]> mCommands = new ArrayList<>();
+		private final List<Integer> mCommandBits = new ArrayList<>();
+		private final List<byte[]> mResponses = new ArrayList<>();
+		private final List<Integer> mResponseBits = new ArrayList<>();
+		private final List<Long> mTurnarounds = new ArrayList<>();
+		private int mNext;
+		private boolean mDone;
+
+		void send(byte[] frame) {
+			sendBits(frame, frame.length * 8);
+		}
+
+		void sendBits(byte[] frame, int bits) {
+			mCommands.add(frame);
+			mCommandBits.add(bits);
+		}
+
+		void activate() {
+			sendBits(new byte[] { MiFareDevice.Command.WUPA }, 7);
+			send(new byte[] { (byte) 0x93, 0x20 });
+			send(withCrc(0x93, 0x70, UID[0], UID[1], UID[2], UID[3], UID[0] ^ UID[1] ^ UID[2] ^ UID[3]));
+		}
+
+		void read(int page) {
+			send(withCrc(MiFareDevice.Command.READ, page));
+		}
+
+		byte[] getResponse(int command) {
+			return mResponses.get(command);
+		}
+
+		int getResponseBits(int command) {
+			return mResponseBits.get(command);
+		}
+
+		long getTurnaround(int command) {
+			return mTurnarounds.get(command);
+		}
+
+		boolean isDone() {
+			return mDone;
+		}
+
+		@Override
+		public int nextCommand(byte[] response, int responseBits, long turnaroundNanos, byte[] command) {
+			if (mNext > 0) {
+				mResponses.add(response == null ? null : Arrays.copyOf(response, (responseBits + 7) / 8));
+				mResponseBits.add(responseBits);
+				mTurnarounds.add(turnaroundNanos);
+			}
+			if (mNext == mCommands.size()) {
+				mDone = true;
+				return 0;
+			}
+			byte[] frame = mCommands.get(mNext);
+			System.arraycopy(frame, 0, command, 0, frame.length);
+			return mCommandBits.get(mNext++);
+		}
+
+	}
+
+}
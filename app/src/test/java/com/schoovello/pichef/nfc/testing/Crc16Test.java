@@ -0,0 +1,88 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Crc16Test {
+
+	private static final byte[] CHECK = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+	@Test
+	public void testCheckValues() {
+		assertEquals(0xbf05, Crc16.CRC_A.compute(CHECK, 0, CHECK.length));
+		assertEquals(0x906e, Crc16.CRC_B.compute(CHECK, 0, CHECK.length));
+		assertEquals(0x2189, Crc16.KERMIT.compute(CHECK, 0, CHECK.length));
+
+		byte[] hello = "Hello, world!".getBytes(Charset.forName("US-ASCII"));
+		assertEquals(0xd15e, Crc16.KERMIT.compute(hello, 0, hello.length));
+	}
+
+	@Test
+	public void testAppendAndVerify() {
+		byte[] hlta = new byte[4];
+		hlta[0] = 0x50;
+		assertEquals(4, Crc16.CRC_A.append(hlta, 2));
+		assertEquals((byte) 0x57, hlta[2]);
+		assertEquals((byte) 0xcd, hlta[3]);
+		assertTrue(Crc16.CRC_A.verify(hlta, 0, 4));
+
+		hlta[1] = 0x01;
+		assertFalse(Crc16.CRC_A.verify(hlta, 0, 4));
+		assertFalse(Crc16.CRC_A.verify(hlta, 0, 1));
+	}
+
+	@Test
+	public void testMatchesBitwiseAtEveryLengthAndOffset() {
+		byte[] data = new byte[300];
+		new Random(42).nextBytes(data);
+
+		for (int offset = 0; offset < 4; offset++) {
+			for (int length = 0; length <= 64; length++) {
+				assertEquals(Pn512Simulator.crcA(data, offset, length), Crc16.CRC_A.compute(data, offset, length));
+			}
+		}
+		assertEquals(Pn512Simulator.crcA(data, 3, 297), Crc16.CRC_A.compute(data, 3, 297));
+	}
+
+	@Test
+	public void testCrossCheckWithCoprocessor() throws Exception {
+		Pn512NfcDevice device = new Pn512NfcDevice(new Pn512Simulator(new SimulatorTiming()));
+		device.softReset();
+
+		byte[] data = new byte[150];
+		new Random(7).nextBytes(data);
+
+		assertTrue(device.crossCheckCrc(Crc16.CRC_A, data, 0, data.length));
+		assertTrue(device.crossCheckCrc(Crc16.CRC_B, data, 5, 17));
+		assertTrue(device.crossCheckCrc(Crc16.KERMIT, data, 1, 64));
+		assertTrue(device.testCrc());
+	}
+
+	@Test
+	public void testCoprocessorSlowerThanSpi() throws Exception {
+		// a byte takes longer to process than to write, so longer inputs have to wait for room
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.crcByteNanos = 100_000;
+		Pn512NfcDevice device = new Pn512NfcDevice(new Pn512Simulator(timing));
+		device.softReset();
+
+		byte[] data = new byte[300];
+		new Random(11).nextBytes(data);
+
+		assertTrue(device.crossCheckCrc(Crc16.CRC_A, data, 0, data.length));
+		assertTrue(device.crossCheckCrc(Crc16.CRC_B, data, 3, 129));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCoprocessorRejectsUnsupportedPreset() throws Exception {
+		Pn512NfcDevice device = new Pn512NfcDevice(new Pn512Simulator(new SimulatorTiming()));
+		device.calculateCrcOnChip(new Crc16(0x1234, 0), CHECK, 0, CHECK.length);
+	}
+
+}
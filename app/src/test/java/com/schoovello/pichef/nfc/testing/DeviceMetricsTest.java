@@ -0,0 +1,105 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeviceMetricsTest {
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private DeviceMetrics mMetrics;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 1, 2, 3, 4 }, new byte[] { 0x44, 0x00 }, (byte) 0x00));
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		mMetrics = mDevice.getMetrics();
+	}
+
+	@Test
+	public void testSpiCounters() throws Exception {
+		long transfersBefore = mSimulator.getTransferCount();
+		long bytesBefore = mSimulator.getBytesTransferred();
+		DeviceMetrics.Snapshot before = mMetrics.snapshot();
+
+		assertTrue(mDevice.tryActivateMiFare());
+
+		DeviceMetrics.Snapshot after = mMetrics.snapshot();
+		long transfers = mSimulator.getTransferCount() - transfersBefore;
+		long bytes = mSimulator.getBytesTransferred() - bytesBefore;
+		assertEquals(transfers, after.getSpiTransfers() - before.getSpiTransfers());
+		assertEquals(bytes, after.getSpiBytes() - before.getSpiBytes());
+		assertEquals(1, after.getLatency(DeviceMetrics.Operation.ACTIVATION).getCount());
+		assertEquals(transfers, after.getOperationSpiTransfers(DeviceMetrics.Operation.ACTIVATION));
+		assertEquals(bytes, after.getOperationSpiBytes(DeviceMetrics.Operation.ACTIVATION));
+	}
+
+	@Test
+	public void testOperations() throws Exception {
+		Iso14443aReader reader = new Iso14443aReader(mDevice);
+		assertTrue(reader.activate(new Iso14443aCard()));
+		reader.halt();
+		assertTrue(mDevice.testCrc());
+		assertTrue(mDevice.selfTest());
+
+		DeviceMetrics.Snapshot snapshot = mMetrics.snapshot();
+		assertEquals(1, snapshot.getLatency(DeviceMetrics.Operation.ACTIVATION).getCount());
+		// WUPA, anticollision and SELECT
+		assertEquals(3, snapshot.getLatency(DeviceMetrics.Operation.TRANSCEIVE).getCount());
+		assertEquals(1, snapshot.getLatency(DeviceMetrics.Operation.TRANSMIT).getCount());
+		assertEquals(1, snapshot.getLatency(DeviceMetrics.Operation.CRC).getCount());
+		assertEquals(1, snapshot.getLatency(DeviceMetrics.Operation.SELF_TEST).getCount());
+		assertTrue(snapshot.getMeanSpiTransfers(DeviceMetrics.Operation.TRANSCEIVE) > 0);
+		assertTrue(snapshot.getIrqWaits() + snapshot.getPollIterations() > 0);
+		assertEquals(0, snapshot.getTimeouts());
+	}
+
+	@Test
+	public void testTimeoutCounted() throws Exception {
+		mSimulator.removeAllTags();
+
+		assertFalse(new Iso14443aReader(mDevice).activate(new Iso14443aCard()));
+
+		assertEquals(1, mMetrics.snapshot().getTimeouts());
+	}
+
+	@Test
+	public void testCommandTimeoutCounted() throws Exception {
+		// CommandReg never reads back idle, so the self test gives up on its command and throws
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.maxSpiFrequencyHz = 1_000_000;
+		timing.garbledRegister = Pn512NfcDevice.RegisterAddress.COMMAND_REG;
+		mDevice = new Pn512NfcDevice(new Pn512Simulator(timing));
+		mDevice.setSpiFrequency(2_000_000);
+
+		try {
+			mDevice.selfTest();
+			fail("self test didn't time out");
+		} catch (IOException expected) {
+		}
+		assertEquals(1, mDevice.getMetrics().snapshot().getTimeouts());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		long transfersBefore = mMetrics.snapshot().getSpiTransfers();
+		mMetrics.setEnabled(false);
+
+		assertTrue(mDevice.tryActivateMiFare());
+
+		DeviceMetrics.Snapshot snapshot = mMetrics.snapshot();
+		assertEquals(transfersBefore, snapshot.getSpiTransfers());
+		assertEquals(0, snapshot.getLatency(DeviceMetrics.Operation.ACTIVATION).getCount());
+	}
+
+}
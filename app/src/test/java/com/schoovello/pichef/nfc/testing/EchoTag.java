@@ -0,0 +1,32 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Card that sends every frame it receives while selected straight back, CRC and all.
+ */
+public class EchoTag extends Iso14443aTag {
+
+	private int mLastFrameLength;
+
+	public EchoTag(byte[] uid) {
+		super(uid, new byte[] { (byte) 0x44, (byte) 0x00 }, (byte) 0x00);
+	}
+
+	/**
+	 * @return the length of the last frame echoed, not counting its CRC.
+	 */
+	public int getLastFrameLength() {
+		return mLastFrameLength;
+	}
+
+	@Override
+	protected int onActiveFrame(byte[] frame, int frameBits, byte[] response) {
+		int length = frameBits / 8;
+		if (frameBits % 8 != 0 || !Pn512Simulator.checkCrcA(frame, length)) {
+			return 0;
+		}
+		mLastFrameLength = length - 2;
+		System.arraycopy(frame, 0, response, 0, length);
+		return frameBits;
+	}
+
+}
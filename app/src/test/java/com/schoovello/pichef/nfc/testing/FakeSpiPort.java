@@ -0,0 +1,72 @@
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal register-file {@link SpiPort} that records every frame it receives. Reads return the
+ * last value written to a register; the FIFO is not modelled.
+ */
+public class FakeSpiPort implements SpiPort {
+
+	public final byte[] registers = new byte[64];
+	public final List<byte[]> frames = new ArrayList<>();
+
+	public int writeCount;
+	public int transferCount;
+
+	@Override
+	public void setFrequency(int frequencyHz) {
+	}
+
+	public final int[] readCounts = new int[64];
+
+	@Override
+	public synchronized void write(byte[] buffer, int length) {
+		writeCount++;
+		frames.add(Arrays.copyOf(buffer, length));
+
+		int address = (buffer[0] >> 1) & 0b0011_1111;
+		for (int i = 1; i < length; i++) {
+			registers[address] = buffer[i];
+			onRegisterWritten(address, buffer[i]);
+		}
+	}
+
+	@Override
+	public synchronized void transfer(byte[] txBuffer, byte[] rxBuffer, int length) {
+		transferCount++;
+		frames.add(Arrays.copyOf(txBuffer, length));
+
+		rxBuffer[0] = 0;
+		for (int i = 0; i < length - 1; i++) {
+			int address = (txBuffer[i] >> 1) & 0b0011_1111;
+			readCounts[address]++;
+			rxBuffer[i + 1] = registers[address];
+		}
+	}
+
+	/**
+	 * Hook for subclasses that model chip behaviour. Called with the port's lock held.
+	 */
+	protected void onRegisterWritten(int address, byte value) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	public synchronized byte getRegister(int address) {
+		return registers[address];
+	}
+
+	public synchronized void setRegister(int address, byte value) {
+		registers[address] = value;
+	}
+
+	public synchronized int getFrameCount() {
+		return writeCount + transferCount;
+	}
+
+}
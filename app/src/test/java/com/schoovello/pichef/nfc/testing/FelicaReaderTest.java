@@ -0,0 +1,218 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FelicaReaderTest {
+
+	private static final byte[] IDM = { 0x01, 0x2e, 0x4c, (byte) 0xd1, 0x1a, 0x0b, 0x77, 0x15 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private FelicaReader mReader;
+	private final FelicaCard[] mCards = new FelicaCard[FelicaReader.MAX_TIME_SLOTS];
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.felicaReader(Pn512NfcDevice.BitRate.KBPS_212));
+		mReader = new FelicaReader(mDevice);
+		for (int i = 0; i < mCards.length; i++) {
+			mCards[i] = new FelicaCard();
+		}
+	}
+
+	@Test
+	public void testPollOneCard() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+		assertArrayEquals(IDM, mCards[0].getIdm());
+		assertArrayEquals(new byte[] { 0x00, (byte) 0xf1, 0x00, 0x00, 0x00, 0x01, 0x43, 0x00 }, mCards[0].getPmm());
+		assertFalse(mCards[0].hasRequestData());
+		assertEquals(0x012e4cd11a0b7715L, mCards[0].getIdmKey());
+		assertEquals(Pn512NfcDevice.DEFAULT_RESPONSE_TIMEOUT_US, mDevice.getResponseTimeout());
+	}
+
+	@Test
+	public void testPollRequestData() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.SYSTEM_CODE, 1, mCards));
+		assertEquals(0x88b4, mCards[0].getRequestData());
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.COMMUNICATION_PERFORMANCE, 1, mCards));
+		assertEquals(0x0083, mCards[0].getRequestData());
+	}
+
+	@Test
+	public void testSystemCodeFilter() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+		mSimulator.addTag(FelicaTag.standard(idm(2), 0x0003));
+
+		assertEquals(1, mReader.poll(0x88b4, FelicaReader.RequestCode.NONE, 16, mCards));
+		assertArrayEquals(IDM, mCards[0].getIdm());
+		// FFh matches any upper byte
+		assertEquals(1, mReader.poll(0xff03, FelicaReader.RequestCode.NONE, 16, mCards));
+		assertArrayEquals(idm(2), mCards[0].getIdm());
+	}
+
+	@Test
+	public void testAllCardsAnswerOnePoll() throws Exception {
+		final int cardCount = 6;
+		for (int i = 0; i < cardCount; i++) {
+			mSimulator.addTag(FelicaTag.standard(idm(i), 0x0003));
+		}
+
+		// one exchange per poll, however many cards answer it
+		Set<Long> seen = new HashSet<>();
+		int polls = 0;
+		int totalFound = 0;
+		int firstPollFound = -1;
+		while (seen.size() < cardCount && polls < 10) {
+			long frames = mSimulator.getFramesTransmitted();
+			int found = mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 16, mCards);
+			assertEquals(1, mSimulator.getFramesTransmitted() - frames);
+			if (firstPollFound < 0) {
+				firstPollFound = found;
+			}
+			for (int i = 0; i < found; i++) {
+				seen.add(mCards[i].getIdmKey());
+			}
+			totalFound += found;
+			polls++;
+		}
+		assertEquals(cardCount, seen.size());
+		assertTrue("found " + firstPollFound, firstPollFound >= cardCount - 2);
+		// every card missed was garbled by at least one other
+		assertTrue(totalFound + 2 * mReader.getCollisionCount() <= polls * cardCount);
+	}
+
+	@Test
+	public void testOneSlotCollides() throws Exception {
+		mSimulator.addTag(FelicaTag.standard(idm(1), 0x0003));
+		mSimulator.addTag(FelicaTag.standard(idm(2), 0x0003));
+
+		assertEquals(0, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+		assertEquals(1, mReader.getCollisionCount());
+	}
+
+	@Test
+	public void testPollingWindow() throws Exception {
+		long start = mSimulator.getElapsedNanos();
+		assertEquals(0, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 16, mCards));
+		long elapsed = mSimulator.getElapsedNanos() - start;
+
+		// the request, then every slot, and little more than the SPI traffic
+		assertTrue("took " + elapsed, elapsed >= 2_417_000 + 16 * 1_208_000);
+		assertTrue("took " + elapsed, elapsed < 2_417_000 + 16 * 1_208_000 + 3_000_000);
+
+		start = mSimulator.getElapsedNanos();
+		mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards);
+		elapsed = mSimulator.getElapsedNanos() - start;
+		assertTrue("took " + elapsed, elapsed < 2_417_000 + 1_208_000 + 3_000_000);
+	}
+
+	@Test
+	public void testIsoATagsDontAnswer() throws Exception {
+		mSimulator.addTag(Type2Tag.ntag213(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 }));
+
+		assertEquals(0, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 4, mCards));
+		assertEquals(0, mReader.getCollisionCount());
+	}
+
+	@Test
+	public void testReadSeveralBlocksPerCommand() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+
+		byte[] data = new byte[14 * FelicaReader.BLOCK_SIZE];
+		assertEquals(14, mReader.readWithoutEncryption(mCards[0], 0x000b, 0, 14, data, 0));
+		assertArrayEquals(pattern(0, 14), data);
+		// 4 + 4 + 4 + 2
+		assertEquals(4, mReader.getReadCommandCount());
+		assertEquals(0, mReader.getLastStatusFlags());
+	}
+
+	@Test
+	public void testBlockCountLoweredToCardLimit() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+		mReader.setMaxBlocksPerRead(FelicaReader.MAX_BLOCKS_PER_READ);
+
+		byte[] data = new byte[12 * FelicaReader.BLOCK_SIZE];
+		assertEquals(12, mReader.readWithoutEncryption(mCards[0], 0x000b, 2, 12, data, 0));
+		assertArrayEquals(pattern(2, 12), data);
+		// 12 and 6 blocks are refused, 3 are fine
+		assertEquals(3, mReader.getMaxBlocksPerRead());
+		assertEquals(2 + 4, mReader.getReadCommandCount());
+	}
+
+	@Test
+	public void testLongReadAt424() throws Exception {
+		mSimulator.addTag(new FelicaTag(IDM, new byte[] { 0x01, 0x20, 0x22, 0x04, 0x27, 0x4b, 0x4e, 0x00 },
+				0x0003, 0x090f, 300, 15));
+		// 15-block responses are streamed through the FIFO
+		mDevice.setSpiFrequency(4_000_000);
+		mReader.setBitRate(Pn512NfcDevice.BitRate.KBPS_424);
+		mReader.setMaxBlocksPerRead(FelicaReader.MAX_BLOCKS_PER_READ);
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 4, mCards));
+
+		// across block 255, where the block list elements grow to three bytes
+		byte[] data = new byte[30 * FelicaReader.BLOCK_SIZE];
+		assertEquals(30, mReader.readWithoutEncryption(mCards[0], 0x090f, 240, 30, data, 0));
+		assertArrayEquals(pattern(240, 30), data);
+		assertEquals(2, mReader.getReadCommandCount());
+	}
+
+	@Test
+	public void testReadError() throws Exception {
+		mSimulator.addTag(FelicaTag.liteS(IDM));
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+
+		byte[] data = new byte[FelicaReader.BLOCK_SIZE];
+		assertEquals(-1, mReader.readWithoutEncryption(mCards[0], 0x0009, 0, 1, data, 0));
+		assertEquals(0xffa6, mReader.getLastStatusFlags());
+	}
+
+	@Test
+	public void testCardGone() throws Exception {
+		FelicaTag tag = FelicaTag.liteS(IDM);
+		mSimulator.addTag(tag);
+		assertEquals(1, mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, 1, mCards));
+		mSimulator.removeTag(tag);
+
+		byte[] data = new byte[FelicaReader.BLOCK_SIZE];
+		long start = mSimulator.getElapsedNanos();
+		assertEquals(-1, mReader.readWithoutEncryption(mCards[0], 0x000b, 0, 1, data, 0));
+		assertEquals(-1, mReader.getLastStatusFlags());
+		// the timeout comes from the PMm, 302 us * (1 block + 2), rather than the default
+		long elapsed = mSimulator.getElapsedNanos() - start;
+		assertTrue("took " + elapsed, elapsed < Pn512NfcDevice.DEFAULT_RESPONSE_TIMEOUT_US * 1_000L);
+	}
+
+	private static byte[] idm(int n) {
+		byte[] idm = Arrays.copyOf(IDM, IDM.length);
+		idm[7] = (byte) n;
+		return idm;
+	}
+
+	private static byte[] pattern(int firstBlock, int blocks) {
+		byte[] data = new byte[blocks * FelicaReader.BLOCK_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (firstBlock * FelicaReader.BLOCK_SIZE + i);
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.Random;
+
+/**
+ * FeliCa card with one system and one plain (unencrypted) service: polling, with the time slot
+ * of each response picked at random as the standard has it, and Read Without Encryption of up to
+ * a card-specific number of blocks per command. Frames are byte strings starting with their
+ * length byte and ending with the CRC, high byte first.
+ */
+public class FelicaTag implements VirtualTag {
+
+	public static final int BLOCK_SIZE = 16;
+
+	private static final byte POLLING = 0x00;
+	private static final byte READ_WITHOUT_ENCRYPTION = 0x06;
+
+	private static final byte STATUS_ERROR = (byte) 0xff;
+	private static final byte STATUS_ILLEGAL_BLOCK_COUNT = (byte) 0xa2;
+	private static final byte STATUS_ILLEGAL_BLOCK_NUMBER = (byte) 0xa8;
+	private static final byte STATUS_ILLEGAL_SERVICE = (byte) 0xa6;
+
+	private final byte[] mIdm;
+	private final byte[] mPmm;
+	private final int mSystemCode;
+	private final int mServiceCode;
+	private final int mMaxBlocksPerRead;
+	private final byte[][] mBlocks;
+	private final Random mRandom;
+
+	private int mResponseSlot = -1;
+	private int mPollCount;
+	private int mReadCount;
+
+	/**
+	 * @param pmm the PMm, whose byte 5 gives the reader the response time of a read.
+	 */
+	public FelicaTag(byte[] idm, byte[] pmm, int systemCode, int serviceCode, int blockCount,
+			int maxBlocksPerRead) {
+		if (idm.length != 8 || pmm.length != 8) {
+			throw new IllegalArgumentException("IDm and PMm are 8 bytes each");
+		}
+		mIdm = idm.clone();
+		mPmm = pmm.clone();
+		mSystemCode = systemCode;
+		mServiceCode = serviceCode;
+		mMaxBlocksPerRead = maxBlocksPerRead;
+		mBlocks = new byte[blockCount][BLOCK_SIZE];
+		for (int block = 0; block < blockCount; block++) {
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				mBlocks[block][i] = (byte) (block * BLOCK_SIZE + i);
+			}
+		}
+		long seed = 0;
+		for (byte b : idm) {
+			seed = seed << 8 | (b & 0xff);
+		}
+		// spread the IDm bits, as Random's first values hardly differ for nearby seeds
+		seed *= 0x9e3779b97f4a7c15L;
+		mRandom = new Random(seed ^ seed >>> 29);
+	}
+
+	/**
+	 * FeliCa Lite-S: system 88B4h, 14 read-only blocks in service 000Bh, 4 blocks per read.
+	 */
+	public static FelicaTag liteS(byte[] idm) {
+		return new FelicaTag(idm, new byte[] { 0x00, (byte) 0xf1, 0x00, 0x00, 0x00, 0x01, 0x43, 0x00 },
+				0x88b4, 0x000b, 14, 4);
+	}
+
+	/**
+	 * FeliCa Standard with a transit-card-like system: 64 blocks in service 090Fh, up to 15 per
+	 * read, and a slower read than a Lite-S.
+	 */
+	public static FelicaTag standard(byte[] idm, int systemCode) {
+		return new FelicaTag(idm, new byte[] { 0x01, 0x20, 0x22, 0x04, 0x27, 0x4b, 0x4e, 0x00 },
+				systemCode, 0x090f, 64, 15);
+	}
+
+	public byte[] getIdm() {
+		return mIdm.clone();
+	}
+
+	public void setBlock(int block, byte[] data) {
+		System.arraycopy(data, 0, mBlocks[block], 0, BLOCK_SIZE);
+	}
+
+	/**
+	 * @return the time slot of the last response if it answered a polling request, {@code -1}
+	 * for any other response.
+	 */
+	public int getResponseSlot() {
+		return mResponseSlot;
+	}
+
+	public int getPollCount() {
+		return mPollCount;
+	}
+
+	public int getReadCount() {
+		return mReadCount;
+	}
+
+	@Override
+	public void onFieldChanged(boolean fieldOn) {
+		mResponseSlot = -1;
+	}
+
+	@Override
+	public int onFrame(byte[] frame, int frameBits, byte[] response) {
+		mResponseSlot = -1;
+		final int length = frameBits / 8;
+		if (frameBits % 8 != 0 || length < 4 || (frame[0] & 0xff) != length - 2
+				|| !Pn512Simulator.checkCrcF(frame, length)) {
+			return 0;
+		}
+		switch (frame[1]) {
+			case POLLING:
+				return onPolling(frame, length - 2, response);
+			case READ_WITHOUT_ENCRYPTION:
+				return onRead(frame, length - 2, response);
+			default:
+				return 0;
+		}
+	}
+
+	private int onPolling(byte[] frame, int length, byte[] response) {
+		if (length != 6 || !systemCodeMatches(frame[2], frame[3])) {
+			return 0;
+		}
+		mPollCount++;
+		mResponseSlot = mRandom.nextInt((frame[5] & 0x0f) + 1);
+
+		int responseLength = 0;
+		response[responseLength++] = 0;
+		response[responseLength++] = 0x01;
+		System.arraycopy(mIdm, 0, response, responseLength, 8);
+		responseLength += 8;
+		System.arraycopy(mPmm, 0, response, responseLength, 8);
+		responseLength += 8;
+		switch (frame[4]) {
+			case 1:
+				response[responseLength++] = (byte) (mSystemCode >> 8);
+				response[responseLength++] = (byte) mSystemCode;
+				break;
+			case 2:
+				// automatic bit rate detection, 212 and 424 kbps
+				response[responseLength++] = 0x00;
+				response[responseLength++] = (byte) 0x83;
+				break;
+			default:
+				break;
+		}
+		return send(response, responseLength);
+	}
+
+	private int onRead(byte[] frame, int length, byte[] response) {
+		if (length < 16 || !idmMatches(frame, 2)) {
+			return 0;
+		}
+		mReadCount++;
+		final int serviceCount = frame[10] & 0xff;
+		int i = 11 + 2 * serviceCount;
+		if (serviceCount != 1 || i >= length) {
+			return 0;
+		}
+		final int serviceCode = (frame[11] & 0xff) | (frame[12] & 0xff) << 8;
+		final int blockCount = frame[i++] & 0xff;
+
+		int responseLength = 0;
+		response[responseLength++] = 0;
+		response[responseLength++] = 0x07;
+		System.arraycopy(mIdm, 0, response, responseLength, 8);
+		responseLength += 8;
+		final int statusOffset = responseLength;
+		response[responseLength++] = 0;
+		response[responseLength++] = 0;
+
+		if (serviceCode != mServiceCode) {
+			return sendStatus(response, statusOffset, STATUS_ILLEGAL_SERVICE);
+		}
+		if (blockCount < 1 || blockCount > mMaxBlocksPerRead) {
+			return sendStatus(response, statusOffset, STATUS_ILLEGAL_BLOCK_COUNT);
+		}
+		response[responseLength++] = (byte) blockCount;
+		for (int b = 0; b < blockCount; b++) {
+			if (i + 1 >= length) {
+				return 0;
+			}
+			final int block;
+			if ((frame[i] & 0x80) != 0) {
+				block = frame[i + 1] & 0xff;
+				i += 2;
+			} else {
+				if (i + 2 >= length) {
+					return 0;
+				}
+				block = (frame[i + 1] & 0xff) | (frame[i + 2] & 0xff) << 8;
+				i += 3;
+			}
+			if (block >= mBlocks.length) {
+				return sendStatus(response, statusOffset, STATUS_ILLEGAL_BLOCK_NUMBER);
+			}
+			System.arraycopy(mBlocks[block], 0, response, responseLength, BLOCK_SIZE);
+			responseLength += BLOCK_SIZE;
+		}
+		return send(response, responseLength);
+	}
+
+	private boolean systemCodeMatches(byte hi, byte lo) {
+		return (hi == (byte) 0xff || hi == (byte) (mSystemCode >> 8))
+				&& (lo == (byte) 0xff || lo == (byte) mSystemCode);
+	}
+
+	private boolean idmMatches(byte[] frame, int offset) {
+		for (int i = 0; i < mIdm.length; i++) {
+			if (frame[offset + i] != mIdm[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int sendStatus(byte[] response, int statusOffset, byte status2) {
+		response[statusOffset] = STATUS_ERROR;
+		response[statusOffset + 1] = status2;
+		return send(response, statusOffset + 2);
+	}
+
+	/**
+	 * Fills in the length byte and appends the CRC.
+	 */
+	private static int send(byte[] response, int length) {
+		response[0] = (byte) length;
+		return Pn512Simulator.appendCrcF(response, length) * 8;
+	}
+
+}
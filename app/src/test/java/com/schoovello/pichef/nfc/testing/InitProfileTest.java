@@ -0,0 +1,71 @@
+package com.schoovello.pichef.nfc.testing;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InitProfileTest {
+
+	private static final byte[] ATQA = { (byte) 0x04, (byte) 0x00 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 1, 2, 3, 4 }, ATQA, (byte) 0x08));
+		mDevice = new Pn512NfcDevice(mSimulator);
+	}
+
+	@Test
+	public void testReservedRegistersRejected() {
+		byte[] reserved = { RegisterAddress.COMMAND_REG, RegisterAddress.FIFO_DATA_REG,
+				RegisterAddress.COM_I_EN_REG, RegisterAddress.VERSION_REG };
+		for (byte regAddress : reserved) {
+			try {
+				new InitProfile().set(regAddress, (byte) 0);
+				throw new AssertionError("expected IllegalArgumentException for " + regAddress);
+			} catch (IllegalArgumentException expected) {
+				// the driver manages these itself
+			}
+		}
+	}
+
+	@Test
+	public void testWritesOnlyChangedRegisters() throws Exception {
+		InitProfile profile = InitProfile.iso14443aReader();
+		long transfers = mSimulator.getTransferCount();
+
+		mDevice.initialize(profile);
+
+		// the reset, then one write per register that differs from its reset value
+		assertEquals(1 + profile.getWriteCount(), mSimulator.getTransferCount() - transfers);
+		assertTrue(profile.getWriteCount() < profile.size());
+		assertEquals(Pn512NfcDevice.Values.CONTROL_INITIATOR, mSimulator.peekRegister(RegisterAddress.CONTROL_REG));
+		assertEquals((byte) 0xa9, mSimulator.peekRegister(RegisterAddress.T_PRESCALER_REG));
+		assertEquals(Pn512NfcDevice.Values.STREAMING_WATER_LEVEL, mSimulator.peekRegister(RegisterAddress.WATER_LEVEL_REG));
+	}
+
+	@Test
+	public void testFirstPollReadsNoConfiguration() throws Exception {
+		mDevice.initialize(InitProfile.iso14443aReader());
+		long misses = mDevice.getShadowMissCount();
+
+		assertTrue(new Iso14443aReader(mDevice).activate(new Iso14443aCard()));
+		assertEquals(misses, mDevice.getShadowMissCount());
+	}
+
+	@Test
+	public void testInterruptMode() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+
+		assertTrue(new Iso14443aReader(mDevice).activate(new Iso14443aCard()));
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IrqWaitTest {
+
+	private static final int COMMAND_REG = 0x01;
+	private static final int COM_I_EN_REG = 0x02;
+	private static final int COMM_IRQ_REG = 0x04;
+	private static final int BIT_FRAMING_REG = 0x0d;
+
+	private static final long RESPONSE_DELAY_MS = 5;
+
+	private ScheduledExecutorService mExecutor;
+	private FakeIrqLine mIrqLine;
+	private ChipFake mSpi;
+
+	@Before
+	public void setUp() {
+		mExecutor = Executors.newSingleThreadScheduledExecutor();
+		mIrqLine = new FakeIrqLine();
+		mSpi = new ChipFake();
+	}
+
+	@After
+	public void tearDown() {
+		mExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testPollingMode() throws Exception {
+		Pn512NfcDevice device = new Pn512NfcDevice(mSpi);
+
+		device.tryActivateMiFare();
+
+		// at least one 1 ms sleep, followed by a read, per millisecond of RF time
+		assertTrue(mSpi.readCounts[COMM_IRQ_REG] >= 2);
+	}
+
+	@Test
+	public void testInterruptMode() throws Exception {
+		Pn512NfcDevice device = new Pn512NfcDevice(mSpi);
+		device.setIrqLine(mIrqLine);
+		assertTrue(device.isInterruptMode());
+
+		device.tryActivateMiFare();
+		long wakeUpLatencyNanos = System.nanoTime() - mSpi.mCompletedAtNanos;
+
+		assertEquals(1, mSpi.readCounts[COMM_IRQ_REG]);
+		assertTrue("wake-up took " + wakeUpLatencyNanos + " ns",
+				wakeUpLatencyNanos < TimeUnit.MILLISECONDS.toNanos(RESPONSE_DELAY_MS));
+	}
+
+	@Test
+	public void testInterruptModeIgnoresUnrelatedFlags() throws Exception {
+		mSpi.mSplitCompletion = true;
+		Pn512NfcDevice device = new Pn512NfcDevice(mSpi);
+		device.setIrqLine(mIrqLine);
+
+		device.tryActivateMiFare();
+
+		// IdleIRq arrives first but is not enabled, so only RxIRq wakes the driver
+		assertEquals(1, mSpi.readCounts[COMM_IRQ_REG]);
+		assertEquals((byte) 0b0011_0000, mSpi.getRegister(COMM_IRQ_REG));
+	}
+
+	/**
+	 * Completes a transceive {@link #RESPONSE_DELAY_MS} after StartSend, and drives the IRQ line
+	 * from CommIrqReg and ComIEnReg the way the PN512 does.
+	 */
+	private class ChipFake extends FakeSpiPort {
+
+		volatile long mCompletedAtNanos;
+		volatile boolean mSplitCompletion;
+
+		@Override
+		protected void onRegisterWritten(int address, byte value) {
+			if (address == COMM_IRQ_REG) {
+				// Set1 = 0 clears the marked bits
+				registers[COMM_IRQ_REG] = (byte) (mPendingFlags & ~value);
+				mPendingFlags = registers[COMM_IRQ_REG];
+			} else if (address == BIT_FRAMING_REG && (value & 0b1000_0000) != 0
+					&& registers[COMMAND_REG] == Pn512NfcDevice.Command.TRANSCEIVE) {
+				if (mSplitCompletion) {
+					scheduleFlags((byte) 0b0001_0000, RESPONSE_DELAY_MS);
+					scheduleFlags((byte) 0b0010_0000, RESPONSE_DELAY_MS * 2);
+				} else {
+					scheduleFlags((byte) 0b0011_0000, RESPONSE_DELAY_MS);
+				}
+			}
+			updateIrqPin();
+		}
+
+		private byte mPendingFlags;
+
+		private void scheduleFlags(final byte flags, long delayMs) {
+			mExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (ChipFake.this) {
+						mPendingFlags |= flags;
+						registers[COMM_IRQ_REG] = mPendingFlags;
+						mCompletedAtNanos = System.nanoTime();
+						updateIrqPin();
+					}
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		}
+
+		private void updateIrqPin() {
+			mIrqLine.setLevel((registers[COMM_IRQ_REG] & registers[COM_I_EN_REG] & 0x7f) != 0);
+		}
+	}
+
+	private static class FakeIrqLine implements IrqLine {
+
+		@Nullable
+		private volatile Listener mListener;
+		private volatile boolean mAsserted;
+
+		void setLevel(boolean asserted) {
+			boolean wasAsserted = mAsserted;
+			mAsserted = asserted;
+			Listener listener = mListener;
+			if (asserted && !wasAsserted && listener != null) {
+				listener.onIrqAsserted();
+			}
+		}
+
+		@Override
+		public void setListener(@Nullable Listener listener) {
+			mListener = listener;
+		}
+
+		@Override
+		public boolean isAsserted() {
+			return mAsserted;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
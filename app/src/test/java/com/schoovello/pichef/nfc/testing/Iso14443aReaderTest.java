@@ -0,0 +1,172 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Iso14443aReaderTest {
+
+	private static final byte[] ATQA_ULTRALIGHT = { (byte) 0x44, (byte) 0x00 };
+	private static final byte[] ATQA_MIFARE_1K = { (byte) 0x04, (byte) 0x00 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Iso14443aReader mReader;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		// waits skip straight to the simulator's next event
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		mReader = new Iso14443aReader(mDevice);
+	}
+
+	@Test
+	public void testActivateCascadeLevels() throws Exception {
+		byte[][] uids = {
+				{ 0x01, 0x02, 0x03, 0x04 },
+				{ 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 },
+				{ 0x08, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88, (byte) 0x99 },
+		};
+		for (byte[] uid : uids) {
+			Iso14443aTag tag = new Iso14443aTag(uid, ATQA_MIFARE_1K, (byte) 0x08);
+			mSimulator.removeAllTags();
+			mSimulator.addTag(tag);
+
+			Iso14443aCard card = new Iso14443aCard();
+			assertTrue(mReader.activate(card));
+			assertArrayEquals(uid, card.getUid());
+			assertArrayEquals(ATQA_MIFARE_1K, card.getAtqa());
+			assertEquals((byte) 0x08, card.getSak());
+			assertEquals(Iso14443aTag.STATE_ACTIVE, tag.getState());
+
+			mReader.halt();
+			assertEquals(Iso14443aTag.STATE_HALT, tag.getState());
+		}
+	}
+
+	@Test
+	public void testActivateResolvesCollision() throws Exception {
+		// the UIDs first differ in bit 3 of the second byte
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 0x01, 0x02, 0x03, 0x04 }, ATQA_MIFARE_1K, (byte) 0x08));
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 0x01, 0x0a, 0x03, 0x04 }, ATQA_ULTRALIGHT, (byte) 0x00));
+
+		Iso14443aCard card = new Iso14443aCard();
+		assertTrue(mReader.activate(card));
+		// the branch with a 1 bit is followed
+		assertArrayEquals(new byte[] { 0x01, 0x0a, 0x03, 0x04 }, card.getUid());
+		assertEquals((byte) 0x00, card.getSak());
+	}
+
+	@Test
+	public void testNoCard() throws Exception {
+		Iso14443aCard card = new Iso14443aCard();
+		assertFalse(mReader.activate(card));
+
+		TransceiveResult result = mDevice.transceiveBits(new byte[] { MiFareDevice.Command.WUPA }, 1, 7, 0, false, new TransceiveResult());
+		assertEquals(TransceiveResult.Status.TIMEOUT, result.getStatus());
+	}
+
+	@Test
+	public void testInventory() throws Exception {
+		Random random = new Random(1);
+		Set<String> expected = new HashSet<>();
+		for (int i = 0; i < 12; i++) {
+			byte[] uid = new byte[i % 3 == 0 ? 7 : 4];
+			random.nextBytes(uid);
+			if (uid[0] == (byte) 0x88) {
+				uid[0] = 0;
+			}
+			mSimulator.addTag(new Iso14443aTag(uid, ATQA_MIFARE_1K, (byte) 0x08));
+			expected.add(hex(uid));
+		}
+
+		Iso14443aCard[] cards = newCards(16);
+		assertEquals(12, mReader.inventory(cards));
+		Set<String> found = new HashSet<>();
+		for (int i = 0; i < 12; i++) {
+			found.add(hex(cards[i].getUid()));
+		}
+		assertEquals(expected, found);
+
+		// halted cards are found again after the field reset
+		assertEquals(12, mReader.inventory(cards));
+	}
+
+	@Test
+	public void testInventoryStopsWhenFull() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 1, 2, 3, 4 }, ATQA_MIFARE_1K, (byte) 0x08));
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 5, 6, 7, 8 }, ATQA_MIFARE_1K, (byte) 0x08));
+
+		assertEquals(1, mReader.inventory(newCards(1)));
+	}
+
+	@Test
+	public void testEmptyFieldEndsOnTimer() throws Exception {
+		Iso14443aCard card = new Iso14443aCard();
+		long[] latencies = new long[200];
+		for (int i = 0; i < latencies.length; i++) {
+			long startNanos = System.nanoTime();
+			long startSimNanos = mSimulator.getElapsedNanos();
+			assertFalse(mReader.activate(card));
+			latencies[i] = System.nanoTime() - startNanos;
+
+			// WUPA, the 1 ms activation timeout and the SPI traffic around them
+			long simNanos = mSimulator.getElapsedNanos() - startSimNanos;
+			assertTrue("took " + simNanos + " ns", simNanos > TimeUnit.MILLISECONDS.toNanos(1)
+					&& simNanos < TimeUnit.MICROSECONDS.toNanos(Pn512NfcDevice.DEFAULT_RESPONSE_TIMEOUT_US));
+		}
+
+		// TimerIRq ends the wait, so the host never sits out a timeout of its own
+		Arrays.sort(latencies);
+		long p99Nanos = latencies[latencies.length * 99 / 100];
+		assertTrue("p99 " + p99Nanos + " ns",
+				p99Nanos < TimeUnit.MICROSECONDS.toNanos(Pn512NfcDevice.DEFAULT_RESPONSE_TIMEOUT_US));
+		assertEquals(Pn512NfcDevice.DEFAULT_RESPONSE_TIMEOUT_US, mDevice.getResponseTimeout());
+	}
+
+	@Test
+	public void testInventoryPollingMode() throws Exception {
+		// polling waits measure their timeout on the wall clock, so keep simulated time in step
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.softReset();
+		mReader = new Iso14443aReader(mDevice);
+
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 1, 2, 3, 4 }, ATQA_MIFARE_1K, (byte) 0x08));
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 4, 3, 2, 1, 0, 9, 8 }, ATQA_ULTRALIGHT, (byte) 0x00));
+
+		assertEquals(2, mReader.inventory(newCards(4)));
+	}
+
+	private static Iso14443aCard[] newCards(int count) {
+		Iso14443aCard[] cards = new Iso14443aCard[count];
+		for (int i = 0; i < count; i++) {
+			cards[i] = new Iso14443aCard();
+		}
+		return cards;
+	}
+
+	private static String hex(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : data) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,200 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * ISO14443-3A card: REQA/WUPA, bit-oriented anticollision and SELECT over cascade levels 1-3 for
+ * 4, 7 and 10-byte UIDs, and HLTA. Subclasses add the protocol spoken once the card is selected
+ * by overriding {@link #onActiveFrame(byte[], int, byte[])}.
+ */
+public class Iso14443aTag implements VirtualTag {
+
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_READY = 1;
+	public static final int STATE_ACTIVE = 2;
+	public static final int STATE_HALT = 3;
+
+	private static final byte CASCADE_TAG = (byte) 0x88;
+	private static final byte SAK_CASCADE_BIT = 0b0000_0100;
+	private static final byte[] SEL_CODES = { (byte) 0x93, (byte) 0x95, (byte) 0x97 };
+
+	private final byte[] mUid;
+	private final byte[] mAtqa;
+	private final byte mSak;
+
+	/**
+	 * UID CLn + BCC for each cascade level.
+	 */
+	private final byte[][] mCascadeBytes;
+
+	private int mState = STATE_IDLE;
+	private int mCascadeLevel;
+	private boolean mHalted;
+
+	/**
+	 * @param uid 4, 7 or 10-byte UID.
+	 * @param atqa ATQA in transmission order.
+	 * @param sak SAK sent once the UID is complete.
+	 */
+	public Iso14443aTag(byte[] uid, byte[] atqa, byte sak) {
+		if (uid.length != 4 && uid.length != 7 && uid.length != 10) {
+			throw new IllegalArgumentException("UID must be 4, 7 or 10 bytes");
+		}
+		mUid = uid.clone();
+		mAtqa = atqa.clone();
+		mSak = sak;
+
+		int levels = uid.length == 4 ? 1 : uid.length == 7 ? 2 : 3;
+		mCascadeBytes = new byte[levels][5];
+		int uidIndex = 0;
+		for (int level = 0; level < levels; level++) {
+			byte[] cl = mCascadeBytes[level];
+			int start = 0;
+			if (level < levels - 1) {
+				cl[0] = CASCADE_TAG;
+				start = 1;
+			}
+			for (int i = start; i < 4; i++) {
+				cl[i] = mUid[uidIndex++];
+			}
+			cl[4] = (byte) (cl[0] ^ cl[1] ^ cl[2] ^ cl[3]);
+		}
+	}
+
+	public byte[] getUid() {
+		return mUid.clone();
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	@Override
+	public void onFieldChanged(boolean fieldOn) {
+		mState = STATE_IDLE;
+		mCascadeLevel = 0;
+		mHalted = false;
+		onReset();
+	}
+
+	@Override
+	public int onFrame(byte[] frame, int frameBits, byte[] response) {
+		if (frameBits == 7) {
+			int command = frame[0] & 0x7f;
+			boolean reqa = command == (MiFareDevice.Command.REQA & 0x7f) && mState == STATE_IDLE;
+			boolean wupa = command == (MiFareDevice.Command.WUPA & 0x7f)
+					&& (mState == STATE_IDLE || mState == STATE_HALT);
+			if (reqa || wupa) {
+				mState = STATE_READY;
+				mCascadeLevel = 0;
+				System.arraycopy(mAtqa, 0, response, 0, 2);
+				return 16;
+			}
+			if (mState == STATE_READY || mState == STATE_ACTIVE) {
+				// any unexpected command sends a card that has been woken up back to sleep
+				goIdle();
+				onReset();
+			}
+			return 0;
+		}
+
+		switch (mState) {
+			case STATE_READY:
+				return onSelectFrame(frame, frameBits, response);
+			case STATE_ACTIVE:
+				if (frameBits == 32 && frame[0] == 0x50 && frame[1] == 0x00
+						&& Pn512Simulator.checkCrcA(frame, 4)) {
+					goHalt();
+					return 0;
+				}
+				return onActiveFrame(frame, frameBits, response);
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Handles a frame received while selected.
+	 * @return the number of response bits, or {@code 0} to stay silent.
+	 */
+	protected int onActiveFrame(byte[] frame, int frameBits, byte[] response) {
+		return 0;
+	}
+
+	/**
+	 * Called when the card leaves the selected state.
+	 */
+	protected void onReset() {
+	}
+
+	private int onSelectFrame(byte[] frame, int frameBits, byte[] response) {
+		if (frameBits < 16 || frame[0] != SEL_CODES[mCascadeLevel]) {
+			goIdle();
+			return 0;
+		}
+
+		byte[] cl = mCascadeBytes[mCascadeLevel];
+		int nvb = frame[1] & 0xff;
+
+		if (nvb == 0x70) {
+			if (frameBits != 9 * 8 || !Pn512Simulator.checkCrcA(frame, 9)
+					|| !regionMatches(frame, 2, cl)) {
+				goIdle();
+				return 0;
+			}
+			byte sak;
+			if (mCascadeLevel < mCascadeBytes.length - 1) {
+				sak = SAK_CASCADE_BIT;
+				mCascadeLevel++;
+			} else {
+				sak = (byte) (mSak & ~SAK_CASCADE_BIT);
+				mState = STATE_ACTIVE;
+			}
+			response[0] = sak;
+			return Pn512Simulator.appendCrcA(response, 1) * 8;
+		}
+
+		// anticollision: respond with the rest of UID CLn + BCC if the known bits match
+		int knownBits = ((nvb >> 4) - 2) * 8 + (nvb & 0x0f);
+		if (knownBits < 0 || knownBits >= 40 || frameBits - 16 != knownBits) {
+			return 0;
+		}
+		for (int i = 0; i < knownBits; i++) {
+			if (Pn512Simulator.getBit(frame, 16 + i) != Pn512Simulator.getBit(cl, i)) {
+				return 0;
+			}
+		}
+		int responseBits = 40 - knownBits;
+		for (int i = 0; i < responseBits; i++) {
+			if (Pn512Simulator.getBit(cl, knownBits + i)) {
+				Pn512Simulator.setBit(response, i);
+			}
+		}
+		return responseBits;
+	}
+
+	private static boolean regionMatches(byte[] frame, int offset, byte[] expected) {
+		for (int i = 0; i < expected.length; i++) {
+			if (frame[offset + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Enters HALT, where the card only answers WUPA, as on HLTA.
+	 */
+	protected void goHalt() {
+		mState = STATE_HALT;
+		mHalted = true;
+		onReset();
+	}
+
+	/**
+	 * Drops back to IDLE, or HALT if the card was halted before, as after an unexpected frame.
+	 */
+	protected void goIdle() {
+		mState = mHalted ? STATE_HALT : STATE_IDLE;
+		mCascadeLevel = 0;
+	}
+
+}
@@ -0,0 +1,223 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IsoDepReaderTest {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] SELECT_APPLICATION = {
+			0x00, (byte) 0xa4, 0x04, 0x00, 0x07, (byte) 0xd2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01, 0x00
+	};
+
+	private Pn512Simulator mSimulator;
+	private IsoDepTag mTag;
+	private Pn512NfcDevice mDevice;
+	private IsoDepReader mReader;
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mResponse = new byte[1024];
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mTag = IsoDepTag.desfire(UID);
+		mSimulator.addTag(mTag);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new IsoDepReader(mDevice);
+	}
+
+	@Test
+	public void testActivateReadsAtsAndSwitchesBitRate() throws Exception {
+		assertTrue(mReader.activate(mCard));
+
+		byte[] ats = new byte[IsoDepReader.MAX_ATS_LENGTH];
+		int length = mReader.copyAts(ats, 0);
+		assertArrayEquals(new byte[] { 0x06, 0x75, 0x77, (byte) 0x81, 0x02, (byte) 0x80 }, Arrays.copyOf(ats, length));
+		assertEquals(64, mReader.getFrameSize());
+		assertEquals(77_328, mReader.getFrameWaitingTime());
+
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_848, mReader.getTxBitRate());
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_848, mReader.getRxBitRate());
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_848, mTag.getDri());
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_848, mTag.getDsi());
+		assertEquals(0b0011_0000, mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.TX_MODE_REG) & 0b0111_0000);
+		assertEquals(0b0011_0000, mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.RX_MODE_REG) & 0b0111_0000);
+	}
+
+	@Test
+	public void testBitRateNegotiation() throws Exception {
+		mReader.setMaxBitRate(Pn512NfcDevice.BitRate.KBPS_424);
+		assertTrue(mReader.activate(mCard));
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_424, mReader.getTxBitRate());
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_424, mReader.getRxBitRate());
+		mReader.deselect();
+
+		// sends at up to 424 kbps, receives at up to 212 kbps, and needs both the same
+		mSimulator.removeAllTags();
+		mTag = new IsoDepTag(UID, 5, (byte) 0b1011_0001, 4);
+		mSimulator.addTag(mTag);
+		mReader.setMaxBitRate(Pn512NfcDevice.BitRate.KBPS_848);
+		assertTrue(mReader.activate(mCard));
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_212, mReader.getTxBitRate());
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_212, mReader.getRxBitRate());
+		mReader.deselect();
+
+		// no TA bits, no PPS
+		mSimulator.removeAllTags();
+		mTag = new IsoDepTag(UID, 5, (byte) 0, 4);
+		mSimulator.addTag(mTag);
+		assertTrue(mReader.activate(mCard));
+		assertEquals(Pn512NfcDevice.BitRate.KBPS_106, mReader.getTxBitRate());
+		assertEquals(0, mTag.getPpsCount());
+		assertEchoes(SELECT_APPLICATION);
+	}
+
+	@Test
+	public void testApdu() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		assertEchoes(SELECT_APPLICATION);
+		assertEquals(1, mReader.getBlockCount());
+	}
+
+	@Test
+	public void testChainingBothWays() throws Exception {
+		mTag.setApplication(new IsoDepTag.Application() {
+			@Override
+			public int onApdu(byte[] command, int length, byte[] response) {
+				// the command reversed, twice over
+				for (int i = 0; i < length; i++) {
+					response[i] = command[length - 1 - i];
+					response[length + i] = command[length - 1 - i];
+				}
+				return 2 * length;
+			}
+		});
+		assertTrue(mReader.activate(mCard));
+
+		byte[] command = pattern(200);
+		assertEquals(400, mReader.transceive(command, 0, command.length, mResponse, 0));
+		for (int i = 0; i < 200; i++) {
+			assertEquals(command[199 - i], mResponse[i]);
+			assertEquals(command[199 - i], mResponse[200 + i]);
+		}
+		// 61 bytes of INF per block: 4 I-blocks out, then an R(ACK) for each of the 7 coming back
+		// but the last
+		assertEquals(4 + 6, mReader.getBlockCount());
+
+		// block numbers stay in step from one APDU to the next
+		mTag.setApplication(IsoDepTag.ECHO);
+		assertEchoes(SELECT_APPLICATION);
+	}
+
+	@Test
+	public void testLargeFrames() throws Exception {
+		mSimulator.removeAllTags();
+		mTag = new IsoDepTag(UID, 8, (byte) 0b0111_0111, 4);
+		mSimulator.addTag(mTag);
+		mReader.setMaxFrameSize(IsoDepReader.MAX_FRAME_SIZE);
+		// frames larger than the FIFO are streamed through it, which takes a faster SPI clock than
+		// the default at 848 kbps
+		mDevice.setSpiFrequency(4_000_000);
+		assertTrue(mReader.activate(mCard));
+		assertEquals(256, mReader.getFrameSize());
+
+		byte[] command = pattern(240);
+		assertEquals(242, mReader.transceive(command, 0, command.length, mResponse, 0));
+		assertArrayEquals(command, Arrays.copyOf(mResponse, 240));
+		assertEquals(1, mReader.getBlockCount());
+	}
+
+	@Test
+	public void testWaitingTimeExtension() throws Exception {
+		mTag.setWtx(2, 10);
+		assertTrue(mReader.activate(mCard));
+		assertEchoes(SELECT_APPLICATION);
+		assertEquals(2, mReader.getWtxCount());
+		assertEquals(1, mTag.getApduCount());
+	}
+
+	@Test
+	public void testLostResponseAskedForAgain() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		mTag.loseResponses(1);
+		assertEchoes(SELECT_APPLICATION);
+
+		// R(NAK) has the card send its last block again, rather than run the command twice
+		assertEquals(1, mReader.getRetransmissionCount());
+		assertEquals(1, mTag.getApduCount());
+		assertEchoes(SELECT_APPLICATION);
+	}
+
+	@Test
+	public void testLostCommandSentAgain() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		mTag.ignoreFrames(1);
+		assertEchoes(SELECT_APPLICATION);
+
+		// R(NAK), answered by R(ACK) with the old block number, then the I-block again
+		assertEquals(2, mReader.getRetransmissionCount());
+		assertEquals(1, mTag.getApduCount());
+		assertEchoes(SELECT_APPLICATION);
+	}
+
+	@Test
+	public void testDeselect() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		mReader.deselect();
+		assertFalse(mReader.isActive());
+		assertEquals(Iso14443aTag.STATE_HALT, mTag.getState());
+		assertEquals(0, mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.TX_MODE_REG) & 0b0111_0000);
+
+		// WUPA wakes it up again
+		assertTrue(mReader.activate(mCard));
+		assertEchoes(SELECT_APPLICATION);
+	}
+
+	@Test
+	public void testNotIsoDep() throws Exception {
+		mSimulator.removeAllTags();
+		mSimulator.addTag(Type2Tag.ntag213(UID));
+		assertFalse(mReader.activate(mCard));
+	}
+
+	@Test
+	public void testCardGone() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		mSimulator.removeTag(mTag);
+
+		assertEquals(-1, mReader.transceive(SELECT_APPLICATION, 0, SELECT_APPLICATION.length, mResponse, 0));
+		assertFalse(mReader.isActive());
+		assertEquals(0, mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.TX_MODE_REG) & 0b0111_0000);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRequiresActivation() throws Exception {
+		mReader.transceive(SELECT_APPLICATION, 0, SELECT_APPLICATION.length, mResponse, 0);
+	}
+
+	private void assertEchoes(byte[] command) throws Exception {
+		int length = mReader.transceive(command, 0, command.length, mResponse, 0);
+		assertEquals(command.length + 2, length);
+		assertArrayEquals(command, Arrays.copyOf(mResponse, command.length));
+		assertEquals((byte) 0x90, mResponse[command.length]);
+		assertEquals(0x00, mResponse[command.length + 1]);
+	}
+
+	private static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + 3);
+		}
+		return data;
+	}
+
+}
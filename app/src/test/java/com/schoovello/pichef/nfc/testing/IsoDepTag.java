@@ -0,0 +1,275 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * ISO14443-4 card: RATS, PPS, and I-, R- and S-blocks handled by the PICC rules of the standard,
+ * including chaining in both directions. The APDUs themselves go to an {@link Application},
+ * which by default echoes each command followed by status word 90 00.<p/>
+ * Responses can be lost and frames ignored on request, to exercise the reader's error recovery,
+ * and S(WTX) can be sent before each response. The bit rate agreed through PPS is recorded but
+ * not enforced; the simulator times frames by the reader's registers.
+ */
+public class IsoDepTag extends Iso14443aTag {
+
+	public interface Application {
+		/**
+		 * @return the length of the response APDU written to {@code response}.
+		 */
+		int onApdu(byte[] command, int length, byte[] response);
+	}
+
+	public static final Application ECHO = new Application() {
+		@Override
+		public int onApdu(byte[] command, int length, byte[] response) {
+			System.arraycopy(command, 0, response, 0, length);
+			response[length] = (byte) 0x90;
+			response[length + 1] = 0x00;
+			return length + 2;
+		}
+	};
+
+	private static final int[] FRAME_SIZES = { 16, 24, 32, 40, 48, 64, 96, 128, 256 };
+	private static final int MAX_APDU = 4096;
+
+	private static final byte RATS = (byte) 0xe0;
+	private static final byte R_ACK = (byte) 0xa2;
+	private static final byte S_DESELECT = (byte) 0xc2;
+	private static final byte S_WTX = (byte) 0xf2;
+	private static final byte CHAINING = 0x10;
+
+	private final byte[] mAts;
+	private final int mFsc;
+
+	private final byte[] mCommand = new byte[MAX_APDU];
+	private final byte[] mResponse = new byte[MAX_APDU];
+	private final byte[] mLastBlock = new byte[FRAME_SIZES[FRAME_SIZES.length - 1]];
+
+	private Application mApplication = ECHO;
+	private int mWtxPerApdu;
+	private int mWtxm;
+	private int mLoseResponses;
+	private int mIgnoreFrames;
+
+	private boolean mProtocolActive;
+	private boolean mPpsAllowed;
+	private int mFsd;
+	private int mBlockNumber;
+	private int mCommandLength;
+	private int mResponseLength;
+	private int mResponseSent;
+	private int mWtxPending;
+	private int mLastBlockBits;
+	private int mDsi;
+	private int mDri;
+
+	private int mApduCount;
+	private int mPpsCount;
+
+	/**
+	 * @param ats the ATS, starting with its length byte TL.
+	 */
+	public IsoDepTag(byte[] uid, byte[] ats) {
+		super(uid, new byte[] { 0x44, 0x03 }, (byte) 0x20);
+		mAts = ats.clone();
+		mFsc = FRAME_SIZES[Math.min(ats.length > 1 ? ats[1] & 0x0f : 2, FRAME_SIZES.length - 1)];
+	}
+
+	/**
+	 * @param ta the TA(1) byte: bits 7-5 for the bit rates the card sends at, 3-1 for the ones it
+	 * receives at.
+	 */
+	public IsoDepTag(byte[] uid, int fsci, byte ta, int fwi) {
+		this(uid, new byte[] { 0x05, (byte) (0x70 | fsci), ta, (byte) (fwi << 4), 0x00 });
+	}
+
+	/**
+	 * DESFire EV1: 64-byte frames, every bit rate up to 848 kbps, 77 ms FWT and a 604 us SFGT.
+	 */
+	public static IsoDepTag desfire(byte[] uid) {
+		return new IsoDepTag(uid, new byte[] { 0x06, 0x75, 0x77, (byte) 0x81, 0x02, (byte) 0x80 });
+	}
+
+	public void setApplication(Application application) {
+		mApplication = application;
+	}
+
+	/**
+	 * Has the card ask for {@code count} waiting time extensions of {@code wtxm} times the FWT
+	 * before each response.
+	 */
+	public void setWtx(int count, int wtxm) {
+		mWtxPerApdu = count;
+		mWtxm = wtxm;
+	}
+
+	/**
+	 * Acts on the next {@code count} frames, but lets the responses get lost.
+	 */
+	public void loseResponses(int count) {
+		mLoseResponses = count;
+	}
+
+	/**
+	 * Doesn't hear the next {@code count} frames at all.
+	 */
+	public void ignoreFrames(int count) {
+		mIgnoreFrames = count;
+	}
+
+	public int getApduCount() {
+		return mApduCount;
+	}
+
+	public int getPpsCount() {
+		return mPpsCount;
+	}
+
+	/**
+	 * @return the bit rate agreed for sending to the reader, as a {@link Pn512NfcDevice.BitRate}.
+	 */
+	public int getDsi() {
+		return mDsi;
+	}
+
+	/**
+	 * @return the bit rate agreed for receiving from the reader, as a
+	 * {@link Pn512NfcDevice.BitRate}.
+	 */
+	public int getDri() {
+		return mDri;
+	}
+
+	public boolean isProtocolActive() {
+		return mProtocolActive;
+	}
+
+	@Override
+	protected int onActiveFrame(byte[] frame, int frameBits, byte[] response) {
+		if (mIgnoreFrames > 0) {
+			mIgnoreFrames--;
+			return 0;
+		}
+		final int frameLength = frameBits / 8;
+		if (frameBits % 8 != 0 || frameLength < 3 || !Pn512Simulator.checkCrcA(frame, frameLength)) {
+			return 0;
+		}
+		final int bits = onBlock(frame, frameLength - 2, response);
+		if (bits > 0 && mLoseResponses > 0) {
+			mLoseResponses--;
+			return 0;
+		}
+		return bits;
+	}
+
+	@Override
+	protected void onReset() {
+		mProtocolActive = false;
+		mPpsAllowed = false;
+		mCommandLength = 0;
+		mResponseLength = 0;
+		mResponseSent = 0;
+		mWtxPending = 0;
+		mDsi = 0;
+		mDri = 0;
+	}
+
+	private int onBlock(byte[] frame, int length, byte[] response) {
+		final byte pcb = frame[0];
+		if (!mProtocolActive) {
+			if (pcb != RATS || length != 2) {
+				return 0;
+			}
+			mFsd = FRAME_SIZES[Math.min((frame[1] >> 4) & 0x0f, FRAME_SIZES.length - 1)];
+			mProtocolActive = true;
+			mPpsAllowed = true;
+			mBlockNumber = 1;
+			System.arraycopy(mAts, 0, response, 0, mAts.length);
+			return send(response, mAts.length);
+		}
+
+		if (mPpsAllowed && (pcb & 0xf0) == 0xd0 && length == 3 && frame[1] == 0x11) {
+			mPpsAllowed = false;
+			mPpsCount++;
+			mDsi = (frame[2] >> 2) & 0x03;
+			mDri = frame[2] & 0x03;
+			response[0] = pcb;
+			return send(response, 1);
+		}
+		mPpsAllowed = false;
+		if (length + 2 > mFsc) {
+			// longer than the card said it could take
+			return 0;
+		}
+
+		if ((pcb & 0xe2) == 0x02) {
+			// I-block: the block number toggles before anything is sent
+			mBlockNumber ^= 1;
+			System.arraycopy(frame, 1, mCommand, mCommandLength, length - 1);
+			mCommandLength += length - 1;
+			if ((pcb & CHAINING) != 0) {
+				response[0] = (byte) (R_ACK | mBlockNumber);
+				return send(response, 1);
+			}
+			mApduCount++;
+			mResponseLength = mApplication.onApdu(mCommand, mCommandLength, mResponse);
+			mResponseSent = 0;
+			mCommandLength = 0;
+			mWtxPending = mWtxPerApdu;
+			return sendResponseBlock(response);
+		}
+		if ((pcb & 0xe6) == 0xa2) {
+			final boolean nak = (pcb & 0x10) != 0;
+			if ((pcb & 0x01) == mBlockNumber) {
+				// the reader missed the last block
+				System.arraycopy(mLastBlock, 0, response, 0, (mLastBlockBits + 7) / 8);
+				return mLastBlockBits;
+			}
+			if (nak) {
+				// the reader's last block never got here
+				response[0] = (byte) (R_ACK | mBlockNumber);
+				return send(response, 1);
+			}
+			if (mResponseSent < mResponseLength) {
+				// chaining continues
+				mBlockNumber ^= 1;
+				return sendResponseBlock(response);
+			}
+			return 0;
+		}
+		if (pcb == S_WTX && length == 2) {
+			return sendResponseBlock(response);
+		}
+		if (pcb == S_DESELECT && length == 1) {
+			response[0] = S_DESELECT;
+			final int bits = send(response, 1);
+			goHalt();
+			return bits;
+		}
+		return 0;
+	}
+
+	private int sendResponseBlock(byte[] response) {
+		if (mWtxPending > 0) {
+			mWtxPending--;
+			response[0] = S_WTX;
+			response[1] = (byte) mWtxm;
+			return send(response, 2);
+		}
+		final int chunk = Math.min(mResponseLength - mResponseSent, mFsd - 3);
+		final boolean chaining = mResponseSent + chunk < mResponseLength;
+		response[0] = (byte) (0x02 | mBlockNumber | (chaining ? CHAINING : 0));
+		System.arraycopy(mResponse, mResponseSent, response, 1, chunk);
+		mResponseSent += chunk;
+		return send(response, 1 + chunk);
+	}
+
+	/**
+	 * Appends the CRC_A and keeps the block in case it has to be sent again.
+	 */
+	private int send(byte[] response, int length) {
+		final int bits = Pn512Simulator.appendCrcA(response, length) * 8;
+		System.arraycopy(response, 0, mLastBlock, 0, bits / 8);
+		mLastBlockBits = bits;
+		return bits;
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketBounds() throws Exception {
+		long[] values = { 0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789, (1L << 37) - 1, 1L << 40, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(index >= 0 && index < LatencyHistogram.BUCKET_COUNT);
+			assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+			}
+		}
+
+		// every bucket is at most 12.5% wide
+		for (int i = 9; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+			long lower = LatencyHistogram.bucketUpperBound(i - 1) + 1;
+			long upper = LatencyHistogram.bucketUpperBound(i);
+			assertEquals(i, LatencyHistogram.bucketIndex(lower));
+			assertEquals(i, LatencyHistogram.bucketIndex(upper));
+			assertTrue(upper - lower + 1 <= lower / 8 + 1);
+		}
+	}
+
+	@Test
+	public void testPercentiles() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500_500, snapshot.getMeanNanos());
+		assertEquals(1_000_000, snapshot.getMaxNanos());
+		assertWithinBucket(500_000, snapshot.getPercentileNanos(50));
+		assertWithinBucket(990_000, snapshot.getPercentileNanos(99));
+		assertEquals(1_000_000, snapshot.getPercentileNanos(100));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getMeanNanos());
+		assertEquals(0, snapshot.getPercentileNanos(99));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100_000; i++) {
+						histogram.record(seed * 100_000 + i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(400_000, snapshot.getCount());
+		assertEquals(399_999, snapshot.getMaxNanos());
+	}
+
+	private static void assertWithinBucket(long expected, long actual) {
+		assertTrue(actual + " < " + expected, actual >= expected);
+		assertTrue(actual + " > " + expected, actual <= expected + expected / 8);
+	}
+
+}
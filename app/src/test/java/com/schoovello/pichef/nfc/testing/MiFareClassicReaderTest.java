@@ -0,0 +1,177 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MiFareClassicReaderTest {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] KEY_B = { 0x0b, 0x0b, 0x0b, 0x0b, 0x0b, 0x0b };
+	private static final byte[] SECRET_KEY = { 0x5e, 0x5e, 0x5e, 0x5e, 0x5e, 0x5e };
+	private static final int ALL_SECTORS = 0xffff;
+
+	private Pn512Simulator mSimulator;
+	private MiFareClassicTag mTag;
+	private Pn512NfcDevice mDevice;
+	private MiFareClassicReader mReader;
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mData = new byte[MiFareClassicReader.CARD_SIZE];
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mTag = new MiFareClassicTag(UID);
+		for (int block = 1; block < 64; block++) {
+			if (block % 4 != 3) {
+				byte[] data = new byte[16];
+				Arrays.fill(data, (byte) block);
+				mTag.setBlock(block, data);
+			}
+		}
+		mSimulator.addTag(mTag);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new MiFareClassicReader(mDevice);
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void testReadWholeCard() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		assertEquals(ALL_SECTORS, mReader.readCard(mCard, mData));
+		mReader.halt();
+
+		for (int block = 0; block < 64; block++) {
+			byte[] expected = mTag.getBlock(block);
+			if (block % 4 == 3) {
+				Arrays.fill(expected, 0, 6, (byte) 0);
+			}
+			assertArrayEquals("block " + block, expected, Arrays.copyOfRange(mData, block * 16, block * 16 + 16));
+		}
+		assertEquals(16, mTag.getAuthCount());
+		assertEquals(64, mTag.getReadCount());
+		assertEquals(64, mReader.getBlockReadCount());
+
+		// Crypto1 is off again, so the card can be activated in the clear
+		assertEquals(Iso14443aTag.STATE_HALT, mTag.getState());
+		assertTrue(new Iso14443aReader(mDevice).activate(new Iso14443aCard()));
+	}
+
+	@Test
+	public void testRepeatReadServedFromCache() throws Exception {
+		assertTrue(mReader.activate(mCard));
+		mReader.readCard(mCard, mData);
+		mReader.halt();
+		byte[] first = mData.clone();
+
+		Arrays.fill(mData, (byte) 0);
+		assertTrue(mReader.activate(mCard));
+		assertEquals(ALL_SECTORS, mReader.readCard(mCard, mData));
+		mReader.halt();
+
+		assertArrayEquals(first, mData);
+		assertEquals(16, mTag.getAuthCount());
+		assertEquals(64, mTag.getReadCount());
+		assertEquals(64, mReader.getCacheHitCount());
+	}
+
+	@Test
+	public void testBlocksInOneSectorShareAuthentication() throws Exception {
+		byte[] block = new byte[16];
+		assertTrue(mReader.activate(mCard));
+		assertTrue(mReader.readBlock(mCard, 4, block, 0));
+		assertTrue(mReader.readBlock(mCard, 6, block, 0));
+		assertTrue(mReader.readBlock(mCard, 8, block, 0));
+
+		assertEquals(2, mTag.getAuthCount());
+		assertArrayEquals(mTag.getBlock(8), block);
+	}
+
+	@Test
+	public void testRemembersWhichKeyOpensSector() throws Exception {
+		mTag.setKeys(5, SECRET_KEY, KEY_B);
+		mReader.addKey(MiFareDevice.Command.AUTH_KEY_B, KEY_B);
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(ALL_SECTORS, mReader.readCard(mCard, mData));
+		assertEquals(1, mTag.getFailedAuthCount());
+
+		mReader.invalidate(mCard);
+		assertEquals(ALL_SECTORS, mReader.readCard(mCard, mData));
+		mReader.halt();
+
+		// key B straight away the second time
+		assertEquals(1, mTag.getFailedAuthCount());
+		assertEquals(128, mTag.getReadCount());
+	}
+
+	@Test
+	public void testUnreadableSectorSkipped() throws Exception {
+		mTag.setKeys(2, SECRET_KEY, SECRET_KEY);
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(ALL_SECTORS & ~(1 << 2), mReader.readCard(mCard, mData));
+		assertEquals(1, mTag.getFailedAuthCount());
+
+		// no key opens sector 2, so it isn't tried again
+		mReader.invalidate(mCard);
+		assertEquals(ALL_SECTORS & ~(1 << 2), mReader.readCard(mCard, mData));
+		assertEquals(1, mTag.getFailedAuthCount());
+		assertEquals(1, mReader.getAuthenticationFailureCount());
+
+		// until a new key comes along
+		mReader.addKey(MiFareDevice.Command.AUTH_KEY_A, SECRET_KEY);
+		assertTrue(mReader.readSector(mCard, 2, mData, 0));
+		assertArrayEquals(mTag.getBlock(8), Arrays.copyOf(mData, 16));
+	}
+
+	@Test
+	public void testPollingMode() throws Exception {
+		// polling reads the chip on a wall clock schedule, so the chip has to keep time with it
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator.close();
+		mSimulator = new Pn512Simulator(timing);
+		mTag = new MiFareClassicTag(UID);
+		mSimulator.addTag(mTag);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new MiFareClassicReader(mDevice);
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(ALL_SECTORS, mReader.readCard(mCard, mData));
+		assertEquals(16, mTag.getAuthCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRequiresActivation() throws Exception {
+		Iso14443aCard other = new Iso14443aCard();
+		assertTrue(new Iso14443aReader(mDevice).activate(other));
+		mReader.readBlock(other, 4, new byte[16], 0);
+	}
+
+	@Test
+	public void testCardGoneAfterAuthentication() throws Exception {
+		byte[] block = new byte[16];
+		assertTrue(mReader.activate(mCard));
+		assertTrue(mReader.readBlock(mCard, 4, block, 0));
+
+		mSimulator.removeTag(mTag);
+		assertFalse(mReader.readBlock(mCard, 5, block, 0));
+		assertFalse(mReader.readBlock(mCard, 8, block, 0));
+	}
+
+}
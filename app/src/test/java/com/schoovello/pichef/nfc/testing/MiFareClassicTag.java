@@ -0,0 +1,160 @@
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.Arrays;
+
+/**
+ * MIFARE Classic 1K: 16 sectors of 4 blocks, the last block of each sector holding key A, the
+ * access bits and key B. Any block of a sector can be read once the sector is authenticated with
+ * either key; access conditions are not enforced.<p/>
+ * {@link Pn512Simulator} runs MFAuthent through {@link #authenticate(byte, int, byte[], byte[])}
+ * and tells the tag whether the reader has Crypto1 on. Crypto1 itself is not modelled: a frame
+ * whose encryption doesn't match the tag's state is treated as noise, which sends the tag back
+ * to IDLE, as a real card does.
+ */
+public class MiFareClassicTag extends Iso14443aTag {
+
+	public static final int SECTOR_COUNT = 16;
+	public static final int BLOCKS_PER_SECTOR = 4;
+	public static final int BLOCK_SIZE = 16;
+	public static final byte[] DEFAULT_KEY = {
+			(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+	};
+
+	private static final byte[] DEFAULT_ACCESS_BITS = { (byte) 0xff, (byte) 0x07, (byte) 0x80, (byte) 0x69 };
+	private static final byte NAK = 0x04;
+
+	private final byte[] mUidTail = new byte[4];
+	private final byte[] mMemory = new byte[SECTOR_COUNT * BLOCKS_PER_SECTOR * BLOCK_SIZE];
+
+	private int mAuthenticatedSector = -1;
+	private boolean mLinkEncrypted;
+
+	private int mAuthCount;
+	private int mFailedAuthCount;
+	private int mReadCount;
+
+	public MiFareClassicTag(byte[] uid) {
+		super(uid, uid.length == 4 ? new byte[] { 0x04, 0x00 } : new byte[] { 0x44, 0x00 }, (byte) 0x08);
+		System.arraycopy(uid, uid.length - 4, mUidTail, 0, 4);
+
+		// manufacturer block
+		if (uid.length == 4) {
+			System.arraycopy(uid, 0, mMemory, 0, 4);
+			mMemory[4] = (byte) (uid[0] ^ uid[1] ^ uid[2] ^ uid[3]);
+			mMemory[5] = 0x08;
+		} else {
+			System.arraycopy(uid, 0, mMemory, 0, uid.length);
+		}
+		for (int sector = 0; sector < SECTOR_COUNT; sector++) {
+			int trailer = trailerOffset(sector);
+			System.arraycopy(DEFAULT_KEY, 0, mMemory, trailer, 6);
+			System.arraycopy(DEFAULT_ACCESS_BITS, 0, mMemory, trailer + 6, 4);
+			System.arraycopy(DEFAULT_KEY, 0, mMemory, trailer + 10, 6);
+		}
+	}
+
+	public void setKeys(int sector, byte[] keyA, byte[] keyB) {
+		int trailer = trailerOffset(sector);
+		System.arraycopy(keyA, 0, mMemory, trailer, 6);
+		System.arraycopy(keyB, 0, mMemory, trailer + 10, 6);
+	}
+
+	public void setBlock(int block, byte[] data) {
+		System.arraycopy(data, 0, mMemory, block * BLOCK_SIZE, BLOCK_SIZE);
+	}
+
+	public byte[] getBlock(int block) {
+		return Arrays.copyOfRange(mMemory, block * BLOCK_SIZE, (block + 1) * BLOCK_SIZE);
+	}
+
+	public int getAuthCount() {
+		return mAuthCount;
+	}
+
+	public int getFailedAuthCount() {
+		return mFailedAuthCount;
+	}
+
+	public int getReadCount() {
+		return mReadCount;
+	}
+
+	void setLinkEncrypted(boolean encrypted) {
+		mLinkEncrypted = encrypted;
+	}
+
+	/**
+	 * @return {@code true} if the key is the sector's key A or B, as chosen by
+	 * {@code authCommand}, and the UID bytes are this card's. A card that fails goes back to IDLE.
+	 */
+	boolean authenticate(byte authCommand, int block, byte[] key, byte[] uidTail) {
+		if (getState() != STATE_ACTIVE || block >= SECTOR_COUNT * BLOCKS_PER_SECTOR) {
+			return false;
+		}
+		if (!Arrays.equals(uidTail, mUidTail)) {
+			// the reader is talking to another card
+			return false;
+		}
+
+		int sector = block / BLOCKS_PER_SECTOR;
+		int keyOffset = trailerOffset(sector) + (authCommand == MiFareDevice.Command.AUTH_KEY_B ? 10 : 0);
+		boolean match = authCommand == MiFareDevice.Command.AUTH_KEY_A
+				|| authCommand == MiFareDevice.Command.AUTH_KEY_B;
+		for (int i = 0; i < 6 && match; i++) {
+			match = mMemory[keyOffset + i] == key[i];
+		}
+		if (!match) {
+			mFailedAuthCount++;
+			goIdle();
+			onReset();
+			return false;
+		}
+		mAuthCount++;
+		mAuthenticatedSector = sector;
+		return true;
+	}
+
+	@Override
+	public int onFrame(byte[] frame, int frameBits, byte[] response) {
+		if (mLinkEncrypted != (mAuthenticatedSector >= 0)) {
+			if (getState() == STATE_ACTIVE) {
+				goIdle();
+				onReset();
+			}
+			return 0;
+		}
+		return super.onFrame(frame, frameBits, response);
+	}
+
+	@Override
+	protected int onActiveFrame(byte[] frame, int frameBits, byte[] response) {
+		if (frameBits != 32 || frame[0] != MiFareDevice.Command.READ || !Pn512Simulator.checkCrcA(frame, 4)) {
+			return 0;
+		}
+		int block = frame[1] & 0xff;
+		if (block >= SECTOR_COUNT * BLOCKS_PER_SECTOR || block / BLOCKS_PER_SECTOR != mAuthenticatedSector) {
+			response[0] = NAK;
+			goIdle();
+			onReset();
+			return 4;
+		}
+
+		mReadCount++;
+		System.arraycopy(mMemory, block * BLOCK_SIZE, response, 0, BLOCK_SIZE);
+		if (block % BLOCKS_PER_SECTOR == BLOCKS_PER_SECTOR - 1) {
+			// key A never reads back
+			Arrays.fill(response, 0, 6, (byte) 0);
+		}
+		return Pn512Simulator.appendCrcA(response, BLOCK_SIZE) * 8;
+	}
+
+	@Override
+	protected void onReset() {
+		mAuthenticatedSector = -1;
+	}
+
+	private static int trailerOffset(int sector) {
+		return (sector * BLOCKS_PER_SECTOR + BLOCKS_PER_SECTOR - 1) * BLOCK_SIZE;
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NdefParserTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MB = 0x80;
+	private static final int ME = 0x40;
+	private static final int CF = 0x20;
+	private static final int SR = 0x10;
+	private static final int IL = 0x08;
+
+	private final NdefParser mParser = new NdefParser(8);
+
+	@Test
+	public void testTextRecord() throws Exception {
+		byte[] payload = bytes(0x02, 'e', 'n', 'h', 'i');
+		byte[] tag = tlvArea(ndefTlv(record(MB | ME | SR | NdefParser.Tnf.WELL_KNOWN, "T", null, payload)));
+
+		assertEquals(NdefParser.Status.COMPLETE, mParser.parse(tag, tag.length));
+		assertEquals(1, mParser.getRecordCount());
+		assertEquals(NdefParser.Tnf.WELL_KNOWN, mParser.getTnf(0));
+		assertTrue(mParser.isMessageBegin(0));
+		assertTrue(mParser.isMessageEnd(0));
+		assertTrue(mParser.typeEquals(0, "T".getBytes(UTF_8)));
+		assertEquals(0, mParser.getIdLength(0));
+		assertPayload(payload, tag, 0);
+		// TLV header, then record header, type
+		assertEquals(18, mParser.getMessageOffset());
+		assertEquals(18 + 3 + 1, mParser.getPayloadOffset(0));
+	}
+
+	@Test
+	public void testSkipsOtherTlvs() throws Exception {
+		byte[] payload = "x".getBytes(UTF_8);
+		byte[] tag = tlvArea(
+				bytes(0x00, 0x01, 0x03, 0xa0, 0x10, 0x44, 0x00, 0xfd, 0x02, 0x55, 0x55, 0x02, 0x03, 0x01, 0x02, 0x03),
+				ndefTlv(record(MB | ME | SR | NdefParser.Tnf.MEDIA, "text/plain", null, payload)));
+
+		assertEquals(NdefParser.Status.COMPLETE, mParser.parse(tag, tag.length));
+		assertEquals(2, mParser.getControlTlvCount());
+		assertEquals(NdefParser.TlvType.LOCK_CONTROL, mParser.getControlTlvType(0));
+		assertEquals(19, mParser.getControlTlvOffset(0));
+		assertEquals(NdefParser.TlvType.MEMORY_CONTROL, mParser.getControlTlvType(1));
+		assertTrue(mParser.typeEquals(0, "text/plain".getBytes(UTF_8)));
+		assertPayload(payload, tag, 0);
+	}
+
+	@Test
+	public void testLongRecordAndThreeByteTlvLength() throws Exception {
+		byte[] payload = pattern(3000);
+		byte[] tag = tlvArea(ndefTlv(record(MB | ME | IL | NdefParser.Tnf.EXTERNAL, "example.com:t", "id7", payload)));
+
+		assertEquals(NdefParser.Status.COMPLETE, mParser.parse(tag, tag.length));
+		assertEquals(20, mParser.getMessageOffset());
+		assertEquals(3000, mParser.getPayloadLength(0));
+		assertEquals(3, mParser.getIdLength(0));
+		assertEquals("id7", new String(tag, mParser.getIdOffset(0), 3, UTF_8));
+		assertPayload(payload, tag, 0);
+	}
+
+	@Test
+	public void testChunkedRecord() throws Exception {
+		byte[] tag = tlvArea(ndefTlv(
+				record(MB | CF | SR | NdefParser.Tnf.MEDIA, "a/b", null, bytes(1, 2, 3)),
+				record(CF | SR | NdefParser.Tnf.UNCHANGED, null, null, bytes(4, 5)),
+				record(SR | NdefParser.Tnf.UNCHANGED, null, null, bytes(6)),
+				record(ME | SR | NdefParser.Tnf.EMPTY, null, null, new byte[0])));
+
+		assertEquals(NdefParser.Status.COMPLETE, mParser.parse(tag, tag.length));
+		assertEquals(4, mParser.getRecordCount());
+		assertTrue(mParser.isChunked(0));
+		assertTrue(mParser.isChunked(1));
+		assertFalse(mParser.isChunked(2));
+
+		byte[] joined = new byte[16];
+		assertEquals(6, mParser.copyPayload(0, joined, 0));
+		assertArrayEquals(bytes(1, 2, 3, 4, 5, 6), Arrays.copyOf(joined, 6));
+	}
+
+	@Test
+	public void testIncrementalStopsAtEndOfMessage() throws Exception {
+		byte[] message = ndefTlv(
+				record(MB | SR | NdefParser.Tnf.WELL_KNOWN, "U", null, bytes(0x04, 'a', '.', 'b')),
+				record(ME | NdefParser.Tnf.MEDIA, "a/b", null, pattern(400)));
+		byte[] tag = tlvArea(message, pattern(1000));
+		int messageEnd = 16 + message.length;
+
+		// four bytes at a time, as pages come in
+		int length = 16;
+		int status;
+		while ((status = mParser.parse(tag, length)) == NdefParser.Status.NEED_MORE) {
+			assertTrue(mParser.getBytesNeeded() > length);
+			assertTrue(mParser.getBytesNeeded() <= messageEnd);
+			if (mParser.getMessageOffset() >= 0) {
+				assertEquals(messageEnd, mParser.getBytesNeeded());
+			}
+			length += 4;
+		}
+		assertEquals(NdefParser.Status.COMPLETE, status);
+		assertTrue(length < messageEnd + 4);
+		assertEquals(2, mParser.getRecordCount());
+		assertPayload(pattern(400), tag, 1);
+	}
+
+	@Test
+	public void testEmptyMessageAndNoNdef() throws Exception {
+		byte[] empty = tlvArea(bytes(0x03, 0x00, 0xfe));
+		assertEquals(NdefParser.Status.COMPLETE, mParser.parse(empty, empty.length));
+		assertEquals(0, mParser.getRecordCount());
+
+		mParser.reset(NdefParser.TYPE_2_TLV_OFFSET);
+		byte[] blank = tlvArea(bytes(0x00, 0x00, 0xfe));
+		assertEquals(NdefParser.Status.NO_NDEF, mParser.parse(blank, blank.length));
+		assertEquals(-1, mParser.getMessageOffset());
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		// record longer than its TLV
+		assertStatus(NdefParser.Status.MALFORMED, bytes(0x03, 0x05, MB | ME | SR | 0x01, 0x01, 0x05, 'T', 0x00));
+		// no ME on the last record
+		assertStatus(NdefParser.Status.MALFORMED, ndefTlv(record(MB | SR | 0x01, "T", null, bytes(0))));
+		// MB on the second record
+		assertStatus(NdefParser.Status.MALFORMED, ndefTlv(
+				record(MB | SR | 0x01, "T", null, bytes(0)), record(MB | ME | SR | 0x01, "T", null, bytes(0))));
+		// chunk with a type of its own
+		assertStatus(NdefParser.Status.MALFORMED, ndefTlv(
+				record(MB | CF | SR | 0x02, "a/b", null, bytes(0)), record(ME | SR | 0x06, "a/b", null, bytes(0))));
+		// data after the last record
+		byte[] record = record(MB | ME | SR | 0x01, "T", null, bytes(0));
+		assertStatus(NdefParser.Status.MALFORMED, concat(bytes(0x03, record.length + 1), record, bytes(0)));
+	}
+
+	@Test
+	public void testTooManyRecords() throws Exception {
+		NdefParser parser = new NdefParser(2);
+		byte[] tag = tlvArea(ndefTlv(
+				record(MB | SR | 0x01, "T", null, bytes(0)),
+				record(SR | 0x01, "T", null, bytes(0)),
+				record(ME | SR | 0x01, "T", null, bytes(0))));
+		assertEquals(NdefParser.Status.TOO_MANY_RECORDS, parser.parse(tag, tag.length));
+		assertEquals(2, parser.getRecordCount());
+	}
+
+	private void assertStatus(int expected, byte[] tlvs) {
+		byte[] tag = tlvArea(tlvs);
+		mParser.reset(NdefParser.TYPE_2_TLV_OFFSET);
+		assertEquals(expected, mParser.parse(tag, tag.length));
+	}
+
+	private void assertPayload(byte[] expected, byte[] tag, int record) {
+		int offset = mParser.getPayloadOffset(record);
+		assertArrayEquals(expected, Arrays.copyOfRange(tag, offset, offset + mParser.getPayloadLength(record)));
+	}
+
+	/**
+	 * Tag memory: 16 bytes of UID, lock bytes and CC, then the TLVs and a Terminator TLV.
+	 */
+	private static byte[] tlvArea(byte[]... tlvs) {
+		return concat(new byte[16], concat(tlvs), bytes(0xfe));
+	}
+
+	static byte[] ndefTlv(byte[]... records) {
+		byte[] message = concat(records);
+		byte[] header = message.length < 0xff
+				? bytes(0x03, message.length)
+				: bytes(0x03, 0xff, message.length >> 8, message.length);
+		return concat(header, message);
+	}
+
+	static byte[] record(int header, String type, String id, byte[] payload) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] typeBytes = type == null ? new byte[0] : type.getBytes(UTF_8);
+		byte[] idBytes = id == null ? new byte[0] : id.getBytes(UTF_8);
+		out.write(header);
+		out.write(typeBytes.length);
+		if ((header & SR) != 0) {
+			out.write(payload.length);
+		} else {
+			out.write(payload.length >>> 24);
+			out.write(payload.length >>> 16);
+			out.write(payload.length >>> 8);
+			out.write(payload.length);
+		}
+		if ((header & IL) != 0) {
+			out.write(idBytes.length);
+		}
+		out.write(typeBytes, 0, typeBytes.length);
+		out.write(idBytes, 0, idBytes.length);
+		out.write(payload, 0, payload.length);
+		return out.toByteArray();
+	}
+
+	static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + 3);
+		}
+		return data;
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] data = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			data[i] = (byte) values[i];
+		}
+		return data;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+}
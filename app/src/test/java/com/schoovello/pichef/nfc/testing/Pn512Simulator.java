@@ -0,0 +1,1399 @@
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.Nullable;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.Command;
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.ConstantData;
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Behavioural model of a PN512 behind the SPI address-byte protocol used by
+ * {@link Pn512NfcDevice}: register file, 64-byte FIFO with water level alerts, CRC coprocessor,
+ * self test, command state machine, IRQ pin and an ISO14443A field holding any number of
+ * {@link VirtualTag}s, with bit-level collisions when several respond at once.<p/>
+ * With FeliCa framing selected in TxModeReg and RxModeReg, only {@link FelicaTag}s hear the
+ * reader. Polling responses arrive in the time slots the cards chose, with responses that share
+ * a slot garbled together, and RxMultiple keeps the receiver on from one slot to the next.<p/>
+ * In card operation mode the chip sits in the field of a {@link VirtualReader} instead. AUTOCOLL
+ * answers its activation as the card described by the Configure buffer, then hands the frames
+ * that follow to the host through the FIFO, for the host to answer with StartSend.<p/>
+ * Time is modelled by {@link SimulatorTiming}; {@link #getElapsedNanos()} reports how long the
+ * traffic seen so far would have taken on real hardware.
+ */
+public class Pn512Simulator implements SpiPort {
+
+	public static final int FIFO_SIZE = 64;
+
+	private static final int FRAME_CAPACITY = 1024;
+
+	private static final byte COMM_IRQ_TX = 0b0100_0000;
+	private static final byte COMM_IRQ_RX = 0b0010_0000;
+	private static final byte COMM_IRQ_IDLE = 0b0001_0000;
+	private static final byte COMM_IRQ_HI_ALERT = 0b0000_1000;
+	private static final byte COMM_IRQ_LO_ALERT = 0b0000_0100;
+	private static final byte COMM_IRQ_ERR = 0b0000_0010;
+	private static final byte COMM_IRQ_TIMER = 0b0000_0001;
+
+	private static final byte T_MODE_T_AUTO = (byte) 0b1000_0000;
+	private static final long TIMER_CLOCK_HZ = 13_560_000;
+
+	private static final byte DIV_IRQ_CRC = 0b0000_0100;
+
+	private static final byte ERROR_PROTOCOL = 0b0000_0001;
+	private static final byte ERROR_CRC = 0b0000_0100;
+	private static final byte ERROR_COLL = 0b0000_1000;
+	private static final byte ERROR_BUFFER_OVFL = 0b0001_0000;
+
+	private static final byte STATUS_2_MF_CRYPTO1_ON = 0b0000_1000;
+
+	/**
+	 * Bytes on the air during MFAuthent: the authentication command and CRC, the card's nonce, the
+	 * reader's token and the card's token.
+	 */
+	private static final int AUTH_BYTES = 4 + 4 + 8 + 4;
+
+	private static final int MODE_FRAMING_MASK = 0b0000_0011;
+	private static final int MODE_FRAMING_FELICA = 0b0000_0010;
+	private static final byte RX_MODE_RX_MULTIPLE = 0b0000_0100;
+
+	/**
+	 * 48-bit preamble and 16-bit sync code in front of every FeliCa frame.
+	 */
+	private static final int FELICA_PREAMBLE_BITS = 64;
+
+	/**
+	 * Start of the first polling time slot after the end of the request, and the length of each.
+	 */
+	private static final long FELICA_POLLING_DELAY_NANOS = 2_417_000;
+	private static final long FELICA_TIME_SLOT_NANOS = 1_208_000;
+	private static final int FELICA_MAX_SLOTS = 16;
+
+	private static final int MODEM_IDLE = 0b000;
+	private static final int MODEM_WAIT_START_SEND = 0b001;
+	private static final int MODEM_TRANSMITTING = 0b011;
+	private static final int MODEM_RECEIVING = 0b110;
+
+	private final SimulatorTiming mTiming;
+
+	private final byte[] mRegs = new byte[64];
+
+	private final byte[] mFifo = new byte[FIFO_SIZE];
+	private int mFifoHead;
+	private int mFifoCount;
+
+	private final byte[] mConfigBuffer = new byte[25];
+
+	private boolean mCrcActive;
+	private int mCrc;
+	private long mCrcNextByteNanos = -1;
+
+	private final List<VirtualTag> mTags = new ArrayList<>();
+	private boolean mFieldOn;
+
+	private final byte[] mTxFrame = new byte[FRAME_CAPACITY];
+	private final byte[] mResponse = new byte[FRAME_CAPACITY];
+	private final byte[] mRxFrame = new byte[FRAME_CAPACITY];
+	private final byte[] mAlignedFrame = new byte[FRAME_CAPACITY + 1];
+	private int mRxBits;
+	private int mRxCollisionBit = -1;
+
+	/**
+	 * FeliCa responses by time slot; a reply to anything but polling goes in slot 0.
+	 */
+	private final byte[][] mSlotFrames = new byte[FELICA_MAX_SLOTS][FRAME_CAPACITY];
+	private final int[] mSlotBits = new int[FELICA_MAX_SLOTS];
+	private boolean mSlotPolling;
+	private long mSlotBaseNanos;
+	private int mNextSlot = FELICA_MAX_SLOTS;
+
+	// transmission in progress: FIFO bytes are sent one at a time and the frame ends when the
+	// FIFO runs dry at a byte boundary
+	private boolean mTxActive;
+	private long mTxStartNanos;
+	private long mTxNextByteNanos = -1;
+	private int mTxLength;
+
+	// reception in progress: bytes enter the FIFO as they are received
+	private long mRxStartNanos;
+	private long mRxNextByteNanos = -1;
+	private long mRxCompleteAtNanos = -1;
+	private int mRxAlign;
+	private int mRxByteCount;
+	private int mRxBytesPushed;
+	private int mRxTotalBits;
+	private byte mRxErrors;
+	private byte mRxCollReg;
+
+	// card operation mode: an external reader's field, and the card AUTOCOLL plays until selected
+	@Nullable
+	private VirtualReader mExternalReader;
+	@Nullable
+	private Iso14443aTag mAutocollTarget;
+	private final byte[] mReaderCommand = new byte[FRAME_CAPACITY];
+	private int mReaderCommandBits;
+	private long mReaderCommandAtNanos = -1;
+	private long mReaderCommandEndNanos;
+	private long mReaderDeadlineNanos = -1;
+	private long mReaderTimeoutCount;
+
+	// the timer unit: only its expiry is modelled, not the counter registers
+	private long mTimerExpiresAtNanos = -1;
+
+	private int mSpiFrequencyHz = 1_000_000;
+	private long mNowNanos;
+	private final long mRealTimeBaseNanos = System.nanoTime();
+
+	private long mTransferCount;
+	private long mBytesTransferred;
+	private final long[] mReadCounts = new long[64];
+	private long mFramesTransmitted;
+
+	private final SimIrqLine mIrqLine = new SimIrqLine();
+	private boolean mIrqAsserted;
+
+	private long mTransferStartNanos;
+
+	@Nullable
+	private ScheduledExecutorService mEventScheduler;
+
+	public Pn512Simulator() {
+		this(new SimulatorTiming());
+	}
+
+	public Pn512Simulator(SimulatorTiming timing) {
+		mTiming = timing;
+		reset();
+	}
+
+	// ---- field ----
+
+	public synchronized void addTag(VirtualTag tag) {
+		mTags.add(tag);
+		tag.onFieldChanged(mFieldOn);
+	}
+
+	public synchronized void removeTag(VirtualTag tag) {
+		if (mTags.remove(tag)) {
+			tag.onFieldChanged(false);
+		}
+	}
+
+	public synchronized void removeAllTags() {
+		for (VirtualTag tag : mTags) {
+			tag.onFieldChanged(false);
+		}
+		mTags.clear();
+	}
+
+	public synchronized boolean isFieldOn() {
+		return mFieldOn;
+	}
+
+	/**
+	 * Puts the chip in the field of an external reader, which starts sending commands right away,
+	 * or takes it out of the field with {@code null}. Only a chip in card operation mode answers.
+	 */
+	public synchronized void setExternalReader(@Nullable VirtualReader reader) {
+		processEvents();
+		if (reader == null) {
+			leaveExternalField();
+		} else {
+			mExternalReader = reader;
+			Arrays.fill(mReaderCommand, (byte) 0);
+			scheduleReaderCommand(reader.nextCommand(null, 0, -1, mReaderCommand), now() + mTiming.readerGuardNanos);
+		}
+		updateIrqPin();
+		scheduleEvent(nextEventNanos());
+	}
+
+	/**
+	 * @return how many times the external reader gave up waiting for a response.
+	 */
+	public synchronized long getReaderTimeoutCount() {
+		return mReaderTimeoutCount;
+	}
+
+	// ---- statistics ----
+
+	public synchronized long getElapsedNanos() {
+		return now();
+	}
+
+	public synchronized long getTransferCount() {
+		return mTransferCount;
+	}
+
+	public synchronized long getBytesTransferred() {
+		return mBytesTransferred;
+	}
+
+	public synchronized long getReadCount(byte regAddress) {
+		return mReadCounts[regAddress & 0b0011_1111];
+	}
+
+	public synchronized long getFramesTransmitted() {
+		return mFramesTransmitted;
+	}
+
+	public synchronized int getSpiFrequency() {
+		return mSpiFrequencyHz;
+	}
+
+	/**
+	 * Reads a register the way the host would see it, without advancing time or counting a
+	 * transfer.
+	 */
+	public synchronized byte peekRegister(byte regAddress) {
+		if (regAddress == RegisterAddress.FIFO_DATA_REG) {
+			return mFifoCount > 0 ? mFifo[mFifoHead] : 0;
+		}
+		return readRegisterValue(regAddress & 0b0011_1111);
+	}
+
+	public IrqLine getIrqLine() {
+		return mIrqLine;
+	}
+
+	// ---- SpiPort ----
+
+	@Override
+	public synchronized void setFrequency(int frequencyHz) {
+		mSpiFrequencyHz = frequencyHz;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int length) {
+		beginTransfer(length);
+
+		if ((buffer[0] & 0b1000_0000) != 0) {
+			throw new IllegalStateException("write() called with a read address");
+		}
+
+		int address = (buffer[0] >> 1) & 0b0011_1111;
+		for (int i = 1; i < length; i++) {
+			clockBytes(i + 1);
+			writeRegisterValue(address, buffer[i]);
+		}
+
+		endTransfer(length);
+	}
+
+	@Override
+	public synchronized void transfer(byte[] txBuffer, byte[] rxBuffer, int length) {
+		beginTransfer(length);
+
+		Arrays.fill(rxBuffer, 0, length, (byte) 0);
+		if ((txBuffer[0] & 0b1000_0000) == 0) {
+			// write frame clocked with a full-duplex transfer
+			int address = (txBuffer[0] >> 1) & 0b0011_1111;
+			for (int i = 1; i < length; i++) {
+				clockBytes(i + 1);
+				writeRegisterValue(address, txBuffer[i]);
+			}
+		} else {
+			// each byte clocked in carries the address whose value is clocked out next
+			for (int i = 0; i < length - 1; i++) {
+				int address = (txBuffer[i] >> 1) & 0b0011_1111;
+				clockBytes(i + 1);
+				mReadCounts[address]++;
+				rxBuffer[i + 1] = readAndConsumeRegister(address);
+			}
+			if (mSpiFrequencyHz > mTiming.maxSpiFrequencyHz) {
+				for (int i = 1; i < length; i++) {
+					if (mTiming.garbledRegister < 0) {
+						rxBuffer[i] = (byte) (0x80 | (rxBuffer[i] & 0xff) >>> 1);
+					} else if (((txBuffer[i - 1] >> 1) & 0b0011_1111) == mTiming.garbledRegister) {
+						rxBuffer[i] = (byte) 0xff;
+					}
+				}
+			}
+		}
+
+		endTransfer(length);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (mEventScheduler != null) {
+			mEventScheduler.shutdownNow();
+			mEventScheduler = null;
+		}
+	}
+
+	// ---- time ----
+
+	private long now() {
+		if (mTiming.realTime) {
+			mNowNanos = Math.max(mNowNanos, System.nanoTime() - mRealTimeBaseNanos);
+		}
+		return mNowNanos;
+	}
+
+	private void advance(long nanos) {
+		advanceTo(now() + nanos);
+	}
+
+	private void advanceTo(long target) {
+		if (mTiming.realTime && !mTiming.blockingTransfers) {
+			//noinspection StatementWithEmptyBody
+			while (System.nanoTime() - mRealTimeBaseNanos < target) {
+				// busy-wait: SPI transfers block the calling thread
+			}
+		}
+		mNowNanos = Math.max(mNowNanos, target);
+	}
+
+	private void beginTransfer(int length) {
+		mTransferCount++;
+		mBytesTransferred += length;
+		mTransferStartNanos = now() + mTiming.spiOverheadNanos;
+	}
+
+	/**
+	 * Advances to the end of the first {@code count} bytes of the current transfer, letting the
+	 * chip run in the meantime: each byte takes effect when it has been clocked in, not when the
+	 * whole transfer completes.
+	 */
+	private void clockBytes(int count) {
+		advanceTo(mTransferStartNanos + count * 8L * 1_000_000_000L / mSpiFrequencyHz);
+		processEvents();
+	}
+
+	private void endTransfer(int length) {
+		clockBytes(length);
+		updateAlerts();
+		updateIrqPin();
+
+		if (mTiming.realTime && mTiming.blockingTransfers) {
+			long remainingNanos;
+			while ((remainingNanos = mNowNanos - (System.nanoTime() - mRealTimeBaseNanos)) > 0) {
+				LockSupport.parkNanos(remainingNanos);
+			}
+		}
+	}
+
+	private long nextEventNanos() {
+		long next = -1;
+		if (mTxNextByteNanos >= 0) {
+			next = mTxNextByteNanos;
+		}
+		if (mRxNextByteNanos >= 0 && (next < 0 || mRxNextByteNanos < next)) {
+			next = mRxNextByteNanos;
+		}
+		if (mRxCompleteAtNanos >= 0 && (next < 0 || mRxCompleteAtNanos < next)) {
+			next = mRxCompleteAtNanos;
+		}
+		if (mCrcNextByteNanos >= 0 && (next < 0 || mCrcNextByteNanos < next)) {
+			next = mCrcNextByteNanos;
+		}
+		if (mTimerExpiresAtNanos >= 0 && (next < 0 || mTimerExpiresAtNanos < next)) {
+			next = mTimerExpiresAtNanos;
+		}
+		if (mReaderCommandAtNanos >= 0 && (next < 0 || mReaderCommandAtNanos < next)) {
+			next = mReaderCommandAtNanos;
+		}
+		if (mReaderDeadlineNanos >= 0 && (next < 0 || mReaderDeadlineNanos < next)) {
+			next = mReaderDeadlineNanos;
+		}
+		return next;
+	}
+
+	/**
+	 * Runs every event that is due by now, in order.
+	 */
+	private void processEvents() {
+		final long now = now();
+		long next;
+		boolean processed = false;
+		while ((next = nextEventNanos()) >= 0 && next <= now) {
+			if (next == mTxNextByteNanos) {
+				onTxByteBoundary(next);
+			} else if (next == mRxNextByteNanos) {
+				onRxByte();
+			} else if (next == mCrcNextByteNanos) {
+				onCrcByte(next);
+			} else if (next == mTimerExpiresAtNanos) {
+				mTimerExpiresAtNanos = -1;
+				setCommIrq(COMM_IRQ_TIMER);
+			} else if (next == mReaderCommandAtNanos) {
+				onReaderCommand(next);
+			} else if (next == mReaderDeadlineNanos) {
+				onReaderTimeout(next);
+			} else {
+				onReceptionComplete();
+			}
+			updateAlerts();
+			processed = true;
+		}
+		if (processed) {
+			updateIrqPin();
+			scheduleEvent(nextEventNanos());
+		}
+	}
+
+	/**
+	 * Jumps to the next pending event, as if the host had been waiting for it.
+	 */
+	private void skipToNextEvent() {
+		long next = nextEventNanos();
+		if (next >= 0 && next > mNowNanos) {
+			mNowNanos = next;
+		}
+		processEvents();
+	}
+
+	private void scheduleEvent(long atNanos) {
+		if (atNanos < 0 || !mTiming.realTime || mIrqLine.mListener == null) {
+			return;
+		}
+		if (mEventScheduler == null) {
+			mEventScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Pn512SimulatorEvents");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		mEventScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Pn512Simulator.this) {
+					processEvents();
+				}
+			}
+		}, Math.max(0, atNanos - now()), TimeUnit.NANOSECONDS);
+	}
+
+	// ---- registers ----
+
+	private void reset() {
+		Arrays.fill(mRegs, (byte) 0);
+		mRegs[RegisterAddress.COMMAND_REG] = (byte) 0x20;
+		mRegs[RegisterAddress.COM_I_EN_REG] = (byte) 0x80;
+		mRegs[RegisterAddress.COMM_IRQ_REG] = (byte) 0x14;
+		mRegs[RegisterAddress.WATER_LEVEL_REG] = (byte) 0x08;
+		mRegs[RegisterAddress.COLL_REG] = (byte) 0x80;
+		mRegs[RegisterAddress.MODE_REG] = (byte) 0x3b;
+		mRegs[RegisterAddress.TX_CONTROL_REG] = (byte) 0x80;
+		mRegs[RegisterAddress.TX_SEL_REG] = (byte) 0x10;
+		mRegs[RegisterAddress.RX_SEL_REG] = (byte) 0x84;
+		mRegs[RegisterAddress.RX_THRESHOLD_REG] = (byte) 0x84;
+		mRegs[RegisterAddress.DEMOD_REG] = (byte) 0x4d;
+		mRegs[RegisterAddress.MIF_NFC_REG] = (byte) 0x62;
+		mRegs[RegisterAddress.SERIAL_SPEED_REG] = (byte) 0xeb;
+		mRegs[RegisterAddress.CRC_RESULT_MSB_REG] = (byte) 0xff;
+		mRegs[RegisterAddress.CRC_RESULT_LSB_REG] = (byte) 0xff;
+		mRegs[RegisterAddress.MOD_WIDTH_REG] = (byte) 0x26;
+		mRegs[RegisterAddress.RF_CFG_REG] = (byte) 0x48;
+		mRegs[RegisterAddress.GS_N_ON_REG] = (byte) 0x88;
+		mRegs[RegisterAddress.CW_GS_P_REG] = (byte) 0x20;
+		mRegs[RegisterAddress.MOD_GS_P_REG] = (byte) 0x20;
+		mRegs[RegisterAddress.VERSION_REG] = (byte) 0x82;
+
+		mFifoHead = 0;
+		mFifoCount = 0;
+		mCrcActive = false;
+		stopTransceiving();
+		mTimerExpiresAtNanos = -1;
+		setField(false);
+	}
+
+	private byte readAndConsumeRegister(int address) {
+		if (address == RegisterAddress.FIFO_DATA_REG) {
+			return fifoPop();
+		}
+		return readRegisterValue(address);
+	}
+
+	private byte readRegisterValue(int address) {
+		switch (address) {
+			case RegisterAddress.FIFO_LEVEL_REG:
+				return (byte) mFifoCount;
+			case RegisterAddress.STATUS_1_REG:
+				return status1();
+			default:
+				return mRegs[address];
+		}
+	}
+
+	private void writeRegisterValue(int address, byte value) {
+		switch (address) {
+			case RegisterAddress.COMMAND_REG: {
+				int command = value & Command._COMMAND_MASK;
+				mRegs[address] = (byte) ((value & 0b0011_0000) | (mRegs[address] & Command._COMMAND_MASK));
+				if (command != Command.NO_CMD_CHANGE) {
+					startCommand(command);
+				}
+				break;
+			}
+			case RegisterAddress.COMM_IRQ_REG:
+				mRegs[address] = applySetClear(mRegs[address], value, 0b0111_1111);
+				break;
+			case RegisterAddress.DIV_IRQ_REG:
+				mRegs[address] = applySetClear(mRegs[address], value, 0b0001_1111);
+				break;
+			case RegisterAddress.FIFO_DATA_REG:
+				fifoPush(value);
+				if (mCrcActive) {
+					runCrcCoprocessor();
+				}
+				break;
+			case RegisterAddress.FIFO_LEVEL_REG:
+				if ((value & 0b1000_0000) != 0) {
+					mFifoHead = 0;
+					mFifoCount = 0;
+					mRegs[RegisterAddress.ERROR_REG] &= ~ERROR_BUFFER_OVFL;
+				}
+				break;
+			case RegisterAddress.CONTROL_REG:
+				// RxLastBits is read-only, the timer start/stop bits are not stored
+				mRegs[address] = (byte) ((value & 0b0011_0000) | (mRegs[address] & 0b0000_0111));
+				if ((value & 0b1000_0000) != 0) {
+					mTimerExpiresAtNanos = -1;
+				} else if ((value & 0b0100_0000) != 0) {
+					startTimer(now());
+				}
+				break;
+			case RegisterAddress.BIT_FRAMING_REG:
+				mRegs[address] = value;
+				if ((value & 0b1000_0000) != 0 && currentCommand() == Command.TRANSCEIVE && !mTxActive) {
+					startTransmission();
+				}
+				break;
+			case RegisterAddress.COLL_REG:
+				mRegs[address] = (byte) ((value & 0b1000_0000) | (mRegs[address] & 0b0111_1111));
+				break;
+			case RegisterAddress.TX_CONTROL_REG:
+				mRegs[address] = value;
+				setField((value & 0b0000_0011) != 0);
+				break;
+			case RegisterAddress.STATUS_2_REG:
+				// MFCrypto1On can only be cleared by the host, the modem state is read-only
+				mRegs[address] = (byte) ((mRegs[address] & (0b0000_0111 | (value & STATUS_2_MF_CRYPTO1_ON)))
+						| (value & 0b1100_0000));
+				break;
+			case RegisterAddress.ERROR_REG:
+			case RegisterAddress.STATUS_1_REG:
+			case RegisterAddress.CRC_RESULT_MSB_REG:
+			case RegisterAddress.CRC_RESULT_LSB_REG:
+			case RegisterAddress.VERSION_REG:
+				// read-only
+				break;
+			default:
+				mRegs[address] = value;
+				break;
+		}
+	}
+
+	private static byte applySetClear(byte current, byte value, int mask) {
+		if ((value & 0b1000_0000) != 0) {
+			return (byte) (current | (value & mask));
+		} else {
+			return (byte) (current & ~(value & mask));
+		}
+	}
+
+	private byte status1() {
+		int value = 0;
+		if (!mCrcActive || mFifoCount == 0) {
+			value |= 0b0010_0000; // CRCReady
+		}
+		if (mCrc == 0) {
+			value |= 0b0001_0000; // CRCOk
+		}
+		if (mIrqAsserted) {
+			value |= 0b0000_1000; // IRq
+		}
+		if (isHiAlert()) {
+			value |= 0b0000_0010;
+		}
+		if (isLoAlert()) {
+			value |= 0b0000_0001;
+		}
+		return (byte) value;
+	}
+
+	private void setModemState(int state) {
+		mRegs[RegisterAddress.STATUS_2_REG] =
+				(byte) ((mRegs[RegisterAddress.STATUS_2_REG] & ~0b0000_0111) | state);
+	}
+
+	private void setCommIrq(byte flags) {
+		mRegs[RegisterAddress.COMM_IRQ_REG] |= flags;
+	}
+
+	private void setError(byte flags) {
+		mRegs[RegisterAddress.ERROR_REG] |= flags;
+		setCommIrq(COMM_IRQ_ERR);
+	}
+
+	// ---- FIFO ----
+
+	private void fifoPush(byte value) {
+		if (mFifoCount == FIFO_SIZE) {
+			setError(ERROR_BUFFER_OVFL);
+			return;
+		}
+		mFifo[(mFifoHead + mFifoCount) % FIFO_SIZE] = value;
+		mFifoCount++;
+	}
+
+	private byte fifoPop() {
+		if (mFifoCount == 0) {
+			return 0;
+		}
+		byte value = mFifo[mFifoHead];
+		mFifoHead = (mFifoHead + 1) % FIFO_SIZE;
+		mFifoCount--;
+		return value;
+	}
+
+	private int waterLevel() {
+		return mRegs[RegisterAddress.WATER_LEVEL_REG] & 0b0011_1111;
+	}
+
+	private boolean isHiAlert() {
+		return FIFO_SIZE - mFifoCount <= waterLevel();
+	}
+
+	private boolean isLoAlert() {
+		return mFifoCount <= waterLevel();
+	}
+
+	private void updateAlerts() {
+		if (isHiAlert()) {
+			setCommIrq(COMM_IRQ_HI_ALERT);
+		}
+		if (isLoAlert()) {
+			setCommIrq(COMM_IRQ_LO_ALERT);
+		}
+	}
+
+	// ---- IRQ ----
+
+	private void updateIrqPin() {
+		boolean asserted = (mRegs[RegisterAddress.COMM_IRQ_REG] & mRegs[RegisterAddress.COM_I_EN_REG] & 0b0111_1111) != 0
+				|| (mRegs[RegisterAddress.DIV_IRQ_REG] & mRegs[RegisterAddress.DIV_I_EN_REG] & 0b0001_1111) != 0;
+		boolean rising = asserted && !mIrqAsserted;
+		mIrqAsserted = asserted;
+
+		IrqLine.Listener listener = mIrqLine.mListener;
+		if (rising && listener != null) {
+			listener.onIrqAsserted();
+		}
+	}
+
+	private class SimIrqLine implements IrqLine {
+
+		@Nullable
+		volatile Listener mListener;
+
+		@Override
+		public void setListener(@Nullable Listener listener) {
+			mListener = listener;
+		}
+
+		@Override
+		public boolean isAsserted() {
+			synchronized (Pn512Simulator.this) {
+				if (!mTiming.realTime) {
+					while (!mIrqAsserted && nextEventNanos() >= 0) {
+						skipToNextEvent();
+					}
+				} else {
+					processEvents();
+				}
+				return mIrqAsserted;
+			}
+		}
+
+		@Override
+		public void close() {
+			mListener = null;
+		}
+	}
+
+	// ---- commands ----
+
+	private int currentCommand() {
+		return mRegs[RegisterAddress.COMMAND_REG] & Command._COMMAND_MASK;
+	}
+
+	private void setCurrentCommand(int command) {
+		mRegs[RegisterAddress.COMMAND_REG] =
+				(byte) ((mRegs[RegisterAddress.COMMAND_REG] & 0b1111_0000) | command);
+	}
+
+	private void startCommand(int command) {
+		// starting any command cancels the one in progress
+		mCrcActive = false;
+		mCrcNextByteNanos = -1;
+		stopTransceiving();
+		setModemState(MODEM_IDLE);
+		setCurrentCommand(command);
+		mAutocollTarget = null;
+
+		switch (command) {
+			case Command.IDLE:
+				break;
+			case Command.SOFT_RESET:
+				reset();
+				break;
+			case Command.CONFIGURE:
+				if (mFifoCount >= mConfigBuffer.length) {
+					for (int i = 0; i < mConfigBuffer.length; i++) {
+						mConfigBuffer[i] = fifoPop();
+					}
+				} else if (mFifoCount == 0) {
+					for (byte b : mConfigBuffer) {
+						fifoPush(b);
+					}
+				}
+				completeCommand();
+				break;
+			case Command.GENERATE_RANDOM_ID:
+				completeCommand();
+				break;
+			case Command.CALC_CRC:
+				if ((mRegs[RegisterAddress.AUTO_TEST_REG] & 0b0000_1111) == 0b1001) {
+					runSelfTest();
+					completeCommand();
+				} else {
+					mCrcActive = true;
+					mCrc = crcPreset();
+					runCrcCoprocessor();
+				}
+				break;
+			case Command.TRANSMIT:
+				startTransmission();
+				break;
+			case Command.TRANSCEIVE:
+				setModemState(MODEM_WAIT_START_SEND);
+				break;
+			case Command.MF_AUTHENT:
+				runAuthentication();
+				break;
+			case Command.AUTOCOLL:
+				// NFCID1 byte 0 is always 08h, for a random UID
+				mAutocollTarget = new Iso14443aTag(
+						new byte[] { 0x08, mConfigBuffer[2], mConfigBuffer[3], mConfigBuffer[4] },
+						new byte[] { mConfigBuffer[0], mConfigBuffer[1] }, mConfigBuffer[5]);
+				break;
+			default:
+				// unsupported commands terminate straight away
+				completeCommand();
+				break;
+		}
+	}
+
+	private void completeCommand() {
+		advance(mTiming.commandNanos);
+		setCurrentCommand(Command.IDLE);
+		setModemState(MODEM_IDLE);
+		setCommIrq(COMM_IRQ_IDLE);
+	}
+
+	/**
+	 * MFAuthent, with the Crypto1 exchange itself left to the tag: it is given the command, key
+	 * and UID bytes from the FIFO and decides whether they are right. When no card authenticates,
+	 * the command keeps waiting for an answer until the host cancels it.
+	 */
+	private void runAuthentication() {
+		if (mFifoCount < 12 || !mFieldOn) {
+			return;
+		}
+		final byte authCommand = fifoPop();
+		final int block = fifoPop() & 0xff;
+		final byte[] key = new byte[6];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = fifoPop();
+		}
+		final byte[] uid = new byte[4];
+		for (int i = 0; i < uid.length; i++) {
+			uid[i] = fifoPop();
+		}
+
+		boolean authenticated = false;
+		for (VirtualTag tag : mTags) {
+			if (tag instanceof MiFareClassicTag
+					&& ((MiFareClassicTag) tag).authenticate(authCommand, block, key, uid)) {
+				authenticated = true;
+			}
+		}
+		if (!authenticated) {
+			// the card stays silent after the reader's first frame
+			startTimerAuto(now() + 4 * (txByteNanos() + txBitNanos()));
+			return;
+		}
+		advance(AUTH_BYTES * (txByteNanos() + txBitNanos()) + 3 * mTiming.responseDelayNanos);
+		mRegs[RegisterAddress.STATUS_2_REG] |= STATUS_2_MF_CRYPTO1_ON;
+		completeCommand();
+	}
+
+	private void runSelfTest() {
+		mFifoHead = 0;
+		mFifoCount = 0;
+		for (byte b : ConstantData.SELF_TEST_EXPECTED_RESULT) {
+			fifoPush(b);
+		}
+	}
+
+	// ---- CRC coprocessor ----
+
+	private int crcPreset() {
+		switch (mRegs[RegisterAddress.MODE_REG] & 0b0000_0011) {
+			case 0b00:
+				return 0x0000;
+			case 0b01:
+				return 0x6363;
+			case 0b10:
+				return 0xa671;
+			default:
+				return 0xffff;
+		}
+	}
+
+	private void runCrcCoprocessor() {
+		if (mTiming.crcByteNanos > 0) {
+			// onCrcByte() takes the bytes one at a time
+			if (mCrcNextByteNanos < 0 && mFifoCount > 0) {
+				mCrcNextByteNanos = now() + mTiming.crcByteNanos;
+			}
+			return;
+		}
+		while (mFifoCount > 0) {
+			mCrc = crcUpdate(mCrc, fifoPop());
+		}
+		updateCrcResult();
+	}
+
+	private void onCrcByte(long atNanos) {
+		mCrc = crcUpdate(mCrc, fifoPop());
+		mCrcNextByteNanos = mFifoCount > 0 ? atNanos + mTiming.crcByteNanos : -1;
+		if (mFifoCount == 0) {
+			updateCrcResult();
+		}
+	}
+
+	private void updateCrcResult() {
+		mRegs[RegisterAddress.CRC_RESULT_MSB_REG] = (byte) (mCrc >> 8);
+		mRegs[RegisterAddress.CRC_RESULT_LSB_REG] = (byte) mCrc;
+		mRegs[RegisterAddress.DIV_IRQ_REG] |= DIV_IRQ_CRC;
+	}
+
+	private static int crcUpdate(int crc, byte b) {
+		crc ^= b & 0xff;
+		for (int i = 0; i < 8; i++) {
+			crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+		}
+		return crc;
+	}
+
+	/**
+	 * ISO14443A CRC as sent on the air: low byte first.
+	 */
+	public static int crcA(byte[] data, int offset, int length) {
+		int crc = 0x6363;
+		for (int i = offset; i < offset + length; i++) {
+			crc = crcUpdate(crc, data[i]);
+		}
+		return crc;
+	}
+
+	public static boolean checkCrcA(byte[] data, int length) {
+		return length >= 2 && crcA(data, 0, length) == 0;
+	}
+
+	public static int appendCrcA(byte[] data, int length) {
+		int crc = crcA(data, 0, length);
+		data[length] = (byte) crc;
+		data[length + 1] = (byte) (crc >> 8);
+		return length + 2;
+	}
+
+	/**
+	 * FeliCa CRC: CRC-16/CCITT MSB first with a preset of 0000h, sent high byte first.
+	 */
+	public static int crcF(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= (data[i] & 0xff) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			crc &= 0xffff;
+		}
+		return crc;
+	}
+
+	public static boolean checkCrcF(byte[] data, int length) {
+		return length >= 2 && crcF(data, 0, length) == 0;
+	}
+
+	public static int appendCrcF(byte[] data, int length) {
+		int crc = crcF(data, 0, length);
+		data[length] = (byte) (crc >> 8);
+		data[length + 1] = (byte) crc;
+		return length + 2;
+	}
+
+	// ---- RF ----
+
+	private void setField(boolean on) {
+		if (on != mFieldOn) {
+			mFieldOn = on;
+			for (VirtualTag tag : mTags) {
+				tag.onFieldChanged(on);
+			}
+		}
+	}
+
+	private long txBitNanos() {
+		return SimulatorTiming.bitNanos(106_000 << ((mRegs[RegisterAddress.TX_MODE_REG] >> 4) & 0b011));
+	}
+
+	private long rxBitNanos() {
+		return SimulatorTiming.bitNanos(106_000 << ((mRegs[RegisterAddress.RX_MODE_REG] >> 4) & 0b011));
+	}
+
+	private long txByteNanos() {
+		return 8 * txBitNanos();
+	}
+
+	private void stopTransceiving() {
+		mTxActive = false;
+		mTxNextByteNanos = -1;
+		mRxNextByteNanos = -1;
+		mRxCompleteAtNanos = -1;
+		mNextSlot = FELICA_MAX_SLOTS;
+	}
+
+	private void startTransmission() {
+		mRegs[RegisterAddress.ERROR_REG] &= ERROR_BUFFER_OVFL;
+		mRegs[RegisterAddress.COLL_REG] = (byte) ((mRegs[RegisterAddress.COLL_REG] & 0b1000_0000) | 0b0010_0000);
+
+		mTxActive = true;
+		mTxStartNanos = now();
+		mTxNextByteNanos = mTxStartNanos;
+		mTxLength = 0;
+		setModemState(MODEM_TRANSMITTING);
+		processEvents();
+	}
+
+	/**
+	 * The modem fetches the next byte from the FIFO, or ends the frame if there is none.
+	 */
+	private void onTxByteBoundary(long atNanos) {
+		if (mFifoCount > 0 && mTxLength < FRAME_CAPACITY - 2) {
+			mTxFrame[mTxLength++] = fifoPop();
+			mTxNextByteNanos = atNanos + txByteNanos();
+			return;
+		}
+
+		mTxNextByteNanos = -1;
+		mTxActive = false;
+		finishTransmission();
+	}
+
+	private void finishTransmission() {
+		int txLastBits = mRegs[RegisterAddress.BIT_FRAMING_REG] & 0b0000_0111;
+		int length = mTxLength;
+		int txBits = length == 0 ? 0 : (length - 1) * 8 + (txLastBits == 0 ? 8 : txLastBits);
+		final boolean felica = isFelicaFraming();
+		if ((mRegs[RegisterAddress.TX_MODE_REG] & 0b1000_0000) != 0 && txLastBits == 0) {
+			length = felica ? appendCrcF(mTxFrame, length) : appendCrcA(mTxFrame, length);
+			txBits = length * 8;
+		}
+		mFramesTransmitted++;
+
+		long txDoneNanos = mTxStartNanos + (txBits + (felica ? FELICA_PREAMBLE_BITS : 0)) * txBitNanos();
+		setCommIrq(COMM_IRQ_TX);
+		startTimerAuto(txDoneNanos);
+
+		boolean initiator = (mRegs[RegisterAddress.CONTROL_REG] & 0b0001_0000) != 0;
+		mRxBits = 0;
+		mRxCollisionBit = -1;
+		Arrays.fill(mSlotBits, 0);
+		if (mFieldOn && initiator) {
+			if (felica) {
+				collectFelicaResponses(txBits);
+			} else {
+				collectResponses(txBits);
+			}
+		}
+
+		if (currentCommand() == Command.TRANSMIT) {
+			// the cards still act on the frame, but the receiver is off
+			setCurrentCommand(Command.IDLE);
+			setModemState(MODEM_IDLE);
+			setCommIrq(COMM_IRQ_IDLE);
+			return;
+		}
+
+		setModemState(MODEM_RECEIVING);
+		if (felica) {
+			mSlotBaseNanos = txDoneNanos;
+			mNextSlot = 0;
+			startNextSlot();
+		} else if (mRxBits > 0) {
+			startReception(txDoneNanos + mTiming.responseDelayNanos);
+		}
+
+		if (!initiator && mExternalReader != null && mReaderDeadlineNanos >= 0) {
+			// a response in card mode, unless the reader stopped waiting for it
+			deliverToReader(mTxFrame, txBits, mTxStartNanos, txDoneNanos);
+		}
+	}
+
+	private boolean isFelicaFraming() {
+		return (mRegs[RegisterAddress.TX_MODE_REG] & MODE_FRAMING_MASK) == MODE_FRAMING_FELICA;
+	}
+
+	private boolean isRxMultiple() {
+		return (mRegs[RegisterAddress.RX_MODE_REG] & MODE_FRAMING_MASK) == MODE_FRAMING_FELICA
+				&& (mRegs[RegisterAddress.RX_MODE_REG] & RX_MODE_RX_MULTIPLE) != 0;
+	}
+
+	/**
+	 * Hands the frame to the FeliCa cards, and sorts their responses into time slots. Responses
+	 * in the same slot are ORed together, which the CRC check then rejects.
+	 */
+	private void collectFelicaResponses(int txBits) {
+		mSlotPolling = false;
+		for (int t = 0; t < mTags.size(); t++) {
+			VirtualTag tag = mTags.get(t);
+			if (!(tag instanceof FelicaTag)) {
+				continue;
+			}
+			Arrays.fill(mResponse, (byte) 0);
+			int bits = tag.onFrame(mTxFrame, txBits, mResponse);
+			if (bits <= 0) {
+				continue;
+			}
+			int slot = ((FelicaTag) tag).getResponseSlot();
+			if (slot >= 0) {
+				mSlotPolling = true;
+			}
+			slot = Math.max(0, Math.min(slot, FELICA_MAX_SLOTS - 1));
+
+			byte[] slotFrame = mSlotFrames[slot];
+			int byteCount = (bits + 7) / 8;
+			if (mSlotBits[slot] == 0) {
+				System.arraycopy(mResponse, 0, slotFrame, 0, byteCount);
+				mSlotBits[slot] = bits;
+			} else {
+				int slotBytes = (mSlotBits[slot] + 7) / 8;
+				for (int i = 0; i < byteCount; i++) {
+					slotFrame[i] = i < slotBytes ? (byte) (slotFrame[i] | mResponse[i]) : mResponse[i];
+				}
+				mSlotBits[slot] = Math.max(bits, mSlotBits[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Starts receiving the response in the next occupied time slot, if there is one.
+	 */
+	private void startNextSlot() {
+		while (mNextSlot < FELICA_MAX_SLOTS && mSlotBits[mNextSlot] == 0) {
+			mNextSlot++;
+		}
+		if (mNextSlot == FELICA_MAX_SLOTS) {
+			return;
+		}
+		int slot = mNextSlot++;
+		mRxBits = mSlotBits[slot];
+		mRxCollisionBit = -1;
+		System.arraycopy(mSlotFrames[slot], 0, mRxFrame, 0, (mRxBits + 7) / 8);
+		long startNanos = mSlotPolling
+				? mSlotBaseNanos + FELICA_POLLING_DELAY_NANOS + slot * FELICA_TIME_SLOT_NANOS
+				: mSlotBaseNanos + mTiming.responseDelayNanos;
+		// the frame's bytes come after its preamble and sync code
+		startReception(startNanos + FELICA_PREAMBLE_BITS * rxBitNanos());
+	}
+
+	private void collectResponses(int txBits) {
+		Arrays.fill(mRxFrame, (byte) 0);
+		int responders = 0;
+		final boolean encrypted = (mRegs[RegisterAddress.STATUS_2_REG] & STATUS_2_MF_CRYPTO1_ON) != 0;
+		for (int t = 0; t < mTags.size(); t++) {
+			VirtualTag tag = mTags.get(t);
+			if (tag instanceof FelicaTag) {
+				continue;
+			}
+			if (tag instanceof MiFareClassicTag) {
+				((MiFareClassicTag) tag).setLinkEncrypted(encrypted);
+			} else if (encrypted) {
+				// noise to a card that doesn't speak Crypto1
+				continue;
+			}
+			Arrays.fill(mResponse, (byte) 0);
+			int bits = tag.onFrame(mTxFrame, txBits, mResponse);
+			if (bits <= 0) {
+				continue;
+			}
+
+			if (responders == 0) {
+				System.arraycopy(mResponse, 0, mRxFrame, 0, (bits + 7) / 8);
+				mRxBits = bits;
+			} else {
+				int maxBits = Math.max(bits, mRxBits);
+				for (int i = 0; i < maxBits; i++) {
+					boolean differs = i >= bits || i >= mRxBits || getBit(mResponse, i) != getBit(mRxFrame, i);
+					if (differs && (mRxCollisionBit < 0 || i < mRxCollisionBit)) {
+						mRxCollisionBit = i;
+					}
+					if (i < bits && getBit(mResponse, i)) {
+						setBit(mRxFrame, i);
+					}
+				}
+				mRxBits = maxBits;
+			}
+			responders++;
+		}
+	}
+
+	/**
+	 * Works out what the receiver will make of the response, so its bytes can be fed into the
+	 * FIFO as they arrive.
+	 */
+	private void startReception(long startNanos) {
+		int rxAlign = (mRegs[RegisterAddress.BIT_FRAMING_REG] >> 4) & 0b0000_0111;
+		int totalBits = rxAlign + mRxBits;
+		int byteCount = (totalBits + 7) / 8;
+
+		// place the first received bit at bit position RxAlign of the first FIFO byte
+		byte[] aligned = mAlignedFrame;
+		Arrays.fill(aligned, 0, byteCount, (byte) 0);
+		boolean keepAfterColl = (mRegs[RegisterAddress.COLL_REG] & 0b1000_0000) != 0;
+		for (int i = 0; i < mRxBits; i++) {
+			if (mRxCollisionBit >= 0 && i > mRxCollisionBit && !keepAfterColl) {
+				break;
+			}
+			if (getBit(mRxFrame, i)) {
+				setBit(aligned, rxAlign + i);
+			}
+		}
+
+		byte errors = 0;
+		byte collReg = (byte) (mRegs[RegisterAddress.COLL_REG] & 0b1000_0000);
+		if (mRxCollisionBit >= 0) {
+			int collPos = rxAlign + mRxCollisionBit + 1;
+			if (collPos <= 32) {
+				collReg |= collPos & 0b0001_1111;
+			} else {
+				collReg |= 0b0010_0000; // CollPosNotValid
+			}
+			errors |= ERROR_COLL;
+		} else {
+			collReg |= 0b0010_0000;
+		}
+
+		if ((mRegs[RegisterAddress.RX_MODE_REG] & MODE_FRAMING_MASK) == MODE_FRAMING_FELICA) {
+			// the length byte tells the receiver where the frame ends, and the CRC is never stored
+			int frameLength = byteCount > 0 ? aligned[0] & 0xff : 0;
+			if (frameLength == 0 || frameLength + 2 > byteCount) {
+				errors |= ERROR_PROTOCOL;
+				frameLength = Math.max(0, byteCount - 2);
+			} else if ((mRegs[RegisterAddress.RX_MODE_REG] & 0b1000_0000) != 0
+					&& !checkCrcF(aligned, frameLength + 2)) {
+				errors |= ERROR_CRC;
+			}
+			byteCount = frameLength;
+			totalBits = frameLength * 8;
+		} else if ((mRegs[RegisterAddress.RX_MODE_REG] & 0b1000_0000) != 0 && mRxCollisionBit < 0) {
+			if (totalBits % 8 != 0 || !checkCrcA(aligned, byteCount)) {
+				errors |= ERROR_CRC;
+			} else {
+				// the CRC is checked but not stored
+				byteCount -= 2;
+				totalBits -= 16;
+			}
+		}
+
+		mRxAlign = rxAlign;
+		mRxByteCount = byteCount;
+		mRxBytesPushed = 0;
+		mRxTotalBits = totalBits;
+		mRxErrors = errors;
+		mRxCollReg = collReg;
+		mRxStartNanos = startNanos;
+		mRxCompleteAtNanos = startNanos + mRxBits * rxBitNanos();
+		scheduleNextRxByte();
+		if (mTimerExpiresAtNanos > startNanos && (mRegs[RegisterAddress.T_MODE_REG] & T_MODE_T_AUTO) != 0
+				&& !isRxMultiple()) {
+			// TAuto stops the timer at the first bit received, unless RxMultiple is set
+			mTimerExpiresAtNanos = -1;
+		}
+	}
+
+	/**
+	 * Starts the timer if TModeReg.TAuto is set, as the end of a transmission does.
+	 */
+	private void startTimerAuto(long atNanos) {
+		if ((mRegs[RegisterAddress.T_MODE_REG] & T_MODE_T_AUTO) != 0) {
+			startTimer(atNanos);
+		}
+	}
+
+	/**
+	 * Runs the timer from TReloadReg down to zero, at a tick of (2 * TPrescaler + 1) cycles of the
+	 * 13.56 MHz clock, and sets TimerIRq when it gets there.
+	 */
+	private void startTimer(long atNanos) {
+		long prescaler = (mRegs[RegisterAddress.T_MODE_REG] & 0x0f) << 8 | (mRegs[RegisterAddress.T_PRESCALER_REG] & 0xff);
+		long reload = (mRegs[RegisterAddress.T_RELOAD_HI_REG] & 0xff) << 8 | (mRegs[RegisterAddress.T_RELOAD_LO_REG] & 0xff);
+		mTimerExpiresAtNanos = atNanos + (reload + 1) * (2 * prescaler + 1) * 1_000_000_000L / TIMER_CLOCK_HZ;
+		scheduleEvent(nextEventNanos());
+	}
+
+	private void scheduleNextRxByte() {
+		if (mRxBytesPushed >= mRxByteCount) {
+			mRxNextByteNanos = -1;
+			return;
+		}
+		long receivedNanos = mRxStartNanos + ((mRxBytesPushed + 1) * 8L - mRxAlign) * rxBitNanos();
+		mRxNextByteNanos = Math.min(receivedNanos, mRxCompleteAtNanos);
+		if (mRxNextByteNanos == mRxCompleteAtNanos) {
+			// the last byte arrives with the end of the frame
+			mRxNextByteNanos = -1;
+		}
+	}
+
+	private void onRxByte() {
+		fifoPush(mAlignedFrame[mRxBytesPushed++]);
+		scheduleNextRxByte();
+	}
+
+	private void onReceptionComplete() {
+		mRxCompleteAtNanos = -1;
+		mRxNextByteNanos = -1;
+		while (mRxBytesPushed < mRxByteCount) {
+			fifoPush(mAlignedFrame[mRxBytesPushed++]);
+		}
+
+		mRegs[RegisterAddress.COLL_REG] = mRxCollReg;
+		if (mRxErrors != 0) {
+			setError(mRxErrors);
+		}
+		mRegs[RegisterAddress.CONTROL_REG] =
+				(byte) ((mRegs[RegisterAddress.CONTROL_REG] & ~0b0000_0111) | (mRxTotalBits % 8));
+
+		if (isRxMultiple()) {
+			// a copy of the frame's errors follows it, and the receiver stays on until cancelled
+			fifoPush(mRxErrors);
+			setCommIrq(COMM_IRQ_RX);
+			startNextSlot();
+			return;
+		}
+		setModemState(MODEM_WAIT_START_SEND);
+		setCommIrq(COMM_IRQ_RX);
+	}
+
+	// ---- external reader ----
+
+	private boolean isTarget() {
+		return currentCommand() == Command.AUTOCOLL || (currentCommand() == Command.TRANSCEIVE
+				&& (mRegs[RegisterAddress.CONTROL_REG] & 0b0001_0000) == 0);
+	}
+
+	private void scheduleReaderCommand(int bits, long atNanos) {
+		if (bits <= 0) {
+			leaveExternalField();
+			return;
+		}
+		mReaderCommandBits = bits;
+		mReaderCommandAtNanos = atNanos;
+	}
+
+	/**
+	 * The field is gone: card mode ends, as it does on the chip when it loses the external field.
+	 */
+	private void leaveExternalField() {
+		mExternalReader = null;
+		mReaderCommandAtNanos = -1;
+		mReaderDeadlineNanos = -1;
+		if (isTarget()) {
+			stopTransceiving();
+			mAutocollTarget = null;
+			setCurrentCommand(Command.IDLE);
+			setModemState(MODEM_IDLE);
+			setCommIrq(COMM_IRQ_IDLE);
+		}
+	}
+
+	/**
+	 * The reader has started sending its next command. While AUTOCOLL runs, the chip handles it
+	 * without the host; once the card is selected, it is received into the FIFO.
+	 */
+	private void onReaderCommand(long atNanos) {
+		mReaderCommandAtNanos = -1;
+		final int bits = mReaderCommandBits;
+		final long bitNanos = SimulatorTiming.bitNanos(106_000);
+		mReaderCommandEndNanos = atNanos + bits * bitNanos;
+		mReaderDeadlineNanos = mReaderCommandEndNanos + mTiming.readerTimeoutNanos;
+
+		final Iso14443aTag target = mAutocollTarget;
+		if (currentCommand() == Command.AUTOCOLL && target != null) {
+			Arrays.fill(mResponse, (byte) 0);
+			int responseBits = target.onFrame(mReaderCommand, bits, mResponse);
+			if (target.getState() == Iso14443aTag.STATE_ACTIVE) {
+				// selected: from here on the host answers, and the receiver is on
+				mAutocollTarget = null;
+				setCurrentCommand(Command.TRANSCEIVE);
+				setModemState(MODEM_RECEIVING);
+			}
+			if (responseBits > 0) {
+				long startNanos = mReaderCommandEndNanos + mTiming.responseDelayNanos;
+				deliverToReader(mResponse, responseBits, startNanos, startNanos + responseBits * bitNanos);
+			}
+		} else if (currentCommand() == Command.TRANSCEIVE && isTarget() && !mTxActive) {
+			System.arraycopy(mReaderCommand, 0, mRxFrame, 0, (bits + 7) / 8);
+			mRxBits = bits;
+			mRxCollisionBit = -1;
+			setModemState(MODEM_RECEIVING);
+			startReception(atNanos);
+		}
+	}
+
+	private void onReaderTimeout(long atNanos) {
+		mReaderDeadlineNanos = -1;
+		mReaderTimeoutCount++;
+		answerReader(null, 0, -1, atNanos);
+	}
+
+	private void deliverToReader(byte[] response, int bits, long startNanos, long endNanos) {
+		mReaderDeadlineNanos = -1;
+		answerReader(response, bits, startNanos - mReaderCommandEndNanos, endNanos);
+	}
+
+	private void answerReader(@Nullable byte[] response, int bits, long turnaroundNanos, long endNanos) {
+		final VirtualReader reader = mExternalReader;
+		if (reader == null) {
+			return;
+		}
+		Arrays.fill(mReaderCommand, (byte) 0);
+		int nextBits = reader.nextCommand(response, bits, turnaroundNanos, mReaderCommand);
+		scheduleReaderCommand(nextBits, endNanos + mTiming.readerGuardNanos);
+	}
+
+	static boolean getBit(byte[] data, int bit) {
+		return (data[bit >> 3] & (1 << (bit & 7))) != 0;
+	}
+
+	static void setBit(byte[] data, int bit) {
+		data[bit >> 3] |= (byte) (1 << (bit & 7));
+	}
+
+}
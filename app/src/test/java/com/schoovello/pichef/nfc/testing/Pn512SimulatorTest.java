@@ -0,0 +1,122 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Pn512SimulatorTest {
+
+	private static final byte[] UID = { (byte) 0x04, (byte) 0xa1, (byte) 0x3b, (byte) 0x72 };
+	private static final byte[] ATQA_MIFARE_1K = { (byte) 0x04, (byte) 0x00 };
+	private static final byte[] ATQA_ULTRALIGHT = { (byte) 0x44, (byte) 0x00 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+	}
+
+	@Test
+	public void testSelfTest() throws Exception {
+		assertTrue(mDevice.selfTest());
+	}
+
+	@Test
+	public void testCrc() throws Exception {
+		assertTrue(mDevice.testCrc());
+	}
+
+	@Test
+	public void testFifoReadOverloads() throws Exception {
+		mDevice.writeFifo(new byte[] { 9, 1, 2, 3, 4, 9 }, 1, 4);
+
+		byte[] dest = new byte[4];
+		mDevice.readFifo(dest, 1, 2);
+		assertArrayEquals(new byte[] { 0, 1, 2, 0 }, dest);
+
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.put((byte) 7);
+		mDevice.readFifo(buffer, 2);
+		assertArrayEquals(new byte[] { 7, 3, 4, 0 }, buffer.array());
+		assertEquals(3, buffer.position());
+	}
+
+	@Test
+	public void testActivateMiFare() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID, ATQA_ULTRALIGHT, (byte) 0x00));
+		mDevice.softReset();
+
+		assertTrue(mDevice.tryActivateMiFare());
+		assertTrue(mSimulator.isFieldOn());
+		assertEquals(1, mSimulator.getFramesTransmitted());
+	}
+
+	@Test
+	public void testActivateMiFareInterruptMode() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID, ATQA_ULTRALIGHT, (byte) 0x00));
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+
+		assertTrue(mDevice.tryActivateMiFare());
+		assertEquals(1, mSimulator.getReadCount(Pn512NfcDevice.RegisterAddress.COMM_IRQ_REG));
+	}
+
+	@Test
+	public void testActivateMiFareUnexpectedAtqa() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID, ATQA_MIFARE_1K, (byte) 0x08));
+		mDevice.softReset();
+
+		assertFalse(mDevice.tryActivateMiFare());
+	}
+
+	@Test
+	public void testTagReadyAfterWupa() throws Exception {
+		Iso14443aTag tag = new Iso14443aTag(UID, ATQA_ULTRALIGHT, (byte) 0x00);
+		mSimulator.addTag(tag);
+		mDevice.softReset();
+
+		assertTrue(mDevice.tryActivateMiFare());
+		assertEquals(Iso14443aTag.STATE_READY, tag.getState());
+	}
+
+	@Test
+	public void testCollidingAtqa() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID, ATQA_ULTRALIGHT, (byte) 0x00));
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 1, 2, 3, 4 }, ATQA_MIFARE_1K, (byte) 0x08));
+		mDevice.softReset();
+
+		mDevice.tryActivateMiFare();
+		// 0x44 and 0x04 differ in bit 6
+		assertEquals((byte) 0x07, (byte) (mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.COLL_REG) & 0x1f));
+		assertEquals((byte) 0b0000_1000, (byte) (mSimulator.peekRegister(Pn512NfcDevice.RegisterAddress.ERROR_REG) & 0b0000_1000));
+	}
+
+	@Test
+	public void testTimingModel() throws Exception {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = 100_000;
+		Pn512Simulator simulator = new Pn512Simulator(timing);
+		simulator.addTag(new Iso14443aTag(UID, ATQA_ULTRALIGHT, (byte) 0x00));
+		Pn512NfcDevice device = new Pn512NfcDevice(simulator);
+		device.setIrqLine(simulator.getIrqLine());
+
+		device.tryActivateMiFare();
+
+		long transfers = simulator.getTransferCount();
+		long bytes = simulator.getBytesTransferred();
+		long expectedSpiNanos = transfers * timing.spiOverheadNanos + bytes * 8 * 1_000_000_000L / 250_000;
+		// WUPA (7 bits) and ATQA (16 bits) at 106 kbps plus the frame delay time
+		long expectedRfNanos = 23 * SimulatorTiming.bitNanos(106_000) + timing.responseDelayNanos;
+		assertEquals(expectedSpiNanos + expectedRfNanos, simulator.getElapsedNanos());
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReaderPoolTest {
+
+	private static final byte[] ATQA = { (byte) 0x04, (byte) 0x00 };
+
+	private final List<Pn512Simulator> mSimulators = new ArrayList<>();
+	private ReaderPool mPool;
+	private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+
+	@Before
+	public void setUp() throws Exception {
+		mPool = new ReaderPool();
+		mPool.addListener(new ReaderPool.Listener() {
+			@Override
+			public void onTagArrived(int reader, @NonNull Iso14443aCard card) {
+				mEvents.add("arrived " + reader + " " + card.getUidByte(3));
+			}
+
+			@Override
+			public void onTagDeparted(int reader, @NonNull Iso14443aCard card) {
+				mEvents.add("departed " + reader + " " + card.getUidByte(3));
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		mPool.close();
+		for (Pn512Simulator simulator : mSimulators) {
+			simulator.close();
+		}
+	}
+
+	@Test
+	public void testEventsTaggedByReader() throws Exception {
+		BusMonitor spi0 = new BusMonitor();
+		BusMonitor spi1 = new BusMonitor();
+		addReader("SPI0", spi0);
+		addReader("SPI0", spi0);
+		addReader("SPI1", spi1);
+		mPool.setIntervals(5, 10, 20, 0);
+		mPool.start();
+
+		for (int i = 0; i < 3; i++) {
+			mSimulators.get(i).addTag(new Iso14443aTag(new byte[] { 1, 2, 3, (byte) (10 + i) }, ATQA, (byte) 0x08));
+		}
+		Set<String> arrivals = new HashSet<>();
+		for (int i = 0; i < 3; i++) {
+			String event = mEvents.poll(1, TimeUnit.SECONDS);
+			assertNotNull(event);
+			arrivals.add(event);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertTrue(arrivals.contains("arrived " + i + " " + (10 + i)));
+		}
+
+		mSimulators.get(1).removeAllTags();
+		assertEquals("departed 1 11", mEvents.poll(1, TimeUnit.SECONDS));
+
+		mPool.stop();
+		assertEquals(1, spi0.mMaxConcurrent.get());
+		assertEquals(1, spi1.mMaxConcurrent.get());
+		assertTrue(mPool.getReadCount() > 0);
+	}
+
+	@Test
+	public void testAddAfterStartRejected() throws Exception {
+		addReader("SPI0", new BusMonitor());
+		mPool.start();
+		try {
+			addReader("SPI0", new BusMonitor());
+			throw new AssertionError("expected IllegalStateException");
+		} catch (IllegalStateException expected) {
+			// readers are fixed while running
+		}
+		assertEquals(1, mPool.getReaderCount());
+	}
+
+	private void addReader(String bus, BusMonitor monitor) throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		timing.blockingTransfers = true;
+		Pn512Simulator simulator = new Pn512Simulator(timing);
+		mSimulators.add(simulator);
+		mPool.addReader(bus, monitor.wrap(simulator), simulator.getIrqLine());
+	}
+
+	/**
+	 * Records how many transfers are in flight on one bus at once.
+	 */
+	private static class BusMonitor {
+		final AtomicInteger mInFlight = new AtomicInteger();
+		final AtomicInteger mMaxConcurrent = new AtomicInteger();
+
+		SpiPort wrap(final SpiPort port) {
+			return new SpiPort() {
+				@Override
+				public void setFrequency(int frequencyHz) throws IOException {
+					port.setFrequency(frequencyHz);
+				}
+
+				@Override
+				public void write(byte[] buffer, int length) throws IOException {
+					enter();
+					port.write(buffer, length);
+					mInFlight.decrementAndGet();
+				}
+
+				@Override
+				public void transfer(byte[] txBuffer, byte[] rxBuffer, int length) throws IOException {
+					enter();
+					port.transfer(txBuffer, rxBuffer, length);
+					mInFlight.decrementAndGet();
+				}
+
+				@Override
+				public void close() throws IOException {
+					port.close();
+				}
+			};
+		}
+
+		private void enter() {
+			int inFlight = mInFlight.incrementAndGet();
+			int max;
+			while (inFlight > (max = mMaxConcurrent.get()) && !mMaxConcurrent.compareAndSet(max, inFlight)) {
+				// retry
+			}
+		}
+	}
+
+}
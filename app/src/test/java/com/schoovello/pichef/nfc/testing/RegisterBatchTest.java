@@ -0,0 +1,106 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RegisterBatchTest {
+
+	private FakeSpiPort mSpi;
+	private RegisterBatch mBatch;
+
+	@Before
+	public void setUp() {
+		mSpi = new FakeSpiPort();
+		mBatch = new RegisterBatch(mSpi);
+	}
+
+	@Test
+	public void testConsecutiveReadsShareOneTransfer() throws Exception {
+		mSpi.registers[0x0c] = (byte) 0x10;
+		mSpi.registers[0x0d] = (byte) 0x07;
+		mSpi.registers[0x11] = (byte) 0x3f;
+
+		int control = mBatch.readRegister((byte) 0x0c);
+		int bitFraming = mBatch.readRegister((byte) 0x0d);
+		int mode = mBatch.readRegister((byte) 0x11);
+		mBatch.execute();
+
+		assertEquals(1, mSpi.getFrameCount());
+		assertArrayEquals(new byte[] { (byte) 0x98, (byte) 0x9a, (byte) 0xa2, 0x00 }, mSpi.frames.get(0));
+		assertEquals((byte) 0x10, mBatch.getResult(control));
+		assertEquals((byte) 0x07, mBatch.getResult(bitFraming));
+		assertEquals((byte) 0x3f, mBatch.getResult(mode));
+		assertEquals(2, mBatch.getTransfersSaved());
+	}
+
+	@Test
+	public void testWritesToSameRegisterAreMerged() throws Exception {
+		mBatch.writeRegister((byte) 0x09, (byte) 0x01);
+		mBatch.writeData((byte) 0x09, new byte[] { 0x02, 0x03 }, 0, 2);
+		mBatch.writeRegister((byte) 0x01, (byte) 0x0c);
+		mBatch.execute();
+
+		assertEquals(2, mSpi.getFrameCount());
+		assertArrayEquals(new byte[] { 0x12, 0x01, 0x02, 0x03 }, mSpi.frames.get(0));
+		assertArrayEquals(new byte[] { 0x02, 0x0c }, mSpi.frames.get(1));
+		assertEquals(1, mBatch.getTransfersSaved());
+	}
+
+	@Test
+	public void testMixedOperationsPreserveOrder() throws Exception {
+		int before = mBatch.readRegister((byte) 0x0c);
+		mBatch.writeRegister((byte) 0x0c, (byte) 0x55);
+		int after = mBatch.readRegister((byte) 0x0c);
+		mBatch.execute();
+
+		assertEquals(3, mSpi.getFrameCount());
+		assertEquals((byte) 0x00, mBatch.getResult(before));
+		assertEquals((byte) 0x55, mBatch.getResult(after));
+		assertEquals(0, mBatch.getTransfersSaved());
+	}
+
+	@Test
+	public void testBurstReadResultsAreContiguous() throws Exception {
+		mSpi.registers[0x0a] = (byte) 0x05;
+
+		int level = mBatch.readRegister((byte) 0x0a);
+		int burst = mBatch.readData((byte) 0x0a, 3);
+		mBatch.execute();
+
+		assertEquals(1, mSpi.getFrameCount());
+		assertEquals(0, level);
+		assertEquals(1, burst);
+		byte[] dest = new byte[3];
+		mBatch.copyResults(burst, dest, 0, 3);
+		assertArrayEquals(new byte[] { 0x05, 0x05, 0x05 }, dest);
+	}
+
+	@Test
+	public void testClearAllowsReuse() throws Exception {
+		mBatch.readRegister((byte) 0x0c);
+		mBatch.readRegister((byte) 0x0d);
+		mBatch.execute();
+		mBatch.clear();
+		mBatch.readRegister((byte) 0x0c);
+		mBatch.readRegister((byte) 0x0d);
+		mBatch.execute();
+
+		assertEquals(2, mBatch.getTransferCount());
+		assertEquals(2, mBatch.getTransfersSaved());
+	}
+
+	@Test
+	public void testActivationUsesFewerTransfers() throws Exception {
+		Pn512NfcDevice device = new Pn512NfcDevice(mSpi);
+		// report RxIRq and IdleIRq straight away
+		mSpi.registers[0x04] = (byte) 0b0011_0000;
+
+		device.tryActivateMiFare();
+
+		assertEquals(1, device.getSpiTransfersSaved());
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegisterShadowTest {
+
+	private static final int COMM_IRQ_REG = 0x04;
+	private static final int CONTROL_REG = 0x0c;
+	private static final int BIT_FRAMING_REG = 0x0d;
+
+	private FakeSpiPort mSpi;
+	private Pn512NfcDevice mDevice;
+
+	@Before
+	public void setUp() throws Exception {
+		mSpi = new FakeSpiPort();
+		// report RxIRq and IdleIRq straight away
+		mSpi.registers[COMM_IRQ_REG] = (byte) 0b0011_0000;
+		mDevice = new Pn512NfcDevice(mSpi);
+	}
+
+	@Test
+	public void testVolatileRegisters() {
+		assertTrue(RegisterShadow.isVolatile(Pn512NfcDevice.RegisterAddress.COMM_IRQ_REG));
+		assertTrue(RegisterShadow.isVolatile(Pn512NfcDevice.RegisterAddress.STATUS_2_REG));
+		assertTrue(RegisterShadow.isVolatile(Pn512NfcDevice.RegisterAddress.FIFO_LEVEL_REG));
+		assertFalse(RegisterShadow.isVolatile(Pn512NfcDevice.RegisterAddress.MODE_REG));
+		assertFalse(RegisterShadow.isVolatile(Pn512NfcDevice.RegisterAddress.BIT_FRAMING_REG));
+	}
+
+	@Test
+	public void testVolatileRegistersAreNotShadowed() {
+		RegisterShadow shadow = new RegisterShadow();
+		shadow.update(Pn512NfcDevice.RegisterAddress.COMM_IRQ_REG, (byte) 0x30);
+		assertFalse(shadow.isValid(Pn512NfcDevice.RegisterAddress.COMM_IRQ_REG));
+
+		shadow.update(Pn512NfcDevice.RegisterAddress.MODE_REG, (byte) 0x3b);
+		assertTrue(shadow.lookup(Pn512NfcDevice.RegisterAddress.MODE_REG));
+		assertEquals((byte) 0x3b, shadow.get(Pn512NfcDevice.RegisterAddress.MODE_REG));
+	}
+
+	@Test
+	public void testStartSendIsNotShadowed() {
+		RegisterShadow shadow = new RegisterShadow();
+		shadow.update(Pn512NfcDevice.RegisterAddress.BIT_FRAMING_REG, (byte) 0b1000_0111);
+		assertTrue(shadow.isValid(Pn512NfcDevice.RegisterAddress.BIT_FRAMING_REG));
+		assertEquals((byte) 0b0000_0111, shadow.get(Pn512NfcDevice.RegisterAddress.BIT_FRAMING_REG));
+	}
+
+	@Test
+	public void testActivationReadsConfigOnlyOnce() throws Exception {
+		mDevice.tryActivateMiFare();
+		assertEquals(1, mSpi.readCounts[CONTROL_REG]);
+		assertEquals(1, mSpi.readCounts[BIT_FRAMING_REG]);
+
+		mDevice.tryActivateMiFare();
+		mDevice.tryActivateMiFare();
+		assertEquals(1, mSpi.readCounts[CONTROL_REG]);
+		assertEquals(1, mSpi.readCounts[BIT_FRAMING_REG]);
+
+		// 2 misses on the first activation, then 3 hits per activation (including StartSend)
+		assertEquals(2, mDevice.getShadowMissCount());
+		assertEquals(1 + 3 + 3, mDevice.getShadowHitCount());
+	}
+
+	@Test
+	public void testSoftResetInvalidates() throws Exception {
+		mDevice.tryActivateMiFare();
+		mDevice.softReset();
+		mDevice.tryActivateMiFare();
+
+		assertEquals(2, mSpi.readCounts[CONTROL_REG]);
+		assertEquals(2, mSpi.readCounts[BIT_FRAMING_REG]);
+	}
+
+	@Test
+	public void testWritesAreWrittenThrough() throws Exception {
+		mSpi.registers[CONTROL_REG] = (byte) 0x00;
+		mDevice.tryActivateMiFare();
+
+		assertEquals((byte) 0b0001_0000, mSpi.getRegister(CONTROL_REG));
+		assertEquals((byte) 0b1000_0111, mSpi.getRegister(BIT_FRAMING_REG));
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * Timing model for {@link Pn512Simulator}. The SPI clock itself is whatever the driver sets with
+ * {@link SpiPort#setFrequency(int)}.
+ */
+public class SimulatorTiming {
+
+	/**
+	 * Fixed cost of every SPI transfer on top of its wire time (syscall, binder round trip,
+	 * chip-select setup).
+	 */
+	public long spiOverheadNanos = 0;
+
+	/**
+	 * Frame delay time between the end of a reader frame and the start of the card's response.
+	 * ISO14443A specifies about 86 µs at 106 kbps.
+	 */
+	public long responseDelayNanos = 86_000;
+
+	/**
+	 * Time an external {@link VirtualReader} leaves between the end of a card's response, or of
+	 * its own wait for one, and its next command.
+	 */
+	public long readerGuardNanos = 100_000;
+
+	/**
+	 * How long an external {@link VirtualReader} waits for the start of a response before giving
+	 * up on it: the frame waiting time it gives the card.
+	 */
+	public long readerTimeoutNanos = 5_000_000;
+
+	/**
+	 * Time taken by self-terminating commands such as Configure and the self test.
+	 */
+	public long commandNanos = 10_000;
+
+	/**
+	 * Time the CRC coprocessor takes per FIFO byte. {@code 0} takes each byte as soon as it is
+	 * written, so the FIFO can't overflow during CalcCRC.
+	 */
+	public long crcByteNanos = 0;
+
+	/**
+	 * When {@code true}, modelled time is paced against the wall clock: transfers busy-wait for
+	 * their modelled duration and time spent by the host between transfers counts as elapsed.
+	 * When {@code false}, time only advances through modelled activity, and a host waiting on the
+	 * IRQ line skips straight to the next chip event.
+	 */
+	public boolean realTime = false;
+
+	/**
+	 * With {@link #realTime}, transfers sleep until their modelled end instead of busy-waiting,
+	 * the way a blocking SPI call does on hardware. Many simulated devices can then share a few
+	 * CPUs without their transfers slowing each other down.
+	 */
+	public boolean blockingTransfers = false;
+
+	/**
+	 * Fastest SPI clock the wiring carries cleanly. Above it, every byte read from the chip
+	 * arrives one bit late, with MISO's idle-high level shifted in at the top.
+	 */
+	public int maxSpiFrequencyHz = Integer.MAX_VALUE;
+
+	/**
+	 * When set, only reads of this register are garbled above {@link #maxSpiFrequencyHz}, and
+	 * they read back as {@code 0xff}, as if MISO were stuck high for them. {@code -1} garbles
+	 * every read.
+	 */
+	public int garbledRegister = -1;
+
+	public static long bitNanos(int bitRate) {
+		return 1_000_000_000L / bitRate;
+	}
+
+}
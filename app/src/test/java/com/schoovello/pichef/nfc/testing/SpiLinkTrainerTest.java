@@ -0,0 +1,94 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpiLinkTrainerTest {
+
+	private SimulatorTiming mTiming;
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+
+	@Before
+	public void setUp() throws Exception {
+		mTiming = new SimulatorTiming();
+		mSimulator = new Pn512Simulator(mTiming);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+	}
+
+	@Test
+	public void testCleanLinkRunsAtRatedMaximum() throws Exception {
+		SpiLinkTrainer.Result result = new SpiLinkTrainer(mDevice).train();
+
+		assertEquals(Pn512NfcDevice.Values.MAX_SPI_FREQUENCY_HZ, result.getFrequencyHz());
+		assertEquals(Pn512NfcDevice.Values.MAX_SPI_FREQUENCY_HZ, mSimulator.getSpiFrequency());
+		assertTrue(result.getBytesPerSecond() > 0);
+		assertTrue(mDevice.selfTest());
+	}
+
+	@Test
+	public void testBacksOffOneStepBelowFailure() throws Exception {
+		mTiming.maxSpiFrequencyHz = 4_500_000;
+
+		SpiLinkTrainer.Result result = new SpiLinkTrainer(mDevice).train();
+
+		assertTrue(result.isStable());
+		assertEquals(4_000_000, result.getHighestStableHz());
+		assertEquals(2_000_000, result.getFrequencyHz());
+		assertEquals(2_000_000, mDevice.getSpiFrequency());
+		assertTrue(mDevice.selfTest());
+	}
+
+	@Test
+	public void testSelfTestTimeoutFailsStep() throws Exception {
+		// the register and FIFO checks pass, but with the IRQ line gone the self test polls
+		// CommandReg, which then never reads back idle
+		mDevice.setIrqLine(null);
+		mTiming.maxSpiFrequencyHz = 4_500_000;
+		mTiming.garbledRegister = Pn512NfcDevice.RegisterAddress.COMMAND_REG;
+
+		SpiLinkTrainer.Result result = new SpiLinkTrainer(mDevice).train();
+
+		assertEquals(4_000_000, result.getHighestStableHz());
+		assertEquals(2_000_000, result.getFrequencyHz());
+		assertEquals(2_000_000, mSimulator.getSpiFrequency());
+		assertTrue(mDevice.selfTest());
+	}
+
+	@Test
+	public void testNothingStable() throws Exception {
+		mTiming.maxSpiFrequencyHz = 100_000;
+
+		SpiLinkTrainer.Result result = new SpiLinkTrainer(mDevice).train();
+
+		assertFalse(result.isStable());
+		assertEquals(Pn512NfcDevice.Values.DEFAULT_SPI_FREQUENCY_HZ, result.getFrequencyHz());
+	}
+
+	@Test
+	public void testFallsBackOnCorruption() throws Exception {
+		mTiming.maxSpiFrequencyHz = 4_500_000;
+		new SpiLinkTrainer(mDevice).train();
+		mSimulator.addTag(new EchoTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 }));
+		Iso14443aReader reader = new Iso14443aReader(mDevice);
+		assertTrue(reader.activate(new Iso14443aCard()));
+
+		// the link degrades, e.g. as the cable warms up
+		mTiming.maxSpiFrequencyHz = 1_500_000;
+		byte[] frame = { 0x30, 0x04 };
+		TransceiveResult result = mDevice.transceive(frame, 0, frame.length, true, new TransceiveResult());
+
+		assertEquals(TransceiveResult.Status.ERROR, result.getStatus());
+		assertEquals(1, mDevice.getLinkErrorCount());
+		assertEquals(1_000_000, mDevice.getSpiFrequency());
+
+		mDevice.transceive(frame, 0, frame.length, true, result);
+		assertTrue(result.isOk());
+	}
+
+}
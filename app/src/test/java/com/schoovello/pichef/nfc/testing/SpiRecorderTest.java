@@ -0,0 +1,143 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpiRecorderTest {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] PAYLOAD = { 0x30, 0x04, 0x10, 0x20 };
+
+	private Pn512Simulator mSimulator;
+	private EchoTag mTag;
+
+	@Before
+	public void setUp() {
+		mSimulator = new Pn512Simulator();
+		mTag = new EchoTag(UID);
+		mSimulator.addTag(mTag);
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void testReplayReproducesSession() throws Exception {
+		ByteBuffer log = ByteBuffer.allocate(1024 * 1024);
+		SpiRecorder recorder = new SpiRecorder(mSimulator, log);
+		Pn512NfcDevice device = new Pn512NfcDevice(recorder);
+		device.setIrqLine(mSimulator.getIrqLine());
+		device.setClock(recorder);
+		Iso14443aCard recordedCard = new Iso14443aCard();
+		byte[] recordedEcho = runSession(device, recordedCard, true);
+		assertEquals(0, recorder.getDroppedCount());
+
+		SpiReplayPort replay = new SpiReplayPort(log);
+		assertTrue(replay.isComplete());
+		assertEquals(recorder.getRecordCount(), replay.getRecordCount());
+
+		Pn512NfcDevice replayDevice = new Pn512NfcDevice(replay);
+		replayDevice.setIrqLine(replay.getIrqLine());
+		replayDevice.setClock(replay);
+		Iso14443aCard replayedCard = new Iso14443aCard();
+		byte[] replayedEcho = runSession(replayDevice, replayedCard, false);
+
+		assertArrayEquals(recordedCard.getUid(), replayedCard.getUid());
+		assertArrayEquals(recordedEcho, replayedEcho);
+		assertTrue(replay.isFinished());
+		assertTrue(replay.getRecordedDurationNanos() > 0);
+	}
+
+	@Test
+	public void testReplayFromFile() throws Exception {
+		File file = File.createTempFile("spi", ".bin");
+		try {
+			SpiRecorder recorder = new SpiRecorder(mSimulator, file, 64 * 1024);
+			Pn512NfcDevice device = new Pn512NfcDevice(recorder);
+			device.setClock(recorder);
+			assertTrue(device.selfTest());
+			recorder.close();
+
+			SpiReplayPort replay = SpiReplayPort.open(file);
+			Pn512NfcDevice replayDevice = new Pn512NfcDevice(replay);
+			replayDevice.setClock(replay);
+			assertTrue(replayDevice.selfTest());
+			assertTrue(replay.isFinished());
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	public void testDivergenceIsReported() throws Exception {
+		ByteBuffer log = ByteBuffer.allocate(64 * 1024);
+		SpiRecorder recorder = new SpiRecorder(mSimulator, log);
+		Pn512NfcDevice device = new Pn512NfcDevice(recorder);
+		device.setClock(recorder);
+		assertTrue(new Iso14443aReader(device).activate(new Iso14443aCard()));
+		device.transceive(PAYLOAD, 0, PAYLOAD.length, true, new TransceiveResult());
+
+		SpiReplayPort replay = new SpiReplayPort(log);
+		Pn512NfcDevice replayDevice = new Pn512NfcDevice(replay);
+		replayDevice.setClock(replay);
+		assertTrue(new Iso14443aReader(replayDevice).activate(new Iso14443aCard()));
+		byte[] other = { 0x30, 0x05 };
+		try {
+			replayDevice.transceive(other, 0, other.length, true, new TransceiveResult());
+			fail("replay accepted a different frame");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("replay diverged"));
+		}
+	}
+
+	@Test
+	public void testRingKeepsMostRecentRecords() throws Exception {
+		final int capacity = SpiRecorder.Format.HEADER_SIZE + 1024;
+		ByteBuffer log = ByteBuffer.allocate(capacity);
+		SpiRecorder recorder = new SpiRecorder(mSimulator, log);
+		Pn512NfcDevice device = new Pn512NfcDevice(recorder);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(device.selfTest());
+		}
+
+		assertTrue(recorder.getDroppedCount() > 0);
+		SpiReplayPort replay = new SpiReplayPort(log);
+		assertFalse(replay.isComplete());
+		assertEquals(recorder.getRecordCount(), replay.getRecordCount());
+		assertTrue(replay.getRecordedDurationNanos() > 0);
+	}
+
+	/**
+	 * Activates the tag and echoes a frame through it, then takes the tag away (while recording)
+	 * and lets an activation time out.
+	 */
+	private byte[] runSession(Pn512NfcDevice device, Iso14443aCard card, boolean recording)
+			throws IOException {
+		Iso14443aReader reader = new Iso14443aReader(device);
+		assertTrue(reader.activate(card));
+		TransceiveResult result = device.transceive(PAYLOAD, 0, PAYLOAD.length, true, new TransceiveResult());
+		assertTrue(result.isOk());
+		byte[] echo = Arrays.copyOf(result.getData(), result.getLength());
+
+		if (recording) {
+			mSimulator.removeTag(mTag);
+		}
+		assertFalse(reader.activate(new Iso14443aCard()));
+		return echo;
+	}
+
+}
@@ -0,0 +1,228 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the polling, activation and tag event paths don't allocate once warmed up, using
+ * the JVM's per-thread allocation counter. Simulator and driver run on the test thread, so both are
+ * counted.
+ */
+public class SteadyStateAllocationTest {
+
+	private static final int WARM_UP_ITERATIONS = 2_000;
+	private static final int ITERATIONS = 500;
+	private static final int ROUNDS = 5;
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] OTHER_UID = { 0x04, 0x77, 0x66, 0x55, 0x44, 0x33, 0x22 };
+
+	private com.sun.management.ThreadMXBean mThreadMXBean;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Iso14443aReader mReader;
+	private final Iso14443aCard mCard = new Iso14443aCard();
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		mThreadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mThreadMXBean.isThreadAllocatedMemorySupported());
+		mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		mReader = new Iso14443aReader(mDevice);
+	}
+
+	@Test
+	public void testActivateAndHalt() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID, new byte[] { 0x44, 0x00 }, (byte) 0x00));
+
+		assertEquals(0, measure(new Operation() {
+			@Override
+			public void run() throws IOException {
+				assertTrue(mReader.activate(mCard));
+				mReader.halt();
+			}
+		}));
+	}
+
+	@Test
+	public void testTryActivateMiFare() throws Exception {
+		final Iso14443aTag tag = new Iso14443aTag(UID, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		mSimulator.addTag(tag);
+
+		assertEquals(0, measure(new Operation() {
+			@Override
+			public void run() throws IOException {
+				tag.onFieldChanged(true);
+				assertTrue(mDevice.tryActivateMiFare());
+			}
+		}));
+	}
+
+	@Test
+	public void testEmptyFieldPoll() throws Exception {
+		// each poll waits for the receive timeout, so keep this one short
+		assertEquals(0, measure(new Operation() {
+			@Override
+			public void run() throws IOException {
+				assertFalse(mReader.activate(mCard));
+			}
+		}, 20, 20));
+	}
+
+	@Test
+	public void testCrcAndFifo() throws Exception {
+		final byte[] data = new byte[48];
+		final byte[] dest = new byte[48];
+
+		assertEquals(0, measure(new Operation() {
+			@Override
+			public void run() throws IOException {
+				mDevice.calculateCrcOnChip(Crc16.CRC_A, data, 0, data.length);
+				mDevice.writeFifo(data, 0, data.length);
+				mDevice.readFifo(dest, 0, dest.length);
+				Crc16.CRC_A.compute(data, 0, data.length);
+			}
+		}));
+	}
+
+	@Test
+	public void testPollingServiceEvents() throws Exception {
+		final TagPollingService service = new TagPollingService(mDevice);
+		final EventCounter counter = new EventCounter();
+		service.addListener(counter);
+
+		final Iso14443aTag first = new Iso14443aTag(UID, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		final Iso14443aTag second = new Iso14443aTag(OTHER_UID, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		mSimulator.addTag(first);
+		service.poll(System.nanoTime());
+
+		// each poll finds the other card: one departure and one arrival
+		assertEquals(0, measure(new Operation() {
+			private boolean mFirstPresent = true;
+
+			@Override
+			public void run() throws IOException {
+				mSimulator.removeTag(mFirstPresent ? first : second);
+				mSimulator.addTag(mFirstPresent ? second : first);
+				mFirstPresent = !mFirstPresent;
+
+				counter.mCount = 0;
+				service.poll(System.nanoTime());
+				assertEquals(2, counter.mCount);
+			}
+		}));
+	}
+
+	private static class EventCounter implements TagPollingService.Listener {
+		int mCount;
+
+		@Override
+		public void onTagArrived(Iso14443aCard card) {
+			mCount++;
+		}
+
+		@Override
+		public void onTagDeparted(Iso14443aCard card) {
+			mCount++;
+		}
+	}
+
+	@Test
+	public void testTagEventRing() throws Exception {
+		// polling service, pool and ring as MainActivity wires them, polled on the test thread
+		final ReaderPool pool = new ReaderPool();
+		pool.addReader("SPI0", mSimulator, mSimulator.getIrqLine());
+		pool.getDevice(0).initialize(InitProfile.iso14443aReader());
+		final TagPollingService service = pool.getPollingService(0);
+		final TagEventRing ring = new TagEventRing(16);
+		final TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+		pool.addListener(ring);
+		final RingEventCounter counter = new RingEventCounter();
+
+		final Iso14443aTag first = new Iso14443aTag(UID, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		final Iso14443aTag second = new Iso14443aTag(OTHER_UID, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		mSimulator.addTag(first);
+		service.poll(System.nanoTime());
+		consumer.process(counter, 0, TimeUnit.MILLISECONDS);
+
+		// each poll finds the other card: one departure and one arrival
+		assertEquals(0, measure(new Operation() {
+			private boolean mFirstPresent = true;
+
+			@Override
+			public void run() throws IOException {
+				mSimulator.removeTag(mFirstPresent ? first : second);
+				mSimulator.addTag(mFirstPresent ? second : first);
+				mFirstPresent = !mFirstPresent;
+				service.poll(System.nanoTime());
+
+				counter.mCount = 0;
+				try {
+					consumer.process(counter, 0, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+				assertEquals(2, counter.mCount);
+			}
+		}));
+		assertEquals(0, ring.getDroppedCount());
+	}
+
+	private static class RingEventCounter implements TagEventRing.EventHandler {
+		int mCount;
+
+		@Override
+		public void onEvent(TagEvent event, long sequence, boolean endOfBatch) {
+			mCount++;
+		}
+	}
+
+	private interface Operation {
+		void run() throws IOException;
+	}
+
+	private long measure(Operation operation) throws IOException {
+		return measure(operation, WARM_UP_ITERATIONS, ITERATIONS);
+	}
+
+	/**
+	 * The JVM itself occasionally allocates on the calling thread while code is being compiled,
+	 * so the operation is measured over several rounds and the quietest one counts. Anything the
+	 * operation allocates shows up in every round.
+	 * @return bytes allocated by the measured iterations of the quietest round.
+	 */
+	private long measure(Operation operation, int warmUpIterations, int iterations) throws IOException {
+		for (int i = 0; i < warmUpIterations; i++) {
+			operation.run();
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		long min = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && min > 0; round++) {
+			long before = mThreadMXBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < iterations; i++) {
+				operation.run();
+			}
+			long after = mThreadMXBean.getThreadAllocatedBytes(threadId);
+			min = Math.min(min, after - before);
+		}
+		return min;
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingTransceiveTest {
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private EchoTag mTag;
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mTag = new EchoTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 });
+		mSimulator.addTag(mTag);
+	}
+
+	@Test
+	public void testLongFramePolling() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+		// streaming pauses between polls for no longer than a water level's worth of bytes, so the
+		// wall-clock receive timeout can't run ahead of the simulator's modelled time
+		mDevice.setIrqLine(null);
+
+		assertEcho(250);
+	}
+
+	@Test
+	public void testLongFramePollingIsPaced() throws Exception {
+		// paced polls sleep on the wall clock, so keep simulated time in step
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mSimulator.addTag(mTag);
+		activate();
+		mDevice.setSpiFrequency(4_000_000);
+
+		// A busy host can hold the test thread off the CPU for longer than the water level
+		// headroom, which cuts the frame short however the polls are paced. Such a run says nothing
+		// about the poll count, so it gets another go; testLongFramePolling covers the echo itself.
+		byte[] tx = pattern(250);
+		TransceiveResult result = new TransceiveResult(256);
+		for (int attempt = 0; attempt < 3; attempt++) {
+			long pollsBefore = mDevice.getMetrics().snapshot().getPollIterations();
+			mDevice.transceive(tx, 0, tx.length, true, result);
+			long polls = mDevice.getMetrics().snapshot().getPollIterations() - pollsBefore;
+			if (result.getStatus() != TransceiveResult.Status.OK) {
+				continue;
+			}
+
+			assertEquals(tx.length, result.getLength());
+			// about 20 ms on air each way, which back-to-back polls used to fill with about 2000
+			assertTrue("polls: " + polls, polls < 200);
+			return;
+		}
+		fail("no echo came through in time: " + result.getStatus());
+	}
+
+	@Test
+	public void testLongFrameInterruptMode() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+		assertEcho(250);
+	}
+
+	@Test
+	public void testFrameThatFitsInFifo() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+		assertEcho(Pn512NfcDevice.Values.FIFO_SIZE - 2);
+	}
+
+	@Test
+	public void testResponseLongerThanResult() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+
+		byte[] tx = pattern(200);
+		TransceiveResult result = mDevice.transceive(tx, 0, tx.length, true, new TransceiveResult(100));
+
+		assertEquals(TransceiveResult.Status.ERROR, result.getStatus());
+		assertEquals(Pn512NfcDevice.Values.ERROR_BUFFER_OVFL,
+				(byte) (result.getErrorFlags() & Pn512NfcDevice.Values.ERROR_BUFFER_OVFL));
+		assertEquals(100, result.getLength());
+	}
+
+	@Test
+	public void testFifoOverflowsWithoutStreaming() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+
+		// a result that fits in the FIFO doesn't drain it during reception
+		byte[] tx = pattern(100);
+		TransceiveResult result = mDevice.transceive(tx, 0, tx.length, true, new TransceiveResult());
+
+		assertEquals(TransceiveResult.Status.ERROR, result.getStatus());
+		assertEquals(Pn512NfcDevice.Values.FIFO_SIZE, result.getLength());
+	}
+
+	@Test
+	public void testNoResponse() throws Exception {
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		activate();
+		mSimulator.removeAllTags();
+
+		byte[] tx = pattern(150);
+		TransceiveResult result = mDevice.transceive(tx, 0, tx.length, true, new TransceiveResult(256));
+
+		assertEquals(TransceiveResult.Status.TIMEOUT, result.getStatus());
+	}
+
+	private void assertEcho(int length) throws Exception {
+		byte[] tx = pattern(length + 3);
+		TransceiveResult result = mDevice.transceive(tx, 3, length, true, new TransceiveResult(256));
+
+		assertEquals(TransceiveResult.Status.OK, result.getStatus());
+		assertEquals(length, result.getLength());
+		byte[] expected = new byte[length];
+		System.arraycopy(tx, 3, expected, 0, length);
+		byte[] actual = new byte[length];
+		System.arraycopy(result.getData(), 0, actual, 0, length);
+		assertArrayEquals(expected, actual);
+		assertEquals(length, mTag.getLastFrameLength());
+	}
+
+	private void activate() throws Exception {
+		mDevice.softReset();
+		assertTrue(new Iso14443aReader(mDevice).activate(new Iso14443aCard()));
+	}
+
+	private static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + 1);
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,321 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagEventRingTest {
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+
+	@Test
+	public void testEventsInOrder() throws Exception {
+		TagEventRing ring = new TagEventRing(8);
+		TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+		Object payload = new Object();
+
+		setCard(0x11);
+		ring.onTagArrived(2, mCard);
+		ring.publish(TagEvent.Type.DEPARTED, 3, mCard, 1234, payload);
+
+		Recorder recorder = new Recorder();
+		assertEquals(2, consumer.process(recorder, 0, TimeUnit.MILLISECONDS));
+		assertEquals(2, recorder.mEvents.size());
+
+		TagEvent arrived = recorder.mEvents.get(0);
+		assertEquals(TagEvent.Type.ARRIVED, arrived.getType());
+		assertEquals(2, arrived.getReader());
+		assertEquals(mCard.getUidKey(), arrived.getUidKey());
+		assertEquals(0x44, arrived.getAtqaByte(0));
+		assertEquals(0x08, arrived.getSak());
+		assertNull(arrived.getPayload());
+		assertTrue(arrived.getPublishNanos() >= arrived.getEventNanos());
+
+		TagEvent departed = recorder.mEvents.get(1);
+		assertEquals(TagEvent.Type.DEPARTED, departed.getType());
+		assertEquals(1234, departed.getEventNanos());
+		assertSame(payload, departed.getPayload());
+
+		assertEquals(0, recorder.mSequences.get(0).longValue());
+		assertEquals(1, recorder.mSequences.get(1).longValue());
+		assertFalse(recorder.mEndOfBatch.get(0));
+		assertTrue(recorder.mEndOfBatch.get(1));
+		assertEquals(0, consumer.process(recorder, 0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testEveryConsumerSeesEveryEvent() throws Exception {
+		TagEventRing ring = new TagEventRing(16);
+		TagEventRing.Consumer first = ring.newConsumer(new TagEventRing.BusySpinWaitStrategy());
+		TagEventRing.Consumer second = ring.newConsumer(new TagEventRing.BlockingWaitStrategy());
+		for (int i = 0; i < 10; i++) {
+			setCard(i);
+			ring.onTagArrived(0, mCard);
+		}
+
+		Recorder firstRecorder = new Recorder();
+		Recorder secondRecorder = new Recorder();
+		assertEquals(10, first.process(firstRecorder, 0, TimeUnit.MILLISECONDS));
+		assertEquals(10, second.process(secondRecorder, 0, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, firstRecorder.mEvents.get(i).getUidByte(3));
+			assertEquals(i, secondRecorder.mEvents.get(i).getUidByte(3));
+		}
+	}
+
+	@Test
+	public void testSlowConsumerDropsInsteadOfBlocking() throws Exception {
+		TagEventRing ring = new TagEventRing(4);
+		TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+
+		for (int i = 0; i < 6; i++) {
+			setCard(i);
+			assertEquals(i < 4, ring.publish(TagEvent.Type.ARRIVED, 0, mCard, i, null));
+		}
+		assertEquals(4, ring.getPublishedCount());
+		assertEquals(2, ring.getDroppedCount());
+		assertEquals(4, consumer.getLag());
+
+		Recorder recorder = new Recorder();
+		assertEquals(4, consumer.process(recorder, 0, TimeUnit.MILLISECONDS));
+		assertEquals(0, consumer.getLag());
+		assertEquals(4, consumer.getMaxLag());
+		// the events that made it in are intact
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, recorder.mEvents.get(i).getUidByte(3));
+		}
+
+		// room again
+		assertTrue(ring.publish(TagEvent.Type.ARRIVED, 0, mCard, 6, null));
+		assertEquals(1, consumer.getLag());
+	}
+
+	@Test
+	public void testClosedConsumerNoLongerGates() throws Exception {
+		TagEventRing ring = new TagEventRing(2);
+		TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+		setCard(1);
+		ring.onTagArrived(0, mCard);
+		ring.onTagArrived(0, mCard);
+		assertFalse(ring.publish(TagEvent.Type.ARRIVED, 0, mCard, 0, null));
+
+		consumer.close();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(ring.publish(TagEvent.Type.ARRIVED, 0, mCard, 0, null));
+		}
+		assertEquals(1, ring.getDroppedCount());
+	}
+
+	@Test
+	public void testConsumerStartsWithNextEvent() throws Exception {
+		TagEventRing ring = new TagEventRing(4);
+		setCard(1);
+		ring.onTagArrived(0, mCard);
+		ring.onTagArrived(0, mCard);
+
+		TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+		assertEquals(0, consumer.getLag());
+		setCard(7);
+		ring.onTagDeparted(0, mCard);
+		Recorder recorder = new Recorder();
+		assertEquals(1, consumer.process(recorder, 0, TimeUnit.MILLISECONDS));
+		assertEquals(7, recorder.mEvents.get(0).getUidByte(3));
+		assertEquals(2, recorder.mSequences.get(0).longValue());
+	}
+
+	@Test
+	public void testProcessTimesOut() throws Exception {
+		TagEventRing ring = new TagEventRing(4);
+		TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.BlockingWaitStrategy());
+		long start = System.nanoTime();
+		assertEquals(0, consumer.process(new Recorder(), 20, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+	}
+
+	@Test
+	public void testBlockingConsumerWokenByProducer() throws Exception {
+		final TagEventRing ring = new TagEventRing(4);
+		final TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.BlockingWaitStrategy());
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicReference<Integer> processed = new AtomicReference<>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					processed.set(consumer.process(new Recorder(), 5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					processed.set(-1);
+				}
+			}
+		});
+		thread.start();
+		started.await();
+		Thread.sleep(20);
+
+		setCard(1);
+		ring.onTagArrived(0, mCard);
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+		assertEquals(1, processed.get().intValue());
+	}
+
+	@Test
+	public void testConcurrentConsumersSeeContiguousSequences() throws Exception {
+		final int eventCount = 20_000;
+		final TagEventRing ring = new TagEventRing(64);
+		TagEventRing.WaitStrategy[] strategies = {
+				new TagEventRing.YieldingWaitStrategy(), new TagEventRing.BlockingWaitStrategy() };
+		final List<Thread> threads = new ArrayList<>();
+		final long[] errors = new long[strategies.length];
+		final long[] received = new long[strategies.length];
+		for (int c = 0; c < strategies.length; c++) {
+			final int index = c;
+			final TagEventRing.Consumer consumer = ring.newConsumer(strategies[c]);
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final long[] expected = { 0 };
+					TagEventRing.EventHandler handler = new TagEventRing.EventHandler() {
+						@Override
+						public void onEvent(TagEvent event, long sequence, boolean endOfBatch) {
+							// the event time carries the publication count, and drops leave gaps
+							if (event.getEventNanos() < expected[0] || event.getUidByte(3) != (byte) event.getEventNanos()) {
+								errors[index]++;
+							}
+							expected[0] = event.getEventNanos() + 1;
+							received[index]++;
+						}
+					};
+					try {
+						while (expected[0] < eventCount) {
+							if (consumer.process(handler, 1, TimeUnit.SECONDS) == 0) {
+								break;
+							}
+						}
+					} catch (InterruptedException e) {
+						errors[index]++;
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		long published = 0;
+		for (int i = 0; i < eventCount; i++) {
+			setCard(i);
+			if (ring.publish(TagEvent.Type.ARRIVED, 0, mCard, i, null)) {
+				published++;
+			} else if (i == eventCount - 1) {
+				// make sure the consumers get to the end
+				while (!ring.publish(TagEvent.Type.ARRIVED, 0, mCard, i, null)) {
+					Thread.yield();
+				}
+				published++;
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join(10_000);
+		}
+
+		assertEquals(published, ring.getPublishedCount());
+		for (int c = 0; c < strategies.length; c++) {
+			assertEquals(0, errors[c]);
+			assertEquals(published, received[c]);
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producerCount = 4;
+		final int eventCount = 10_000;
+		final TagEventRing ring = new TagEventRing(32);
+		final TagEventRing.Consumer consumer = ring.newConsumer(new TagEventRing.YieldingWaitStrategy());
+		final List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producerCount; p++) {
+			final int reader = p;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final Iso14443aCard card = new Iso14443aCard();
+					card.mUidLength = 4;
+					for (int i = 0; i < eventCount; i++) {
+						card.mUid[3] = (byte) i;
+						// retried rather than dropped, so the consumer can check for gaps
+						while (!ring.publish(TagEvent.Type.ARRIVED, reader, card, i, null)) {
+							Thread.yield();
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		// each reader's events in the order it published them, with nothing torn or lost
+		final long[] expected = new long[producerCount];
+		final long[] errors = { 0 };
+		TagEventRing.EventHandler handler = new TagEventRing.EventHandler() {
+			@Override
+			public void onEvent(TagEvent event, long sequence, boolean endOfBatch) {
+				final int reader = event.getReader();
+				if (event.getEventNanos() != expected[reader] || event.getUidByte(3) != (byte) event.getEventNanos()) {
+					errors[0]++;
+				}
+				expected[reader] = event.getEventNanos() + 1;
+			}
+		};
+		long received = 0;
+		while (received < (long) producerCount * eventCount) {
+			final int processed = consumer.process(handler, 1, TimeUnit.SECONDS);
+			if (processed == 0) {
+				break;
+			}
+			received += processed;
+		}
+		for (Thread thread : threads) {
+			thread.join(10_000);
+		}
+
+		assertEquals(0, errors[0]);
+		assertEquals((long) producerCount * eventCount, received);
+		assertEquals(received, ring.getPublishedCount());
+	}
+
+	private void setCard(int n) {
+		byte[] uid = { 0x04, 0x21, 0x43, (byte) n, 0x00, 0x00, 0x00 };
+		System.arraycopy(uid, 0, mCard.mUid, 0, uid.length);
+		mCard.mUidLength = uid.length;
+		System.arraycopy(Pn512NfcDevice.ConstantData.ULTRALIGHT_ATQA, 0, mCard.mAtqa, 0, 2);
+		mCard.mSak = 0x08;
+	}
+
+	private static class Recorder implements TagEventRing.EventHandler {
+		final List<TagEvent> mEvents = new ArrayList<>();
+		final List<Long> mSequences = new ArrayList<>();
+		final List<Boolean> mEndOfBatch = new ArrayList<>();
+
+		@Override
+		public void onEvent(TagEvent event, long sequence, boolean endOfBatch) {
+			TagEvent copy = new TagEvent();
+			copy.copyFrom(event);
+			mEvents.add(copy);
+			mSequences.add(sequence);
+			mEndOfBatch.add(endOfBatch);
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.schoovello.pichef.nfc.testing;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagPollingServiceTest {
+
+	private static final byte[] ATQA = { (byte) 0x04, (byte) 0x00 };
+	private static final byte[] UID_1 = { 0x01, 0x02, 0x03, 0x04 };
+	private static final byte[] UID_2 = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private Pn512Simulator mSimulator;
+	private TagPollingService mService;
+	private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+
+	@Before
+	public void setUp() throws Exception {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+
+		Pn512NfcDevice device = new Pn512NfcDevice(mSimulator);
+		device.setIrqLine(mSimulator.getIrqLine());
+
+		mService = new TagPollingService(device);
+		mService.addListener(new TagPollingService.Listener() {
+			@Override
+			public void onTagArrived(@NonNull Iso14443aCard card) {
+				mEvents.add("arrived " + hex(card.getUid()));
+			}
+
+			@Override
+			public void onTagDeparted(@NonNull Iso14443aCard card) {
+				mEvents.add("departed " + hex(card.getUid()));
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		mService.stop();
+		mSimulator.close();
+	}
+
+	@Test
+	public void testHealthCheckKeepsCardPresent() throws Exception {
+		mService.setIntervals(5, 5, 20, 0);
+		mService.setHealthCheckInterval(20);
+		mSimulator.addTag(new Iso14443aTag(UID_1, ATQA, (byte) 0x08));
+		mService.start();
+		assertEquals("arrived 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+
+		Thread.sleep(200);
+		assertNull(mEvents.poll());
+		assertTrue(mService.getHealthCheckCount() > 0);
+		assertEquals(0, mService.getHealthCheckFailureCount());
+	}
+
+	@Test
+	public void testArrivalAndDeparture() throws Exception {
+		mService.start();
+		Thread.sleep(300);
+		assertNull(mEvents.poll());
+
+		Iso14443aTag tag = new Iso14443aTag(UID_1, ATQA, (byte) 0x08);
+		long arrivedAt = System.nanoTime();
+		mSimulator.addTag(tag);
+		assertEquals("arrived 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+		long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrivedAt);
+		assertTrue("detection took " + latencyMs + " ms", latencyMs < 100);
+
+		// a card sitting on the antenna is reported once
+		Thread.sleep(200);
+		assertNull(mEvents.poll());
+
+		mSimulator.removeTag(tag);
+		assertEquals("departed 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+
+		assertTrue(mService.getPollCount() > 0);
+		assertTrue(mService.getMaxDetectionLatencyNanos() > 0);
+		assertTrue(mService.getMaxDetectionLatencyNanos() < TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	public void testCardSwap() throws Exception {
+		Iso14443aTag first = new Iso14443aTag(UID_1, ATQA, (byte) 0x08);
+		mSimulator.addTag(first);
+		mService.start();
+		assertEquals("arrived 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+
+		mSimulator.removeTag(first);
+		mSimulator.addTag(new Iso14443aTag(UID_2, ATQA, (byte) 0x08));
+		assertEquals("departed 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+		assertEquals("arrived 04112233445566", mEvents.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testPresenceCacheSuppressesFlicker() throws Exception {
+		mService.setIntervals(5, 5, 20, 0);
+		mService.setPresenceCache(new UidPresenceCache(16, 300, 0));
+		Iso14443aTag tag = new Iso14443aTag(UID_1, ATQA, (byte) 0x08);
+		mSimulator.addTag(tag);
+		mService.start();
+		assertEquals("arrived 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+
+		// out of the field for a few polls, well inside the time to live
+		mSimulator.removeTag(tag);
+		Thread.sleep(50);
+		mSimulator.addTag(tag);
+		Thread.sleep(100);
+		assertNull(mEvents.poll());
+
+		long removedAt = System.nanoTime();
+		mSimulator.removeTag(tag);
+		assertEquals("departed 01020304", mEvents.poll(1, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - removedAt >= TimeUnit.MILLISECONDS.toNanos(250));
+	}
+
+	@Test
+	public void testBacksOffWhenIdle() throws Exception {
+		mService.setIntervals(5, 20, 40, 0);
+		mService.start();
+		Thread.sleep(300);
+
+		assertEquals(40, mService.getCurrentIntervalMs());
+		// 5 + 10 + 20 ms, then every 40 ms plus the time the poll itself takes
+		long polls = mService.getPollCount();
+		assertTrue("polled " + polls + " times", polls >= 4 && polls <= 12);
+		assertTrue(mService.getPollRate() > 0);
+	}
+
+	@Test
+	public void testCardAlreadyPresent() throws Exception {
+		Iso14443aTag tag = new Iso14443aTag(UID_2, ATQA, (byte) 0x00);
+		mSimulator.addTag(tag);
+		mService.start();
+
+		String event = mEvents.poll(1, TimeUnit.SECONDS);
+		assertEquals("arrived 04112233445566", event);
+		mService.stop();
+		assertEquals(Iso14443aTag.STATE_HALT, tag.getState());
+		assertArrayEquals(UID_2, tag.getUid());
+	}
+
+	@Test
+	public void testLinkTrainingRunsOnPollingThread() throws Exception {
+		mSimulator.addTag(new Iso14443aTag(UID_1, ATQA, (byte) 0x08));
+		mService.setLinkTraining(true);
+		long startNanos = System.nanoTime();
+		mService.start();
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 50);
+		assertNull(mService.getLinkTrainingResult());
+
+		assertEquals("arrived 01020304", mEvents.poll(5, TimeUnit.SECONDS));
+		SpiLinkTrainer.Result result = mService.getLinkTrainingResult();
+		assertNotNull(result);
+		assertEquals(Pn512NfcDevice.Values.MAX_SPI_FREQUENCY_HZ, result.getFrequencyHz());
+	}
+
+	private static String hex(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : data) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.schoovello.pichef.nfc.testing;
+
+import java.util.Arrays;
+
+/**
+ * NFC Forum Type 2 tag: READ of 4 pages, wrapping around at the end of memory, and, if built
+ * with a GET_VERSION response, GET_VERSION and FAST_READ as on NTAG21x. Memory starts out with
+ * the UID pages and a capability container for the whole user area; everything is readable.
+ */
+public class Type2Tag extends Iso14443aTag {
+
+	public static final int PAGE_SIZE = 4;
+
+	private static final byte NAK = 0x00;
+
+	private final byte[] mMemory;
+	private final byte[] mVersion;
+
+	private int mReadCount;
+	private int mFastReadCount;
+
+	/**
+	 * @param version the GET_VERSION response, or {@code null} for a tag that doesn't know it.
+	 */
+	public Type2Tag(byte[] uid, int pageCount, byte[] version) {
+		super(uid, new byte[] { 0x44, 0x00 }, (byte) 0x00);
+		mMemory = new byte[pageCount * PAGE_SIZE];
+		mVersion = version == null ? null : version.clone();
+
+		System.arraycopy(uid, 0, mMemory, 0, 3);
+		mMemory[3] = (byte) (0x88 ^ uid[0] ^ uid[1] ^ uid[2]);
+		System.arraycopy(uid, 3, mMemory, 4, 4);
+		mMemory[8] = (byte) (uid[3] ^ uid[4] ^ uid[5] ^ uid[6]);
+		mMemory[12] = (byte) 0xe1;
+		mMemory[13] = 0x10;
+		mMemory[14] = (byte) ((pageCount - 4) / 2);
+	}
+
+	public static Type2Tag ntag213(byte[] uid) {
+		return new Type2Tag(uid, 45, ntagVersion((byte) 0x0f));
+	}
+
+	public static Type2Tag ntag216(byte[] uid) {
+		return new Type2Tag(uid, 231, ntagVersion((byte) 0x13));
+	}
+
+	/**
+	 * A tag of any size that only speaks READ, like the original Ultralight or NTAG203.
+	 */
+	public static Type2Tag readOnly(byte[] uid, int pageCount) {
+		return new Type2Tag(uid, pageCount, null);
+	}
+
+	private static byte[] ntagVersion(byte storageSize) {
+		return new byte[] { 0x00, 0x04, 0x04, 0x02, 0x01, 0x00, storageSize, 0x03 };
+	}
+
+	public int getPageCount() {
+		return mMemory.length / PAGE_SIZE;
+	}
+
+	public void setPage(int page, byte[] data) {
+		System.arraycopy(data, 0, mMemory, page * PAGE_SIZE, PAGE_SIZE);
+	}
+
+	public void setData(int offset, byte[] data) {
+		System.arraycopy(data, 0, mMemory, offset, data.length);
+	}
+
+	public byte[] getMemory() {
+		return mMemory.clone();
+	}
+
+	public byte[] getPages(int startPage, int pageCount) {
+		return Arrays.copyOfRange(mMemory, startPage * PAGE_SIZE, (startPage + pageCount) * PAGE_SIZE);
+	}
+
+	public int getReadCount() {
+		return mReadCount;
+	}
+
+	public int getFastReadCount() {
+		return mFastReadCount;
+	}
+
+	@Override
+	protected int onActiveFrame(byte[] frame, int frameBits, byte[] response) {
+		int length = frameBits / 8;
+		if (frameBits % 8 != 0 || length < 3 || !Pn512Simulator.checkCrcA(frame, length)) {
+			return 0;
+		}
+		int pageCount = getPageCount();
+
+		if (frame[0] == MiFareDevice.Command.READ && length == 4) {
+			int page = frame[1] & 0xff;
+			if (page >= pageCount) {
+				return nak(response);
+			}
+			mReadCount++;
+			for (int i = 0; i < 4; i++) {
+				System.arraycopy(mMemory, (page + i) % pageCount * PAGE_SIZE, response, i * PAGE_SIZE, PAGE_SIZE);
+			}
+			return Pn512Simulator.appendCrcA(response, 16) * 8;
+		}
+		if (mVersion == null) {
+			// unknown command
+			goIdle();
+			onReset();
+			return 0;
+		}
+		if (frame[0] == MiFareDevice.Command.GET_VERSION && length == 3) {
+			System.arraycopy(mVersion, 0, response, 0, mVersion.length);
+			return Pn512Simulator.appendCrcA(response, mVersion.length) * 8;
+		}
+		if (frame[0] == MiFareDevice.Command.FAST_READ && length == 5) {
+			int start = frame[1] & 0xff;
+			int end = frame[2] & 0xff;
+			if (start > end || end >= pageCount) {
+				return nak(response);
+			}
+			mFastReadCount++;
+			int bytes = (end - start + 1) * PAGE_SIZE;
+			System.arraycopy(mMemory, start * PAGE_SIZE, response, 0, bytes);
+			return Pn512Simulator.appendCrcA(response, bytes) * 8;
+		}
+		return nak(response);
+	}
+
+	private int nak(byte[] response) {
+		response[0] = NAK;
+		goIdle();
+		onReset();
+		return 4;
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Type2TagReaderTest {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Type2TagReader mReader;
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mData = new byte[Type2TagReader.MAX_PAGES_PER_READ * Type2TagReader.PAGE_SIZE];
+
+	@Before
+	public void setUp() throws Exception {
+		mSimulator = new Pn512Simulator();
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new Type2TagReader(mDevice);
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void testNtag216InOneExchange() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.ntag216(UID));
+
+		assertTrue(mReader.activate(mCard));
+		assertTrue(mReader.isFastReadSupported());
+		assertEquals(231, mReader.getPageCount());
+		byte[] version = new byte[8];
+		assertTrue(mReader.copyVersion(version, 0));
+		assertEquals(0x13, version[6]);
+
+		assertEquals(231 * 4, mReader.readTag(mData, 0));
+		mReader.halt();
+
+		assertArrayEquals(tag.getMemory(), Arrays.copyOf(mData, 231 * 4));
+		assertEquals(1, mReader.getExchangeCount());
+		assertEquals(1, tag.getFastReadCount());
+		assertEquals(0, tag.getReadCount());
+		assertEquals(Iso14443aTag.STATE_HALT, tag.getState());
+	}
+
+	@Test
+	public void testFastReadChunkedToFifo() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.ntag216(UID));
+		mReader.setMaxPagesPerRead(Type2TagReader.FIFO_PAGES);
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(231 * 4, mReader.readTag(mData, 0));
+
+		assertArrayEquals(tag.getMemory(), Arrays.copyOf(mData, 231 * 4));
+		// 231 pages, 16 at a time
+		assertEquals(15, tag.getFastReadCount());
+	}
+
+	@Test
+	public void testOverflowLowersPagesPerRead() throws Exception {
+		// every SPI transfer takes longer than the FIFO's headroom lasts at 106 kbps
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		timing.spiOverheadNanos = 3_000_000;
+		mSimulator.close();
+		mSimulator = new Pn512Simulator(timing);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new Type2TagReader(mDevice);
+		Type2Tag tag = addTag(Type2Tag.ntag213(UID));
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(45 * 4, mReader.readTag(mData, 0));
+		assertArrayEquals(tag.getMemory(), Arrays.copyOf(mData, 45 * 4));
+		assertEquals(Type2TagReader.FIFO_PAGES, mReader.getMaxPagesPerRead());
+		assertTrue(mReader.getOverflowCount() > 0);
+	}
+
+	@Test
+	public void testReadNdefStopsAtEndOfMessage() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.ntag216(UID));
+		NdefParser parser = new NdefParser(4);
+		byte[] payload = NdefParserTest.pattern(500);
+		tag.setData(NdefParser.TYPE_2_TLV_OFFSET, NdefParserTest.ndefTlv(
+				NdefParserTest.record(0xc2, "a/b", null, payload)));
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(NdefParser.Status.COMPLETE, mReader.readNdef(parser, mData));
+		// read ahead to find the TLV, then the rest of the message
+		assertEquals(2, tag.getFastReadCount());
+		int offset = parser.getPayloadOffset(0);
+		assertArrayEquals(payload, Arrays.copyOfRange(mData, offset, offset + 500));
+		mReader.halt();
+
+		// a short message takes one exchange, READ or FAST_READ
+		tag.setData(NdefParser.TYPE_2_TLV_OFFSET, NdefParserTest.ndefTlv(
+				NdefParserTest.record(0xd1, "T", null, new byte[] { 0x02, 'e', 'n', 'o', 'k' })));
+		assertTrue(mReader.activate(mCard));
+		assertEquals(NdefParser.Status.COMPLETE, mReader.readNdef(parser, mData));
+		assertEquals(3, tag.getFastReadCount());
+		assertTrue(parser.typeEquals(0, new byte[] { 'T' }));
+	}
+
+	@Test
+	public void testFallsBackToRead() throws Exception {
+		// an NTAG203-sized tag without GET_VERSION
+		Type2Tag tag = addTag(Type2Tag.readOnly(UID, 42));
+
+		assertTrue(mReader.activate(mCard));
+		assertFalse(mReader.isFastReadSupported());
+		assertFalse(mReader.copyVersion(new byte[8], 0));
+		assertEquals(42, mReader.getPageCount());
+
+		assertEquals(42 * 4, mReader.readTag(mData, 0));
+		assertArrayEquals(tag.getMemory(), Arrays.copyOf(mData, 42 * 4));
+		// 11 reads for the data plus one for the capability container
+		assertEquals(12, tag.getReadCount());
+		assertEquals(0, tag.getFastReadCount());
+	}
+
+	@Test
+	public void testReadPageRange() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.ntag213(UID));
+		tag.setPage(40, new byte[] { 1, 2, 3, 4 });
+
+		assertTrue(mReader.activate(mCard));
+		assertEquals(45, mReader.getPageCount());
+		assertTrue(mReader.readPages(38, 7, mData, 3));
+		assertArrayEquals(tag.getPages(38, 7), Arrays.copyOfRange(mData, 3, 3 + 7 * 4));
+	}
+
+	@Test
+	public void testReadDoesNotWrap() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.readOnly(UID, 18));
+
+		assertTrue(mReader.activate(mCard));
+		Arrays.fill(mData, (byte) 0x5a);
+		assertEquals(18 * 4, mReader.readTag(mData, 0));
+
+		// the last READ wraps around to page 0, which is not copied
+		assertArrayEquals(tag.getMemory(), Arrays.copyOf(mData, 18 * 4));
+		assertEquals(0x5a, mData[18 * 4]);
+	}
+
+	@Test
+	public void testTagGone() throws Exception {
+		Type2Tag tag = addTag(Type2Tag.ntag216(UID));
+		assertTrue(mReader.activate(mCard));
+		mSimulator.removeTag(tag);
+
+		assertEquals(-1, mReader.readTag(mData, 0));
+		assertFalse(mReader.activate(mCard));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRangeChecked() throws Exception {
+		addTag(Type2Tag.ntag213(UID));
+		assertTrue(mReader.activate(mCard));
+		mReader.readPages(40, 6, mData, 0);
+	}
+
+	private Type2Tag addTag(Type2Tag tag) {
+		mSimulator.addTag(tag);
+		return tag;
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UidPresenceCacheTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Iso14443aCard[] mDeparted = newCards(4);
+
+	@Test
+	public void testUidKeys() throws Exception {
+		Set<Long> keys = new HashSet<>();
+		assertTrue(keys.add(card(0x01, 0x02, 0x03, 0x04).getUidKey()));
+		assertTrue(keys.add(card(0x01, 0x02, 0x03, 0x05).getUidKey()));
+		assertTrue(keys.add(card(0x01, 0x02, 0x03, 0x04, 0x00, 0x00, 0x00).getUidKey()));
+		assertTrue(keys.add(card(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66).getUidKey()));
+		assertTrue(keys.add(card(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, 0x88, 0x99).getUidKey()));
+		assertTrue(keys.add(new Iso14443aCard().getUidKey()));
+	}
+
+	@Test
+	public void testArrivalReportedOnce() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(16, 100, 0);
+		Iso14443aCard card = card(0x01, 0x02, 0x03, 0x04);
+
+		assertTrue(cache.onSeen(card, 0));
+		for (long t = 10 * MS; t < 1000 * MS; t += 10 * MS) {
+			assertEquals(0, cache.collectDepartures(t, mDeparted));
+			assertFalse(cache.onSeen(card, t));
+		}
+		assertEquals(1, cache.size());
+		assertTrue(cache.contains(card.getUidKey()));
+	}
+
+	@Test
+	public void testDepartureAfterTtl() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(16, 100, 0);
+		Iso14443aCard card = card(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66);
+		assertTrue(cache.onSeen(card, 0));
+
+		// missing for less than the ttl is not a departure
+		assertEquals(0, cache.collectDepartures(99 * MS, mDeparted));
+		assertFalse(cache.onSeen(card, 99 * MS));
+
+		assertEquals(0, cache.collectDepartures(198 * MS, mDeparted));
+		assertEquals(1, cache.collectDepartures(199 * MS, mDeparted));
+		assertArrayEquals(card.getUid(), mDeparted[0].getUid());
+		assertEquals(0, cache.size());
+
+		assertTrue(cache.onSeen(card, 200 * MS));
+	}
+
+	@Test
+	public void testReReport() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(16, 100, 250);
+		Iso14443aCard card = card(0x01, 0x02, 0x03, 0x04);
+
+		int reports = 0;
+		for (long t = 0; t <= 1000 * MS; t += 50 * MS) {
+			if (cache.onSeen(card, t)) {
+				reports++;
+			}
+		}
+		// at 0, 250, 500, 750 and 1000 ms
+		assertEquals(5, reports);
+	}
+
+	@Test
+	public void testDeparturesInOrderAndBatched() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(16, 100, 0);
+		for (int i = 0; i < 6; i++) {
+			assertTrue(cache.onSeen(card(0x01, 0x02, 0x03, i), i * MS));
+		}
+		// the first card is seen again, so it leaves last
+		assertFalse(cache.onSeen(card(0x01, 0x02, 0x03, 0), 10 * MS));
+
+		assertEquals(4, cache.collectDepartures(200 * MS, mDeparted));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i + 1, mDeparted[i].getUidByte(3));
+		}
+		assertEquals(2, cache.collectDepartures(200 * MS, mDeparted));
+		assertEquals(5, mDeparted[0].getUidByte(3));
+		assertEquals(0, mDeparted[1].getUidByte(3));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlySeenWhenFull() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(4, 1000, 0);
+		for (int i = 0; i < 4; i++) {
+			cache.onSeen(card(0x01, 0x02, 0x03, i), i * MS);
+		}
+		cache.onSeen(card(0x01, 0x02, 0x03, 0), 10 * MS);
+		assertTrue(cache.onSeen(card(0x01, 0x02, 0x03, 9), 11 * MS));
+
+		assertEquals(4, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertFalse(cache.contains(card(0x01, 0x02, 0x03, 1).getUidKey()));
+		assertTrue(cache.contains(card(0x01, 0x02, 0x03, 0).getUidKey()));
+	}
+
+	@Test
+	public void testManyDistinctUidsAtConstantSize() throws Exception {
+		UidPresenceCache cache = new UidPresenceCache(64, 50, 0);
+		Iso14443aCard[] departed = newCards(64);
+		Iso14443aCard card = new Iso14443aCard();
+		card.mUidLength = 7;
+
+		// 10,000 cards a minute, each seen for a few polls
+		long departures = 0;
+		for (int i = 0; i < 10_000; i++) {
+			long t = i * 6 * MS;
+			departures += cache.collectDepartures(t, departed);
+			card.mUid[0] = 0x04;
+			card.mUid[5] = (byte) (i >> 8);
+			card.mUid[6] = (byte) i;
+			assertTrue(cache.onSeen(card, t));
+			assertFalse(cache.onSeen(card, t + 2 * MS));
+			assertTrue(cache.size() <= 64);
+		}
+		departures += cache.collectDepartures(Long.MAX_VALUE / 2, departed);
+
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(10_000, departures);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testRemovalKeepsProbeChainsIntact() throws Exception {
+		// a small table, so insertions collide and removals shift entries back
+		UidPresenceCache cache = new UidPresenceCache(8, 100, 0);
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 8; i++) {
+				cache.onSeen(card(round, i, 0x00, 0x00), round * 1000 * MS + i * 10 * MS);
+			}
+			for (int i = 0; i < 8; i++) {
+				assertTrue(cache.contains(card(round, i, 0x00, 0x00).getUidKey()));
+			}
+			// the first half departs, the rest must still be found
+			assertEquals(4, cache.collectDepartures(round * 1000 * MS + 145 * MS, mDeparted));
+			for (int i = 4; i < 8; i++) {
+				assertTrue(cache.contains(card(round, i, 0x00, 0x00).getUidKey()));
+				assertFalse(cache.onSeen(card(round, i, 0x00, 0x00), round * 1000 * MS + 145 * MS));
+			}
+			cache.clear();
+		}
+	}
+
+	private static Iso14443aCard card(int... uid) {
+		Iso14443aCard card = new Iso14443aCard();
+		for (int i = 0; i < uid.length; i++) {
+			card.mUid[i] = (byte) uid[i];
+		}
+		card.mUidLength = uid.length;
+		return card;
+	}
+
+	private static Iso14443aCard[] newCards(int count) {
+		Iso14443aCard[] cards = new Iso14443aCard[count];
+		for (int i = 0; i < count; i++) {
+			cards[i] = new Iso14443aCard();
+		}
+		return cards;
+	}
+
+}
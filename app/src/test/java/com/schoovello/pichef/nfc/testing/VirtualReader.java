@@ -0,0 +1,21 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * An external ISO14443A reader, such as a phone, whose field a {@link Pn512Simulator} in card
+ * operation mode sits in. Frames are bit strings packed LSB first, CRC included, at 106 kbps.
+ */
+public interface VirtualReader {
+
+	/**
+	 * Called when the field comes up, and then after each of the reader's commands, with the
+	 * card's response or with none if the reader's frame waiting time ran out.
+	 * @param response the response, including any CRC, or {@code null} if there was none; only
+	 * valid during the call.
+	 * @param turnaroundNanos time from the end of the command to the start of the response,
+	 * {@code -1} without a response.
+	 * @param command buffer for the next command, including any CRC.
+	 * @return the number of bits in the next command, or {@code 0} to switch the field off.
+	 */
+	int nextCommand(byte[] response, int responseBits, long turnaroundNanos, byte[] command);
+
+}
@@ -0,0 +1,24 @@
+package com.schoovello.pichef.nfc.testing;
+
+/**
+ * A card in the field of a {@link Pn512Simulator}. Frames are exchanged as bit strings packed
+ * LSB first, the order in which they are sent over the air.
+ */
+public interface VirtualTag {
+
+	/**
+	 * Called when the reader switches its RF field on or off. Tags lose their state when
+	 * unpowered.
+	 */
+	void onFieldChanged(boolean fieldOn);
+
+	/**
+	 * Handles a frame sent by the reader, including any CRC the reader appended.
+	 * @param frame the received bits, packed LSB first.
+	 * @param frameBits the number of valid bits in {@code frame}.
+	 * @param response buffer for the response, including any CRC.
+	 * @return the number of response bits, or {@code 0} to stay silent.
+	 */
+	int onFrame(byte[] frame, int frameBits, byte[] response);
+
+}
@@ -0,0 +1,101 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchanges {@link #FRAMES} frames with a selected card and does {@code hostWork} tokens of
+ * processing on each response, either one after the other on the calling thread, or with the
+ * next exchange already queued on an {@link AsyncNfcDevice} while the previous response is
+ * processed. Transfers block rather than spin, as on hardware, so the RF time of one frame can
+ * overlap the processing of the last.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AsyncPipelineBenchmark {
+
+	private static final int FRAMES = 16;
+
+	private static final byte[] PAYLOAD = { 0x30, 0x04, 0x10, 0x20, 0x30, 0x40, 0x50, 0x60 };
+
+	@Param({"0", "1000000"})
+	public long hostWork;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private AsyncNfcDevice mAsyncDevice;
+	private final TransceiveResult[] mResults = { new TransceiveResult(), new TransceiveResult() };
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		timing.blockingTransfers = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mSimulator.addTag(new EchoTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 }));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		if (!new Iso14443aReader(mDevice).activate(new Iso14443aCard())) {
+			throw new IllegalStateException("card not activated");
+		}
+		mAsyncDevice = new AsyncNfcDevice(mDevice, 4);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mAsyncDevice.close();
+		mSimulator.close();
+	}
+
+	/**
+	 * The device is owned by the async front end, so the sequential case goes through it too and
+	 * waits for each exchange before processing it.
+	 */
+	@Benchmark
+	public int sequential() throws InterruptedException, ExecutionException {
+		int total = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			TransceiveResult result = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length, true, mResults[0]).get();
+			total += process(result);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int pipelined() throws InterruptedException, ExecutionException {
+		int total = 0;
+		CompletableFuture<TransceiveResult> next = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length, true, mResults[0]);
+		for (int i = 0; i < FRAMES; i++) {
+			TransceiveResult result = next.get();
+			if (i + 1 < FRAMES) {
+				next = mAsyncDevice.transceive(PAYLOAD, 0, PAYLOAD.length, true, mResults[(i + 1) & 1]);
+			}
+			total += process(result);
+		}
+		return total;
+	}
+
+	private int process(TransceiveResult result) {
+		Blackhole.consumeCPU(hostWork);
+		return result.getLength();
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An emulated Type 2 tag read page after page by an external reader, the simulator paced in real
+ * time. The reader sends each READ as soon as the previous response is over, so the score, in
+ * frames per second, is the inverse of the sum of command air time (302 us), reader guard time
+ * (100 us), response air time (1.36 ms) and the turnaround, which is mostly the host's SPI
+ * traffic at {@code spiFrequencyHz}. {@code timeouts} counts READs the reader gave up on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CardEmulationBenchmark {
+
+	@Param({"250000", "1000000", "4000000"})
+	public int spiFrequencyHz;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class TimeoutCounter {
+		public long timeouts;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			timeouts = 0;
+		}
+	}
+
+	private static final byte[] NFCID1 = { 0x12, 0x34, 0x56 };
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private CardEmulator mEmulator;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mDevice.setSpiFrequency(spiFrequencyHz);
+		mEmulator = CardEmulator.type2Tag(mDevice, NFCID1, new byte[Type2TagReader.PAGE_SIZE * 64]);
+		mEmulator.start();
+		mSimulator.setExternalReader(new PageReader());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mSimulator.setExternalReader(null);
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public boolean serve(TimeoutCounter counter) throws IOException {
+		final long timeouts = mSimulator.getReaderTimeoutCount();
+		final boolean served = mEmulator.serve(100);
+		counter.timeouts += mSimulator.getReaderTimeoutCount() - timeouts;
+		return served;
+	}
+
+	/**
+	 * Activates the card, then READs pages 0-60 round and round.
+	 */
+	private static class PageReader implements VirtualReader {
+
+		private int mStep;
+
+		@Override
+		public int nextCommand(byte[] response, int responseBits, long turnaroundNanos, byte[] command) {
+			final int step = mStep++;
+			switch (step) {
+				case 0:
+					command[0] = MiFareDevice.Command.WUPA;
+					return 7;
+				case 1:
+					command[0] = (byte) 0x93;
+					command[1] = 0x20;
+					return 16;
+				case 2:
+					command[0] = (byte) 0x93;
+					command[1] = 0x70;
+					command[2] = 0x08;
+					System.arraycopy(NFCID1, 0, command, 3, 3);
+					command[6] = (byte) (0x08 ^ NFCID1[0] ^ NFCID1[1] ^ NFCID1[2]);
+					return Pn512Simulator.appendCrcA(command, 7) * 8;
+				default:
+					command[0] = MiFareDevice.Command.READ;
+					command[1] = (byte) ((step - 3) * 4 % 64);
+					return Pn512Simulator.appendCrcA(command, 2) * 8;
+			}
+		}
+
+	}
+
+}
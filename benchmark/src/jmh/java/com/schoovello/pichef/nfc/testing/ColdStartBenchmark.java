@@ -0,0 +1,83 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from a freshly powered reader to the end of its first successful poll, with the simulator
+ * paced in real time at the default SPI clock. {@code selfTestAndReset} is the bring-up the app
+ * used to do; {@code profile} is {@link Pn512NfcDevice#initialize(InitProfile)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColdStartBenchmark {
+
+	private static final byte[] UID = { (byte) 0x04, (byte) 0xa1, (byte) 0x3b, (byte) 0x72 };
+	private static final byte[] ATQA = { (byte) 0x44, (byte) 0x00 };
+
+	@Param({"0", "50000"})
+	public long spiOverheadNanos;
+
+	private final InitProfile mProfile = InitProfile.iso14443aReader();
+	private final Iso14443aCard mCard = new Iso14443aCard();
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Iso14443aReader mReader;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = spiOverheadNanos;
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mSimulator.addTag(new Iso14443aTag(UID, ATQA, (byte) 0x00));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mReader = new Iso14443aReader(mDevice);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public boolean selfTestAndReset() throws IOException {
+		mDevice.softReset();
+		if (!mDevice.selfTest()) {
+			throw new IllegalStateException("self test failed");
+		}
+		mDevice.softReset();
+		return firstPoll();
+	}
+
+	@Benchmark
+	public boolean profile() throws IOException {
+		mDevice.initialize(mProfile);
+		return firstPoll();
+	}
+
+	private boolean firstPoll() throws IOException {
+		if (!mReader.activate(mCard)) {
+			throw new IllegalStateException("card not activated");
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC_A over frames of various lengths: host-side table lookup, bit-by-bit, and the PN512
+ * coprocessor (including the SPI traffic it needs).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CrcBenchmark {
+
+	@Param({"2", "16", "64", "256"})
+	public int frameLength;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private byte[] mData;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.softReset();
+
+		mData = new byte[frameLength];
+		new Random(42).nextBytes(mData);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public int host() {
+		return Crc16.CRC_A.compute(mData, 0, frameLength);
+	}
+
+	@Benchmark
+	public int hostBitwise() {
+		return Pn512Simulator.crcA(mData, 0, frameLength);
+	}
+
+	@Benchmark
+	public int coprocessor(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		int crc = mDevice.calculateCrcOnChip(Crc16.CRC_A, mData, 0, frameLength);
+		counters.end(mSimulator);
+		return crc;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FeliCa polling of a field holding {@code cardCount} cards at 212 kbps, the simulator paced in
+ * real time, with {@code timeSlots} slots per request. The score is polls per second and the
+ * {@code cards} counter the rate of cards found, so their ratio is the number of cards each poll
+ * detects; {@code collisions} counts the slots lost to two cards picking the same one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FelicaPollingBenchmark {
+
+	@Param({"1", "4", "8"})
+	public int cardCount;
+
+	@Param({"1", "4", "16"})
+	public int timeSlots;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class CardCounter {
+		public long cards;
+		public long collisions;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			cards = 0;
+			collisions = 0;
+		}
+	}
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private FelicaReader mReader;
+	private final FelicaCard[] mCards = new FelicaCard[FelicaReader.MAX_TIME_SLOTS];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		for (int i = 0; i < cardCount; i++) {
+			byte[] idm = { 0x01, 0x2e, 0x4c, (byte) 0xd1, 0x1a, 0x0b, (byte) (i >> 8), (byte) i };
+			mSimulator.addTag(FelicaTag.standard(idm, 0x0003));
+		}
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.initialize(InitProfile.felicaReader(Pn512NfcDevice.BitRate.KBPS_212));
+		mReader = new FelicaReader(mDevice);
+		for (int i = 0; i < mCards.length; i++) {
+			mCards[i] = new FelicaCard();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public int poll(CardCounter counter) throws IOException {
+		final long collisions = mReader.getCollisionCount();
+		final int found = mReader.poll(FelicaReader.SYSTEM_CODE_ANY, FelicaReader.RequestCode.NONE, timeSlots, mCards);
+		counter.cards += found;
+		counter.collisions += mReader.getCollisionCount() - collisions;
+		return found;
+	}
+
+}
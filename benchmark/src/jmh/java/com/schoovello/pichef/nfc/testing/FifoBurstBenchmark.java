@@ -0,0 +1,66 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FIFO write and read-back bursts of 1 to 64 bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FifoBurstBenchmark {
+
+	@Param({"0", "50000"})
+	public long spiOverheadNanos;
+
+	@Param({"1", "16", "64"})
+	public int burstLength;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private byte[] mData;
+	private byte[] mResult;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = spiOverheadNanos;
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.softReset();
+
+		mData = new byte[burstLength];
+		Arrays.fill(mData, (byte) 0x5a);
+		mResult = new byte[burstLength];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public byte[] writeAndReadFifo(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		mDevice.writeFifo(mData);
+		mDevice.readFifo(mResult, 0, burstLength);
+		counters.end(mSimulator);
+		return mResult;
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full inventory of a field holding {@code tagCount} cards with random 4 and 7-byte UIDs, which
+ * collide during anticollision. The {@code tags} counter is the rate of tags inventoried.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InventoryBenchmark {
+
+	@Param({"0", "50000"})
+	public long spiOverheadNanos;
+
+	@Param({"1", "4", "16"})
+	public int tagCount;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class TagCounter {
+		public long tags;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tags = 0;
+		}
+	}
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Iso14443aReader mReader;
+	private Iso14443aCard[] mCards;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = spiOverheadNanos;
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		Random random = new Random(42);
+		for (int i = 0; i < tagCount; i++) {
+			byte[] uid = new byte[i % 2 == 0 ? 4 : 7];
+			random.nextBytes(uid);
+			uid[0] &= 0x7f; // never the cascade tag
+			mSimulator.addTag(new Iso14443aTag(uid, new byte[] { 0x04, 0x00 }, (byte) 0x08));
+		}
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		mReader = new Iso14443aReader(mDevice);
+
+		mCards = new Iso14443aCard[tagCount];
+		for (int i = 0; i < tagCount; i++) {
+			mCards[i] = new Iso14443aCard();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public int inventory(TagCounter tagCounter, SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		int found = mReader.inventory(mCards);
+		counters.end(mSimulator);
+		tagCounter.tags += found;
+		return found;
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * APDU round trips with a DESFire-like card, the simulator paced in real time, at each bit rate
+ * PPS can agree on: {@code select} is a 13-byte command with a 2-byte answer, and
+ * {@code read1k} a 5-byte command answered by 1 KiB of data, chained over 17 frames of 64 bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IsoDepBenchmark {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] SELECT_APPLICATION = {
+			0x00, (byte) 0xa4, 0x04, 0x00, 0x07, (byte) 0xd2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01, 0x00
+	};
+	private static final byte[] READ_BINARY = { 0x00, (byte) 0xb0, 0x00, 0x00, 0x00 };
+	private static final int READ_LENGTH = 1024;
+
+	/**
+	 * {@link Pn512NfcDevice.BitRate}: 106, 212, 424 and 848 kbps.
+	 */
+	@Param({"0", "1", "2", "3"})
+	public int bitRate;
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mResponse = new byte[READ_LENGTH + 2];
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private IsoDepReader mReader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		IsoDepTag tag = IsoDepTag.desfire(UID);
+		tag.setApplication(new IsoDepTag.Application() {
+			@Override
+			public int onApdu(byte[] command, int length, byte[] response) {
+				int dataLength = command[1] == READ_BINARY[1] ? READ_LENGTH : 0;
+				for (int i = 0; i < dataLength; i++) {
+					response[i] = (byte) i;
+				}
+				response[dataLength] = (byte) 0x90;
+				response[dataLength + 1] = 0x00;
+				return dataLength + 2;
+			}
+		});
+		mSimulator.addTag(tag);
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.setSpiFrequency(4_000_000);
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new IsoDepReader(mDevice);
+		mReader.setMaxBitRate(bitRate);
+		if (!mReader.activate(mCard) || mReader.getRxBitRate() != bitRate) {
+			throw new IllegalStateException("card not activated at bit rate " + bitRate);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mReader.deselect();
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public int select() throws IOException {
+		return check(mReader.transceive(SELECT_APPLICATION, 0, SELECT_APPLICATION.length, mResponse, 0), 2);
+	}
+
+	@Benchmark
+	public int read1k() throws IOException {
+		return check(mReader.transceive(READ_BINARY, 0, READ_BINARY.length, mResponse, 0), READ_LENGTH + 2);
+	}
+
+	private static int check(int length, int expected) {
+		if (length != expected) {
+			throw new IllegalStateException("received " + length + " bytes");
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host CPU cost of {@link DeviceMetrics}. The simulator isn't paced in real time here, so the
+ * score is the driver's own time per operation, and the difference between {@code metrics=true}
+ * and {@code metrics=false} is the instrumentation overhead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsOverheadBenchmark {
+
+	@Param({"true", "false"})
+	public boolean metrics;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Iso14443aReader mReader;
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mCrcInput = new byte[16];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mSimulator = new Pn512Simulator();
+		mSimulator.addTag(new Iso14443aTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 },
+				new byte[] { 0x44, 0x00 }, (byte) 0x00));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		mDevice.getMetrics().setEnabled(metrics);
+		mReader = new Iso14443aReader(mDevice);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public boolean activateAndHalt() throws IOException {
+		boolean activated = mReader.activate(mCard);
+		mReader.halt();
+		return activated;
+	}
+
+	@Benchmark
+	public int coprocessorCrc() throws IOException {
+		return mDevice.calculateCrcOnChip(Crc16.CRC_A, mCrcInput, 0, mCrcInput.length);
+	}
+
+}
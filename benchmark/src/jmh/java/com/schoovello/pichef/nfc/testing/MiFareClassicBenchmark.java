@@ -0,0 +1,82 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read a whole MIFARE Classic 1K card, activation and halt included, with the simulator
+ * paced in real time. {@code cold} reads a card the reader has never seen, {@code cached} one it
+ * read before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MiFareClassicBenchmark {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	@Param({"250000", "4000000"})
+	public int spiFrequencyHz;
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mData = new byte[MiFareClassicReader.CARD_SIZE];
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private MiFareClassicReader mReader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		mSimulator.addTag(new MiFareClassicTag(UID));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.setSpiFrequency(spiFrequencyHz);
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new MiFareClassicReader(mDevice);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public int cold() throws IOException {
+		mReader.clearCache();
+		return readCard();
+	}
+
+	@Benchmark
+	public int cached() throws IOException {
+		return readCard();
+	}
+
+	private int readCard() throws IOException {
+		if (!mReader.activate(mCard)) {
+			throw new IllegalStateException("card not activated");
+		}
+		final int sectors = mReader.readCard(mCard, mData);
+		mReader.halt();
+		if (sectors != 0xffff) {
+			throw new IllegalStateException("sectors read: " + Integer.toHexString(sectors));
+		}
+		return sectors;
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing an NDEF message of four records out of Type 2 tag memory: {@code whole} with all of it
+ * in the buffer, {@code pageByPage} fed 4 bytes at a time as it would arrive from READ.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NdefParserBenchmark {
+
+	private static final int RECORDS = 4;
+
+	/**
+	 * Payload bytes in the message.
+	 */
+	@Param({"32", "256", "4096"})
+	public int messageSize;
+
+	private final NdefParser mParser = new NdefParser(RECORDS);
+	private byte[] mTag;
+
+	@Setup
+	public void setUp() {
+		final int payloadLength = messageSize / RECORDS;
+		// header, type length, 4-byte payload length, 1-byte type, payload
+		final int recordLength = 7 + payloadLength;
+		final int messageLength = RECORDS * recordLength;
+		mTag = new byte[NdefParser.TYPE_2_TLV_OFFSET + 4 + messageLength + 1];
+
+		int p = NdefParser.TYPE_2_TLV_OFFSET;
+		mTag[p++] = NdefParser.TlvType.NDEF;
+		mTag[p++] = (byte) 0xff;
+		mTag[p++] = (byte) (messageLength >> 8);
+		mTag[p++] = (byte) messageLength;
+		for (int i = 0; i < RECORDS; i++) {
+			int header = NdefParser.Tnf.WELL_KNOWN;
+			if (i == 0) {
+				header |= 0x80;
+			}
+			if (i == RECORDS - 1) {
+				header |= 0x40;
+			}
+			mTag[p++] = (byte) header;
+			mTag[p++] = 1;
+			mTag[p++] = (byte) (payloadLength >>> 24);
+			mTag[p++] = (byte) (payloadLength >>> 16);
+			mTag[p++] = (byte) (payloadLength >>> 8);
+			mTag[p++] = (byte) payloadLength;
+			mTag[p++] = 'U';
+			p += payloadLength;
+		}
+		mTag[p] = NdefParser.TlvType.TERMINATOR;
+
+		if (whole() != NdefParser.Status.COMPLETE) {
+			throw new IllegalStateException("message not parsed");
+		}
+	}
+
+	@Benchmark
+	public int whole() {
+		mParser.reset(NdefParser.TYPE_2_TLV_OFFSET);
+		return mParser.parse(mTag, mTag.length);
+	}
+
+	@Benchmark
+	public int pageByPage() {
+		mParser.reset(NdefParser.TYPE_2_TLV_OFFSET);
+		int length = NdefParser.TYPE_2_TLV_OFFSET;
+		int status;
+		while ((status = mParser.parse(mTag, length)) == NdefParser.Status.NEED_MORE) {
+			length += Type2TagReader.PAGE_SIZE;
+		}
+		return status;
+	}
+
+}
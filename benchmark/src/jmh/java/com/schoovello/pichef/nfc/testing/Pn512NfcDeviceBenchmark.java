@@ -0,0 +1,108 @@
+package com.schoovello.pichef.nfc.testing;
+
+import com.schoovello.pichef.nfc.testing.Pn512NfcDevice.RegisterAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Driver hot paths against a simulator paced in real time, so SPI wire time and the injected
+ * per-transfer latency are paid like on hardware. {@code spiFrequencyHz} compares the default
+ * clock with a trained one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class Pn512NfcDeviceBenchmark {
+
+	private static final byte[] UID = { (byte) 0x04, (byte) 0xa1, (byte) 0x3b, (byte) 0x72 };
+	private static final byte[] ATQA = { (byte) 0x44, (byte) 0x00 };
+
+	/**
+	 * Fixed cost per SPI transfer, e.g. the binder round trip on Android Things.
+	 */
+	@Param({"0", "50000"})
+	public long spiOverheadNanos;
+
+	@Param({"250000", "8000000"})
+	public int spiFrequencyHz;
+
+	private Pn512Simulator mSimulator;
+	private Iso14443aTag mTag;
+	private Pn512NfcDevice mDevice;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = spiOverheadNanos;
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mTag = new Iso14443aTag(UID, ATQA, (byte) 0x00);
+		mSimulator.addTag(mTag);
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setSpiFrequency(spiFrequencyHz);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public byte readRegister(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		byte value = mDevice.readRegister(RegisterAddress.COMM_IRQ_REG);
+		counters.end(mSimulator);
+		return value;
+	}
+
+	@Benchmark
+	public byte readShadowedRegister(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		byte value = mDevice.readRegister(RegisterAddress.MODE_REG);
+		counters.end(mSimulator);
+		return value;
+	}
+
+	@Benchmark
+	public void writeRegister(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		mDevice.writeRegister(RegisterAddress.WATER_LEVEL_REG, (byte) 0x08);
+		counters.end(mSimulator);
+	}
+
+	@Benchmark
+	public boolean crc(SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		boolean valid = mDevice.testCrc();
+		counters.end(mSimulator);
+		return valid;
+	}
+
+	@Benchmark
+	public boolean activate(SpiCounters counters) throws IOException {
+		// a woken card ignores further WUPAs, so present a fresh card each time
+		mTag.onFieldChanged(true);
+
+		counters.begin(mSimulator);
+		boolean activated = mDevice.tryActivateMiFare();
+		counters.end(mSimulator);
+		return activated;
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate card reads per second of a {@link ReaderPool} polling back to back, with a card on
+ * every antenna. Transfers block like SPI calls on hardware rather than spinning, so the readers
+ * don't compete for CPU and the result shows bus contention only: the {@code reads} rate should
+ * scale with {@code buses}, and readers sharing a bus should get more than one reader's worth out
+ * of it by using each other's RF time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class ReaderPoolBenchmark {
+
+	private static final long WINDOW_MS = 50;
+
+	@Param({"1", "2", "4"})
+	public int buses;
+
+	@Param({"1", "2"})
+	public int readersPerBus;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class ReadCounter {
+		public long reads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			reads = 0;
+		}
+	}
+
+	private final List<Pn512Simulator> mSimulators = new ArrayList<>();
+	private ReaderPool mPool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mPool = new ReaderPool();
+		for (int bus = 0; bus < buses; bus++) {
+			for (int i = 0; i < readersPerBus; i++) {
+				SimulatorTiming timing = new SimulatorTiming();
+				timing.realTime = true;
+				timing.blockingTransfers = true;
+				Pn512Simulator simulator = new Pn512Simulator(timing);
+				simulator.addTag(new Iso14443aTag(new byte[] { 1, 2, (byte) bus, (byte) i },
+						new byte[] { 0x04, 0x00 }, (byte) 0x08));
+				mSimulators.add(simulator);
+				mPool.addReader("SPI" + bus, simulator, simulator.getIrqLine());
+			}
+		}
+		mPool.setIntervals(1, 1, 1, 0);
+		mPool.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mPool.close();
+		for (Pn512Simulator simulator : mSimulators) {
+			simulator.close();
+		}
+		mSimulators.clear();
+	}
+
+	/**
+	 * Lets the pool run for a while; the {@code reads} counter is the aggregate read rate.
+	 */
+	@Benchmark
+	public long poll(ReadCounter counter) throws InterruptedException {
+		long startReads = mPool.getReadCount();
+		Thread.sleep(WINDOW_MS);
+		long reads = mPool.getReadCount() - startReads;
+		counter.reads += reads;
+		return reads;
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * SPI traffic seen by the simulator during a measurement iteration. Divide by {@link #operations}
+ * for per-operation figures.
+ */
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class SpiCounters {
+
+	public long operations;
+	public long spiTransfers;
+	public long spiBytes;
+
+	private long mTransfersBefore;
+	private long mBytesBefore;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		operations = 0;
+		spiTransfers = 0;
+		spiBytes = 0;
+	}
+
+	void begin(Pn512Simulator simulator) {
+		mTransfersBefore = simulator.getTransferCount();
+		mBytesBefore = simulator.getBytesTransferred();
+	}
+
+	void end(Pn512Simulator simulator) {
+		operations++;
+		spiTransfers += simulator.getTransferCount() - mTransfersBefore;
+		spiBytes += simulator.getBytesTransferred() - mBytesBefore;
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One reader session (activate, then an exchange) against the simulator paced in real time:
+ * {@code live} on its own, {@code recording} through a {@link SpiRecorder}, and {@code replay}
+ * played back from a recording with no simulator at all. The replay still sleeps through the
+ * reader's field reset, which sets its floor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpiReplayBenchmark {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final byte[] FRAME = { 0x30, 0x04, 0x10, 0x20 };
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final TransceiveResult mResult = new TransceiveResult();
+
+	private ByteBuffer mLog;
+	private SpiReplayPort mReplay;
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mLiveDevice;
+	private Pn512NfcDevice mRecordingDevice;
+	private Pn512NfcDevice mReplayDevice;
+
+	@Setup(Level.Trial)
+	public void record() throws IOException {
+		mLog = ByteBuffer.allocateDirect(1024 * 1024);
+		Pn512Simulator simulator = newSimulator();
+		SpiRecorder recorder = new SpiRecorder(simulator, mLog);
+		Pn512NfcDevice device = new Pn512NfcDevice(recorder);
+		device.setClock(recorder);
+		session(device);
+		simulator.close();
+		mReplay = new SpiReplayPort(mLog);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		mSimulator = newSimulator();
+		mLiveDevice = new Pn512NfcDevice(mSimulator);
+
+		SpiRecorder recorder = new SpiRecorder(mSimulator, mLog.duplicate());
+		mRecordingDevice = new Pn512NfcDevice(recorder);
+		mRecordingDevice.setClock(recorder);
+
+		mReplay.rewind();
+		mReplayDevice = new Pn512NfcDevice(mReplay);
+		mReplayDevice.setClock(mReplay);
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public TransceiveResult live() throws IOException {
+		return session(mLiveDevice);
+	}
+
+	@Benchmark
+	public TransceiveResult recording() throws IOException {
+		return session(mRecordingDevice);
+	}
+
+	@Benchmark
+	public TransceiveResult replay() throws IOException {
+		session(mReplayDevice);
+		if (!mReplay.isFinished()) {
+			throw new IllegalStateException("replay incomplete");
+		}
+		return mResult;
+	}
+
+	private static Pn512Simulator newSimulator() {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		Pn512Simulator simulator = new Pn512Simulator(timing);
+		simulator.addTag(new EchoTag(UID));
+		return simulator;
+	}
+
+	private TransceiveResult session(Pn512NfcDevice device) throws IOException {
+		if (!new Iso14443aReader(device).activate(mCard)) {
+			throw new IllegalStateException("card not activated");
+		}
+		device.transceive(FRAME, 0, FRAME.length, true, mResult);
+		if (!mResult.isOk()) {
+			throw new IllegalStateException("exchange failed: " + mResult.getStatus());
+		}
+		return mResult;
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echoes {@code payloadLength} bytes off a selected card, either in one exchange streamed
+ * through the FIFO or split into exchanges that fit in it. The {@code payloadBytes} counter is the
+ * rate of payload bytes that made the round trip; 106 kbps caps it at about 6.6 kB/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamingTransceiveBenchmark {
+
+	/**
+	 * Largest payload that, with its CRC, fits in the FIFO.
+	 */
+	private static final int CHUNK_LENGTH = Pn512NfcDevice.Values.FIFO_SIZE - 2;
+
+	@Param({"0", "50000"})
+	public long spiOverheadNanos;
+
+	@Param({"62", "250"})
+	public int payloadLength;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class ByteCounter {
+		public long payloadBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			payloadBytes = 0;
+		}
+	}
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private byte[] mPayload;
+	private final TransceiveResult mResult = new TransceiveResult(256);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.spiOverheadNanos = spiOverheadNanos;
+		timing.realTime = true;
+
+		mSimulator = new Pn512Simulator(timing);
+		mSimulator.addTag(new EchoTag(new byte[] { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 }));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.softReset();
+		if (!new Iso14443aReader(mDevice).activate(new Iso14443aCard())) {
+			throw new IllegalStateException("card not activated");
+		}
+
+		mPayload = new byte[payloadLength];
+		for (int i = 0; i < payloadLength; i++) {
+			mPayload[i] = (byte) i;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+	}
+
+	@Benchmark
+	public int streamed(ByteCounter byteCounter, SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		mDevice.transceive(mPayload, 0, payloadLength, true, mResult);
+		counters.end(mSimulator);
+		return count(byteCounter);
+	}
+
+	@Benchmark
+	public int chunked(ByteCounter byteCounter, SpiCounters counters) throws IOException {
+		counters.begin(mSimulator);
+		int total = 0;
+		for (int offset = 0; offset < payloadLength; offset += CHUNK_LENGTH) {
+			mDevice.transceive(mPayload, offset, Math.min(CHUNK_LENGTH, payloadLength - offset), true, mResult);
+			total += count(byteCounter);
+		}
+		counters.end(mSimulator);
+		return total;
+	}
+
+	private int count(ByteCounter byteCounter) {
+		if (mResult.isOk()) {
+			byteCounter.payloadBytes += mResult.getLength();
+			return mResult.getLength();
+		}
+		return 0;
+	}
+
+}
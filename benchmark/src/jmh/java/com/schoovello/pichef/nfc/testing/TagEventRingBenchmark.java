@@ -0,0 +1,135 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tag events from the benchmark thread, standing in for the polling thread, to a consumer thread
+ * waiting with {@code waitStrategy}.<p/>
+ * {@link #publish} publishes as fast as it can: the score is events offered per second, and the
+ * {@code consumed} and {@code dropped} counters show how many the consumer kept up with.
+ * {@link #roundTrip} publishes one event and waits for the consumer to have handled it, which
+ * gives the end-to-end latency. A busy-spinning consumer needs a CPU of its own; sharing one with
+ * the producer, it spends whole time slices spinning.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TagEventRingBenchmark {
+
+	@Param({"BUSY_SPIN", "YIELDING", "BLOCKING"})
+	public String waitStrategy;
+
+	@Param({"1024"})
+	public int capacity;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class EventCounter {
+		public long consumed;
+		public long dropped;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			consumed = 0;
+			dropped = 0;
+		}
+	}
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private TagEventRing mRing;
+	private TagEventRing.Consumer mConsumer;
+	private Thread mConsumerThread;
+	private volatile boolean mRunning;
+	private long mEventCount;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mCard.mUidLength = 7;
+		mCard.mUid[0] = 0x04;
+		mCard.mSak = 0x00;
+		mCard.mAtqa[0] = 0x44;
+
+		mRing = new TagEventRing(capacity);
+		final TagEventRing.WaitStrategy strategy;
+		switch (waitStrategy) {
+			case "BUSY_SPIN":
+				strategy = new TagEventRing.BusySpinWaitStrategy();
+				break;
+			case "YIELDING":
+				strategy = new TagEventRing.YieldingWaitStrategy();
+				break;
+			default:
+				strategy = new TagEventRing.BlockingWaitStrategy();
+				break;
+		}
+		mConsumer = mRing.newConsumer(strategy);
+
+		final TagEventRing.EventHandler handler = new TagEventRing.EventHandler() {
+			long mUidKeys;
+
+			@Override
+			public void onEvent(TagEvent event, long sequence, boolean endOfBatch) {
+				mUidKeys += event.getUidKey();
+			}
+		};
+		mRunning = true;
+		mConsumerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (mRunning) {
+						mConsumer.process(handler, 10, TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException e) {
+					// stopping
+				}
+			}
+		}, "TagEventConsumer");
+		mConsumerThread.setDaemon(true);
+		mConsumerThread.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		mRunning = false;
+		mConsumerThread.interrupt();
+		mConsumerThread.join();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	public boolean publish(EventCounter counter) {
+		final long consumed = mConsumer.getConsumedCount();
+		mCard.mUid[6] = (byte) mEventCount++;
+		final boolean published = mRing.publish(TagEvent.Type.ARRIVED, 0, mCard, System.nanoTime(), null);
+		if (!published) {
+			counter.dropped++;
+		}
+		counter.consumed += mConsumer.getConsumedCount() - consumed;
+		return published;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public long roundTrip() {
+		mCard.mUid[6] = (byte) mEventCount++;
+		mRing.publish(TagEvent.Type.ARRIVED, 0, mCard, System.nanoTime(), null);
+		final long published = mRing.getCursor();
+		while (mConsumer.getLag() > 0) {
+			Thread.yield();
+		}
+		return published;
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read all 231 pages of an NTAG216, activation and halt included, with the simulator
+ * paced in real time: {@code READ} 4 pages at a time, {@code FAST_READ_FIFO} 16 pages at a time so
+ * each response fits in the FIFO, and {@code FAST_READ} the whole tag streamed in one response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Type2TagBenchmark {
+
+	private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+	private static final int PAGES = 231;
+
+	@Param({"READ", "FAST_READ_FIFO", "FAST_READ"})
+	public String mode;
+
+	@Param({"250000", "4000000"})
+	public int spiFrequencyHz;
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final byte[] mData = new byte[PAGES * Type2TagReader.PAGE_SIZE];
+
+	private Pn512Simulator mSimulator;
+	private Pn512NfcDevice mDevice;
+	private Type2TagReader mReader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SimulatorTiming timing = new SimulatorTiming();
+		timing.realTime = true;
+		mSimulator = new Pn512Simulator(timing);
+		// the same memory, with or without GET_VERSION; the capability container of the former
+		// only covers 230 pages
+		mSimulator.addTag("READ".equals(mode) ? Type2Tag.readOnly(UID, PAGES) : Type2Tag.ntag216(UID));
+
+		mDevice = new Pn512NfcDevice(mSimulator);
+		mDevice.setIrqLine(mSimulator.getIrqLine());
+		mDevice.setSpiFrequency(spiFrequencyHz);
+		mDevice.initialize(InitProfile.iso14443aReader());
+		mReader = new Type2TagReader(mDevice);
+		if ("FAST_READ_FIFO".equals(mode)) {
+			mReader.setMaxPagesPerRead(Type2TagReader.FIFO_PAGES);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDevice.close();
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public int readTag() throws IOException {
+		if (!mReader.activate(mCard)) {
+			throw new IllegalStateException("tag not activated");
+		}
+		final int length = mReader.readTag(mData, 0);
+		mReader.halt();
+		if (length != mReader.getPageCount() * Type2TagReader.PAGE_SIZE) {
+			throw new IllegalStateException("read " + length + " bytes");
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.schoovello.pichef.nfc.testing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link UidPresenceCache} on the polling thread: {@code present} is a card that stays on
+ * the antenna, {@code churn} a stream of distinct cards that each arrive and depart, and
+ * {@code evict} a stream of distinct cards into a full cache whose entries never expire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UidPresenceCacheBenchmark {
+
+	private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	@Param({"64", "4096"})
+	public int maxEntries;
+
+	private final Iso14443aCard mCard = new Iso14443aCard();
+	private final Iso14443aCard[] mDeparted = new Iso14443aCard[8];
+
+	private UidPresenceCache mCache;
+	private UidPresenceCache mFullCache;
+	private long mNowNanos;
+	private int mNextUid;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < mDeparted.length; i++) {
+			mDeparted[i] = new Iso14443aCard();
+		}
+		// about as many cards present at once as the cache holds
+		mCache = new UidPresenceCache(maxEntries, maxEntries * 5 / 2, 0);
+		mFullCache = new UidPresenceCache(maxEntries, TimeUnit.DAYS.toMillis(1), 0);
+		mCard.mUidLength = 7;
+		mCard.mUid[0] = 0x04;
+		for (int i = 0; i < maxEntries; i++) {
+			nextUid();
+			mCache.onSeen(mCard, 0);
+			mFullCache.onSeen(mCard, 0);
+		}
+	}
+
+	@Benchmark
+	public boolean present() {
+		mNowNanos += POLL_NANOS;
+		mCache.collectDepartures(mNowNanos, mDeparted);
+		return mCache.onSeen(mCard, mNowNanos);
+	}
+
+	@Benchmark
+	public boolean churn() {
+		mNowNanos += POLL_NANOS;
+		mCache.collectDepartures(mNowNanos, mDeparted);
+		nextUid();
+		return mCache.onSeen(mCard, mNowNanos);
+	}
+
+	@Benchmark
+	public boolean evict() {
+		nextUid();
+		return mFullCache.onSeen(mCard, 0);
+	}
+
+	private void nextUid() {
+		final int uid = mNextUid++;
+		mCard.mUid[3] = (byte) (uid >> 24);
+		mCard.mUid[4] = (byte) (uid >> 16);
+		mCard.mUid[5] = (byte) (uid >> 8);
+		mCard.mUid[6] = (byte) uid;
+	}
+
+}